@@ -19,6 +19,7 @@ public class AndroidDeviceResetter
 {
 
     private DefaultManager _manager;
+    private final String _deviceAddress;
     private final McuMgrBleTransport _transport;
 
     /**
@@ -29,6 +30,7 @@ public class AndroidDeviceResetter
      */
     public AndroidDeviceResetter(@NonNull final Context context, @NonNull final BluetoothDevice bluetoothDevice)
     {
+        _deviceAddress = bluetoothDevice.getAddress();
         _transport = new McuMgrBleTransport(context, bluetoothDevice);
     }
 
@@ -48,11 +50,13 @@ public class AndroidDeviceResetter
             setState(EAndroidDeviceResetterState.RESETTING); //order
 
             AndroidDeviceResetter self = this;
-            _manager.reset(new McuMgrCallback<McuMgrOsResponse>()
+            TransferPreemptionScheduler.runPreemptively(_deviceAddress, onCompleted -> _manager.reset(new McuMgrCallback<McuMgrOsResponse>() //00
             {
                 @Override
                 public void onResponse(@NotNull final McuMgrOsResponse response)
                 {
+                    onCompleted.run(); //order
+
                     if (!response.isSuccess())
                     { // check for an error return code
                         self.onError("[ADR.BR.002] Reset failed (error-code '" + response.getReturnCode().toString() + "')", response.getReturnCode(), response.getGroupReturnCode());
@@ -65,9 +69,11 @@ public class AndroidDeviceResetter
                 @Override
                 public void onError(@NotNull final McuMgrException exception)
                 {
+                    onCompleted.run(); //order
+
                     self.onError("[ADR.BR.005] Reset failed '" + exception.getMessage() + "'", exception);
                 }
-            });
+            }), this::transfersPreemptedAdvertisement);
         }
         catch (final Exception ex)
         {
@@ -76,6 +82,9 @@ public class AndroidDeviceResetter
         }
 
         return EAndroidDeviceResetterInitializationVerdict.SUCCESS;
+
+        //00   any file-transfer towards the same device gets paused for as long as the reset-command takes so that the command doesn't
+        //     have to wait in line behind the chunks of the transfer   the transfer gets resumed right after (if the device is still around)
     }
 
     public void disconnect()
@@ -173,4 +182,10 @@ public class AndroidDeviceResetter
         //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
     }
 
+    @Contract(pure = true)
+    public void transfersPreemptedAdvertisement(final int preemptedTransfersCount, final long preemptionDurationInMs)
+    {
+        //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
+    }
+
 }
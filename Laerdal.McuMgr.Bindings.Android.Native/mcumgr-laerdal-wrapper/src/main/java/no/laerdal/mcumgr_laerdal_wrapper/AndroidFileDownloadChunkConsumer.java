@@ -0,0 +1,24 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives the chunks of a download as they arrive (see AndroidFileDownloader.trySetChunkConsumer()) so that the downloaded data can be parsed
+ * while the transfer is still in progress. All methods get invoked on a dedicated worker thread of the download - never on the ble thread - and
+ * the chunks arrive strictly in order and without gaps.
+ */
+public interface AndroidFileDownloadChunkConsumer
+{
+    /**
+     * @param offset the offset of the chunk relative to the start of the download (the start of the range for downloads of ranges)
+     * @param data   the bytes of the chunk - the consumer is free to hold on to the array
+     */
+    void onChunk(final long offset, @NonNull final byte[] data) throws Exception;
+
+    /**
+     * Gets invoked (once) after the last chunk has been consumed - or as soon as the download fails or gets cancelled.
+     *
+     * @param isDownloadComplete true if every single chunk of the download has been consumed
+     */
+    void onDownloadEnded(final boolean isDownloadComplete);
+}
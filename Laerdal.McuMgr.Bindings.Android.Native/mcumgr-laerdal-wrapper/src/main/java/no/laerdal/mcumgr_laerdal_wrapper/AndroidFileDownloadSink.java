@@ -0,0 +1,138 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The destination that AndroidFileDownloader writes the downloaded data into. Each chunk gets written as soon as it arrives so that the peak
+ * memory consumption stays constant no matter how big the remote file is - the data never get accumulated in memory.
+ * <p>
+ * Note that the downloader takes ownership of the sink and closes it as soon as the download completes, fails or gets cancelled.
+ */
+public abstract class AndroidFileDownloadSink implements Closeable
+{
+    static final byte[] NO_DATA = new byte[0];
+
+    AndroidFileDownloadSink() //package-private so that the calling environment can only use the factory methods below
+    {
+    }
+
+    /**
+     * Gets invoked as soon as the size of the remote file becomes known (before the first chunk gets written) so that the sink can size itself accordingly.
+     */
+    void onTotalLengthKnown(final long totalLength) throws IOException
+    {
+        //by default there is nothing to prepare   sinks of a fixed capacity override this to ensure that the file fits
+    }
+
+    /**
+     * Copies the given bytes into the sink at the given 'offset' of the remote file. The chunks arrive strictly in order - the only exception being
+     * the blocks that fail the integrity check of the download and get fetched anew (which only ever happens to sinks that support rewrites).
+     */
+    abstract void write(final long offset, @NonNull final byte[] data, final int dataOffset, final int length) throws IOException;
+
+    /**
+     * Discards anything the sink holds beyond the given length - used when a download starts (or resumes) from a given offset.
+     */
+    void truncate(final long length) throws IOException
+    {
+        //by default there is nothing to discard   sinks that write at absolute offsets simply overwrite whatever they hold
+    }
+
+    /**
+     * @return the bytes to hand over to the calling environment upon completion - sinks owned by the calling environment return no data because the
+     * calling environment has direct access to them anyway
+     */
+    byte[] getDataToHandOverUponCompletion() throws IOException
+    {
+        return NO_DATA;
+    }
+
+    /**
+     * Invokes the given callback once the sink has processed everything that has been written into it so far. The downloader calls this once the last
+     * chunk has landed and it asks for the data to hand over (see getDataToHandOverUponCompletion()) only from within the callback.
+     */
+    void runWhenDrained(@NonNull final Runnable onDrained)
+    {
+        onDrained.run(); // by default the sinks process each chunk on the spot
+    }
+
+    /**
+     * @return true if the bytes that have been written already can be overwritten at their offsets once more - false for sinks that pass the bytes on
+     * as they go (pe to an output-stream)
+     */
+    boolean supportsRewrites()
+    {
+        return true;
+    }
+
+    /**
+     * @return true if the sink wants the downloader to hold off requesting more chunks for now (pe because whoever consumes the chunks has fallen behind)
+     */
+    boolean isCongested()
+    {
+        return false;
+    }
+
+    /**
+     * @param onDecongested gets invoked whenever the sink stops being congested so that the downloader can pick up where it left off
+     */
+    void setOnDecongestedListener(final Runnable onDecongested)
+    {
+        //by default sinks never get congested
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+    }
+
+    /**
+     * @param outputStream the stream to write the downloaded bytes into - it is written strictly sequentially so downloads into it can only start from offset zero
+     */
+    public static AndroidFileDownloadSink toOutputStream(@NonNull final OutputStream outputStream)
+    {
+        return new OutputStreamFileDownloadSink(outputStream);
+    }
+
+    /**
+     * @param fileChannel a writable file-channel - the downloaded bytes get written at their respective offsets and the channel gets truncated to the size
+     *                    of the remote file
+     */
+    public static AndroidFileDownloadSink toFileChannel(@NonNull final FileChannel fileChannel)
+    {
+        return new FileChannelFileDownloadSink(fileChannel);
+    }
+
+    /**
+     * @param localFilePath the path to the local file to write the downloaded bytes into - it gets created if it doesn't exist and it gets overwritten if it does
+     */
+    public static AndroidFileDownloadSink toLocalFile(@NonNull final String localFilePath) throws IOException
+    {
+        return new FileChannelFileDownloadSink(new RandomAccessFile(localFilePath, "rw").getChannel());
+    }
+
+    /**
+     * @param localFilePath the path to the local file to write the downloaded bytes into - it gets resized to the size of the remote file and memory-mapped
+     *                      so the downloaded bytes go straight into the page-cache of the os without any write() calls
+     */
+    public static AndroidFileDownloadSink toMemoryMappedLocalFile(@NonNull final String localFilePath) throws IOException
+    {
+        return new MemoryMappedFileDownloadSink(new RandomAccessFile(localFilePath, "rw").getChannel());
+    }
+
+    /**
+     * @param buffer the downloaded bytes get written starting at the current position of the buffer (which is left untouched along with its limit) - direct
+     *               buffers are supported too and the download fails early if the remaining space of the buffer cannot hold the remote file
+     */
+    public static AndroidFileDownloadSink toByteBuffer(@NonNull final ByteBuffer buffer)
+    {
+        return new ByteBufferFileDownloadSink(buffer);
+    }
+}
@@ -3,6 +3,7 @@ package no.laerdal.mcumgr_laerdal_wrapper;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import androidx.annotation.NonNull;
+import io.runtime.mcumgr.McuMgrCallback;
 import io.runtime.mcumgr.McuMgrErrorCode;
 import io.runtime.mcumgr.ble.McuMgrBleTransport;
 import io.runtime.mcumgr.exception.McuMgrException;
@@ -14,6 +15,9 @@ import no.nordicsemi.android.ble.ConnectionPriorityRequest;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -34,12 +38,77 @@ public class AndroidFileDownloader
     private long _lastBytesSentTimestampInMs;
     private long _downloadStartTimestampInMs;
 
+    private static final long PARTIAL_LOCAL_FILE_TAIL_LENGTH_TO_VERIFY = 4 * 1024;
+
+    private static final ConcurrentHashMap<String, Boolean> PipeliningSupportPerDeviceAddress = new ConcurrentHashMap<>(); // so that we probe each device only once per process
+
+    private int _maxDownloadRequestsInFlight = 1;
+
+    private boolean _isVerifyingDownloadedData = false;
+    private boolean _isRefetchingCorruptBlocks = false;
+    private EAndroidFileDownloadCompletionVerdict _currentCompletionVerdict = EAndroidFileDownloadCompletionVerdict.DOWNLOADED;
+
+    private FileDownloadPrefetcher _prefetcher; //  null unless beginPrefetching() has been called
+
+    private AndroidFileDownloadChunkConsumer _chunkConsumer; //  null unless the caller wants to parse the chunks while they arrive
+    private long _chunkConsumerMaxBufferedBytes;
+
+    private boolean _isJournalingDownloadsOnDisk = false;
+    private TransferJournal _currentJournal; //  null unless the current download is journaled
+    private String _currentJournalKey;
+
+    private boolean _isCachingDownloads = false;
+    private long _downloadCacheMaxSizeInBytes;
+    private FileDownloadCache _currentCache; //        null unless the current download is to be stored in the cache once it completes
+    private FileDownloadCache.Key _currentCacheKey;
+
     private String _remoteFilePathSanitized = "";
     private Boolean _currentBusyState = false;
     private EAndroidFileDownloaderState _currentState = EAndroidFileDownloaderState.NONE;
 
     private final ExecutorService _backgroundExecutor = Executors.newCachedThreadPool();
 
+    private String _preemptionRegistrationDeviceAddress; // the device we are registered for with the transfer-preemption-scheduler
+    private final TransferPreemptionScheduler.PreemptibleTransfer _preemptibleTransferHandle = new TransferPreemptionScheduler.PreemptibleTransfer() //00
+    {
+        @Override
+        boolean isTransferring()
+        {
+            final EAndroidFileDownloaderState currentState = _currentState;
+
+            return currentState == EAndroidFileDownloaderState.DOWNLOADING
+                    || currentState == EAndroidFileDownloaderState.RESUMING
+                    || currentState == EAndroidFileDownloaderState.IDLE; //10
+        }
+
+        @Override
+        boolean pauseTransferController()
+        {
+            final TransferController transferController = _downloadingController;
+            if (transferController == null) // still consulting the device before the actual transfer
+                return false;
+
+            transferController.pause(); //20
+            return true;
+        }
+
+        @Override
+        void resumeTransferController()
+        {
+            final TransferController transferController = _downloadingController;
+            if (transferController == null) // finished in the meantime
+                return;
+
+            transferController.resume();
+        }
+
+        //00   a handle rather than having the class itself extend PreemptibleTransfer so that isTransferring() and friends don't leak into the public api
+        //
+        //10   started but no progress reported yet
+        //
+        //20   behind the back of tryPause()/tryResume() on purpose   the calling environment must not see the state flip back and forth
+    };
+
     public AndroidFileDownloader() //this flavour is meant to be used in conjunction with trySetBluetoothDevice() and trySetContext()
     {
     }
@@ -50,103 +119,849 @@ public class AndroidFileDownloader
         _bluetoothDevice = bluetoothDevice;
     }
 
-    public boolean trySetContext(@NonNull final Context context)
+    public boolean trySetContext(@NonNull final Context context)
+    {
+        if (!IsIdleOrCold())
+            return false;
+
+        if (!tryInvalidateCachedInfrastructure()) //order
+            return false;
+
+        _context = context;
+        return true;
+    }
+
+    public boolean trySetBluetoothDevice(@NonNull final BluetoothDevice bluetoothDevice)
+    {
+        if (!IsIdleOrCold())
+        {
+            logInBg("[AFD.TSBD.005] trySetBluetoothDevice() cannot proceed because the downloader is not cold", EAndroidLoggingLevel.Error);
+            return false;
+        }
+
+        if (!tryInvalidateCachedInfrastructure()) //order
+        {
+            logInBg("[AFD.TSBD.020] Failed to invalidate the cached-transport instance", EAndroidLoggingLevel.Error);
+            return false;
+        }
+
+        _bluetoothDevice = bluetoothDevice; //order
+
+        logInBg("[AFD.TSBD.030] Successfully set the android-bluetooth-device to the given value", EAndroidLoggingLevel.Trace);
+
+        return true;
+    }
+
+    public boolean tryInvalidateCachedInfrastructure()
+    {
+        tryCancelPrefetching(); //                           order   the prefetcher talks through the file-system-manager
+        boolean success1 = tryDisposeFilesystemManager(); // order
+        boolean success2 = tryDisposeTransport(); //         order
+        boolean success3 = tryDisposeCallbackProxy(); //     order
+
+        return success1 && success2 && success3;
+    }
+
+    /**
+     * Initiates a file download asynchronously. The progress is advertised through the callbacks provided by this class.
+     * Setup interceptors for them to get informed about the status of the firmware-installation.
+     *
+     * @param remoteFilePath the remote-file-path to the file on the remote device that you wish to download
+     * @param initialMtuSize sets the initial MTU for the connection that the McuMgr BLE-transport sets up for the firmware installation that will follow.
+     *                       Note that if less than 0 it gets ignored and if it doesn't fall within the range [23, 517] it will cause a hard error.
+     * @return a verdict indicating whether the file downloading was started successfully or not
+     */
+    public EAndroidFileDownloaderVerdict beginDownload(
+            final String remoteFilePath,
+            final int initialMtuSize,
+            final int minimumNativeLogLevelNumeric
+            // final int windowCapacity, //nordic's downloader doesn't support this as of Q3 2024   use trySetPipelinedDownloads() instead which routes the download through our own downloader
+    )
+    {
+        return beginDownloadImpl(remoteFilePath, /*sink*/ null, /*offset*/ 0, /*length*/ -1, /*partialLocalFilePath*/ null, initialMtuSize, minimumNativeLogLevelNumeric);
+    }
+
+    /**
+     * Initiates a download of just the given range of the remote file (pe the tail of an append-only log since the last sync). The data of the range
+     * get handed over as a byte[] upon completion just like with the plain beginDownload().
+     *
+     * @param remoteFilePath the remote-file-path to the file on the remote device that you wish to download
+     * @param offset         the offset of the first byte to download
+     * @param length         the amount of bytes to download - zero or negative means up to the end of the remote file (the range gets clamped to
+     *                       the end of the remote file either way)
+     * @param initialMtuSize sets the initial MTU for the connection that the McuMgr BLE-transport sets up for the firmware installation that will follow.
+     *                       Note that if less than 0 it gets ignored and if it doesn't fall within the range [23, 517] it will cause a hard error.
+     * @return a verdict indicating whether the file downloading was started successfully or not
+     */
+    public EAndroidFileDownloaderVerdict beginDownload(
+            final String remoteFilePath,
+            final long offset,
+            final long length,
+            final int initialMtuSize,
+            final int minimumNativeLogLevelNumeric
+    )
+    {
+        return beginDownload(remoteFilePath, new ByteArrayFileDownloadSink(), offset, length, initialMtuSize, minimumNativeLogLevelNumeric);
+    }
+
+    /**
+     * Initiates a file download asynchronously that writes each chunk into the given sink as soon as it arrives so that the peak memory consumption
+     * stays constant no matter how big the remote file is. The downloader takes ownership of the sink and closes it once the download is over one way
+     * or another. Note that the final data snapshot advertised upon completion is empty because the data have already landed in the sink.
+     *
+     * @param remoteFilePath the remote-file-path to the file on the remote device that you wish to download
+     * @param sink           the sink to write the downloaded data into (see the factory methods of {@link AndroidFileDownloadSink})
+     * @param initialMtuSize sets the initial MTU for the connection that the McuMgr BLE-transport sets up for the firmware installation that will follow.
+     *                       Note that if less than 0 it gets ignored and if it doesn't fall within the range [23, 517] it will cause a hard error.
+     * @return a verdict indicating whether the file downloading was started successfully or not
+     */
+    public EAndroidFileDownloaderVerdict beginDownload(
+            final String remoteFilePath,
+            final AndroidFileDownloadSink sink,
+            final int initialMtuSize,
+            final int minimumNativeLogLevelNumeric
+    )
+    {
+        return beginDownload(remoteFilePath, sink, /*offset*/ 0, /*length*/ -1, initialMtuSize, minimumNativeLogLevelNumeric);
+    }
+
+    /**
+     * Same as {@link #beginDownload(String, AndroidFileDownloadSink, int, int)} but for just the given range of the remote file. The sink receives the bytes
+     * of the range starting at its own offset zero and the progress gets reported relative to the range.
+     *
+     * @param offset the offset of the first byte to download
+     * @param length the amount of bytes to download - zero or negative means up to the end of the remote file (the range gets clamped to the end of the
+     *               remote file either way)
+     */
+    public EAndroidFileDownloaderVerdict beginDownload(
+            final String remoteFilePath,
+            final AndroidFileDownloadSink sink,
+            final long offset,
+            final long length,
+            final int initialMtuSize,
+            final int minimumNativeLogLevelNumeric
+    )
+    {
+        if (sink == null)
+        {
+            onError("[AFD.BD.005] The sink provided is null");
+
+            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        if (offset < 0)
+        {
+            tryCloseDownloadSink(sink);
+            onError("[AFD.BD.006] The offset must be zero or positive");
+
+            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        final EAndroidFileDownloaderVerdict verdict = beginDownloadImpl(remoteFilePath, sink, offset, length, /*partialLocalFilePath*/ null, initialMtuSize, minimumNativeLogLevelNumeric);
+        if (verdict != EAndroidFileDownloaderVerdict.SUCCESS)
+        {
+            tryCloseDownloadSink(sink); //we took ownership of the sink so we must not leak it
+        }
+
+        return verdict;
+    }
+
+    /**
+     * Downloads the remote file into the given local file continuing from wherever the local file left off - pe after a dropped connection or when
+     * syncing an append-only log from the device. Before resuming, the tail of the local file gets compared against the same range of the remote file
+     * (hash query) and if they differ, or if the remote file is shorter than the local one, the remote file has been replaced in the meantime so it gets
+     * downloaded from scratch. If the local file is already as long as the remote file the download completes straight away.
+     * <p>
+     * Note that the final data snapshot advertised upon completion is empty because the data have landed in the local file.
+     *
+     * @param remoteFilePath the remote-file-path to the file on the remote device that you wish to download
+     * @param localFilePath  the local file to resume - it gets created if it doesn't exist
+     * @param initialMtuSize sets the initial MTU for the connection that the McuMgr BLE-transport sets up for the firmware installation that will follow.
+     *                       Note that if less than 0 it gets ignored and if it doesn't fall within the range [23, 517] it will cause a hard error.
+     * @return a verdict indicating whether the file downloading was started successfully or not
+     */
+    public EAndroidFileDownloaderVerdict beginDownloadResumingLocalFile(
+            final String remoteFilePath,
+            final String localFilePath,
+            final int initialMtuSize,
+            final int minimumNativeLogLevelNumeric
+    )
+    {
+        if (localFilePath == null || localFilePath.isEmpty())
+        {
+            onError("[AFD.BDRLF.010] The local-file-path provided is dud");
+
+            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        final AndroidFileDownloadSink sink;
+        try
+        {
+            sink = AndroidFileDownloadSink.toLocalFile(localFilePath);
+        }
+        catch (final IOException ex)
+        {
+            onError("[AFD.BDRLF.020] Failed to open the local file '" + localFilePath + "'", ex);
+
+            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        final long localFileLength = new File(localFilePath).length();
+        final EAndroidFileDownloaderVerdict verdict = beginDownloadImpl(remoteFilePath, sink, localFileLength, /*length*/ -1, localFilePath, initialMtuSize, minimumNativeLogLevelNumeric);
+        if (verdict != EAndroidFileDownloaderVerdict.SUCCESS)
+        {
+            tryCloseDownloadSink(sink); //we took ownership of the sink so we must not leak it
+        }
+
+        return verdict;
+    }
+
+    /**
+     * Downloads multiple files back-to-back over the same connection. The transport, the file-system-manager and the connection-priority are set up
+     * exactly once for the entire batch and the request for the first chunk of file N+1 goes out as soon as the request for the last chunk of file N
+     * has been sent (without waiting for its response).
+     * <p>
+     * The state-machine and the throughput-advertisements of this class describe the batch as a whole, while the per-file milestones and the data of
+     * each file are advertised through {@link #fileDownloadInBatchProgressPercentageChangedAdvertisement} and {@link #fileDownloadInBatchCompletedAdvertisement}.
+     * The final data snapshot advertised upon the completion of the batch is empty. If any file fails the entire batch fails.
+     *
+     * @param remoteFilePaths the remote-file-paths of the files on the remote device that you wish to download
+     * @param initialMtuSize  sets the initial MTU for the connection that the McuMgr BLE-transport sets up for the firmware installation that will follow.
+     *                        Note that if less than 0 it gets ignored and if it doesn't fall within the range [23, 517] it will cause a hard error.
+     * @return a verdict indicating whether the batch download was started successfully or not
+     */
+    public EAndroidFileDownloaderVerdict beginBatchDownload(
+            final String[] remoteFilePaths,
+            final int initialMtuSize,
+            final int minimumNativeLogLevelNumeric
+    )
+    {
+        if (!IsCold()) //keep first
+        {
+            onError("[AFD.BBD.000] Another download is already in progress");
+
+            return EAndroidFileDownloaderVerdict.FAILED__DOWNLOAD_ALREADY_IN_PROGRESS;
+        }
+
+        if (remoteFilePaths == null)
+        {
+            onError("[AFD.BBD.010] The remote-file-paths must be provided");
+
+            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        final String[] remoteFilePathsSanitized = new String[remoteFilePaths.length];
+        for (int i = 0; i < remoteFilePaths.length; i++)
+        {
+            final String remoteFilePathSanitized = remoteFilePaths[i] == null ? "" : remoteFilePaths[i].trim();
+            if (!remoteFilePathSanitized.startsWith("/") || remoteFilePathSanitized.endsWith("/"))
+            {
+                onError("[AFD.BBD.020] The remote-file-path of file #" + i + " is invalid (remote-file-paths must be absolute paths to files)");
+
+                return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+            }
+
+            remoteFilePathsSanitized[i] = remoteFilePathSanitized;
+        }
+
+        if (_context == null)
+        {
+            onError("[AFD.BBD.040] No context specified - call trySetContext() first");
+
+            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        if (_bluetoothDevice == null)
+        {
+            onError("[AFD.BBD.050] No bluetooth-device specified - call trySetBluetoothDevice() first");
+
+            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        _minimumNativeLogLevel = McuMgrLogLevelHelpers.translateLogLevel(minimumNativeLogLevelNumeric);
+
+        try
+        {
+            _remoteFilePathSanitized = remoteFilePathsSanitized.length == 0 ? "" : remoteFilePathsSanitized[0];
+
+            resetDownloadState(); //order   must be called before ensureTransportIsInitializedExactlyOnce() because the environment might try to set the device via trySetBluetoothDevice()!!!
+            ensureTransportIsInitializedExactlyOnce(initialMtuSize); //order
+            setLoggingEnabledOnTransport(false); //order
+
+            final EAndroidFileDownloaderVerdict verdict = ensureFilesystemManagerIsInitializedExactlyOnce(); //order
+            if (verdict != EAndroidFileDownloaderVerdict.SUCCESS)
+                return verdict;
+
+            tryEnsureConnectionPriorityOnTransport(); //order
+            ensureFileDownloaderCallbackProxyIsInitializedExactlyOnce(); //order
+            ensureRegisteredForTransferPreemption(); //order
+
+            setBusyState(true); //                         order
+            setState(EAndroidFileDownloaderState.IDLE); // order
+            tryPausePrefetching(); //                      order   regular downloads take precedence over prefetching
+
+            final FileDownloadBatch batch = new FileDownloadBatch(
+                    _fileSystemManager,
+                    remoteFilePathsSanitized,
+                    _fileDownloaderCallbackProxy,
+                    new FileDownloadBatchListenerProxy(remoteFilePathsSanitized)
+            );
+            if (isPipeliningDownloads())
+            {
+                batch.setPipelining(_maxDownloadRequestsInFlight, createPipeliningListener());
+            }
+
+            _downloadingController = batch.downloadAsync();
+        }
+        catch (final Exception ex)
+        {
+            onError("[AFD.BBD.060] Failed to initialize the batch download", ex);
+            tryResumePrefetching();
+
+            return EAndroidFileDownloaderVerdict.FAILED__ERROR_UPON_COMMENCING;
+        }
+
+        return EAndroidFileDownloaderVerdict.SUCCESS;
+    }
+
+    private void tryCloseDownloadSink(@NonNull final AndroidFileDownloadSink sink)
+    {
+        try
+        {
+            sink.close();
+        }
+        catch (final Exception ex)
+        {
+            logInBg("[AFD.TCDS.010] [SUPPRESSED] Error while closing the download-sink:\n\n" + ex, EAndroidLoggingLevel.Warning);
+        }
+    }
+
+    private EAndroidFileDownloaderVerdict beginDownloadImpl(
+            final String remoteFilePath,
+            final AndroidFileDownloadSink sink, // null means that the data get handed over as a byte[] upon completion
+            final long offset,
+            final long length, //                zero or negative means up to the end of the remote file
+            final String partialLocalFilePath, // the local file behind the sink when resuming it   null otherwise
+            final int initialMtuSize,
+            final int minimumNativeLogLevelNumeric
+    )
+    {
+        if (!IsCold()) //keep first
+        {
+            onError("[AFD.BD.000] Another download is already in progress");
+
+            return EAndroidFileDownloaderVerdict.FAILED__DOWNLOAD_ALREADY_IN_PROGRESS;
+        }
+
+        if (remoteFilePath == null || remoteFilePath.isEmpty())
+        {
+            onError("[AFD.BD.010] Target-file provided is dud!");
+
+            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        _remoteFilePathSanitized = remoteFilePath.trim();
+        if (_remoteFilePathSanitized.endsWith("/")) //the path must point to a file not a directory
+        {
+            onError("[AFD.BD.020] Provided target-path points to a directory not a file");
+
+            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        if (!_remoteFilePathSanitized.startsWith("/"))
+        {
+            onError("[AFD.BD.030] Provided target-path is not an absolute path");
+
+            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        if (_context == null)
+        {
+            onError("[AFD.BD.040] No context specified - call trySetContext() first");
+
+            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        if (_bluetoothDevice == null)
+        {
+            onError("[AFD.BD.050] No bluetooth-device specified - call trySetBluetoothDevice() first");
+
+            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        _minimumNativeLogLevel = McuMgrLogLevelHelpers.translateLogLevel(minimumNativeLogLevelNumeric);
+
+        try
+        {
+            resetDownloadState(); //order   must be called before ensureTransportIsInitializedExactlyOnce() because the environment might try to set the device via trySetBluetoothDevice()!!!
+            ensureTransportIsInitializedExactlyOnce(initialMtuSize); //order
+            setLoggingEnabledOnTransport(false); //order
+
+            final EAndroidFileDownloaderVerdict verdict = ensureFilesystemManagerIsInitializedExactlyOnce(); //order
+            if (verdict != EAndroidFileDownloaderVerdict.SUCCESS)
+                return verdict;
+
+            tryEnsureConnectionPriorityOnTransport(); //order
+            ensureFileDownloaderCallbackProxyIsInitializedExactlyOnce(); //order
+            ensureRegisteredForTransferPreemption(); //order
+
+            setBusyState(true); //                         order
+            setState(EAndroidFileDownloaderState.IDLE); // order
+
+            final byte[] prefetchedData = tryTakePrefetchedData(sink, offset, length); // order
+            if (prefetchedData != null)
+            {
+                logInBg("[AFD.BD.055] The remote file has been prefetched already - skipping the transfer", EAndroidLoggingLevel.Info);
+
+                _fileDownloaderCallbackProxy.onDownloadProgressChanged(prefetchedData.length, prefetchedData.length, System.currentTimeMillis());
+                _fileDownloaderCallbackProxy.onDownloadCompleted(prefetchedData);
+                return EAndroidFileDownloaderVerdict.SUCCESS;
+            }
+
+            tryPausePrefetching(); // order   regular downloads take precedence over prefetching
+
+            if (partialLocalFilePath != null && offset > 0) //00 order
+            {
+                final StreamingFileDownloader downloader = createStreamingDownloader(sink);
+
+                verifyLocalPrefixAndContinue(downloader, partialLocalFilePath, offset, /*expectedRemoteFileLength*/ -1, Math.max(0, offset - PARTIAL_LOCAL_FILE_TAIL_LENGTH_TO_VERIFY));
+            }
+            else if (offset > 0) //10
+            {
+                beginRangeDownloadAfterStatusQuery(createStreamingDownloader(sink), offset, length);
+            }
+            else if (sink != null) //20
+            {
+                final StreamingFileDownloader downloader = createStreamingDownloader(sink);
+                if (length > 0)
+                {
+                    downloader.setRange(0, length, /*totalLength*/ -1);
+                }
+
+                _downloadingController = downloader.downloadAsync();
+            }
+            else if (_isCachingDownloads && _chunkConsumer == null) //30
+            {
+                beginCachedDownload();
+            }
+            else
+            {
+                beginUncachedDownload();
+            }
+        }
+        catch (final Exception ex)
+        {
+            onError("[AFD.BD.060] Failed to initialize the download operation:\n\n" + ex, ex);
+            tryResumePrefetching();
+
+            return EAndroidFileDownloaderVerdict.FAILED__ERROR_UPON_COMMENCING;
+        }
+
+        return EAndroidFileDownloaderVerdict.SUCCESS;
+
+        //00   the local file might be a leftover of a previous version of the remote file so we make sure that its tail matches the remote file
+        //
+        //10   the device reports the size of the file only in the response to the request for offset zero so we need to ask for it explicitly
+        //
+        //20   nordic's downloader accumulates the chunks in memory so downloads into sinks go through our own streaming downloader
+        //
+        //30   the cache only ever holds entire files so downloads into sinks and downloads of ranges bypass it   and so do downloads with a
+        //     chunk-consumer because a cache-hit would complete them without the consumer ever seeing a single chunk
+    }
+
+    private byte[] tryTakePrefetchedData(final AndroidFileDownloadSink sink, final long offset, final long length)
+    {
+        final FileDownloadPrefetcher prefetcher = _prefetcher;
+        if (prefetcher == null || sink != null || offset > 0 || length > 0 || _isVerifyingDownloadedData || _chunkConsumer != null) //00
+            return null;
+
+        return prefetcher.tryTake(_remoteFilePathSanitized);
+
+        //00   prefetched files are entire files handed over as byte[]s   they haven't been verified against the hash of the remote file   and
+        //     handing them over would complete the download without the chunk-consumer (if any) ever seeing a single chunk
+    }
+
+    private void tryPausePrefetching()
+    {
+        final FileDownloadPrefetcher prefetcher = _prefetcher;
+        if (prefetcher == null)
+            return;
+
+        prefetcher.pause();
+    }
+
+    private void tryResumePrefetching()
+    {
+        final FileDownloadPrefetcher prefetcher = _prefetcher;
+        if (prefetcher == null)
+            return;
+
+        prefetcher.resume(); // no-op if it wasn't paused
+    }
+
+    private void beginUncachedDownload() throws IOException
+    {
+        if (_isJournalingDownloadsOnDisk) //00
+        {
+            beginJournaledDownload();
+            return;
+        }
+
+        if (isPipeliningDownloads() || _chunkConsumer != null || _isVerifyingDownloadedData) //10
+        {
+            _downloadingController = createStreamingDownloader(new ByteArrayFileDownloadSink()).downloadAsync();
+            return;
+        }
+
+        _downloadingController = _fileSystemManager.fileDownload(_remoteFilePathSanitized, _fileDownloaderCallbackProxy);
+
+        //00   nordic's downloader can only ever start from offset zero   so journaled downloads go through our own downloader too which
+        //     spools the chunks into a file next to the journal and which can resume from any offset
+        //
+        //10   nordic's downloader only ever has a single request in flight   it cannot hand the chunks over while they arrive   and it cannot
+        //     digest them either
+    }
+
+    private StreamingFileDownloader createStreamingDownloader(@NonNull final AndroidFileDownloadSink sink)
+    {
+        final AndroidFileDownloadSink effectiveSink = _chunkConsumer == null
+                ? sink
+                : new ChunkConsumerFileDownloadSink(sink, _chunkConsumer, _chunkConsumerMaxBufferedBytes);
+
+        final StreamingFileDownloader downloader = new StreamingFileDownloader(_fileSystemManager, _remoteFilePathSanitized, effectiveSink, _fileDownloaderCallbackProxy);
+        if (isPipeliningDownloads())
+        {
+            downloader.setPipelining(_maxDownloadRequestsInFlight, createPipeliningListener());
+        }
+
+        if (_isVerifyingDownloadedData)
+        {
+            _currentCompletionVerdict = EAndroidFileDownloadCompletionVerdict.DOWNLOADED__VERIFIED;
+            downloader.setVerifiesDownloadedRange(_isRefetchingCorruptBlocks, (startOffset, endOffset) -> {
+                _currentCompletionVerdict = EAndroidFileDownloadCompletionVerdict.DOWNLOADED__VERIFIED_AFTER_REFETCHING;
+
+                logInBg("[AFD.CSD.010] Fetched the corrupt block [" + startOffset + ", " + endOffset + ") of the remote file anew", EAndroidLoggingLevel.Warning);
+            });
+        }
+
+        return downloader;
+    }
+
+    private boolean isPipeliningDownloads()
+    {
+        return _maxDownloadRequestsInFlight > 1 && !Boolean.FALSE.equals(PipeliningSupportPerDeviceAddress.get(_bluetoothDevice.getAddress()));
+    }
+
+    private StreamingFileDownloader.PipeliningListener createPipeliningListener()
+    {
+        final String deviceAddress = _bluetoothDevice.getAddress();
+
+        return isSupported -> {
+            PipeliningSupportPerDeviceAddress.put(deviceAddress, isSupported);
+
+            logInBg(isSupported
+                            ? "[AFD.CPL.010] The device supports pipelined downloads"
+                            : "[AFD.CPL.020] The device doesn't support pipelined downloads - falling back to one request at a time",
+                    EAndroidLoggingLevel.Info
+            );
+        };
+    }
+
+    private void beginCachedDownload() throws IOException
+    {
+        final FileDownloadCache cache;
+        try
+        {
+            cache = FileDownloadCache.open(FileDownloadCache.getDefaultDirectory(_context), _downloadCacheMaxSizeInBytes);
+        }
+        catch (final IOException ex) //00
+        {
+            logInBg("[AFD.BCD.010] Failed to open the download-cache - downloading the file without it:\n\n" + ex, EAndroidLoggingLevel.Warning);
+
+            beginUncachedDownload();
+            return;
+        }
+
+        McuMgrFsHelpers.queryWholeFileHash(_fileSystemManager, _remoteFilePathSanitized, new McuMgrCallback<McuMgrFsHelpers.FileHashResponse>()
+        {
+            @Override
+            public void onResponse(@NonNull final McuMgrFsHelpers.FileHashResponse response)
+            {
+                final FileDownloadCache.Key key = response.isSuccess() ? FileDownloadCache.createKey(response, _remoteFilePathSanitized) : null;
+                if (key == null) //10
+                {
+                    logInBg("[AFD.BCD.020] The device cannot hash the remote file - downloading it without the cache", EAndroidLoggingLevel.Info);
+
+                    continueUncachedDownload();
+                    return;
+                }
+
+                final byte[] cachedData = cache.tryGet(key);
+                if (cachedData != null)
+                {
+                    logInBg("[AFD.BCD.030] The remote file is in the download-cache already - skipping the transfer", EAndroidLoggingLevel.Info);
+
+                    completeFromCache(cachedData);
+                    return;
+                }
+
+                _currentCache = cache; //     order
+                _currentCacheKey = key; //    order
+                continueUncachedDownload(); // order
+            }
+
+            @Override
+            public void onError(@NonNull final McuMgrException exception)
+            {
+                logInBg("[AFD.BCD.040] Failed to hash the remote file - downloading it without the cache:\n\n" + exception, EAndroidLoggingLevel.Warning);
+
+                continueUncachedDownload(); // if the connection is gone the download will report it properly
+            }
+        });
+
+        //00   the cache is merely an optimization so it is not worth failing the download over
+        //
+        //10   the hash command is optional in the firmware   and if the remote file doesn't exist the download itself will report it properly
+    }
+
+    private void continueUncachedDownload()
+    {
+        if (_currentState == EAndroidFileDownloaderState.CANCELLING) // tryCancel() had no transfer-controller to cancel while we were consulting the device
+        {
+            _fileDownloaderCallbackProxy.onDownloadCanceled();
+            return;
+        }
+
+        try
+        {
+            beginUncachedDownload();
+        }
+        catch (final Exception ex)
+        {
+            onError("[AFD.CUD.010] Failed to commence the download", ex);
+            setLoggingEnabledOnTransport(true);
+            setBusyState(false);
+        }
+    }
+
+    private void completeFromCache(@NonNull final byte[] cachedData)
+    {
+        if (_currentState == EAndroidFileDownloaderState.CANCELLING)
+        {
+            _fileDownloaderCallbackProxy.onDownloadCanceled();
+            return;
+        }
+
+        if (_isVerifyingDownloadedData) // the cached copy matches the hash that the device has just reported
+        {
+            _currentCompletionVerdict = EAndroidFileDownloadCompletionVerdict.DOWNLOADED__VERIFIED;
+        }
+
+        _fileDownloaderCallbackProxy.onDownloadProgressChanged(cachedData.length, cachedData.length, System.currentTimeMillis());
+        _fileDownloaderCallbackProxy.onDownloadCompleted(cachedData);
+    }
+
+    private void beginRangeDownloadAfterStatusQuery(final StreamingFileDownloader downloader, final long offset, final long length)
+    {
+        McuMgrFsHelpers.queryFileStatus(_fileSystemManager, _remoteFilePathSanitized, new McuMgrCallback<McuMgrFsHelpers.FileStatusResponse>()
+        {
+            @Override
+            public void onResponse(@NonNull final McuMgrFsHelpers.FileStatusResponse response)
+            {
+                if (!response.isSuccess())
+                {
+                    downloader.abort(McuMgrExceptionHelpers.CreateErrorExceptionFromResponse(response));
+                    return;
+                }
+
+                if (offset > response.len)
+                {
+                    downloader.abort(new McuMgrException("[AFD.BRDASQ.010] The offset " + offset + " lies beyond the end of the remote file (" + response.len + " bytes)"));
+                    return;
+                }
+
+                downloader.setRange(offset, length > 0 ? offset + length : -1, response.len);
+                continueStreamingDownload(downloader);
+            }
+
+            @Override
+            public void onError(@NonNull final McuMgrException exception)
+            {
+                downloader.abort(exception);
+            }
+        });
+    }
+
+    /**
+     * Resumes the download from the end of the local prefix (the bytes that the sink of the downloader already holds) provided that the remote file still
+     * holds the very same bytes in the given part of the prefix - otherwise the download starts from scratch.
+     *
+     * @param expectedRemoteFileLength the exact size the remote file must have for the prefix to be usable - or -1 if any size that covers the prefix will do
+     * @param verifiedOffset           the offset within the prefix from which on the bytes get compared against the remote file (verifying just the tail
+     *                                 of a big prefix is way cheaper and it's a reasonably strong hint already)
+     */
+    private void verifyLocalPrefixAndContinue(
+            final StreamingFileDownloader downloader,
+            final String localFilePath,
+            final long localPrefixLength,
+            final long expectedRemoteFileLength,
+            final long verifiedOffset
+    ) throws IOException
+    {
+        final FileContentDigester localDigests;
+        try (final AndroidFileUploadSource localData = AndroidFileUploadSource.fromLocalFile(localFilePath))
+        {
+            localDigests = FileContentDigester.digest(localData, verifiedOffset, localPrefixLength - verifiedOffset);
+        }
+
+        McuMgrFsHelpers.queryFileStatus(_fileSystemManager, _remoteFilePathSanitized, new McuMgrCallback<McuMgrFsHelpers.FileStatusResponse>()
+        {
+            @Override
+            public void onResponse(@NonNull final McuMgrFsHelpers.FileStatusResponse response)
+            {
+                final boolean isPrefixUsable = response.isSuccess() && (expectedRemoteFileLength < 0
+                        ? response.len >= localPrefixLength
+                        : response.len == expectedRemoteFileLength);
+                if (!isPrefixUsable)
+                {
+                    logInBg("[AFD.VLPAC.010] The remote file has changed since the local data got downloaded - downloading it from scratch", EAndroidLoggingLevel.Info);
+
+                    continueStreamingDownload(downloader);
+                    return;
+                }
+
+                McuMgrFsHelpers.compareRemoteFileRange(_fileSystemManager, _remoteFilePathSanitized, verifiedOffset, localPrefixLength - verifiedOffset, localDigests, new McuMgrFsHelpers.RangeComparisonCallback()
+                {
+                    @Override
+                    public void onCompared(final boolean isIdentical)
+                    {
+                        if (!isIdentical)
+                        {
+                            logInBg("[AFD.VLPAC.020] The remote file has changed since the local data got downloaded - downloading it from scratch", EAndroidLoggingLevel.Info);
+
+                            continueStreamingDownload(downloader);
+                            return;
+                        }
+
+                        continueStreamingDownloadFrom(downloader, localPrefixLength, response.len);
+                    }
+
+                    @Override
+                    public void onFailed(@NonNull final McuMgrException exception) //00
+                    {
+                        logInBg("[AFD.VLPAC.030] Failed to hash the remote file - resuming the download based on the file-size alone:\n\n" + exception, EAndroidLoggingLevel.Warning);
+
+                        continueStreamingDownloadFrom(downloader, localPrefixLength, response.len);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(@NonNull final McuMgrException exception)
+            {
+                downloader.abort(exception);
+            }
+        });
+
+        //00   not all firmwares are built with support for the hash command   matching sizes are a reasonably strong hint in that case
+    }
+
+    private void continueStreamingDownloadFrom(final StreamingFileDownloader downloader, final long startOffset, final long totalLength)
     {
-        if (!IsIdleOrCold())
-            return false;
+        logInBg("[AFD.CSDF.010] Resuming the download from offset " + startOffset + " of " + totalLength, EAndroidLoggingLevel.Info);
 
-        if (!tryInvalidateCachedInfrastructure()) //order
-            return false;
-
-        _context = context;
-        return true;
+        downloader.setStartOffset(startOffset, totalLength);
+        continueStreamingDownload(downloader);
     }
 
-    public boolean trySetBluetoothDevice(@NonNull final BluetoothDevice bluetoothDevice)
+    private void continueStreamingDownload(final StreamingFileDownloader downloader)
     {
-        if (!IsIdleOrCold())
+        if (_currentState == EAndroidFileDownloaderState.CANCELLING) //00
         {
-            logInBg("[AFD.TSBD.005] trySetBluetoothDevice() cannot proceed because the downloader is not cold", EAndroidLoggingLevel.Error);
-            return false;
+            downloader.cancel(); // closes the sink and reports the cancellation
+            return;
         }
 
-        if (!tryInvalidateCachedInfrastructure()) //order
+        try
         {
-            logInBg("[AFD.TSBD.020] Failed to invalidate the cached-transport instance", EAndroidLoggingLevel.Error);
-            return false;
+            _downloadingController = downloader.downloadAsync();
+        }
+        catch (final Exception ex)
+        {
+            onError("[AFD.CSD.010] Failed to commence the download", ex);
+            setLoggingEnabledOnTransport(true);
+            setBusyState(false);
         }
 
-        _bluetoothDevice = bluetoothDevice; //order
-
-        logInBg("[AFD.TSBD.030] Successfully set the android-bluetooth-device to the given value", EAndroidLoggingLevel.Trace);
-
-        return true;
+        //00   tryCancel() had no transfer-controller to cancel while we were consulting the device
     }
 
-    public boolean tryInvalidateCachedInfrastructure()
+    /**
+     * Lets downloads keep several read-requests for successive offsets in flight instead of waiting for the response of each chunk before asking for
+     * the next one - which makes downloads way faster over links with a high round-trip latency (which is the case with most ble connections). Not all
+     * firmwares cope with concurrent requests so the first download towards each device probes it and if the device chokes the download falls back to
+     * one request at a time (and so do all subsequent downloads towards that device).
+     *
+     * @param maxRequestsInFlight the upper bound of concurrent read-requests - one (the default) disables pipelining
+     * @return false if a download is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetPipelinedDownloads(final int maxRequestsInFlight)
     {
-        boolean success1 = tryDisposeFilesystemManager(); // order
-        boolean success2 = tryDisposeTransport(); //         order
-        boolean success3 = tryDisposeCallbackProxy(); //     order
+        if (!IsIdleOrCold())
+            return false;
 
-        return success1 && success2 && success3;
+        _maxDownloadRequestsInFlight = Math.max(1, maxRequestsInFlight);
+        return true;
     }
 
     /**
-     * Initiates a file download asynchronously. The progress is advertised through the callbacks provided by this class.
-     * Setup interceptors for them to get informed about the status of the firmware-installation.
+     * Downloads the given remote files in the background (one after the other) and keeps them in memory so that a later beginDownload() for any of them
+     * completes instantly without any transfer - meant to be called right after connecting so that the files the app always asks for first (device-info,
+     * logs, config etc) get transferred while the user is still navigating the UI. Prefetching runs at a low priority: it pauses for as long as a regular
+     * download is in progress and it doesn't touch the state-machine or the advertisements of this class.
+     * <p>
+     * Each prefetched file gets handed over only once - subsequent downloads of the same file go through the device as usual. Files that fail to download
+     * or that don't fit in the given size budget are skipped. Only plain downloads (the flavour that hands the data over as a byte[]) are served from the
+     * prefetched files and only as long as neither verification (see trySetVerifyDownloadedData()) nor a chunk-consumer (see trySetChunkConsumer()) is
+     * set. The prefetched files get discarded when prefetching gets cancelled and whenever the cached infrastructure gets invalidated (pe when switching
+     * devices).
      *
-     * @param remoteFilePath the remote-file-path to the file on the remote device that you wish to download
-     * @param initialMtuSize sets the initial MTU for the connection that the McuMgr BLE-transport sets up for the firmware installation that will follow.
-     *                       Note that if less than 0 it gets ignored and if it doesn't fall within the range [23, 517] it will cause a hard error.
-     * @return a verdict indicating whether the file downloading was started successfully or not
+     * @param remoteFilePaths the remote-file-paths of the files to prefetch in order of importance
+     * @param maxSizeInBytes  the upper bound of the memory the prefetched files may occupy altogether
+     * @param initialMtuSize  sets the initial MTU for the connection that the McuMgr BLE-transport sets up (see beginDownload())
+     * @return a verdict indicating whether prefetching was started successfully or not
      */
-    public EAndroidFileDownloaderVerdict beginDownload(
-            final String remoteFilePath,
+    public EAndroidFileDownloaderVerdict beginPrefetching(
+            final String[] remoteFilePaths,
+            final long maxSizeInBytes,
             final int initialMtuSize,
             final int minimumNativeLogLevelNumeric
-            // final int windowCapacity, //theoretically nordic firmwares at some point will support this for downloads   but as of Q3 2024 there is no support for this
     )
     {
-        if (!IsCold()) //keep first
+        if (remoteFilePaths == null || maxSizeInBytes <= 0)
         {
-            onError("[AFD.BD.000] Another download is already in progress");
-
-            return EAndroidFileDownloaderVerdict.FAILED__DOWNLOAD_ALREADY_IN_PROGRESS;
-        }
-
-        if (remoteFilePath == null || remoteFilePath.isEmpty())
-        {
-            onError("[AFD.BD.010] Target-file provided is dud!");
-
-            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
-        }
-
-        _remoteFilePathSanitized = remoteFilePath.trim();
-        if (_remoteFilePathSanitized.endsWith("/")) //the path must point to a file not a directory
-        {
-            onError("[AFD.BD.020] Provided target-path points to a directory not a file");
+            logInBg("[AFD.BP.010] The remote-file-paths and a positive size budget must be provided", EAndroidLoggingLevel.Error);
 
             return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
         }
 
-        if (!_remoteFilePathSanitized.startsWith("/"))
+        final String[] remoteFilePathsSanitized = new String[remoteFilePaths.length];
+        for (int i = 0; i < remoteFilePaths.length; i++)
         {
-            onError("[AFD.BD.030] Provided target-path is not an absolute path");
-
-            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
-        }
+            final String remoteFilePathSanitized = remoteFilePaths[i] == null ? "" : remoteFilePaths[i].trim();
+            if (!remoteFilePathSanitized.startsWith("/") || remoteFilePathSanitized.endsWith("/"))
+            {
+                logInBg("[AFD.BP.020] The remote-file-path of file #" + i + " is invalid (remote-file-paths must be absolute paths to files)", EAndroidLoggingLevel.Error);
 
-        if (_context == null)
-        {
-            onError("[AFD.BD.040] No context specified - call trySetContext() first");
+                return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+            }
 
-            return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
+            remoteFilePathsSanitized[i] = remoteFilePathSanitized;
         }
 
-        if (_bluetoothDevice == null)
+        if (_context == null || _bluetoothDevice == null)
         {
-            onError("[AFD.BD.050] No bluetooth-device specified - call trySetBluetoothDevice() first");
+            logInBg("[AFD.BP.030] No context or bluetooth-device specified - call trySetContext() and trySetBluetoothDevice() first", EAndroidLoggingLevel.Error);
 
             return EAndroidFileDownloaderVerdict.FAILED__INVALID_SETTINGS;
         }
@@ -155,30 +970,182 @@ public class AndroidFileDownloader
 
         try
         {
-            resetDownloadState(); //order   must be called before ensureTransportIsInitializedExactlyOnce() because the environment might try to set the device via trySetBluetoothDevice()!!!
-            ensureTransportIsInitializedExactlyOnce(initialMtuSize); //order
-            setLoggingEnabledOnTransport(false); //order
+            tryCancelPrefetching(); //                                 order
+            ensureTransportIsInitializedExactlyOnce(initialMtuSize); // order
 
             final EAndroidFileDownloaderVerdict verdict = ensureFilesystemManagerIsInitializedExactlyOnce(); //order
             if (verdict != EAndroidFileDownloaderVerdict.SUCCESS)
                 return verdict;
 
-            tryEnsureConnectionPriorityOnTransport(); //order
-            ensureFileDownloaderCallbackProxyIsInitializedExactlyOnce(); //order
-
-            setBusyState(true); //                         order
-            setState(EAndroidFileDownloaderState.IDLE); // order
+            final FileDownloadPrefetcher prefetcher = new FileDownloadPrefetcher(_fileSystemManager, remoteFilePathsSanitized, maxSizeInBytes, new FileDownloadPrefetcherListenerProxy());
+            if (!IsCold()) //00
+            {
+                prefetcher.pause();
+            }
 
-            _downloadingController = _fileSystemManager.fileDownload(_remoteFilePathSanitized, _fileDownloaderCallbackProxy); //order
+            _prefetcher = prefetcher; // order
+            prefetcher.start(); //       order
         }
         catch (final Exception ex)
         {
-            onError("[AFD.BD.060] Failed to initialize the download operation:\n\n" + ex, ex);
+            logInBg("[AFD.BP.040] Failed to commence prefetching:\n\n" + ex, EAndroidLoggingLevel.Error);
 
             return EAndroidFileDownloaderVerdict.FAILED__ERROR_UPON_COMMENCING;
         }
 
         return EAndroidFileDownloaderVerdict.SUCCESS;
+
+        //00   a regular download is in progress so prefetching kicks off once it is over
+    }
+
+    /**
+     * Stops prefetching (see beginPrefetching()) and discards the files that have been prefetched so far.
+     */
+    public boolean tryCancelPrefetching()
+    {
+        final FileDownloadPrefetcher prefetcher = _prefetcher;
+        if (prefetcher == null)
+            return true; //nothing to cancel which is not an error
+
+        _prefetcher = null;
+        prefetcher.cancel();
+        return true;
+    }
+
+    /**
+     * When enabled, the downloaded data get digested (sha256 and crc32) as they arrive and once the last chunk has landed the downloader asks the device to
+     * hash the downloaded range of the remote file. The state switches to COMPLETE only if the hashes match - if they don't the download fails and
+     * {@link #fileDownloadCompletionVerdictAdvertisement} reports {@link EAndroidFileDownloadCompletionVerdict#FAILED__INTEGRITY_CHECK_MISMATCH}.
+     * Verifying a healthy file thus costs a single extra round-trip.
+     * <p>
+     * When re-fetching is enabled too a mismatch doesn't fail the download straight away: the downloader checks the hash of each block of the file (up to
+     * 64 blocks) to pinpoint the corrupt ones, fetches only those anew and reports {@link EAndroidFileDownloadCompletionVerdict#DOWNLOADED__VERIFIED_AFTER_REFETCHING}
+     * once they check out. Re-fetching is not possible with sinks that pass the bytes on as they go (output-streams and chunk-consumers) so those fail.
+     * <p>
+     * Applies to single-file downloads (not to batches). Downloads that resume from a partial local file verify only the bytes that get transferred. The
+     * firmware of the device must support the fs-hash command (sha256 or crc32) otherwise the downloads will fail.
+     *
+     * @param isVerifying               whether to verify the downloaded data or not
+     * @param isRefetchingCorruptBlocks whether to fetch the corrupt blocks anew or to fail straight away
+     * @return false if a download is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetVerifyDownloadedData(final boolean isVerifying, final boolean isRefetchingCorruptBlocks)
+    {
+        if (!IsIdleOrCold())
+            return false;
+
+        _isVerifyingDownloadedData = isVerifying;
+        _isRefetchingCorruptBlocks = isVerifying && isRefetchingCorruptBlocks;
+        return true;
+    }
+
+    /**
+     * Hands each chunk of the downloads that follow over to the given consumer as soon as it arrives (in order and on a dedicated worker thread) so that
+     * the data can be parsed while the transfer is still in progress instead of after it completes. If the consumer falls behind by more than the given
+     * amount of bytes the downloader stops asking the device for more chunks until the consumer has caught up - so a slow consumer slows the download
+     * down instead of making the memory footprint grow without bounds. If the consumer throws the download fails.
+     * <p>
+     * Batch downloads bypass the consumer. While a consumer is set, downloads never get served from the download-cache or from the prefetched files
+     * (see beginPrefetching()) - they always get transferred so that the consumer gets to see every chunk. Downloads that resume from a partial local
+     * file (or from an on-disk journal) only feed the consumer with the bytes that get actually transferred.
+     *
+     * @param consumer         the consumer of the chunks - null removes the current consumer
+     * @param maxBufferedBytes the amount of bytes the consumer is allowed to lag behind the transfer
+     * @return false if a download is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetChunkConsumer(final AndroidFileDownloadChunkConsumer consumer, final long maxBufferedBytes)
+    {
+        if (!IsIdleOrCold())
+            return false;
+
+        if (consumer != null && maxBufferedBytes <= 0)
+            return false;
+
+        _chunkConsumer = consumer;
+        _chunkConsumerMaxBufferedBytes = maxBufferedBytes;
+        return true;
+    }
+
+    /**
+     * When enabled, each plain download (the flavour that hands the data over as a byte[]) first asks the device for the hash of the remote file and if
+     * a file with the very same contents has been downloaded before (from any device) its cached copy gets handed over straight away - there is no
+     * transfer at all. Otherwise the file gets downloaded as usual and it gets stored in the cache once the download completes. The cache lives in the
+     * cache-directory of the app and the least recently used files get evicted once the cache grows beyond the given size.
+     * <p>
+     * Devices whose firmware lacks the fs-hash command simply get their files downloaded without the cache - and so do downloads with a chunk-consumer
+     * (see trySetChunkConsumer()) so that the consumer gets to see every chunk.
+     *
+     * @param isEnabled      whether to use the download-cache or not
+     * @param maxSizeInBytes the size budget of the cache (shared by all downloaders)
+     * @return false if a download is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetDownloadCache(final boolean isEnabled, final long maxSizeInBytes)
+    {
+        if (!IsIdleOrCold())
+            return false;
+
+        if (isEnabled && maxSizeInBytes <= 0)
+            return false;
+
+        _isCachingDownloads = isEnabled;
+        _downloadCacheMaxSizeInBytes = maxSizeInBytes;
+        return true;
+    }
+
+    /**
+     * When enabled, downloads get spooled into a file inside the files-directory of the app while their progress gets recorded in an on-disk journal.
+     * This way a fresh downloader can resume an interrupted download even if the android process got killed midway through it (pe by the OS while the
+     * app was in the background) - all it takes is to call beginDownload() again for the same remote file on the same device. The spooled bytes get
+     * checked against the remote file (size and hash) before resuming so a remote file that has changed in the meantime gets downloaded from scratch.
+     *
+     * @param isEnabled whether to journal downloads on disk or not
+     * @return false if a download is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetCrashDurableDownloads(final boolean isEnabled)
+    {
+        if (!IsIdleOrCold())
+            return false;
+
+        _isJournalingDownloadsOnDisk = isEnabled;
+        return true;
+    }
+
+    private void beginJournaledDownload() throws IOException
+    {
+        final TransferJournal journal;
+        try
+        {
+            journal = TransferJournal.open(TransferJournal.getDefaultDirectory(_context));
+        }
+        catch (final IOException ex) //00
+        {
+            logInBg("[AFD.BJD.010] Failed to open the transfer-journal - the download will not survive the death of the process:\n\n" + ex, EAndroidLoggingLevel.Warning);
+
+            _downloadingController = _fileSystemManager.fileDownload(_remoteFilePathSanitized, _fileDownloaderCallbackProxy);
+            return;
+        }
+
+        final String journalKey = "download|" + _bluetoothDevice.getAddress() + "|" + _remoteFilePathSanitized;
+        final File spoolFile = journal.getSpoolFile(journalKey);
+        final long journaledTotalLength = journal.getTotalLength(journalKey);
+        final long journaledOffset = Math.min(journal.getAcknowledgedOffset(journalKey), spoolFile.length()); //10
+
+        _currentJournal = journal;
+        _currentJournalKey = journalKey;
+
+        final StreamingFileDownloader downloader = createStreamingDownloader(new SpoolFileDownloadSink(spoolFile));
+        if (journaledTotalLength < 0 || journaledOffset <= 0)
+        {
+            _downloadingController = downloader.downloadAsync();
+            return;
+        }
+
+        verifyLocalPrefixAndContinue(downloader, spoolFile.getAbsolutePath(), journaledOffset, journaledTotalLength, /*verifiedOffset*/ 0);
+
+        //00   not worth failing the download over   the download itself will work just fine   it just won't survive the death of the process
+        //
+        //10   the journal is updated every few dozen KBs while the spool-file grows with every chunk   so after a crash the spool-file might
+        //     be ahead of the journal (the excess bytes get discarded) or in the rare case of a power loss even behind it
     }
 
     public boolean tryPause()
@@ -207,6 +1174,7 @@ public class AndroidFileDownloader
             logInBg("[AFD.TPS.040] Pausing transfer ...", EAndroidLoggingLevel.Info);
             
             transferController.pause();
+            _preemptibleTransferHandle.clearPreemption(); // a pending preemption must not resume what the calling environment has paused
 
             setState(EAndroidFileDownloaderState.PAUSED);
             setBusyState(false);
@@ -226,6 +1194,11 @@ public class AndroidFileDownloader
     {
         if (_currentState == EAndroidFileDownloaderState.DOWNLOADING || _currentState == EAndroidFileDownloaderState.RESUMING)
         {
+            if (_preemptibleTransferHandle.clearPreemption()) //00
+            {
+                return tryResumePreemptedTransfer();
+            }
+
             logInBg("[AFD.TRS.010] Ignoring 'resume' request at the native-lib level because we're already in the 'downloading/resuming' state anyway", EAndroidLoggingLevel.Info);
             return true; //already downloading which is ok
         }
@@ -247,6 +1220,7 @@ public class AndroidFileDownloader
         {
             logInBg("[AFD.TRS.040] Resuming transfer ...", EAndroidLoggingLevel.Info);
             
+            _preemptibleTransferHandle.clearPreemption();
             transferController.resume();
 
             setState(EAndroidFileDownloaderState.RESUMING);
@@ -261,10 +1235,35 @@ public class AndroidFileDownloader
             onError("[AFD.TRS.050] Error while trying to resume the download", ex);
             return false;
         }
+
+        //00   a priority command towards the same device has paused the transfer behind our back (see TransferPreemptionScheduler) and the
+        //     calling environment wants it running again before the command is over
+    }
+
+    private boolean tryResumePreemptedTransfer()
+    {
+        final TransferController transferController = _downloadingController;
+        if (transferController == null)
+            return true; // finished in the meantime
+
+        try
+        {
+            logInBg("[AFD.TRPT.010] Resuming transfer that got paused by a priority command ...", EAndroidLoggingLevel.Info);
+
+            transferController.resume();
+            return true;
+        }
+        catch (final Exception ex)
+        {
+            onError("[AFD.TRPT.020] Error while trying to resume the download", ex);
+            return false;
+        }
     }
 
     public void nativeDispose()
     {
+        tryUnregisterFromTransferPreemption(); // doesnt throw
+
         logInBg("[AFD.ND.010] Disposing the native-file-downloader", EAndroidLoggingLevel.Trace);
 
         tryInvalidateCachedInfrastructure(); //  doesnt throw
@@ -295,6 +1294,29 @@ public class AndroidFileDownloader
         return true;
     }
 
+    private void ensureRegisteredForTransferPreemption() //00
+    {
+        final String deviceAddress = _bluetoothDevice.getAddress();
+        if (deviceAddress.equals(_preemptionRegistrationDeviceAddress))
+            return;
+
+        tryUnregisterFromTransferPreemption();
+
+        TransferPreemptionScheduler.register(deviceAddress, _preemptibleTransferHandle);
+        _preemptionRegistrationDeviceAddress = deviceAddress;
+
+        //00   this way resets and other short commands towards the same device can pause our transfer for as long as they take
+    }
+
+    private void tryUnregisterFromTransferPreemption()
+    {
+        if (_preemptionRegistrationDeviceAddress == null)
+            return;
+
+        TransferPreemptionScheduler.unregister(_preemptionRegistrationDeviceAddress, _preemptibleTransferHandle);
+        _preemptionRegistrationDeviceAddress = null;
+    }
+
     @SuppressWarnings("UnusedReturnValue")
     private boolean tryShutdownBackgroundExecutor()
     {
@@ -344,6 +1366,14 @@ public class AndroidFileDownloader
         _lastBytesSent = 0;
         _lastBytesSentTimestampInMs = 0;
 
+        _currentJournal = null;
+        _currentJournalKey = null;
+
+        _currentCache = null;
+        _currentCacheKey = null;
+
+        _currentCompletionVerdict = EAndroidFileDownloadCompletionVerdict.DOWNLOADED;
+
         setState(EAndroidFileDownloaderState.NONE);
         setBusyState(false);
     }
@@ -628,6 +1658,24 @@ public class AndroidFileDownloader
         //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
     }
 
+    @Contract(pure = true)
+    public void fileDownloadInBatchProgressPercentageChangedAdvertisement(final String remoteFilePath, final int fileIndex, final int filesCount, final int progressPercentage)
+    {
+        //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
+    }
+
+    @Contract(pure = true)
+    public void fileDownloadCompletionVerdictAdvertisement(final String remoteFilePath, final EAndroidFileDownloadCompletionVerdict completionVerdict)
+    {
+        //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
+    }
+
+    @Contract(pure = true)
+    public void fileDownloadInBatchCompletedAdvertisement(final String remoteFilePath, final int fileIndex, final int filesCount, final byte[] data)
+    {
+        //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
+    }
+
     private final String DefaultLogCategory = "FileDownloader";
     private void logInBg(final String message, final EAndroidLoggingLevel level)
     {
@@ -662,6 +1710,12 @@ public class AndroidFileDownloader
             setState(EAndroidFileDownloaderState.DOWNLOADING, fileSize);
             setBusyState(true);
 
+            final TransferJournal journal = _currentJournal;
+            if (journal != null)
+            {
+                journal.update(_currentJournalKey, totalBytesSentSoFar, fileSize); // the bytes reported by the downloader have already landed in the spool-file
+            }
+
             final String remoteFilePathSanitizedSnapshot = _remoteFilePathSanitized; //order
             fireAndForgetInTheBg(() -> {
                 int fileDownloadProgressPercentage = fileSize == 0 ? 100 : (int) (totalBytesSentSoFar * 100.f / fileSize);
@@ -718,10 +1772,17 @@ public class AndroidFileDownloader
         @Override
         public void onDownloadFailed(@NonNull final McuMgrException exception)
         {
+            if (exception instanceof FileIntegrityCheckFailedException)
+            {
+                final String remoteFilePathSanitizedSnapshot = _remoteFilePathSanitized;
+                fireAndForgetInTheBg(() -> fileDownloadCompletionVerdictAdvertisement(remoteFilePathSanitizedSnapshot, EAndroidFileDownloadCompletionVerdict.FAILED__INTEGRITY_CHECK_MISMATCH));
+            }
+
             onError("[AFD.ODF.010] Download failed due to an error:\n\n" + exception, exception);
             setBusyState(false);
 
             setLoggingEnabledOnTransport(true);
+            tryResumePrefetching();
 
             _downloadingController = null; //game over
         }
@@ -729,24 +1790,110 @@ public class AndroidFileDownloader
         @Override
         public void onDownloadCanceled()
         {
+            tryRemoveJournalEntry(); // the calling environment doesn't want the file after all
             setState(EAndroidFileDownloaderState.CANCELLED); //                         order
             fireAndForgetInTheBg(() -> cancelledAdvertisement(_cancellationReason)); // order
             setBusyState(false); //                                                     order
 
             setLoggingEnabledOnTransport(true);
+            tryResumePrefetching();
             _downloadingController = null; //game over
         }
 
+        private void tryPutIntoCache(final byte[] data)
+        {
+            final FileDownloadCache cache = _currentCache; //       snapshot
+            final FileDownloadCache.Key key = _currentCacheKey; //  snapshot
+            if (cache == null || key == null)
+                return;
+
+            fireAndForgetInTheBg(() -> cache.tryPut(key, data)); // keeps the disk-io off the ble-callback thread
+        }
+
+        private void tryRemoveJournalEntry()
+        {
+            final TransferJournal journal = _currentJournal;
+            if (journal == null)
+                return;
+
+            journal.remove(_currentJournalKey);
+        }
+
         @Override
         public void onDownloadCompleted(byte @NotNull [] data)
         {
             //fileDownloadProgressPercentageAndDataThroughputChangedAdvertisement(_remoteFilePathSanitized, 100, 0, 0); //no need this is taken care of inside setState()
 
+            tryRemoveJournalEntry(); //order   also deletes the spool-file
+            tryPutIntoCache(data); //   order
+
+            final String remoteFilePathSanitizedSnapshot = _remoteFilePathSanitized;
+            final EAndroidFileDownloadCompletionVerdict completionVerdictSnapshot = _currentCompletionVerdict;
+            fireAndForgetInTheBg(() -> fileDownloadCompletionVerdictAdvertisement(remoteFilePathSanitizedSnapshot, completionVerdictSnapshot)); //order
+
             setState(EAndroidFileDownloaderState.COMPLETE, data);
             setBusyState(false);
 
             setLoggingEnabledOnTransport(true);
+            tryResumePrefetching();
             _downloadingController = null; //game over
         }
     }
+
+    private final class FileDownloadPrefetcherListenerProxy implements FileDownloadPrefetcher.Listener
+    {
+        @Override
+        public void onFilePrefetched(@NonNull final String remoteFilePath, final int length)
+        {
+            logInBg("[AFD.FDPLP.OFP.010] Prefetched '" + remoteFilePath + "' (" + length + " bytes)", EAndroidLoggingLevel.Trace);
+        }
+
+        @Override
+        public void onFilePrefetchSkipped(@NonNull final String remoteFilePath, @NonNull final String reason)
+        {
+            logInBg("[AFD.FDPLP.OFPS.010] Skipped prefetching '" + remoteFilePath + "' because " + reason, EAndroidLoggingLevel.Info);
+        }
+    }
+
+    private final class FileDownloadBatchListenerProxy implements FileDownloadBatch.Listener
+    {
+        private final String[] _remoteFilePathsSanitized;
+
+        FileDownloadBatchListenerProxy(@NonNull final String[] remoteFilePathsSanitized)
+        {
+            _remoteFilePathsSanitized = remoteFilePathsSanitized;
+        }
+
+        @Override
+        public void onFileDownloadStarted(final int fileIndex)
+        {
+            _remoteFilePathSanitized = _remoteFilePathsSanitized[fileIndex]; // so that the state-changes and the logs refer to the file that is currently being downloaded
+
+            logInBg("[AFD.FDBLP.OFDS.010] Started downloading file #" + fileIndex + " of the batch from '" + _remoteFilePathSanitized + "'", EAndroidLoggingLevel.Trace);
+        }
+
+        @Override
+        public void onFileDownloadProgressChanged(final int fileIndex, final int bytesReceivedSoFar, final int totalBytes)
+        {
+            final int progressPercentage = totalBytes == 0 ? 100 : (int) (bytesReceivedSoFar * 100.f / totalBytes);
+
+            fireAndForgetInTheBg(() -> fileDownloadInBatchProgressPercentageChangedAdvertisement(
+                    _remoteFilePathsSanitized[fileIndex],
+                    fileIndex,
+                    _remoteFilePathsSanitized.length,
+                    progressPercentage
+            ));
+        }
+
+        @Override
+        public void onFileDownloadCompleted(final int fileIndex, @NonNull final byte[] data)
+        {
+            fireAndForgetInTheBg(() -> fileDownloadInBatchCompletedAdvertisement(
+                    _remoteFilePathsSanitized[fileIndex],
+                    fileIndex,
+                    _remoteFilePathsSanitized.length,
+                    data
+            ));
+        }
+    }
 }
@@ -0,0 +1,125 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import android.os.ParcelFileDescriptor;
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The data that gets uploaded by AndroidFileUploader. The bytes are pulled chunk-by-chunk while the transfer is in progress so
+ * that the peak memory consumption is bounded by the window-size of the transfer rather than by the size of the file itself.
+ * <p>
+ * Note that the uploader takes ownership of the source and closes it as soon as the upload completes, fails or gets cancelled.
+ */
+public abstract class AndroidFileUploadSource implements Closeable
+{
+    AndroidFileUploadSource() //package-private so that the calling environment can only use the factory methods below
+    {
+    }
+
+    /**
+     * @return the total amount of bytes that this source will provide
+     */
+    public abstract long getLength();
+
+    /**
+     * Copies up to 'length' bytes starting at the given 'offset' of the source into the given buffer.
+     *
+     * @return the amount of bytes actually copied
+     */
+    abstract int read(final long offset, @NonNull final byte[] buffer, final int bufferOffset, final int length) throws IOException;
+
+    /**
+     * Hints to the source that the bytes before the given offset have been acknowledged by the remote device and will never be requested again.
+     */
+    void releaseUpTo(final long offset)
+    {
+        //by default there is nothing to release   sequential sources override this to trim the bytes they retain for retransmissions
+    }
+
+    /**
+     * @return false for sources that can only be consumed once from start to finish (streams) - such sources cannot be hashed ahead of the upload
+     */
+    boolean canBeReadRepeatedly()
+    {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+    }
+
+    /**
+     * @param data the bytes to upload - they are not copied so the calling environment must not tamper with them while the upload is in progress
+     */
+    public static AndroidFileUploadSource fromBytes(@NonNull final byte[] data)
+    {
+        return new ByteArrayFileUploadSource(data);
+    }
+
+    /**
+     * @param data       the array that holds the bytes to upload - it is not copied so the calling environment must not tamper with it while the upload is in progress
+     * @param dataOffset the offset of the first byte to upload within the array
+     * @param dataLength the amount of bytes to upload
+     */
+    public static AndroidFileUploadSource fromBytes(@NonNull final byte[] data, final int dataOffset, final int dataLength)
+    {
+        return new ByteArrayFileUploadSource(data, dataOffset, dataLength);
+    }
+
+    /**
+     * @param buffer the bytes between the current position and the limit of the buffer get uploaded - direct buffers are supported too and the
+     *               buffer is not copied so the calling environment must not tamper with its contents while the upload is in progress (its
+     *               position and limit are left untouched)
+     */
+    public static AndroidFileUploadSource fromByteBuffer(@NonNull final ByteBuffer buffer)
+    {
+        return new ByteBufferFileUploadSource(buffer);
+    }
+
+    /**
+     * @param localFilePath the path to the local file to upload - the file gets memory-mapped so its contents never end up on the java-heap
+     */
+    public static AndroidFileUploadSource fromLocalFile(@NonNull final String localFilePath) throws IOException
+    {
+        return new MemoryMappedFileUploadSource(new RandomAccessFile(localFilePath, "r").getChannel());
+    }
+
+    /**
+     * @param fileChannel a readable file-channel whose entire contents will get memory-mapped and uploaded
+     */
+    public static AndroidFileUploadSource fromFileChannel(@NonNull final FileChannel fileChannel) throws IOException
+    {
+        return new MemoryMappedFileUploadSource(fileChannel);
+    }
+
+    /**
+     * @param parcelFileDescriptor a file-descriptor pointing to a regular file (pipes and sockets are not supported here - use fromInputStream() for those)
+     */
+    public static AndroidFileUploadSource fromParcelFileDescriptor(@NonNull final ParcelFileDescriptor parcelFileDescriptor) throws IOException
+    {
+        if (parcelFileDescriptor.getStatSize() < 0)
+            throw new IOException("The size of the given file-descriptor is unknown (is it a pipe or a socket?) - use fromInputStream() with an explicit length instead");
+
+        return new MemoryMappedFileUploadSource(new FileInputStream(parcelFileDescriptor.getFileDescriptor()).getChannel(), parcelFileDescriptor);
+    }
+
+    /**
+     * @param inputStream the stream to read the bytes from - it is consumed strictly sequentially
+     * @param length      the exact amount of bytes the stream will provide (the first packet of the upload needs to announce the total file-size to the remote device)
+     */
+    public static AndroidFileUploadSource fromInputStream(@NonNull final InputStream inputStream, final long length)
+    {
+        if (length < 0)
+            throw new IllegalArgumentException("The length of the input-stream must be zero or positive");
+
+        return new InputStreamFileUploadSource(inputStream, length);
+    }
+}
@@ -2,7 +2,9 @@ package no.laerdal.mcumgr_laerdal_wrapper;
 
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
+import android.os.ParcelFileDescriptor;
 import androidx.annotation.NonNull;
+import io.runtime.mcumgr.McuMgrCallback;
 import io.runtime.mcumgr.ble.McuMgrBleTransport;
 import io.runtime.mcumgr.exception.McuMgrException;
 import io.runtime.mcumgr.managers.FsManager;
@@ -12,6 +14,9 @@ import io.runtime.mcumgr.transfer.UploadCallback;
 import no.nordicsemi.android.ble.ConnectionPriorityRequest;
 import org.jetbrains.annotations.Contract;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -32,6 +37,20 @@ public class AndroidFileUploader
     private long _uploadStartTimestampInMs;
     private long _lastBytesSentTimestampInMs;
 
+    private boolean _isWindowCapacityAdaptive = false;
+    private boolean _isResumable = false;
+    private boolean _isJournalingCheckpointsOnDisk = false;
+    private boolean _isSkippingIdenticalFiles = false;
+    private int _deltaUploadBlockLength = 0; // zero means that delta-uploads are disabled
+    private boolean _isAppending = false;
+    private boolean _isVerifyingUploadedData = false;
+    private EAndroidFileUploadEngine _uploadEngine = EAndroidFileUploadEngine.AUTO;
+    private TransferWindow _currentTransferWindow; // null when the upload is carried out by nordic's FileUploader
+    private volatile int _qosMaxThroughputInKBps = 0; //  zero means unlimited
+    private volatile int _qosMaxPacketsInFlight = 0; //   zero means that the window-capacity is the only limit
+    private EAndroidFileUploadCompletionVerdict _currentCompletionVerdict = EAndroidFileUploadCompletionVerdict.UPLOADED;
+    private String _currentCheckpointKey; //  null when the current upload is not checkpointed
+
     private String _resourceId = "";
     private String _remoteFilePathSanitized = "";
     private Boolean _currentBusyState = false;
@@ -39,6 +58,47 @@ public class AndroidFileUploader
 
     private final ExecutorService _backgroundExecutor = Executors.newCachedThreadPool();
 
+    private String _preemptionRegistrationDeviceAddress; // the device we are registered for with the transfer-preemption-scheduler
+    private final TransferPreemptionScheduler.PreemptibleTransfer _preemptibleTransferHandle = new TransferPreemptionScheduler.PreemptibleTransfer() //00
+    {
+        @Override
+        boolean isTransferring()
+        {
+            final EAndroidFileUploaderState currentState = _currentState;
+
+            return currentState == EAndroidFileUploaderState.UPLOADING
+                    || currentState == EAndroidFileUploaderState.RESUMING
+                    || currentState == EAndroidFileUploaderState.IDLE; //10
+        }
+
+        @Override
+        boolean pauseTransferController()
+        {
+            final TransferController transferController = _uploadingController;
+            if (transferController == null) // still consulting the device before the actual transfer
+                return false;
+
+            transferController.pause(); //20
+            return true;
+        }
+
+        @Override
+        void resumeTransferController()
+        {
+            final TransferController transferController = _uploadingController;
+            if (transferController == null) // finished in the meantime
+                return;
+
+            transferController.resume();
+        }
+
+        //00   a handle rather than having the class itself extend PreemptibleTransfer so that isTransferring() and friends don't leak into the public api
+        //
+        //10   started but no progress reported yet
+        //
+        //20   behind the back of tryPause()/tryResume() on purpose   the calling environment must not see the state flip back and forth
+    };
+
     public AndroidFileUploader() //this flavour is meant to be used in conjunction with trySetBluetoothDevice() and trySetContext()
     {
     }
@@ -54,162 +114,1184 @@ public class AndroidFileUploader
         if (!IsIdleOrCold())
             return false;
 
-        if (!tryInvalidateCachedInfrastructure()) //order
-            return false;
-
-        _context = context;
+        if (!tryInvalidateCachedInfrastructure()) //order
+            return false;
+
+        _context = context;
+        return true;
+    }
+
+    public boolean trySetBluetoothDevice(@NonNull final BluetoothDevice bluetoothDevice)
+    {
+        if (!IsIdleOrCold())
+        {
+            logInBg("[AFU.TSBD.005] trySetBluetoothDevice() cannot proceed because the uploader is not cold", EAndroidLoggingLevel.Error);
+            return false;
+        }
+
+        if (!tryInvalidateCachedInfrastructure()) //order
+        {
+            logInBg("[AFU.TSBD.020] Failed to invalidate the cached-transport instance", EAndroidLoggingLevel.Error);
+            return false;
+        }
+
+        _bluetoothDevice = bluetoothDevice; //order
+
+        logInBg("[AFU.TSBD.030] Successfully set the android-bluetooth-device to the given value", EAndroidLoggingLevel.Trace);
+
+        return true;
+    }
+
+    public boolean tryInvalidateCachedInfrastructure() //must be public
+    {
+        boolean success1 = tryDisposeFilesystemManager(); // order
+        boolean success2 = tryDisposeTransport(); //         order
+        boolean success3 = tryDisposeCallbackProxy(); //     order
+
+        return success1 && success2 && success3;
+    }
+
+    /**
+     * Initiates a file upload asynchronously. The progress is advertised through the callbacks provided by this class.
+     * Setup interceptors for them to get informed about the status of the firmware-installation.
+     *
+     * @param resourceId      the resource-id/nickname/local-file-path of the resource/data that is being
+     * @param remoteFilePath  the remote-file-path to save the given data to on the remote device
+     * @param data            the bytes to upload
+     * @param initialMtuSize  sets the initial MTU for the connection that the McuMgr BLE-transport sets up for the firmware installation that will follow.
+     *                        Note that if less than 0 it gets ignored and if it doesn't fall within the range [23, 517] it will cause a hard error.
+     * @param windowCapacity  specifies the windows-capacity for the data transfers of the BLE connection - if zero or negative the value provided gets ignored and will be set to 1 by default
+     * @param memoryAlignment specifies the memory-alignment to use for the data transfers of the BLE connection - if zero or negative the value provided gets ignored and will be set to 1 by default
+     * @param minimumNativeLogLevelNumeric sets the minimum log-level for the native-layer logging - see EAndroidLoggingLevel for details
+     * @return a verdict indicating whether the file uploading was started successfully or not
+     */
+    public EAndroidFileUploaderVerdict beginUpload(
+            final String resourceId,
+            final String remoteFilePath,
+            final byte[] data,
+            final int minimumNativeLogLevelNumeric,
+            final int initialMtuSize,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        return beginUploadImpl(resourceId, remoteFilePath, data, null, minimumNativeLogLevelNumeric, initialMtuSize, windowCapacity, memoryAlignment);
+    }
+
+    /**
+     * Same as {@link #beginUpload(String, String, byte[], int, int, int, int)} but the data are pulled chunk-by-chunk from the given source
+     * while the transfer is in progress. This keeps the peak memory consumption bounded by the window-capacity instead of the file-size.
+     *
+     * @param source the source to pull the data from - the uploader takes ownership of it and closes it once the upload is over
+     */
+    public EAndroidFileUploaderVerdict beginUpload(
+            final String resourceId,
+            final String remoteFilePath,
+            final AndroidFileUploadSource source,
+            final int minimumNativeLogLevelNumeric,
+            final int initialMtuSize,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        final EAndroidFileUploaderVerdict verdict = beginUploadImpl(resourceId, remoteFilePath, null, source, minimumNativeLogLevelNumeric, initialMtuSize, windowCapacity, memoryAlignment);
+        if (verdict != EAndroidFileUploaderVerdict.SUCCESS && source != null)
+        {
+            tryCloseUploadSource(source); //we took ownership of the source so we must not leak it
+        }
+
+        return verdict;
+    }
+
+    /**
+     * Uploads a slice of the given array without copying it into a fresh array first (handy when the calling environment holds a large pooled buffer).
+     *
+     * @param data       the array that holds the bytes to upload - it must not be tampered with while the upload is in progress
+     * @param dataOffset the offset of the first byte to upload within the array
+     * @param dataLength the amount of bytes to upload
+     */
+    public EAndroidFileUploaderVerdict beginUpload(
+            final String resourceId,
+            final String remoteFilePath,
+            final byte[] data,
+            final int dataOffset,
+            final int dataLength,
+            final int minimumNativeLogLevelNumeric,
+            final int initialMtuSize,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        if (data == null || dataOffset < 0 || dataLength < 0 || dataOffset > data.length - dataLength)
+        {
+            onError("[AFU.BUS.010] Provided data is null or the given offset/length fall outside of its bounds");
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_DATA;
+        }
+
+        return beginUpload(resourceId, remoteFilePath, AndroidFileUploadSource.fromBytes(data, dataOffset, dataLength), minimumNativeLogLevelNumeric, initialMtuSize, windowCapacity, memoryAlignment);
+    }
+
+    /**
+     * Uploads the bytes between the current position and the limit of the given buffer without copying them (direct buffers are supported too).
+     *
+     * @param buffer the buffer that holds the bytes to upload - its contents must not be tampered with while the upload is in progress (its position and limit are left untouched)
+     */
+    public EAndroidFileUploaderVerdict beginUploadFromByteBuffer(
+            final String resourceId,
+            final String remoteFilePath,
+            final ByteBuffer buffer,
+            final int minimumNativeLogLevelNumeric,
+            final int initialMtuSize,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        if (buffer == null)
+        {
+            onError("[AFU.BUFBB.010] Provided buffer is null");
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_DATA;
+        }
+
+        return beginUpload(resourceId, remoteFilePath, AndroidFileUploadSource.fromByteBuffer(buffer), minimumNativeLogLevelNumeric, initialMtuSize, windowCapacity, memoryAlignment);
+    }
+
+    /**
+     * Uploads the given local file by memory-mapping it (the file contents never end up on the java-heap).
+     *
+     * @param localFilePath the path to the local file to upload
+     */
+    public EAndroidFileUploaderVerdict beginUploadFromLocalFile(
+            final String resourceId,
+            final String remoteFilePath,
+            final String localFilePath,
+            final int minimumNativeLogLevelNumeric,
+            final int initialMtuSize,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        final AndroidFileUploadSource source;
+        try
+        {
+            source = AndroidFileUploadSource.fromLocalFile(localFilePath);
+        }
+        catch (final Exception ex)
+        {
+            onError("[AFU.BUFLF.010] Failed to open the local file '" + localFilePath + "' for reading", ex);
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_DATA;
+        }
+
+        return beginUpload(resourceId, remoteFilePath, source, minimumNativeLogLevelNumeric, initialMtuSize, windowCapacity, memoryAlignment);
+    }
+
+    /**
+     * Uploads the file that the given file-descriptor points to by memory-mapping it. Handy for content-uris obtained through the storage-access-framework.
+     *
+     * @param parcelFileDescriptor a file-descriptor that points to a regular file - the uploader takes ownership of it and closes it once the upload is over
+     */
+    public EAndroidFileUploaderVerdict beginUploadFromParcelFileDescriptor(
+            final String resourceId,
+            final String remoteFilePath,
+            final ParcelFileDescriptor parcelFileDescriptor,
+            final int minimumNativeLogLevelNumeric,
+            final int initialMtuSize,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        final AndroidFileUploadSource source;
+        try
+        {
+            source = AndroidFileUploadSource.fromParcelFileDescriptor(parcelFileDescriptor);
+        }
+        catch (final Exception ex)
+        {
+            onError("[AFU.BUFPFD.010] Failed to memory-map the given file-descriptor", ex);
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_DATA;
+        }
+
+        return beginUpload(resourceId, remoteFilePath, source, minimumNativeLogLevelNumeric, initialMtuSize, windowCapacity, memoryAlignment);
+    }
+
+    /**
+     * Uploads the bytes of the given stream. The stream is consumed sequentially and only the bytes that are still in flight are retained in memory.
+     *
+     * @param inputStream the stream to upload - the uploader takes ownership of it and closes it once the upload is over
+     * @param length      the exact amount of bytes that the stream will provide
+     */
+    public EAndroidFileUploaderVerdict beginUploadFromInputStream(
+            final String resourceId,
+            final String remoteFilePath,
+            final InputStream inputStream,
+            final long length,
+            final int minimumNativeLogLevelNumeric,
+            final int initialMtuSize,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        if (inputStream == null || length < 0)
+        {
+            onError("[AFU.BUFIS.010] Provided input-stream is null or its length is negative");
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_DATA;
+        }
+
+        return beginUpload(resourceId, remoteFilePath, AndroidFileUploadSource.fromInputStream(inputStream, length), minimumNativeLogLevelNumeric, initialMtuSize, windowCapacity, memoryAlignment);
+    }
+
+    /**
+     * Uploads multiple files back-to-back over the same connection. The transport, the file-system-manager and the connection-priority are set up
+     * exactly once for the entire batch and the first chunks of file N+1 start flowing as soon as the last chunk of file N has been sent (without
+     * waiting for its final acknowledgements).
+     * <p>
+     * The state-machine and the throughput-advertisements of this class describe the batch as a whole, while the per-file milestones are advertised
+     * through {@link #fileUploadInBatchProgressPercentageChangedAdvertisement} and {@link #fileUploadInBatchCompletedAdvertisement}. If any file fails
+     * the entire batch fails.
+     *
+     * @param resourceIds     the resource-ids of the files (one per file)
+     * @param remoteFilePaths the remote-file-paths to save the files to (one per file)
+     * @param sources         the sources to pull the data of each file from - the uploader takes ownership of them and closes them once they are no longer needed
+     * @return a verdict indicating whether the batch upload was started successfully or not
+     */
+    public EAndroidFileUploaderVerdict beginBatchUpload(
+            final String[] resourceIds,
+            final String[] remoteFilePaths,
+            final AndroidFileUploadSource[] sources,
+            final int minimumNativeLogLevelNumeric,
+            final int initialMtuSize,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        final EAndroidFileUploaderVerdict verdict = beginBatchUploadImpl(resourceIds, remoteFilePaths, sources, minimumNativeLogLevelNumeric, initialMtuSize, windowCapacity, memoryAlignment);
+        if (verdict != EAndroidFileUploaderVerdict.SUCCESS && sources != null)
+        {
+            for (final AndroidFileUploadSource source : sources)
+            {
+                if (source != null)
+                {
+                    tryCloseUploadSource(source);
+                }
+            }
+        }
+
+        return verdict;
+    }
+
+    /**
+     * Same as {@link #beginBatchUpload(String[], String[], AndroidFileUploadSource[], int, int, int, int)} but for files that are already in memory.
+     */
+    public EAndroidFileUploaderVerdict beginBatchUpload(
+            final String[] resourceIds,
+            final String[] remoteFilePaths,
+            final byte[][] data,
+            final int minimumNativeLogLevelNumeric,
+            final int initialMtuSize,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        AndroidFileUploadSource[] sources = null;
+        if (data != null)
+        {
+            sources = new AndroidFileUploadSource[data.length];
+            for (int i = 0; i < data.length; i++)
+            {
+                sources[i] = data[i] == null ? null : AndroidFileUploadSource.fromBytes(data[i]);
+            }
+        }
+
+        return beginBatchUpload(resourceIds, remoteFilePaths, sources, minimumNativeLogLevelNumeric, initialMtuSize, windowCapacity, memoryAlignment);
+    }
+
+    private EAndroidFileUploaderVerdict beginBatchUploadImpl(
+            final String[] resourceIds,
+            final String[] remoteFilePaths,
+            final AndroidFileUploadSource[] sources,
+            final int minimumNativeLogLevelNumeric,
+            final int initialMtuSize,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        if (!IsCold()) //keep first
+        {
+            onError("[AFU.BBU.000] Another upload is already in progress");
+
+            return EAndroidFileUploaderVerdict.FAILED__OTHER_UPLOAD_ALREADY_IN_PROGRESS;
+        }
+
+        if (resourceIds == null || remoteFilePaths == null || sources == null || resourceIds.length != remoteFilePaths.length || resourceIds.length != sources.length)
+        {
+            onError("[AFU.BBU.010] The resource-ids, the remote-file-paths and the sources must all be provided and they must all have the same length");
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        _minimumNativeLogLevel = McuMgrLogLevelHelpers.translateLogLevel(minimumNativeLogLevelNumeric);
+
+        final String[] remoteFilePathsSanitized = new String[remoteFilePaths.length];
+        for (int i = 0; i < remoteFilePaths.length; i++)
+        {
+            final String remoteFilePathSanitized = remoteFilePaths[i] == null ? "" : remoteFilePaths[i].trim();
+            if (resourceIds[i] == null || !remoteFilePathSanitized.startsWith("/") || remoteFilePathSanitized.endsWith("/"))
+            {
+                onError("[AFU.BBU.020] The resource-id or the remote-file-path of file #" + i + " is invalid (remote-file-paths must be absolute paths to files)");
+
+                return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
+            }
+
+            if (sources[i] == null)
+            {
+                onError("[AFU.BBU.030] The source of file #" + i + " is null");
+
+                return EAndroidFileUploaderVerdict.FAILED__INVALID_DATA;
+            }
+
+            remoteFilePathsSanitized[i] = remoteFilePathSanitized;
+        }
+
+        if (_context == null)
+        {
+            onError("[AFU.BBU.040] No context specified - call trySetContext() first");
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        if (_bluetoothDevice == null)
+        {
+            onError("[AFU.BBU.050] No bluetooth-device specified - call trySetBluetoothDevice() first");
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        try
+        {
+            _resourceId = resourceIds.length == 0 ? "" : resourceIds[0];
+            _remoteFilePathSanitized = remoteFilePathsSanitized.length == 0 ? "" : remoteFilePathsSanitized[0];
+
+            resetUploadState(); //order   must be called before ensureTransportIsInitializedExactlyOnce() because the environment might try to set the device via trySetBluetoothDevice()!!!
+            ensureTransportIsInitializedExactlyOnce(initialMtuSize); //order
+            setLoggingEnabledOnTransport(false); //order
+
+            final EAndroidFileUploaderVerdict verdict = ensureFilesystemManagerIsInitializedExactlyOnce(); //order
+            if (verdict != EAndroidFileUploaderVerdict.SUCCESS)
+                return verdict;
+
+            requestConnectionPriorityOnTransport(); //order
+            ensureFileUploaderCallbackProxyIsInitializedExactlyOnce(); //order
+            ensureRegisteredForTransferPreemption(); //order
+
+            setState(EAndroidFileUploaderState.IDLE, 0); //order
+            final FileUploadBatch batch = new FileUploadBatch(
+                    _fileSystemManager,
+                    remoteFilePathsSanitized,
+                    sources,
+                    createTransferWindow(windowCapacity),
+                    Math.max(1, memoryAlignment),
+                    _fileUploaderCallbackProxy,
+                    new FileUploadBatchListenerProxy(resourceIds, remoteFilePathsSanitized)
+            );
+
+            if (_uploadEngine == EAndroidFileUploadEngine.IN_HOUSE)
+            {
+                batch.setUsesPreEncodedFrames();
+            }
+
+            _uploadingController = batch.uploadAsync();
+        }
+        catch (final Exception ex)
+        {
+            onError("[AFU.BBU.060] Failed to initialize the batch upload", ex);
+
+            return EAndroidFileUploaderVerdict.FAILED__ERROR_UPON_COMMENCING;
+        }
+
+        return EAndroidFileUploaderVerdict.SUCCESS;
+    }
+
+    private EAndroidFileUploaderVerdict beginUploadImpl(
+            final String resourceId,
+            final String remoteFilePath,
+            final byte[] data, //                    either this
+            final AndroidFileUploadSource source, // or this
+            final int minimumNativeLogLevelNumeric,
+            final int initialMtuSize,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        if (!IsCold()) //keep first
+        {
+            onError("Another upload is already in progress");
+
+            return EAndroidFileUploaderVerdict.FAILED__OTHER_UPLOAD_ALREADY_IN_PROGRESS;
+        }
+
+        if (resourceId == null) //can be dud but not null
+        {
+            onError("Provided resource-id is null", null);
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        if (remoteFilePath == null || remoteFilePath.isEmpty())
+        {
+            onError("Provided target-path is empty", null);
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        _minimumNativeLogLevel = McuMgrLogLevelHelpers.translateLogLevel(minimumNativeLogLevelNumeric);
+
+        _resourceId = resourceId;
+        _remoteFilePathSanitized = remoteFilePath.trim();
+        if (_remoteFilePathSanitized.endsWith("/")) //the path must point to a file not a directory
+        {
+            onError("Provided target-path points to a directory not a file");
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        if (!_remoteFilePathSanitized.startsWith("/"))
+        {
+            onError("Provided target-path is not an absolute path");
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        if (_context == null)
+        {
+            onError("No context specified - call trySetContext() first");
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        if (_bluetoothDevice == null)
+        {
+            onError("No bluetooth-device specified - call trySetBluetoothDevice() first");
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
+        }
+
+        if (data == null && source == null)
+        { // data being null is not ok   but data.length==0 is perfectly ok because we might want to create empty files
+            onError("Provided data is null");
+
+            return EAndroidFileUploaderVerdict.FAILED__INVALID_DATA;
+        }
+
+        try
+        {
+            resetUploadState(); //order   must be called before ensureTransportIsInitializedExactlyOnce() because the environment might try to set the device via trySetBluetoothDevice()!!!
+            ensureTransportIsInitializedExactlyOnce(initialMtuSize); //order
+            setLoggingEnabledOnTransport(false); //order
+
+            final EAndroidFileUploaderVerdict verdict = ensureFilesystemManagerIsInitializedExactlyOnce(); //order
+            if (verdict != EAndroidFileUploaderVerdict.SUCCESS)
+                return verdict;
+
+            requestConnectionPriorityOnTransport(); //order
+            ensureFileUploaderCallbackProxyIsInitializedExactlyOnce(); //order
+            ensureRegisteredForTransferPreemption(); //order
+
+            setState(EAndroidFileUploaderState.IDLE, 0); //order
+            if (_isJournalingCheckpointsOnDisk)
+            {
+                tryAttachTransferJournalToCheckpoints();
+            }
+
+            final AndroidFileUploadSource effectiveSource = source != null ? source : AndroidFileUploadSource.fromBytes(data);
+            if (_isAppending) //40
+            {
+                beginAppendUpload(effectiveSource, windowCapacity, memoryAlignment);
+            }
+            else if (_deltaUploadBlockLength > 0 && effectiveSource.canBeReadRepeatedly()) //30
+            {
+                _uploadingController = startDeltaUpload(effectiveSource, windowCapacity, memoryAlignment);
+            }
+            else if (isCheckpointing() || _isSkippingIdenticalFiles) //20
+            {
+                beginUploadAfterRemoteChecks(effectiveSource, windowCapacity, memoryAlignment);
+            }
+            else if (source != null || _isWindowCapacityAdaptive || _isVerifyingUploadedData || isQualityOfServiceCapped() || _uploadEngine == EAndroidFileUploadEngine.IN_HOUSE) //10
+            {
+                _uploadingController = startStreamingUpload(effectiveSource, windowCapacity, memoryAlignment, 0);
+            }
+            else
+            {
+                FileUploader fileUploader = new FileUploader( //00  order
+                        _fileSystemManager,
+                        _remoteFilePathSanitized,
+                        data,
+                        Math.max(1, windowCapacity),
+                        Math.max(1, memoryAlignment)
+                );
+
+                _uploadingController = fileUploader.uploadAsync(_fileUploaderCallbackProxy);
+            }
+        }
+        catch (final Exception ex)
+        {
+            onError("Failed to initialize the upload", ex);
+
+            return EAndroidFileUploaderVerdict.FAILED__ERROR_UPON_COMMENCING;
+        }
+
+        return EAndroidFileUploaderVerdict.SUCCESS;
+
+        //00   file-uploader is the new improved way of performing the file upload   it makes use of the window uploading mechanism
+        //     aka sending multiple packets without waiting for the response
+        //
+        //10   the streaming-uploader uses the exact same windowed mechanism but it pulls the data from the source chunk-by-chunk
+        //     so that we never have to hold the entire file in memory   it is also the only one that can adapt its window on the fly
+        //     throttle its bandwidth and verify the uploaded data against the device
+        //
+        //20   the streaming-uploader is also the only one that can start from an offset other than zero   and when it comes to skipping
+        //     identical files we need to consult the device before deciding whether to upload anything at all
+        //
+        //30   delta-uploads compare every block against the device anyway so they also take care of skipping identical files and of resuming
+        //     interrupted uploads (the blocks that made it to the device the last time around will simply be found to be identical)
+        //
+        //40   appends trust the calling environment that the remote file is a prefix of the local data so a single status query is all it takes
+    }
+
+    private StreamingFileUploader createStreamingFileUploader(final AndroidFileUploadSource source, final int windowCapacity, final int memoryAlignment)
+    {
+        final StreamingFileUploader uploader = new StreamingFileUploader(
+                _fileSystemManager,
+                _remoteFilePathSanitized,
+                source,
+                createTransferWindow(windowCapacity),
+                Math.max(1, memoryAlignment),
+                _fileUploaderCallbackProxy
+        );
+
+        if (_isVerifyingUploadedData)
+        {
+            uploader.setVerifiesUploadedRange();
+        }
+
+        if (_uploadEngine == EAndroidFileUploadEngine.IN_HOUSE)
+        {
+            uploader.setUsesPreEncodedFrames();
+        }
+
+        return uploader;
+    }
+
+    private TransferController startStreamingUpload(final AndroidFileUploadSource source, final int windowCapacity, final int memoryAlignment, final long startOffset)
+    {
+        final StreamingFileUploader uploader = createStreamingFileUploader(source, windowCapacity, memoryAlignment);
+        if (startOffset > 0)
+        {
+            logInBg("[AFU.SSU.010] Resuming the upload of '" + _remoteFilePathSanitized + "' from offset " + startOffset + " out of " + source.getLength() + " bytes", EAndroidLoggingLevel.Info);
+
+            uploader.setStartOffset(startOffset);
+        }
+
+        return uploader.uploadAsync();
+    }
+
+    private void beginAppendUpload(final AndroidFileUploadSource source, final int windowCapacity, final int memoryAlignment)
+    {
+        McuMgrFsHelpers.queryFileStatus(_fileSystemManager, _remoteFilePathSanitized, new McuMgrCallback<McuMgrFsHelpers.FileStatusResponse>()
+        {
+            @Override
+            public void onResponse(@NonNull final McuMgrFsHelpers.FileStatusResponse response)
+            {
+                final long localFileLength = source.getLength();
+                final long remoteFileLength = response.isSuccess() ? response.len : 0; // the file doesn't exist yet
+                if (remoteFileLength > localFileLength)
+                {
+                    logInBg("[AFU.BAU.010] The remote file (" + remoteFileLength + " bytes) is longer than the local data (" + localFileLength + " bytes) - rewriting it from scratch", EAndroidLoggingLevel.Warning);
+
+                    continueAppendUploadFrom(source, windowCapacity, memoryAlignment, 0);
+                    return;
+                }
+
+                if (remoteFileLength == localFileLength && response.isSuccess())
+                {
+                    completeUploadAsAlreadyUpToDate(source);
+                    return;
+                }
+
+                continueAppendUploadFrom(source, windowCapacity, memoryAlignment, remoteFileLength);
+            }
+
+            @Override
+            public void onError(@NonNull final McuMgrException exception)
+            {
+                if (tryHonourCancellationRequestedDuringRemoteChecks(source))
+                    return;
+
+                tryCloseUploadSource(source);
+
+                AndroidFileUploader.this.onError("[AFU.BAU.020] Failed to query the size of the remote file to append to", exception); //00
+                setLoggingEnabledOnTransport(true);
+                setBusyState(false);
+            }
+        });
+
+        //00   we must not fall back to a full upload here because we don't know whether the local data still hold the entire file
+    }
+
+    private void continueAppendUploadFrom(final AndroidFileUploadSource source, final int windowCapacity, final int memoryAlignment, final long remoteFileLength)
+    {
+        if (tryHonourCancellationRequestedDuringRemoteChecks(source))
+            return;
+
+        final long appendOffset = remoteFileLength - remoteFileLength % Math.max(1, memoryAlignment); //00
+        try
+        {
+            final StreamingFileUploader uploader = createStreamingFileUploader(source, windowCapacity, memoryAlignment);
+            if (appendOffset > 0)
+            {
+                logInBg("[AFU.CAUF.010] Appending " + (source.getLength() - appendOffset) + " bytes to '" + _remoteFilePathSanitized + "' from offset " + appendOffset, EAndroidLoggingLevel.Info);
+
+                _currentCompletionVerdict = EAndroidFileUploadCompletionVerdict.APPENDED__ONLY_NEW_TAIL;
+
+                uploader.setStartOffset(appendOffset);
+                uploader.setReportsProgressRelativeToRange();
+            }
+
+            _uploadingController = uploader.uploadAsync();
+        }
+        catch (final Exception ex)
+        {
+            tryCloseUploadSource(source);
+
+            onError("[AFU.CAUF.020] Failed to commence the append-upload", ex);
+            setLoggingEnabledOnTransport(true);
+            setBusyState(false);
+        }
+
+        //00   rewriting the few unaligned bytes at the end of the remote file is harmless since they are identical to the local ones
+    }
+
+    private TransferController startDeltaUpload(final AndroidFileUploadSource source, final int windowCapacity, final int memoryAlignment)
+    {
+        final DeltaFileUploader uploader = new DeltaFileUploader(
+                _fileSystemManager,
+                _remoteFilePathSanitized,
+                source,
+                createTransferWindow(windowCapacity),
+                Math.max(1, memoryAlignment),
+                _deltaUploadBlockLength,
+                _fileUploaderCallbackProxy,
+                new DeltaFileUploaderListenerProxy(),
+                _backgroundExecutor
+        );
+
+        if (_isVerifyingUploadedData)
+        {
+            uploader.setVerifiesUploadedRanges();
+        }
+
+        if (_uploadEngine == EAndroidFileUploadEngine.IN_HOUSE)
+        {
+            uploader.setUsesPreEncodedFrames();
+        }
+
+        return uploader.uploadAsync();
+    }
+
+    private void beginUploadAfterRemoteChecks(final AndroidFileUploadSource source, final int windowCapacity, final int memoryAlignment)
+    {
+        if (!source.canBeReadRepeatedly())
+        {
+            logInBg("[AFU.BUARC.010] The given source is a one-off stream so it cannot be compared against the remote file or checkpointed - the upload will start from scratch", EAndroidLoggingLevel.Warning);
+
+            _uploadingController = startStreamingUpload(source, windowCapacity, memoryAlignment, 0);
+            return;
+        }
+
+        _backgroundExecutor.execute(() -> { //00
+            try
+            {
+                if (tryHonourCancellationRequestedDuringRemoteChecks(source))
+                    return;
+
+                final FileContentDigester localDigests = FileContentDigester.digest(source, 0, source.getLength());
+
+                continueUploadAfterDigesting(source, windowCapacity, memoryAlignment, localDigests);
+            }
+            catch (final Exception ex)
+            {
+                tryCloseUploadSource(source);
+
+                onError("[AFU.BUARC.050] Failed to digest the local data", ex);
+                setLoggingEnabledOnTransport(true);
+                setBusyState(false);
+            }
+        });
+
+        //00   digesting the whole file takes a while for large files so we must not block the thread that called beginUpload()
+    }
+
+    private void continueUploadAfterDigesting(final AndroidFileUploadSource source, final int windowCapacity, final int memoryAlignment, final FileContentDigester localDigests) throws IOException // called on the background executor
+    {
+        final long localFileLength = source.getLength();
+
+        long checkpointOffset = 0;
+        if (isCheckpointing())
+        {
+            _currentCheckpointKey = FileUploadCheckpoints.createKey(_bluetoothDevice.getAddress(), _remoteFilePathSanitized, localDigests.getSha256());
+            checkpointOffset = FileUploadCheckpoints.getAcknowledgedOffset(_currentCheckpointKey);
+            checkpointOffset = checkpointOffset < localFileLength ? checkpointOffset : 0;
+        }
+
+        if (!_isSkippingIdenticalFiles && checkpointOffset <= 0)
+        {
+            _uploadingController = startStreamingUpload(source, windowCapacity, memoryAlignment, 0);
+            return;
+        }
+
+        final long checkpointOffsetSnapshot = checkpointOffset;
+        final long alignedCheckpointOffset = checkpointOffset - checkpointOffset % Math.max(1, memoryAlignment);
+        final FileContentDigester prefixDigests = alignedCheckpointOffset > 0 //00
+                ? FileContentDigester.digest(source, 0, alignedCheckpointOffset)
+                : null;
+
+        McuMgrFsHelpers.queryFileStatus(_fileSystemManager, _remoteFilePathSanitized, new McuMgrCallback<McuMgrFsHelpers.FileStatusResponse>() //10
+        {
+            @Override
+            public void onResponse(@NonNull final McuMgrFsHelpers.FileStatusResponse response)
+            {
+                final long remoteFileLength = response.isSuccess() ? response.len : -1; // the file doesn't exist
+                final long unalignedResumeOffset = Math.max(0, Math.min(checkpointOffsetSnapshot, remoteFileLength));
+                final long resumeOffset = unalignedResumeOffset - unalignedResumeOffset % Math.max(1, memoryAlignment); //30
+                if (unalignedResumeOffset < checkpointOffsetSnapshot)
+                {
+                    logInBg("[AFU.BUARC.020] The remote file is shorter (" + remoteFileLength + " bytes) than the checkpoint (" + checkpointOffsetSnapshot + " bytes) - resuming from offset " + resumeOffset, EAndroidLoggingLevel.Warning);
+                }
+
+                if (!_isSkippingIdenticalFiles || remoteFileLength != localFileLength)
+                {
+                    verifyRemotePrefixAndContinue(source, windowCapacity, memoryAlignment, resumeOffset, resumeOffset == alignedCheckpointOffset ? prefixDigests : null);
+                    return;
+                }
+
+                if (localFileLength == 0) //20
+                {
+                    completeUploadAsAlreadyUpToDate(source);
+                    return;
+                }
+
+                McuMgrFsHelpers.compareRemoteFileRange(_fileSystemManager, _remoteFilePathSanitized, 0, localFileLength, localDigests, new McuMgrFsHelpers.RangeComparisonCallback()
+                {
+                    @Override
+                    public void onCompared(final boolean isIdentical)
+                    {
+                        if (isIdentical)
+                        {
+                            completeUploadAsAlreadyUpToDate(source);
+                            return;
+                        }
+
+                        verifyRemotePrefixAndContinue(source, windowCapacity, memoryAlignment, resumeOffset, resumeOffset == alignedCheckpointOffset ? prefixDigests : null);
+                    }
+
+                    @Override
+                    public void onFailed(@NonNull final McuMgrException exception)
+                    {
+                        logInBg("[AFU.BUARC.030] Failed to hash the remote file - it will be uploaded regardless:\n\n" + exception, EAndroidLoggingLevel.Warning);
+
+                        verifyRemotePrefixAndContinue(source, windowCapacity, memoryAlignment, resumeOffset, resumeOffset == alignedCheckpointOffset ? prefixDigests : null);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(@NonNull final McuMgrException exception)
+            {
+                logInBg("[AFU.BUARC.040] Failed to query the status of the remote file - the upload will start from scratch:\n\n" + exception, EAndroidLoggingLevel.Warning);
+
+                continueUploadFrom(source, windowCapacity, memoryAlignment, 0);
+            }
+        });
+
+        //00   the prefix gets digested right away on the background executor while we are at it   the checkpoint is only known once the
+        //     whole data got digested (its key holds the hash of the data) so the prefix has to be read a second time
+        //
+        //10   a checkpoint only tells us what the device had acknowledged at some point   the file might have been deleted, truncated or
+        //     overwritten ever since so we must make sure that the bytes before the resume-offset are still the ones we sent
+        //
+        //20   devices typically refuse to hash empty files so there is no point in asking
+        //
+        //30   the remote length can be anything when the file got truncated behind our back   just like with appends we rewrite the few
+        //     unaligned bytes at its end so that the upload starts from an offset that the device accepts
+    }
+
+    /**
+     * Resumes the upload from the given offset only if the device holds the very same bytes as the local data before it - otherwise the upload
+     * starts from scratch.
+     *
+     * @param prefixDigests the digests of the local data before the resume-offset - or null if they have yet to be calculated
+     */
+    private void verifyRemotePrefixAndContinue(
+            final AndroidFileUploadSource source,
+            final int windowCapacity,
+            final int memoryAlignment,
+            final long resumeOffset,
+            final FileContentDigester prefixDigests
+    )
+    {
+        if (resumeOffset <= 0)
+        {
+            continueUploadFrom(source, windowCapacity, memoryAlignment, 0);
+            return;
+        }
+
+        if (prefixDigests == null) //00
+        {
+            _backgroundExecutor.execute(() -> {
+                final FileContentDigester digests;
+                try
+                {
+                    digests = FileContentDigester.digest(source, 0, resumeOffset);
+                }
+                catch (final Exception ex)
+                {
+                    logInBg("[AFU.VRPAC.010] Failed to digest the local data before the resume-offset - the upload will start from scratch:\n\n" + ex, EAndroidLoggingLevel.Warning);
+
+                    continueUploadFrom(source, windowCapacity, memoryAlignment, 0);
+                    return;
+                }
+
+                verifyRemotePrefixAndContinue(source, windowCapacity, memoryAlignment, resumeOffset, digests);
+            });
+            return;
+        }
+
+        McuMgrFsHelpers.compareRemoteFileRange(_fileSystemManager, _remoteFilePathSanitized, 0, resumeOffset, prefixDigests, new McuMgrFsHelpers.RangeComparisonCallback()
+        {
+            @Override
+            public void onCompared(final boolean isIdentical)
+            {
+                if (!isIdentical)
+                {
+                    logInBg("[AFU.VRPAC.020] The remote file has changed since the checkpoint got taken - the upload will start from scratch", EAndroidLoggingLevel.Info);
+
+                    continueUploadFrom(source, windowCapacity, memoryAlignment, 0);
+                    return;
+                }
+
+                continueUploadFrom(source, windowCapacity, memoryAlignment, resumeOffset);
+            }
+
+            @Override
+            public void onFailed(@NonNull final McuMgrException exception) //10
+            {
+                logInBg("[AFU.VRPAC.030] Failed to hash the remote file - the upload will start from scratch:\n\n" + exception, EAndroidLoggingLevel.Warning);
+
+                continueUploadFrom(source, windowCapacity, memoryAlignment, 0);
+            }
+        });
+
+        //00   the remote file is shorter than the checkpoint so the prefix we digested upfront doesn't line up with the resume-offset
+        //
+        //10   unlike downloads we can't fall back to trusting the file-size alone because resuming on top of foreign bytes would corrupt the
+        //     remote file without anyone noticing
+    }
+
+    private void continueUploadFrom(final AndroidFileUploadSource source, final int windowCapacity, final int memoryAlignment, final long resumeOffset)
+    {
+        if (tryHonourCancellationRequestedDuringRemoteChecks(source))
+            return;
+
+        try
+        {
+            _uploadingController = startStreamingUpload(source, windowCapacity, memoryAlignment, resumeOffset);
+        }
+        catch (final Exception ex)
+        {
+            tryCloseUploadSource(source);
+
+            onError("[AFU.CUF.010] Failed to commence the upload", ex);
+            setLoggingEnabledOnTransport(true);
+            setBusyState(false);
+        }
+    }
+
+    private void completeUploadAsAlreadyUpToDate(final AndroidFileUploadSource source)
+    {
+        if (tryHonourCancellationRequestedDuringRemoteChecks(source))
+            return;
+
+        logInBg("[AFU.CUAAUTD.010] The remote file '" + _remoteFilePathSanitized + "' is already identical to the local data - skipping the upload", EAndroidLoggingLevel.Info);
+
+        tryCloseUploadSource(source);
+
+        _currentCompletionVerdict = EAndroidFileUploadCompletionVerdict.SKIPPED__ALREADY_UP_TO_DATE; //order
+        _fileUploaderCallbackProxy.onUploadCompleted(); //                                              order
+    }
+
+    private boolean tryHonourCancellationRequestedDuringRemoteChecks(final AndroidFileUploadSource source)
+    {
+        if (_currentState != EAndroidFileUploaderState.CANCELLING) //00
+            return false;
+
+        tryCloseUploadSource(source);
+        _fileUploaderCallbackProxy.onUploadCanceled();
+        return true;
+
+        //00   the cancellation was requested while we were waiting for the device to tell us about the remote file
+    }
+
+    private TransferWindow createTransferWindow(final int windowCapacity)
+    {
+        final TransferWindow transferWindow = createTransferWindowImpl(windowCapacity);
+        transferWindow.setQualityOfServiceCaps(_qosMaxThroughputInKBps * 1_024L, _qosMaxPacketsInFlight);
+
+        _currentTransferWindow = transferWindow;
+        return transferWindow;
+    }
+
+    private TransferWindow createTransferWindowImpl(final int windowCapacity)
+    {
+        if (!_isWindowCapacityAdaptive)
+            return new TransferWindow(windowCapacity);
+
+        logInBg("[AFU.CTW.010] Using an adaptive window-capacity with an upper limit of " + Math.max(1, windowCapacity), EAndroidLoggingLevel.Info);
+
+        return TransferWindow.adaptive(windowCapacity, newCapacity -> {
+            final String resourceIdSnapshot = _resourceId;
+            final String remoteFilePathSanitizedSnapshot = _remoteFilePathSanitized;
+
+            fireAndForgetInTheBg(() -> fileUploadWindowCapacityChangedAdvertisement(resourceIdSnapshot, remoteFilePathSanitizedSnapshot, newCapacity));
+        });
+    }
+
+    /**
+     * @return the amount of data-bytes that have been handed over to the transport but have not been acknowledged by the device yet - always
+     * zero when the upload is carried out by nordic's FileUploader (see {@link #trySetUploadEngine})
+     */
+    @Contract(pure = true)
+    public long getBytesInFlight()
+    {
+        final TransferWindow transferWindow = _currentTransferWindow;
+
+        return transferWindow == null ? 0 : transferWindow.getBytesInFlight();
+    }
+
+    /**
+     * @return the amount of packets of the current (or last) upload that had to be sent again because the device missed them or timed out - always
+     * zero when the upload is carried out by nordic's FileUploader (see {@link #trySetUploadEngine})
+     */
+    @Contract(pure = true)
+    public long getRetransmissionsCount()
+    {
+        final TransferWindow transferWindow = _currentTransferWindow;
+
+        return transferWindow == null ? 0 : transferWindow.getRetransmissionsCount();
+    }
+
+    private void tryCloseUploadSource(@NonNull final AndroidFileUploadSource source)
+    {
+        try
+        {
+            source.close();
+        }
+        catch (final Exception ex)
+        {
+            logInBg("[AFU.TCUS.010] [SUPPRESSED] Error while closing the upload-source:\n\n" + ex, EAndroidLoggingLevel.Warning);
+        }
+    }
+
+    /**
+     * When enabled, the windowCapacity passed to the beginUpload*() methods becomes an upper limit rather than a fixed value. The actual window starts
+     * at a single packet and grows by one packet for every full window that gets acknowledged without an increase in latency, while it gets halved
+     * upon every timeout or offset-rewind reported by the device. Every change gets advertised through {@link #fileUploadWindowCapacityChangedAdvertisement}.
+     * <p>
+     * This is handy when dealing with a fleet of devices whose firmwares have been built with different MCUMGR_BUF_COUNT values.
+     *
+     * @param isAdaptive whether to adapt the window-capacity on the fly or not
+     * @return false if an upload is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetAdaptiveWindowCapacity(final boolean isAdaptive)
+    {
+        if (!IsIdleOrCold())
+            return false;
+
+        _isWindowCapacityAdaptive = isAdaptive;
+        return true;
+    }
+
+    /**
+     * When enabled, the uploader keeps a checkpoint of the last offset acknowledged by the device for each (device, remote-file-path, content-hash) triplet.
+     * If an upload fails midway (pe because the ble-link dropped) calling beginUpload*() again with the very same data will verify that the remote file
+     * still holds the acknowledged bytes and it will continue from the checkpoint instead of starting over from byte zero.
+     * <p>
+     * Uploads from input-streams cannot be checkpointed because their contents cannot be hashed ahead of the upload.
+     *
+     * @param isResumable whether to checkpoint and resume uploads or not
+     * @return false if an upload is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetResumableUploads(final boolean isResumable)
+    {
+        if (!IsIdleOrCold())
+            return false;
+
+        _isResumable = isResumable;
+        return true;
+    }
+
+    /**
+     * When enabled, the checkpoints of resumable uploads (see {@link #trySetResumableUploads}) also get written to an on-disk journal inside the files-directory
+     * of the app. This way a fresh uploader can resume an interrupted upload even if the android process got killed midway through it (pe by the OS while the
+     * app was in the background) - all it takes is to call beginUpload*() again with the very same data. Enabling this implies resumable uploads.
+     *
+     * @param isEnabled whether to journal the checkpoints on disk or not
+     * @return false if an upload is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetCrashDurableCheckpoints(final boolean isEnabled)
+    {
+        if (!IsIdleOrCold())
+            return false;
+
+        _isJournalingCheckpointsOnDisk = isEnabled;
+        return true;
+    }
+
+    /**
+     * When enabled, the uploader first asks the device for the size and the hash (sha256 or crc32 depending on what the firmware supports) of the remote file.
+     * If they match the local data the upload completes straight away without sending a single chunk and the completion gets advertised through
+     * {@link #fileUploadCompletionVerdictAdvertisement} with {@link EAndroidFileUploadCompletionVerdict#SKIPPED__ALREADY_UP_TO_DATE}.
+     * <p>
+     * Uploads from input-streams are never skipped because their contents cannot be hashed ahead of the upload.
+     *
+     * @param isSkipping whether to skip uploading files that are already up to date on the device or not
+     * @return false if an upload is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetSkipIdenticalFiles(final boolean isSkipping)
+    {
+        if (!IsIdleOrCold())
+            return false;
+
+        _isSkippingIdenticalFiles = isSkipping;
         return true;
     }
 
-    public boolean trySetBluetoothDevice(@NonNull final BluetoothDevice bluetoothDevice)
+    /**
+     * When set to a positive value, uploads of files that already exist on the device get split into blocks of the given length (rounded to the memory-alignment).
+     * Each block gets compared against the remote file via the fs-hash command and only the blocks that differ get uploaded at their respective offsets. If the
+     * very first block differs, or if the remote file is missing or longer than the local data, the entire file gets uploaded as usual because devices truncate
+     * the remote file upon receiving a write at offset zero. The progress advertisements span only the bytes that actually get uploaded.
+     * <p>
+     * Smaller blocks mean less data to upload but more hash round-trips. Uploads from input-streams are never delta-uploaded because they cannot be read twice.
+     *
+     * @param blockLengthInBytes the length of the blocks to compare - zero or negative disables delta-uploads
+     * @return false if an upload is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetDeltaUploadBlockLength(final int blockLengthInBytes)
     {
         if (!IsIdleOrCold())
-        {
-            logInBg("[AFU.TSBD.005] trySetBluetoothDevice() cannot proceed because the uploader is not cold", EAndroidLoggingLevel.Error);
-            return false;
-        }
-
-        if (!tryInvalidateCachedInfrastructure()) //order
-        {
-            logInBg("[AFU.TSBD.020] Failed to invalidate the cached-transport instance", EAndroidLoggingLevel.Error);
             return false;
-        }
-
-        _bluetoothDevice = bluetoothDevice; //order
-
-        logInBg("[AFU.TSBD.030] Successfully set the android-bluetooth-device to the given value", EAndroidLoggingLevel.Trace);
 
+        _deltaUploadBlockLength = Math.max(0, blockLengthInBytes);
         return true;
     }
 
-    public boolean tryInvalidateCachedInfrastructure() //must be public
+    /**
+     * When enabled, the uploader treats the remote file as a prefix of the local data (pe a log or a session-manifest that keeps growing) and uploads
+     * only the bytes past the current size of the remote file. The progress advertisements span only the appended bytes so the cost of each update
+     * scales with the size of the appended data rather than with the size of the entire file. If the remote file doesn't exist yet the entire data get
+     * uploaded, while if it is longer than the local data it gets rewritten from scratch.
+     * <p>
+     * Note that the remote prefix is not verified - use {@link #trySetDeltaUploadBlockLength(int)} instead if the existing contents might have changed.
+     *
+     * @param isAppending whether to append to the remote file or not
+     * @return false if an upload is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetAppendMode(final boolean isAppending)
     {
-        boolean success1 = tryDisposeFilesystemManager(); // order
-        boolean success2 = tryDisposeTransport(); //         order
-        boolean success3 = tryDisposeCallbackProxy(); //     order
+        if (!IsIdleOrCold())
+            return false;
 
-        return success1 && success2 && success3;
+        _isAppending = isAppending;
+        return true;
     }
 
     /**
-     * Initiates a file upload asynchronously. The progress is advertised through the callbacks provided by this class.
-     * Setup interceptors for them to get informed about the status of the firmware-installation.
+     * When enabled, the data get digested (sha256 and crc32) as they get handed over to the transport and once the device has acknowledged the
+     * last chunk the uploader asks the device to hash the uploaded range of the remote file. The state switches to COMPLETE only if the hashes
+     * match - if they don't the upload fails and {@link #fileUploadCompletionVerdictAdvertisement} reports
+     * {@link EAndroidFileUploadCompletionVerdict#FAILED__INTEGRITY_CHECK_MISMATCH}. Verifying a file thus costs a single round-trip instead of
+     * downloading it all over again.
+     * <p>
+     * Applies to single-file uploads. The firmware of the device must support the fs-hash command (sha256 or crc32) otherwise the uploads will fail.
      *
-     * @param resourceId      the resource-id/nickname/local-file-path of the resource/data that is being
-     * @param remoteFilePath  the remote-file-path to save the given data to on the remote device
-     * @param data            the bytes to upload
-     * @param initialMtuSize  sets the initial MTU for the connection that the McuMgr BLE-transport sets up for the firmware installation that will follow.
-     *                        Note that if less than 0 it gets ignored and if it doesn't fall within the range [23, 517] it will cause a hard error.
-     * @param windowCapacity  specifies the windows-capacity for the data transfers of the BLE connection - if zero or negative the value provided gets ignored and will be set to 1 by default
-     * @param memoryAlignment specifies the memory-alignment to use for the data transfers of the BLE connection - if zero or negative the value provided gets ignored and will be set to 1 by default
-     * @param minimumNativeLogLevelNumeric sets the minimum log-level for the native-layer logging - see EAndroidLoggingLevel for details
-     * @return a verdict indicating whether the file uploading was started successfully or not
+     * @param isVerifying whether to verify the uploaded data or not
+     * @return false if an upload is currently in progress (the setting cannot be changed in that case) - true otherwise
      */
-    public EAndroidFileUploaderVerdict beginUpload(
-            final String resourceId,
-            final String remoteFilePath,
-            final byte[] data,
-            final int minimumNativeLogLevelNumeric,
-            final int initialMtuSize,
-            final int windowCapacity,
-            final int memoryAlignment
-    )
+    public boolean trySetVerifyUploadedData(final boolean isVerifying)
     {
-        if (!IsCold()) //keep first
-        {
-            onError("Another upload is already in progress");
-
-            return EAndroidFileUploaderVerdict.FAILED__OTHER_UPLOAD_ALREADY_IN_PROGRESS;
-        }
-
-        if (resourceId == null) //can be dud but not null
-        {
-            onError("Provided resource-id is null", null);
-
-            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
-        }
-
-        if (remoteFilePath == null || remoteFilePath.isEmpty())
-        {
-            onError("Provided target-path is empty", null);
-
-            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
-        }
-
-        _minimumNativeLogLevel = McuMgrLogLevelHelpers.translateLogLevel(minimumNativeLogLevelNumeric);
-
-        _resourceId = resourceId;
-        _remoteFilePathSanitized = remoteFilePath.trim();
-        if (_remoteFilePathSanitized.endsWith("/")) //the path must point to a file not a directory
-        {
-            onError("Provided target-path points to a directory not a file");
+        if (!IsIdleOrCold())
+            return false;
 
-            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
-        }
+        _isVerifyingUploadedData = isVerifying;
+        return true;
+    }
 
-        if (!_remoteFilePathSanitized.startsWith("/"))
-        {
-            onError("Provided target-path is not an absolute path");
+    /**
+     * Selects the engine that carries out the uploads. {@link EAndroidFileUploadEngine#IN_HOUSE} encodes each request straight into a recycled frame
+     * (instead of building a payload-map that gets encoded into a brand-new byte[] per chunk), reads the data from the source directly into that frame
+     * and serializes the next frame while the radio is still busy with the ones in flight. It also feeds {@link #getBytesInFlight()} and
+     * {@link #getRetransmissionsCount()} for every upload.
+     *
+     * @param engine the engine to use
+     * @return false if an upload is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetUploadEngine(final EAndroidFileUploadEngine engine)
+    {
+        if (!IsIdleOrCold() || engine == null)
+            return false;
 
-            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
-        }
+        _uploadEngine = engine;
+        return true;
+    }
 
-        if (_context == null)
-        {
-            onError("No context specified - call trySetContext() first");
+    /**
+     * Caps the bandwidth and the packets in flight of the uploads so that they can trickle in the background without starving other traffic on the same
+     * ble-link (pe live sensor-streams during a training session). While capped the uploads also request a balanced connection-priority instead of a high one.
+     * <p>
+     * Unlike the other settings this one can be changed while an upload is in progress - the new caps apply to the very next packet. Note that uploads
+     * started via nordic's FileUploader (plain byte[] uploads with no other setting enabled while uncapped) cannot be throttled midway.
+     *
+     * @param maxThroughputInKBps the maximum throughput in KB/s - zero or negative means unlimited
+     * @param maxPacketsInFlight  the maximum amount of packets in flight - zero or negative means that the window-capacity is the only limit
+     * @return true if the caps got applied - false if an upload that cannot be throttled is in progress (the caps will apply to the next upload regardless)
+     */
+    public boolean trySetQualityOfService(final int maxThroughputInKBps, final int maxPacketsInFlight)
+    {
+        _qosMaxThroughputInKBps = Math.max(0, maxThroughputInKBps);
+        _qosMaxPacketsInFlight = Math.max(0, maxPacketsInFlight);
 
-            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
-        }
+        if (IsIdleOrCold())
+            return true;
 
-        if (_bluetoothDevice == null)
+        final TransferWindow transferWindow = _currentTransferWindow;
+        if (transferWindow == null)
         {
-            onError("No bluetooth-device specified - call trySetBluetoothDevice() first");
-
-            return EAndroidFileUploaderVerdict.FAILED__INVALID_SETTINGS;
-        }
-
-        if (data == null)
-        { // data being null is not ok   but data.length==0 is perfectly ok because we might want to create empty files
-            onError("Provided data is null");
-
-            return EAndroidFileUploaderVerdict.FAILED__INVALID_DATA;
+            logInBg("[AFU.TSQOS.010] The caps cannot be applied to the upload in progress - they will apply to the next upload", EAndroidLoggingLevel.Warning);
+            return false;
         }
 
-        try
-        {
-            resetUploadState(); //order   must be called before ensureTransportIsInitializedExactlyOnce() because the environment might try to set the device via trySetBluetoothDevice()!!!
-            ensureTransportIsInitializedExactlyOnce(initialMtuSize); //order
-            setLoggingEnabledOnTransport(false); //order
-
-            final EAndroidFileUploaderVerdict verdict = ensureFilesystemManagerIsInitializedExactlyOnce(); //order
-            if (verdict != EAndroidFileUploaderVerdict.SUCCESS)
-                return verdict;
-
-            requestHighConnectionPriorityOnTransport(); //order
-            ensureFileUploaderCallbackProxyIsInitializedExactlyOnce(); //order
-
-            setState(EAndroidFileUploaderState.IDLE, 0); //order
-            FileUploader fileUploader = new FileUploader( //00  order
-                    _fileSystemManager,
-                    _remoteFilePathSanitized,
-                    data,
-                    Math.max(1, windowCapacity),
-                    Math.max(1, memoryAlignment)
-            );
+        logInBg("[AFU.TSQOS.020] Capping the upload in progress to " + _qosMaxThroughputInKBps + " KB/s and " + _qosMaxPacketsInFlight + " packet(s) in flight (zero means unlimited)", EAndroidLoggingLevel.Info);
 
-            _uploadingController = fileUploader.uploadAsync(_fileUploaderCallbackProxy);
-        }
-        catch (final Exception ex)
+        transferWindow.setQualityOfServiceCaps(_qosMaxThroughputInKBps * 1_024L, _qosMaxPacketsInFlight);
+        if (_transport != null)
         {
-            onError("Failed to initialize the upload", ex);
-
-            return EAndroidFileUploaderVerdict.FAILED__ERROR_UPON_COMMENCING;
+            requestConnectionPriorityOnTransport();
         }
 
-        return EAndroidFileUploaderVerdict.SUCCESS;
-
-        //00   file-uploader is the new improved way of performing the file upload   it makes use of the window uploading mechanism
-        //     aka sending multiple packets without waiting for the response
+        return true;
     }
 
     public boolean trySetMinimumNativeLogLevel(final int minimumNativeLogLevelNumeric)
@@ -221,6 +1303,9 @@ public class AndroidFileUploader
 
     private void resetUploadState()
     {
+        _currentCheckpointKey = null;
+        _currentTransferWindow = null;
+        _currentCompletionVerdict = EAndroidFileUploadCompletionVerdict.UPLOADED;
         _uploadStartTimestampInMs = 0;
 
         _lastBytesSent = 0;
@@ -304,6 +1389,7 @@ public class AndroidFileUploader
             logInBg("[AFU.TPS.040] Pausing transfer ...", EAndroidLoggingLevel.Info);
 
             transferController.pause();
+            _preemptibleTransferHandle.clearPreemption(); // a pending preemption must not resume what the calling environment has paused
 
             setState(EAndroidFileUploaderState.PAUSED);
             setBusyState(false);
@@ -323,6 +1409,11 @@ public class AndroidFileUploader
     {
         if (_currentState == EAndroidFileUploaderState.UPLOADING || _currentState == EAndroidFileUploaderState.RESUMING)
         {
+            if (_preemptibleTransferHandle.clearPreemption()) //00
+            {
+                return tryResumePreemptedTransfer();
+            }
+
             logInBg("[AFU.TRS.010] Ignoring 'resume' request at the native-lib level because we're already in the 'uploading/resuming' state anyway", EAndroidLoggingLevel.Info);
             return true; //already uploading which is ok
         }
@@ -344,6 +1435,7 @@ public class AndroidFileUploader
         {
             logInBg("[AFU.TRS.040] Resuming transfer ...", EAndroidLoggingLevel.Info);
 
+            _preemptibleTransferHandle.clearPreemption();
             transferController.resume();
 
             setState(EAndroidFileUploaderState.RESUMING);
@@ -358,16 +1450,64 @@ public class AndroidFileUploader
             onError("[AFU.TRS.050] Error while trying to resume the upload", ex);
             return false;
         }
+
+        //00   a priority command towards the same device has paused the transfer behind our back (see TransferPreemptionScheduler) and the
+        //     calling environment wants it running again before the command is over
+    }
+
+    private boolean tryResumePreemptedTransfer()
+    {
+        final TransferController transferController = _uploadingController;
+        if (transferController == null)
+            return true; // finished in the meantime
+
+        try
+        {
+            logInBg("[AFU.TRPT.010] Resuming transfer that got paused by a priority command ...", EAndroidLoggingLevel.Info);
+
+            transferController.resume();
+            return true;
+        }
+        catch (final Exception ex)
+        {
+            onError("[AFU.TRPT.020] Error while trying to resume the upload", ex);
+            return false;
+        }
     }
 
     public void nativeDispose()
     {
+        tryUnregisterFromTransferPreemption(); // doesnt throw
+
         logInBg("[AFU.ND.010] Disposing the native-file-uploader", EAndroidLoggingLevel.Trace);
         
         tryInvalidateCachedInfrastructure(); //  doesnt throw
         tryShutdownBackgroundExecutor(); //      doesnt throw
     }
 
+    private void ensureRegisteredForTransferPreemption() //00
+    {
+        final String deviceAddress = _bluetoothDevice.getAddress();
+        if (deviceAddress.equals(_preemptionRegistrationDeviceAddress))
+            return;
+
+        tryUnregisterFromTransferPreemption();
+
+        TransferPreemptionScheduler.register(deviceAddress, _preemptibleTransferHandle);
+        _preemptionRegistrationDeviceAddress = deviceAddress;
+
+        //00   this way resets and other short commands towards the same device can pause our transfer for as long as they take
+    }
+
+    private void tryUnregisterFromTransferPreemption()
+    {
+        if (_preemptionRegistrationDeviceAddress == null)
+            return;
+
+        TransferPreemptionScheduler.unregister(_preemptionRegistrationDeviceAddress, _preemptibleTransferHandle);
+        _preemptionRegistrationDeviceAddress = null;
+    }
+
     @SuppressWarnings("UnusedReturnValue")
     private boolean tryShutdownBackgroundExecutor()
     {
@@ -433,9 +1573,40 @@ public class AndroidFileUploader
         }
     }
 
-    private void requestHighConnectionPriorityOnTransport()
+    private void requestConnectionPriorityOnTransport()
+    {
+        _transport.requestConnPriority(isQualityOfServiceCapped() //00
+                ? ConnectionPriorityRequest.CONNECTION_PRIORITY_BALANCED
+                : ConnectionPriorityRequest.CONNECTION_PRIORITY_HIGH);
+
+        //00   a high connection-priority shortens the connection-interval for the benefit of the upload but at the expense of any other
+        //     traffic on the same link (pe live sensor-streams)   when the upload is capped it is meant to trickle in the background
+    }
+
+    @Contract(pure = true)
+    private boolean isCheckpointing()
+    {
+        return _isResumable || _isJournalingCheckpointsOnDisk;
+    }
+
+    private void tryAttachTransferJournalToCheckpoints()
+    {
+        try
+        {
+            FileUploadCheckpoints.attachJournal(TransferJournal.open(TransferJournal.getDefaultDirectory(_context)));
+        }
+        catch (final IOException ex) //00
+        {
+            logInBg("[AFU.TATJTC.010] Failed to open the transfer-journal - the checkpoints will be kept in memory only:\n\n" + ex, EAndroidLoggingLevel.Warning);
+        }
+
+        //00   not worth failing the upload over   the upload itself will work just fine   it just won't survive the death of the process
+    }
+
+    @Contract(pure = true)
+    private boolean isQualityOfServiceCapped()
     {
-        _transport.requestConnPriority(ConnectionPriorityRequest.CONNECTION_PRIORITY_HIGH);
+        return _qosMaxThroughputInKBps > 0 || _qosMaxPacketsInFlight > 0;
     }
 
     @SuppressWarnings("UnusedReturnValue")
@@ -644,6 +1815,30 @@ public class AndroidFileUploader
         //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
     }
 
+    @Contract(pure = true)
+    public void fileUploadCompletionVerdictAdvertisement(final String resourceId, final String remoteFilePath, final EAndroidFileUploadCompletionVerdict completionVerdict)
+    {
+        //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
+    }
+
+    @Contract(pure = true)
+    public void fileUploadWindowCapacityChangedAdvertisement(final String resourceId, final String remoteFilePath, final int windowCapacity)
+    {
+        //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
+    }
+
+    @Contract(pure = true)
+    public void fileUploadInBatchProgressPercentageChangedAdvertisement(final String resourceId, final String remoteFilePath, final int fileIndex, final int filesCount, final int progressPercentage)
+    {
+        //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
+    }
+
+    @Contract(pure = true)
+    public void fileUploadInBatchCompletedAdvertisement(final String resourceId, final String remoteFilePath, final int fileIndex, final int filesCount)
+    {
+        //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
+    }
+
     //@Contract(pure = true) //dont
     private final String DefaultLogCategory = "FileUploader";
     private void logInBg(final String message, final EAndroidLoggingLevel level)
@@ -677,6 +1872,12 @@ public class AndroidFileUploader
             setState(EAndroidFileUploaderState.UPLOADING, totalBytesToBeUploaded);
             setBusyState(true);
 
+            final String checkpointKey = _currentCheckpointKey;
+            if (checkpointKey != null)
+            {
+                FileUploadCheckpoints.update(checkpointKey, totalBytesSentSoFar, totalBytesToBeUploaded); // the bytes-sent reported by the uploaders are the ones acknowledged by the device
+            }
+
             final String resourceIdSnapshot = _resourceId; //order
             final String remoteFilePathSanitizedSnapshot = _remoteFilePathSanitized; //order
             fireAndForgetInTheBg(() -> {
@@ -735,6 +1936,13 @@ public class AndroidFileUploader
         @Override
         public void onUploadFailed(@NonNull final McuMgrException error)
         {
+            if (error instanceof FileIntegrityCheckFailedException)
+            {
+                final String resourceIdSnapshot = _resourceId;
+                final String remoteFilePathSanitizedSnapshot = _remoteFilePathSanitized;
+                fireAndForgetInTheBg(() -> fileUploadCompletionVerdictAdvertisement(resourceIdSnapshot, remoteFilePathSanitizedSnapshot, EAndroidFileUploadCompletionVerdict.FAILED__INTEGRITY_CHECK_MISMATCH));
+            }
+
             onError(error.getMessage(), error);
             setLoggingEnabledOnTransport(true);
 
@@ -760,6 +1968,17 @@ public class AndroidFileUploader
         {
             //fileUploadProgressPercentageAndDataThroughputChangedAdvertisement(100, 0, 0); //no need this is taken care of inside setState()
 
+            final String checkpointKey = _currentCheckpointKey;
+            if (checkpointKey != null)
+            {
+                FileUploadCheckpoints.remove(checkpointKey);
+            }
+
+            final String resourceIdSnapshot = _resourceId;
+            final String remoteFilePathSanitizedSnapshot = _remoteFilePathSanitized;
+            final EAndroidFileUploadCompletionVerdict completionVerdictSnapshot = _currentCompletionVerdict;
+            fireAndForgetInTheBg(() -> fileUploadCompletionVerdictAdvertisement(resourceIdSnapshot, remoteFilePathSanitizedSnapshot, completionVerdictSnapshot)); //order
+
             setState(EAndroidFileUploaderState.COMPLETE); // order
             setBusyState(false); //                          order
 
@@ -768,4 +1987,71 @@ public class AndroidFileUploader
             _uploadingController = null; //order
         }
     }
+
+    private final class DeltaFileUploaderListenerProxy implements DeltaFileUploader.Listener
+    {
+        @Override
+        public void onDeltaComputed(final long bytesToUpload, final int rangesCount)
+        {
+            _currentCompletionVerdict = bytesToUpload == 0
+                    ? EAndroidFileUploadCompletionVerdict.SKIPPED__ALREADY_UP_TO_DATE
+                    : EAndroidFileUploadCompletionVerdict.PATCHED__ONLY_CHANGED_BLOCKS;
+
+            logInBg("[AFU.DFULP.ODC.010] Delta computed for '" + _remoteFilePathSanitized + "': " + bytesToUpload + " bytes in " + rangesCount + " range(s) need to be uploaded", EAndroidLoggingLevel.Info);
+        }
+
+        @Override
+        public void onFallingBackToFullUpload(@NonNull final String reason)
+        {
+            _currentCompletionVerdict = EAndroidFileUploadCompletionVerdict.UPLOADED;
+
+            logInBg("[AFU.DFULP.OFBTFU.010] Uploading the entire file '" + _remoteFilePathSanitized + "' because " + reason, EAndroidLoggingLevel.Info);
+        }
+    }
+
+    private final class FileUploadBatchListenerProxy implements FileUploadBatch.Listener
+    {
+        private final String[] _resourceIds;
+        private final String[] _remoteFilePathsSanitized;
+
+        FileUploadBatchListenerProxy(@NonNull final String[] resourceIds, @NonNull final String[] remoteFilePathsSanitized)
+        {
+            _resourceIds = resourceIds;
+            _remoteFilePathsSanitized = remoteFilePathsSanitized;
+        }
+
+        @Override
+        public void onFileUploadStarted(final int fileIndex)
+        {
+            _resourceId = _resourceIds[fileIndex]; //                             so that the state-changes and the logs refer to the file
+            _remoteFilePathSanitized = _remoteFilePathsSanitized[fileIndex]; //   that is currently being streamed to the device
+
+            logInBg("[AFU.FUBLP.OFUS.010] Started uploading file #" + fileIndex + " of the batch to '" + _remoteFilePathSanitized + "'", EAndroidLoggingLevel.Trace);
+        }
+
+        @Override
+        public void onFileUploadProgressChanged(final int fileIndex, final int bytesSentSoFar, final int totalBytes)
+        {
+            final int progressPercentage = totalBytes == 0 ? 100 : (int) (bytesSentSoFar * 100.f / totalBytes);
+
+            fireAndForgetInTheBg(() -> fileUploadInBatchProgressPercentageChangedAdvertisement(
+                    _resourceIds[fileIndex],
+                    _remoteFilePathsSanitized[fileIndex],
+                    fileIndex,
+                    _resourceIds.length,
+                    progressPercentage
+            ));
+        }
+
+        @Override
+        public void onFileUploadCompleted(final int fileIndex)
+        {
+            fireAndForgetInTheBg(() -> fileUploadInBatchCompletedAdvertisement(
+                    _resourceIds[fileIndex],
+                    _remoteFilePathsSanitized[fileIndex],
+                    fileIndex,
+                    _resourceIds.length
+            ));
+        }
+    }
 }
@@ -19,6 +19,7 @@ public class AndroidFirmwareEraser
 {
 
     private ImageManager _imageManager;
+    private final String _deviceAddress;
     private final McuMgrBleTransport _transport;
 
     /**
@@ -29,6 +30,7 @@ public class AndroidFirmwareEraser
      */
     public AndroidFirmwareEraser(@NonNull final Context context, @NonNull final BluetoothDevice bluetoothDevice)
     {
+        _deviceAddress = bluetoothDevice.getAddress();
         _transport = new McuMgrBleTransport(context, bluetoothDevice);
     }
 
@@ -49,29 +51,32 @@ public class AndroidFirmwareEraser
             setState(EAndroidFirmwareEraserState.ERASING); //order
 
             AndroidFirmwareEraser self = this;
-            _imageManager.erase(imageIndex, new McuMgrCallback<McuMgrImageResponse>()
+            TransferPreemptionScheduler.runPreemptively(_deviceAddress, onCompleted -> _imageManager.erase(imageIndex, new McuMgrCallback<McuMgrImageResponse>() //00
             {
                 @Override
                 public void onResponse(@NonNull final McuMgrImageResponse response)
                 {
                     if (!response.isSuccess())
                     { // check for an error return code
+                        onCompleted.run(); //order
                         self.onError("[AFE.BE.010] Erasure failed (error-code '" + response.getReturnCode().toString() + "')", response.getReturnCode(), response.getGroupReturnCode());
                         return;
                     }
 
-                    readImageErasure();
-                    setState(EAndroidFirmwareEraserState.COMPLETE);
+                    readImageErasure(onCompleted); //order   the preemption lasts until the list-query completes too
+                    setState(EAndroidFirmwareEraserState.COMPLETE); //order
                 }
 
                 @Override
                 public void onError(@NonNull final McuMgrException exception)
                 {
+                    onCompleted.run(); //order
+
                     self.onError("[AFE.BE.020] Erasure failed '" + exception.getMessage() + "'", exception);
 
                     busyStateChangedAdvertisement(false);
                 }
-            });
+            }), this::transfersPreemptedAdvertisement);
         }
         catch (final Exception ex)
         {
@@ -80,6 +85,9 @@ public class AndroidFirmwareEraser
         }
 
         return EAndroidFirmwareEraserInitializationVerdict.SUCCESS;
+
+        //00   any file-transfer towards the same device gets paused for as long as the erase-command and the list-query that follows it take
+        //     so that the commands don't have to wait in line behind the chunks of the transfer   the transfer gets resumed right after
     }
 
     public void disconnect()
@@ -174,7 +182,13 @@ public class AndroidFirmwareEraser
         //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
     }
 
-    private void readImageErasure()
+    @Contract(pure = true)
+    public void transfersPreemptedAdvertisement(final int preemptedTransfersCount, final long preemptionDurationInMs)
+    {
+        //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
+    }
+
+    private void readImageErasure(final Runnable onCompleted)
     {
         busyStateChangedAdvertisement(true);
 
@@ -185,6 +199,8 @@ public class AndroidFirmwareEraser
             @Override
             public void onResponse(@NonNull final McuMgrImageStateResponse response)
             {
+                onCompleted.run();
+
                 // postReady(response);
                 busyStateChangedAdvertisement(false);
             }
@@ -192,6 +208,8 @@ public class AndroidFirmwareEraser
             @Override
             public void onError(@NonNull final McuMgrException exception)
             {
+                onCompleted.run();
+
                 self.onError("[AFE.RIE.OE.010] Failed to read firmware images after firmware erasure : " + exception.getMessage(), exception);
                 busyStateChangedAdvertisement(false);
             }
@@ -3,6 +3,7 @@ package no.laerdal.mcumgr_laerdal_wrapper;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import androidx.annotation.NonNull;
+import io.runtime.mcumgr.McuMgrCallback;
 import io.runtime.mcumgr.ble.McuMgrBleTransport;
 import io.runtime.mcumgr.dfu.FirmwareUpgradeCallback;
 import io.runtime.mcumgr.dfu.FirmwareUpgradeController;
@@ -11,12 +12,21 @@ import io.runtime.mcumgr.dfu.mcuboot.FirmwareUpgradeManager.Settings;
 import io.runtime.mcumgr.dfu.mcuboot.FirmwareUpgradeManager.Settings.Builder;
 import io.runtime.mcumgr.dfu.mcuboot.FirmwareUpgradeManager.State;
 import io.runtime.mcumgr.dfu.mcuboot.model.ImageSet;
+import io.runtime.mcumgr.dfu.mcuboot.model.TargetImage;
 import io.runtime.mcumgr.exception.McuMgrException;
 import io.runtime.mcumgr.exception.McuMgrTimeoutException;
+import io.runtime.mcumgr.managers.ImageManager;
+import io.runtime.mcumgr.response.img.McuMgrImageStateResponse;
 import no.nordicsemi.android.ble.ConnectionPriorityRequest;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -39,6 +49,19 @@ public class AndroidFirmwareInstaller
     private Boolean _currentBusyState = false;
     private EAndroidFirmwareInstallationState _currentState = EAndroidFirmwareInstallationState.NONE;
 
+    private boolean _isWindowCapacityAdaptive = false;
+    private int _maxWindowCapacity; //      these are only used in adaptive mode to restart the upload with a smaller window
+    private int _currentWindowCapacity;
+    private ImageSet _currentImages;
+    private EAndroidFirmwareInstallationMode _currentMode;
+    private boolean _currentEraseSettings;
+    private int _currentEstimatedSwapTimeInMilliseconds;
+    private int _currentMemoryAlignment;
+
+    private boolean _isSkippingImagesAlreadyOnDevice = false;
+
+    private static final ConcurrentHashMap<String, Integer> LearnedWindowCapacitiesPerDeviceAddress = new ConcurrentHashMap<>(); // survives across installer instances
+
     private final ExecutorService _backgroundExecutor = Executors.newCachedThreadPool();
 
     /**
@@ -76,6 +99,117 @@ public class AndroidFirmwareInstaller
             final int windowCapacity,
             final int memoryAlignment
     )
+    {
+        return beginInstallationImpl(
+                () -> FirmwarePackageReader.readImages(data),
+                mode,
+                initialMtuSize,
+                eraseSettings,
+                estimatedSwapTimeInMilliseconds,
+                windowCapacity,
+                memoryAlignment
+        );
+    }
+
+    /**
+     * Same as {@link #beginInstallation(byte[], EAndroidFirmwareInstallationMode, int, boolean, int, int, int)} but the firmware gets read straight off
+     * the given file - which can be either a raw image or a zipped package. Zipped packages get read through their central directory and only the images
+     * listed in their manifest get inflated (each one straight into a buffer of its own size) while raw images get memory-mapped. This way the peak memory
+     * consumption amounts to a single copy of the images instead of three or four copies of the whole package. Zipped packages that are known to the
+     * AndroidFirmwarePackageIndex skip the manifest altogether and get their images inflated straight out of the indexed entries.
+     *
+     * @param firmwareFilePath the path to the local file that holds the firmware
+     */
+    public EAndroidFirmwareInstallationVerdict beginInstallationFromFile(
+            @NonNull final String firmwareFilePath,
+            @NonNull final EAndroidFirmwareInstallationMode mode,
+            final int initialMtuSize,
+            final boolean eraseSettings,
+            final int estimatedSwapTimeInMilliseconds,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        return beginInstallationImpl(
+                () -> FirmwarePackageReader.readImages(new File(firmwareFilePath)),
+                mode,
+                initialMtuSize,
+                eraseSettings,
+                estimatedSwapTimeInMilliseconds,
+                windowCapacity,
+                memoryAlignment
+        );
+    }
+
+    /**
+     * Same as {@link #beginInstallationFromFile} but the firmware gets read off the given file-channel (starting from its very beginning) - zipped packages
+     * get streamed through in a single pass. The channel is left open and it can be closed as soon as this method returns.
+     *
+     * @param firmwareFileChannel a readable file-channel that holds the firmware
+     */
+    public EAndroidFirmwareInstallationVerdict beginInstallation(
+            @NonNull final FileChannel firmwareFileChannel,
+            @NonNull final EAndroidFirmwareInstallationMode mode,
+            final int initialMtuSize,
+            final boolean eraseSettings,
+            final int estimatedSwapTimeInMilliseconds,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        return beginInstallationImpl(
+                () -> FirmwarePackageReader.readImages(firmwareFileChannel),
+                mode,
+                initialMtuSize,
+                eraseSettings,
+                estimatedSwapTimeInMilliseconds,
+                windowCapacity,
+                memoryAlignment
+        );
+    }
+
+    /**
+     * Same as {@link #beginInstallation(byte[], EAndroidFirmwareInstallationMode, int, boolean, int, int, int)} but the firmware has been parsed and
+     * validated beforehand (see {@link AndroidFirmwarePackage#prepareAsync}) so the upload starts right away - meant for rolling out the same package
+     * onto many devices without redoing the same parsing and validation over and over.
+     *
+     * @param firmwarePackage the prepared firmware package - it can be shared by any number of installers
+     */
+    public EAndroidFirmwareInstallationVerdict beginInstallation(
+            @NonNull final AndroidFirmwarePackage firmwarePackage,
+            @NonNull final EAndroidFirmwareInstallationMode mode,
+            final int initialMtuSize,
+            final boolean eraseSettings,
+            final int estimatedSwapTimeInMilliseconds,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
+    {
+        return beginInstallationImpl(
+                firmwarePackage::createImageSet,
+                mode,
+                initialMtuSize,
+                eraseSettings,
+                estimatedSwapTimeInMilliseconds,
+                windowCapacity,
+                memoryAlignment
+        );
+    }
+
+    private interface ImagesProvider
+    {
+        ImageSet provide() throws Exception;
+    }
+
+    private EAndroidFirmwareInstallationVerdict beginInstallationImpl(
+            @NonNull final ImagesProvider imagesProvider,
+            @NonNull final EAndroidFirmwareInstallationMode mode,
+            final int initialMtuSize,
+            final boolean eraseSettings,
+            final int estimatedSwapTimeInMilliseconds,
+            final int windowCapacity,
+            final int memoryAlignment
+    )
     {
         if (!IsCold()) //if an installation is already in progress we bail out
         {
@@ -86,29 +220,24 @@ public class AndroidFirmwareInstaller
 
         resetInstallationTidbits();
 
-        ImageSet images = new ImageSet();
+        final ImageSet images;
         try
         {
-            images.add(data); //the method healthchecks the bytes itself internally so we dont have to do it ourselves here manually
+            images = imagesProvider.provide();
         }
         catch (final Exception ex)
         {
-            try
-            {
-                images.add(new ZipPackage(data).getBinaries()); //the method healthchecks the bytes itself internally so we dont have to do it ourselves here manually
-            }
-            catch (final Exception ex2)
-            {
-                onError(EAndroidFirmwareInstallerFatalErrorType.GIVEN_FIRMWARE_DATA_UNHEALTHY, "[AFI.BI.010] Failed to extract firmware-images" + ex2, ex2);
+            onError(EAndroidFirmwareInstallerFatalErrorType.GIVEN_FIRMWARE_DATA_UNHEALTHY, "[AFI.BI.010] Failed to extract firmware-images" + ex, ex);
 
-                return EAndroidFirmwareInstallationVerdict.FAILED__GIVEN_FIRMWARE_UNHEALTHY;
-            }
+            return EAndroidFirmwareInstallationVerdict.FAILED__GIVEN_FIRMWARE_UNHEALTHY;
         }
 
         _transport = new McuMgrBleTransport(_context, _bluetoothDevice);
         _manager = new FirmwareUpgradeManager(_transport);
         _manager.setFirmwareUpgradeCallback(new FirmwareInstallCallbackProxy());
 
+        final int effectiveWindowCapacity = deduceEffectiveWindowCapacity(windowCapacity);
+
         if (estimatedSwapTimeInMilliseconds >= 0 && estimatedSwapTimeInMilliseconds <= 1000)
         { //it is better to just warn the calling environment instead of erroring out
             emitLogEntry(
@@ -127,7 +256,7 @@ public class AndroidFirmwareInstaller
                     mode,
                     eraseSettings,
                     estimatedSwapTimeInMilliseconds,
-                    windowCapacity,
+                    effectiveWindowCapacity,
                     memoryAlignment
             );
         }
@@ -138,11 +267,26 @@ public class AndroidFirmwareInstaller
             return EAndroidFirmwareInstallationVerdict.FAILED__INVALID_SETTINGS;
         }
 
+        _currentMode = mode; //                                                      needed only if we have to restart the
+        _currentImages = images; //                                                  installation due to the adaptive window-capacity
+        _currentEraseSettings = eraseSettings;
+        _currentMemoryAlignment = memoryAlignment;
+        _currentWindowCapacity = effectiveWindowCapacity;
+        _currentEstimatedSwapTimeInMilliseconds = estimatedSwapTimeInMilliseconds;
+
         try
         {
             setBusyState(false);
             setState(EAndroidFirmwareInstallationState.IDLE); //order
-            _manager.start(images, settings); //order
+
+            if (_isSkippingImagesAlreadyOnDevice) //order
+            {
+                startAfterSkippingImagesAlreadyOnDevice(images, settings);
+            }
+            else
+            {
+                _manager.start(images, settings);
+            }
         }
         catch (final Exception ex)
         {
@@ -154,6 +298,192 @@ public class AndroidFirmwareInstaller
         return EAndroidFirmwareInstallationVerdict.SUCCESS;
     }
 
+    /**
+     * When enabled, the windowCapacity passed to beginInstallation() becomes an upper limit rather than a fixed value. The firmware-upgrade-manager of Nordic
+     * cannot change its window while an upload is in progress, so the adaptation happens across uploads instead: an upload that fails due to timeouts gets
+     * restarted automatically with half the window (multiplicative decrease), while every successful installation lets the next installation on the same
+     * device try one more packet (additive increase). The chosen window-capacity gets advertised through {@link #firmwareUploadWindowCapacityChangedAdvertisement}.
+     *
+     * @param isAdaptive whether to adapt the window-capacity or not
+     * @return false if an installation is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetAdaptiveWindowCapacity(final boolean isAdaptive)
+    {
+        if (!IsCold())
+            return false;
+
+        _isWindowCapacityAdaptive = isAdaptive;
+        return true;
+    }
+
+    /**
+     * When enabled, each installation starts off with a single image-list query to the device and the images whose hash matches the hash of an image
+     * that is already running on the device (primary slot - confirmed unless the mode is TEST_ONLY) get dropped from the installation altogether. If
+     * no images are left the installation completes right away as a no-op without any upload, test, reset or confirm. The images that are found in the
+     * secondary slot are left to the validation phase of the firmware-upgrade-manager which skips their upload and goes straight to test/confirm.
+     * The number of images that got skipped is advertised through {@link #firmwareImagesAlreadyOnDeviceAdvertisement}.
+     * <p>
+     * If the query fails the installation proceeds with all the images as if the setting was disabled.
+     *
+     * @param isSkipping whether to skip the images that are already on the device or not
+     * @return false if an installation is currently in progress (the setting cannot be changed in that case) - true otherwise
+     */
+    public boolean trySetSkipImagesAlreadyOnDevice(final boolean isSkipping)
+    {
+        if (!IsCold())
+            return false;
+
+        _isSkippingImagesAlreadyOnDevice = isSkipping;
+        return true;
+    }
+
+    private void startAfterSkippingImagesAlreadyOnDevice(@NonNull final ImageSet images, @NonNull final Settings settings)
+    {
+        setBusyState(true);
+        setState(EAndroidFirmwareInstallationState.VALIDATING);
+
+        new ImageManager(_transport).list(new McuMgrCallback<McuMgrImageStateResponse>()
+        {
+            @Override
+            public void onResponse(@NonNull final McuMgrImageStateResponse response)
+            {
+                onImagesOnDeviceListed(images, settings, response.images);
+            }
+
+            @Override
+            public void onError(@NonNull final McuMgrException exception)
+            {
+                emitLogEntry("[AFI.SASIAOD.010] [SUPPRESSED] Failed to list the images on the device - all images will be installed: " + exception, "firmware-installer", EAndroidLoggingLevel.Warning);
+
+                onImagesOnDeviceListed(images, settings, null);
+            }
+        });
+    }
+
+    private void onImagesOnDeviceListed(@NonNull final ImageSet images, @NonNull final Settings settings, final McuMgrImageStateResponse.ImageSlot[] slots)
+    {
+        if (_currentState == EAndroidFirmwareInstallationState.CANCELLING) //00
+        {
+            setState(EAndroidFirmwareInstallationState.CANCELLED);
+            cancelledAdvertisement();
+            setBusyState(false);
+            return;
+        }
+
+        final List<TargetImage> remainingImages = new ArrayList<>(images.getImages().size());
+        for (final TargetImage targetImage : images.getImages())
+        {
+            if (slots == null || !isRunningOnDevice(targetImage, slots))
+            {
+                remainingImages.add(targetImage);
+            }
+        }
+
+        final int skippedImagesCount = images.getImages().size() - remainingImages.size();
+        if (skippedImagesCount > 0)
+        {
+            emitLogEntry("[AFI.OIODL.010] " + skippedImagesCount + " out of " + images.getImages().size() + " image(s) are already running on the device - they will be skipped", "firmware-installer", EAndroidLoggingLevel.Info);
+        }
+        fireAndForgetInTheBg(() -> firmwareImagesAlreadyOnDeviceAdvertisement(skippedImagesCount, images.getImages().size()));
+
+        if (remainingImages.isEmpty()) // nothing to do
+        {
+            setState(EAndroidFirmwareInstallationState.COMPLETE);
+            setBusyState(false);
+            return;
+        }
+
+        try
+        {
+            _currentImages = new ImageSet(remainingImages); // order   so that restarts due to the adaptive window-capacity skip them too
+            _manager.start(_currentImages, settings); //       order
+        }
+        catch (final Exception ex)
+        {
+            onError(EAndroidFirmwareInstallerFatalErrorType.INSTALLATION_INITIALIZATION_FAILED, "[AFI.OIODL.020] Failed to kick-start the installation:\n\n" + ex, ex);
+        }
+
+        //00   the firmware-upgrade-manager hasn't started yet so it will never report the cancellation   we have to do it ourselves
+    }
+
+    private boolean isRunningOnDevice(@NonNull final TargetImage targetImage, @NonNull final McuMgrImageStateResponse.ImageSlot[] slots)
+    {
+        for (final McuMgrImageStateResponse.ImageSlot slot : slots)
+        {
+            if (slot == null || slot.image != targetImage.imageIndex || slot.slot != 0 || !Arrays.equals(slot.hash, targetImage.image.getHash()))
+                continue;
+
+            return slot.confirmed || slot.permanent || _currentMode == EAndroidFirmwareInstallationMode.TEST_ONLY; //00
+        }
+
+        return false;
+
+        //00   an image that is running in test-mode still needs to be confirmed unless all we were asked to do is to test it
+    }
+
+    private int deduceEffectiveWindowCapacity(final int requestedWindowCapacity)
+    {
+        _maxWindowCapacity = Math.max(1, requestedWindowCapacity);
+        if (!_isWindowCapacityAdaptive)
+            return requestedWindowCapacity;
+
+        final Integer learnedWindowCapacity = LearnedWindowCapacitiesPerDeviceAddress.get(_bluetoothDevice.getAddress());
+        final int effectiveWindowCapacity = learnedWindowCapacity == null
+                ? _maxWindowCapacity //00
+                : Math.max(1, Math.min(_maxWindowCapacity, learnedWindowCapacity));
+
+        emitLogEntry("[AFI.DEWC.010] Adaptive window-capacity set to " + effectiveWindowCapacity + " (upper limit " + _maxWindowCapacity + ")", "firmware-installer", EAndroidLoggingLevel.Info);
+        fireAndForgetInTheBg(() -> firmwareUploadWindowCapacityChangedAdvertisement(effectiveWindowCapacity));
+
+        return effectiveWindowCapacity;
+
+        //00   we start optimistically from the upper limit   if it proves too much for the device the first failure will halve it
+    }
+
+    private boolean tryRestartUploadWithHalvedWindowCapacity()
+    {
+        if (!_isWindowCapacityAdaptive || _currentWindowCapacity <= 1 || _currentImages == null)
+            return false;
+
+        final int halvedWindowCapacity = Math.max(1, _currentWindowCapacity / 2);
+        try
+        {
+            final Settings settings = digestFirmwareInstallationManagerSettings(
+                    _currentMode,
+                    _currentEraseSettings,
+                    _currentEstimatedSwapTimeInMilliseconds,
+                    halvedWindowCapacity,
+                    _currentMemoryAlignment
+            );
+
+            _currentWindowCapacity = halvedWindowCapacity; //order
+            LearnedWindowCapacitiesPerDeviceAddress.put(_bluetoothDevice.getAddress(), halvedWindowCapacity); //order
+
+            emitLogEntry("[AFI.TRUWHWC.010] Restarting the upload with the window-capacity halved to " + halvedWindowCapacity, "firmware-installer", EAndroidLoggingLevel.Warning);
+            fireAndForgetInTheBg(() -> firmwareUploadWindowCapacityChangedAdvertisement(halvedWindowCapacity));
+
+            _uploadStartTimestampInMs = 0; //order   the throughput calculations must start afresh
+            _lastBytesSent = 0; //            order
+            _lastBytesSentTimestampInMs = 0; //order
+
+            _manager.start(_currentImages, settings); //order
+            return true;
+        }
+        catch (final Exception ex)
+        {
+            emitLogEntry("[AFI.TRUWHWC.020] [SUPPRESSED] Failed to restart the upload with a halved window-capacity: " + ex, "firmware-installer", EAndroidLoggingLevel.Warning);
+            return false;
+        }
+    }
+
+    private void tryLearnWindowCapacityUponSuccess()
+    {
+        if (!_isWindowCapacityAdaptive)
+            return;
+
+        LearnedWindowCapacitiesPerDeviceAddress.put(_bluetoothDevice.getAddress(), Math.min(_maxWindowCapacity, _currentWindowCapacity + 1)); //additive increase for the next installation
+    }
+
     private void fireAndForgetInTheBg(Runnable func)
     {
         if (func == null)
@@ -364,6 +694,18 @@ public class AndroidFirmwareInstaller
         //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
     }
 
+    @Contract(pure = true)
+    public void firmwareImagesAlreadyOnDeviceAdvertisement(final int skippedImagesCount, final int totalImagesCount)
+    {
+        //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
+    }
+
+    @Contract(pure = true)
+    public void firmwareUploadWindowCapacityChangedAdvertisement(final int windowCapacity)
+    {
+        //this method is intentionally empty   its meant to be overridden by csharp binding libraries to intercept updates
+    }
+
     @Contract(pure = true)
     public void firmwareUploadProgressPercentageAndDataThroughputChangedAdvertisement(final int progressPercentage, final float currentThroughputInKBps, final float totalAverageThroughputInKBps)
     {
@@ -445,6 +787,8 @@ public class AndroidFirmwareInstaller
         @Override
         public void onUpgradeCompleted()
         {
+            tryLearnWindowCapacityUponSuccess();
+
             setState(EAndroidFirmwareInstallationState.COMPLETE);
             setBusyState(false);
 
@@ -454,12 +798,17 @@ public class AndroidFirmwareInstaller
         @Override
         public void onUpgradeFailed(final FirmwareUpgradeManager.State state, final McuMgrException ex)
         {
+            if (state == State.UPLOAD && ex instanceof McuMgrTimeoutException && tryRestartUploadWithHalvedWindowCapacity()) //00
+                return;
+
             EAndroidFirmwareInstallerFatalErrorType fatalErrorType = DeduceInstallationFailureType(state, ex);
 
             onError(fatalErrorType, "[AFI.OAF.010] Upgrade failed:\n\n" + ex, ex);
             setBusyState(false);
 
             setLoggingEnabledOnTransport(true);
+
+            //00   in adaptive mode a timeout during the upload is a telltale sign that we overflowed the buffers of the device so we retry with a smaller window
         }
 
         private EAndroidFirmwareInstallerFatalErrorType DeduceInstallationFailureType(final FirmwareUpgradeManager.State state, final McuMgrException ex)
@@ -0,0 +1,182 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.dfu.mcuboot.model.ImageSet;
+import io.runtime.mcumgr.dfu.mcuboot.model.TargetImage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A firmware package that has been parsed, validated and hashed once and for all so that it can be installed onto any number of devices (see
+ * AndroidFirmwareInstaller.beginInstallation(AndroidFirmwarePackage, ...)) without re-parsing the zip, re-running the manifest through gson or
+ * re-validating the images each time around. Instances are immutable and can be shared freely across installers and threads.
+ * <p>
+ * Once the AndroidFirmwarePackageIndex has been opened, every prepared package gets recorded in it so that preparing the same package file again later
+ * on (even after an app restart) spares us the hashing of the package and the parsing of its manifest.
+ */
+public final class AndroidFirmwarePackage
+{
+    public interface PreparationCallback
+    {
+        void onPrepared(@NonNull final AndroidFirmwarePackage firmwarePackage);
+
+        void onPreparationFailed(@NonNull final String errorMessage);
+    }
+
+    private static final ExecutorService PreparationExecutor = Executors.newSingleThreadExecutor(runnable -> { // one at a time to keep the peak memory in check
+        final Thread thread = new Thread(runnable, "mcumgr-firmware-package-preparation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<TargetImage> _images;
+    private final AndroidFirmwarePackageDescription _description;
+
+    private AndroidFirmwarePackage(@NonNull final String packageHash, @NonNull final FirmwarePackageReader.Contents contents)
+    {
+        _images = Collections.unmodifiableList(new ArrayList<>(contents.images.getImages()));
+        _description = AndroidFirmwarePackageDescription.fromImages(packageHash, _images, contents.zipEntryNames);
+    }
+
+    /**
+     * Prepares the given firmware (a raw image or a zipped package) on a background thread and reports the outcome through the given callback (on that
+     * same background thread).
+     */
+    public static void prepareAsync(@NonNull final byte[] data, @NonNull final PreparationCallback callback)
+    {
+        PreparationExecutor.execute(() -> {
+            final AndroidFirmwarePackage firmwarePackage;
+            try
+            {
+                firmwarePackage = new AndroidFirmwarePackage(calculatePackageHash(data), FirmwarePackageReader.readContents(data));
+                recordInIndex(null, firmwarePackage);
+            }
+            catch (final Exception ex)
+            {
+                callback.onPreparationFailed(McuMgrExceptionHelpers.FormatErrorMessageWithExceptionTypeAndMessage("[AFP.PA.010] Failed to prepare the firmware package", ex));
+                return;
+            }
+
+            callback.onPrepared(firmwarePackage);
+        });
+    }
+
+    /**
+     * Same as {@link #prepareAsync(byte[], PreparationCallback)} but the firmware gets read straight off the given local file (see
+     * AndroidFirmwareInstaller.beginInstallationFromFile()).
+     */
+    public static void prepareFromFileAsync(@NonNull final String firmwareFilePath, @NonNull final PreparationCallback callback)
+    {
+        PreparationExecutor.execute(() -> {
+            final AndroidFirmwarePackage firmwarePackage;
+            try
+            {
+                final File file = new File(firmwareFilePath);
+                final AndroidFirmwarePackageIndex index = AndroidFirmwarePackageIndex.getOpenInstance();
+                final AndroidFirmwarePackageDescription knownDescription = index == null ? null : index.tryDescribe(file);
+
+                firmwarePackage = new AndroidFirmwarePackage(
+                        knownDescription != null ? knownDescription.getPackageHash() : calculatePackageHash(file), //00
+                        FirmwarePackageReader.readContents(file, knownDescription)
+                );
+                recordInIndex(file, firmwarePackage);
+            }
+            catch (final Exception ex)
+            {
+                callback.onPreparationFailed(McuMgrExceptionHelpers.FormatErrorMessageWithExceptionTypeAndMessage("[AFP.PFFA.010] Failed to prepare the firmware package '" + firmwareFilePath + "'", ex));
+                return;
+            }
+
+            callback.onPrepared(firmwarePackage);
+        });
+
+        //00   the file hasn't changed since it was indexed so there is no point in hashing it all over again
+    }
+
+    /**
+     * @return the metadata of the package - the same metadata that the AndroidFirmwarePackageIndex keeps around for it
+     */
+    public AndroidFirmwarePackageDescription getDescription()
+    {
+        return _description;
+    }
+
+    /**
+     * @return the sha256 of the package as a whole (hex) - identical packages have identical hashes no matter where they were read from
+     */
+    public String getPackageHash()
+    {
+        return _description.getPackageHash();
+    }
+
+    public int getImagesCount()
+    {
+        return _description.getImagesCount();
+    }
+
+    public int getImageIndex(final int i)
+    {
+        return _description.getImageIndex(i);
+    }
+
+    public int getImageSize(final int i)
+    {
+        return _description.getImageSize(i);
+    }
+
+    /**
+     * @return the hash of the i-th image (hex) as found in its TLVs - it is the same hash that the device reports for the image once it lands in a slot
+     */
+    public String getImageHash(final int i)
+    {
+        return _description.getImageHash(i);
+    }
+
+    /**
+     * @return the version of the i-th image as found in its mcuboot header in the "major.minor.revision.build" format
+     */
+    public String getImageVersion(final int i)
+    {
+        return _description.getImageVersion(i);
+    }
+
+    /**
+     * @return a fresh image-set for a single installation - the images themselves are shared but the set is not because the firmware-upgrade-manager
+     * is free to drop the images that turn out to be on the device already
+     */
+    ImageSet createImageSet()
+    {
+        return new ImageSet(new ArrayList<>(_images));
+    }
+
+    private static void recordInIndex(final File fileOrNull, @NonNull final AndroidFirmwarePackage firmwarePackage)
+    {
+        final AndroidFirmwarePackageIndex index = AndroidFirmwarePackageIndex.getOpenInstance();
+        if (index == null)
+            return;
+
+        index.record(fileOrNull, firmwarePackage._description);
+    }
+
+    private static String calculatePackageHash(@NonNull final byte[] data)
+    {
+        final FileContentDigester digester = new FileContentDigester();
+        digester.update(data, 0, data.length);
+
+        return FileContentDigester.toHexString(digester.getSha256());
+    }
+
+    private static String calculatePackageHash(@NonNull final File file) throws IOException
+    {
+        try (final AndroidFileUploadSource source = AndroidFileUploadSource.fromLocalFile(file.getAbsolutePath()))
+        {
+            return FileContentDigester.toHexString(FileContentDigester.digest(source, 0, source.getLength()).getSha256());
+        }
+    }
+}
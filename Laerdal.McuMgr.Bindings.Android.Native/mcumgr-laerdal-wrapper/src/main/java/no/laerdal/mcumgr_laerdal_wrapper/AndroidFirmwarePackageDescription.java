@@ -0,0 +1,108 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.dfu.mcuboot.model.TargetImage;
+import io.runtime.mcumgr.image.McuMgrImageVersion;
+
+import java.util.List;
+
+/**
+ * The metadata of a firmware package (its hash along with the index, the size, the hash and the version of each one of its images) as found in the
+ * mcuboot headers and TLVs of the images - without the images themselves. Instances are immutable.
+ */
+public final class AndroidFirmwarePackageDescription
+{
+    private final String _packageHash;
+    private final int[] _imageIndices;
+    private final int[] _imageSizes;
+    private final String[] _imageHashes;
+    private final String[] _imageVersions;
+    private final String[] _imageZipEntryNames; // the location of each image inside the package   null for packages that are a raw image
+
+    AndroidFirmwarePackageDescription(
+            @NonNull final String packageHash,
+            @NonNull final int[] imageIndices,
+            @NonNull final int[] imageSizes,
+            @NonNull final String[] imageHashes,
+            @NonNull final String[] imageVersions,
+            final String[] imageZipEntryNames
+    )
+    {
+        _packageHash = packageHash;
+        _imageSizes = imageSizes;
+        _imageHashes = imageHashes;
+        _imageIndices = imageIndices;
+        _imageVersions = imageVersions;
+        _imageZipEntryNames = imageZipEntryNames;
+    }
+
+    static AndroidFirmwarePackageDescription fromImages(@NonNull final String packageHash, @NonNull final List<TargetImage> images, final String[] imageZipEntryNames)
+    {
+        final int count = images.size();
+        final int[] imageIndices = new int[count];
+        final int[] imageSizes = new int[count];
+        final String[] imageHashes = new String[count];
+        final String[] imageVersions = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            final TargetImage targetImage = images.get(i);
+            final McuMgrImageVersion version = targetImage.image.getHeader().getVersion();
+
+            imageIndices[i] = targetImage.imageIndex;
+            imageSizes[i] = targetImage.image.getData().length;
+            imageHashes[i] = FileContentDigester.toHexString(targetImage.image.getHash());
+            imageVersions[i] = (version.getMajor() & 0xFF) + "." + (version.getMinor() & 0xFF) + "." + (version.getRevision() & 0xFFFF) + "." + (version.getBuildNum() & 0xFFFFFFFFL);
+        }
+
+        return new AndroidFirmwarePackageDescription(packageHash, imageIndices, imageSizes, imageHashes, imageVersions, imageZipEntryNames);
+    }
+
+    /**
+     * @return the sha256 of the package as a whole (hex) - identical packages have identical hashes no matter where they were read from
+     */
+    public String getPackageHash()
+    {
+        return _packageHash;
+    }
+
+    public int getImagesCount()
+    {
+        return _imageIndices.length;
+    }
+
+    public int getImageIndex(final int i)
+    {
+        return _imageIndices[i];
+    }
+
+    public int getImageSize(final int i)
+    {
+        return _imageSizes[i];
+    }
+
+    /**
+     * @return the hash of the i-th image (hex) as found in its TLVs - it is the same hash that the device reports for the image once it lands in a slot
+     */
+    public String getImageHash(final int i)
+    {
+        return _imageHashes[i];
+    }
+
+    /**
+     * @return the version of the i-th image as found in its mcuboot header in the "major.minor.revision.build" format
+     */
+    public String getImageVersion(final int i)
+    {
+        return _imageVersions[i];
+    }
+
+    boolean isZipped()
+    {
+        return _imageZipEntryNames != null;
+    }
+
+    String getImageZipEntryName(final int i)
+    {
+        return _imageZipEntryNames == null ? null : _imageZipEntryNames[i];
+    }
+}
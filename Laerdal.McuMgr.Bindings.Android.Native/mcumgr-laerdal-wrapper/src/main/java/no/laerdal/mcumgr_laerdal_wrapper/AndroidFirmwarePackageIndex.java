@@ -0,0 +1,384 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import android.content.Context;
+import androidx.annotation.Keep;
+import androidx.annotation.NonNull;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent index of the firmware packages that have been prepared so far (see AndroidFirmwarePackage) keyed by the hash of each package. For each
+ * package it remembers the metadata of its images (index, size, hash and version as found in their mcuboot headers and TLVs) along with the location
+ * of each image inside the package. On top of that it remembers which local files (path, size and last-modified timestamp) held which package.
+ * <p>
+ * This way, after an app restart, the versions of a known package file can be shown without reading the file at all, and preparing or installing it
+ * neither re-hashes the package nor re-parses its manifest - the images get inflated straight out of the entries the index points to. The least
+ * recently used packages get evicted once there are more of them than the configured maximum.
+ */
+public final class AndroidFirmwarePackageIndex
+{
+    private static final String FILE_NAME = "mcumgr-firmware-package-index.json";
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_FILE_FINGERPRINTS_PER_PACKAGE = 4;
+
+    private static final Gson JsonSerializer = new GsonBuilder()
+            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+            .create();
+
+    private static AndroidFirmwarePackageIndex Instance; // guarded by the class
+
+    private final File _file;
+    private final LinkedHashMap<String, Entry> _entriesInLruOrder = new LinkedHashMap<>(16, 0.75f, /*accessOrder*/ true); // package-hash -> entry
+    private final HashMap<String, String> _packageHashesPerFileFingerprint = new HashMap<>();
+
+    private int _maxPackages;
+
+    private AndroidFirmwarePackageIndex(@NonNull final File file, final int maxPackages)
+    {
+        _file = file;
+        _maxPackages = Math.max(1, maxPackages);
+    }
+
+    /**
+     * Opens the index of the app (loading it off the disk the first time around) and makes it available to AndroidFirmwarePackage and
+     * AndroidFirmwareInstaller. A missing or corrupt index simply starts out empty.
+     *
+     * @param maxPackages  the number of packages to keep in the index - the least recently used ones get evicted to stay within it
+     */
+    public static synchronized AndroidFirmwarePackageIndex open(@NonNull final Context context, final int maxPackages)
+    {
+        if (Instance == null)
+        {
+            Instance = new AndroidFirmwarePackageIndex(new File(context.getFilesDir(), FILE_NAME), maxPackages);
+            Instance.load();
+        }
+
+        Instance.setMaxPackages(maxPackages); // the limit of the most recent caller wins
+        return Instance;
+    }
+
+    static synchronized AndroidFirmwarePackageIndex getOpenInstance()
+    {
+        return Instance;
+    }
+
+    public synchronized void setMaxPackages(final int maxPackages)
+    {
+        _maxPackages = Math.max(1, maxPackages);
+
+        if (evictIfNeeded())
+        {
+            persist();
+        }
+    }
+
+    /**
+     * @return the description of the package in the given local file - or null if the file is unknown or has changed since it was last indexed
+     */
+    public AndroidFirmwarePackageDescription tryDescribe(@NonNull final String firmwareFilePath)
+    {
+        return tryDescribe(new File(firmwareFilePath));
+    }
+
+    /**
+     * @return the description of the package with the given hash (hex sha256) - or null if there is no such package in the index
+     */
+    public synchronized AndroidFirmwarePackageDescription tryDescribeByPackageHash(@NonNull final String packageHash)
+    {
+        final Entry entry = touch(packageHash);
+
+        return entry == null ? null : entry.description;
+    }
+
+    synchronized AndroidFirmwarePackageDescription tryDescribe(@NonNull final File file)
+    {
+        final String fingerprint = calculateFingerprint(file);
+        final String packageHash = fingerprint == null ? null : _packageHashesPerFileFingerprint.get(fingerprint);
+        if (packageHash == null)
+            return null;
+
+        final Entry entry = touch(packageHash);
+
+        return entry == null ? null : entry.description;
+    }
+
+    /**
+     * Indexes the given package along with the local file it was read from (if any). Failures to persist the index are swallowed because the index
+     * is merely an optimization.
+     */
+    synchronized void record(final File fileOrNull, @NonNull final AndroidFirmwarePackageDescription description)
+    {
+        Entry entry = _entriesInLruOrder.get(description.getPackageHash());
+        if (entry == null)
+        {
+            entry = new Entry(description);
+            _entriesInLruOrder.put(description.getPackageHash(), entry);
+        }
+
+        final String fingerprint = fileOrNull == null ? null : calculateFingerprint(fileOrNull);
+        if (fingerprint != null && !entry.fileFingerprints.contains(fingerprint))
+        {
+            final String previousPackageHash = _packageHashesPerFileFingerprint.put(fingerprint, description.getPackageHash());
+            if (previousPackageHash != null) // the very same file used to hold a different package   can happen when the clock jumps backwards
+            {
+                final Entry previousEntry = _entriesInLruOrder.get(previousPackageHash);
+                if (previousEntry != null)
+                {
+                    previousEntry.fileFingerprints.remove(fingerprint);
+                }
+            }
+
+            entry.fileFingerprints.add(fingerprint);
+            if (entry.fileFingerprints.size() > MAX_FILE_FINGERPRINTS_PER_PACKAGE)
+            {
+                _packageHashesPerFileFingerprint.remove(entry.fileFingerprints.remove(0)); // oldest first
+            }
+        }
+
+        evictIfNeeded();
+        persist();
+    }
+
+    private Entry touch(@NonNull final String packageHash)
+    {
+        final boolean isMostRecentlyUsed = packageHash.equals(getMostRecentlyUsedPackageHash());
+
+        final Entry entry = _entriesInLruOrder.get(packageHash); // also marks the entry as the most recently used one
+        if (entry != null && !isMostRecentlyUsed)
+        {
+            persist(); // persists the lru order   we only bother when it has actually changed
+        }
+
+        return entry;
+    }
+
+    private String getMostRecentlyUsedPackageHash()
+    {
+        String packageHash = null;
+        for (final String key : _entriesInLruOrder.keySet())
+        {
+            packageHash = key;
+        }
+
+        return packageHash;
+    }
+
+    private boolean evictIfNeeded()
+    {
+        boolean isEvicted = false;
+
+        final Iterator<Map.Entry<String, Entry>> iterator = _entriesInLruOrder.entrySet().iterator();
+        while (_entriesInLruOrder.size() > _maxPackages && iterator.hasNext())
+        {
+            final Entry eldestEntry = iterator.next().getValue();
+            for (final String fingerprint : eldestEntry.fileFingerprints)
+            {
+                _packageHashesPerFileFingerprint.remove(fingerprint);
+            }
+
+            iterator.remove();
+            isEvicted = true;
+        }
+
+        return isEvicted;
+    }
+
+    private void load()
+    {
+        if (!_file.isFile())
+            return;
+
+        final IndexFile indexFile;
+        try (final Reader reader = new InputStreamReader(new FileInputStream(_file), StandardCharsets.UTF_8))
+        {
+            indexFile = JsonSerializer.fromJson(reader, IndexFile.class);
+        }
+        catch (final Exception ex) // corrupt   we simply start over
+        {
+            //noinspection ResultOfMethodCallIgnored
+            _file.delete();
+            return;
+        }
+
+        if (indexFile == null || indexFile.formatVersion != FORMAT_VERSION || indexFile.packages == null)
+            return;
+
+        for (final PackageRecord packageRecord : indexFile.packages) // least recently used first
+        {
+            final Entry entry = packageRecord.toEntry();
+            if (entry == null)
+                continue;
+
+            _entriesInLruOrder.put(entry.description.getPackageHash(), entry);
+            for (final String fingerprint : entry.fileFingerprints)
+            {
+                _packageHashesPerFileFingerprint.put(fingerprint, entry.description.getPackageHash());
+            }
+        }
+
+        evictIfNeeded();
+    }
+
+    private void persist()
+    {
+        final IndexFile indexFile = new IndexFile();
+        indexFile.formatVersion = FORMAT_VERSION;
+        indexFile.packages = new PackageRecord[_entriesInLruOrder.size()];
+
+        int i = 0;
+        for (final Entry entry : _entriesInLruOrder.values())
+        {
+            indexFile.packages[i++] = PackageRecord.fromEntry(entry);
+        }
+
+        final File temporaryFile = new File(_file.getPath() + ".tmp");
+        try
+        {
+            try (final Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile, /*append*/ false), StandardCharsets.UTF_8))
+            {
+                JsonSerializer.toJson(indexFile, writer);
+            }
+
+            if (!temporaryFile.renameTo(_file)) //00
+                throw new IOException("Failed to move the index into place");
+        }
+        catch (final Exception ex)
+        {
+            //noinspection ResultOfMethodCallIgnored
+            temporaryFile.delete();
+        }
+
+        //00   so that a crash midway never leaves a truncated index behind
+    }
+
+    private static String calculateFingerprint(@NonNull final File file)
+    {
+        if (!file.isFile())
+            return null;
+
+        return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified(); //00
+
+        //00   cheap enough to be computed on the ui thread   a file that gets overwritten in place keeps its path but not its timestamp
+    }
+
+    private static final class Entry
+    {
+        private final AndroidFirmwarePackageDescription description;
+        private final ArrayList<String> fileFingerprints = new ArrayList<>(1);
+
+        private Entry(@NonNull final AndroidFirmwarePackageDescription description)
+        {
+            this.description = description;
+        }
+    }
+
+    @SuppressWarnings({"unused", "MismatchedReadAndWriteOfArray"})
+    @Keep
+    private static class IndexFile
+    {
+        private int formatVersion;
+        private PackageRecord[] packages;
+    }
+
+    @Keep
+    private static class PackageRecord
+    {
+        private String packageHash;
+        private boolean isZipped;
+        private String[] fileFingerprints;
+        private ImageRecord[] images;
+
+        private static PackageRecord fromEntry(@NonNull final Entry entry)
+        {
+            final AndroidFirmwarePackageDescription description = entry.description;
+
+            final PackageRecord packageRecord = new PackageRecord();
+            packageRecord.packageHash = description.getPackageHash();
+            packageRecord.isZipped = description.isZipped();
+            packageRecord.fileFingerprints = entry.fileFingerprints.toArray(new String[0]);
+            packageRecord.images = new ImageRecord[description.getImagesCount()];
+            for (int i = 0; i < packageRecord.images.length; i++)
+            {
+                final ImageRecord imageRecord = new ImageRecord();
+                imageRecord.imageIndex = description.getImageIndex(i);
+                imageRecord.size = description.getImageSize(i);
+                imageRecord.hash = description.getImageHash(i);
+                imageRecord.version = description.getImageVersion(i);
+                imageRecord.zipEntryName = description.getImageZipEntryName(i);
+
+                packageRecord.images[i] = imageRecord;
+            }
+
+            return packageRecord;
+        }
+
+        private Entry toEntry()
+        {
+            if (packageHash == null || images == null)
+                return null;
+
+            final int count = images.length;
+            final int[] imageIndices = new int[count];
+            final int[] imageSizes = new int[count];
+            final String[] imageHashes = new String[count];
+            final String[] imageVersions = new String[count];
+            final String[] imageZipEntryNames = isZipped ? new String[count] : null;
+            for (int i = 0; i < count; i++)
+            {
+                final ImageRecord imageRecord = images[i];
+                if (imageRecord == null || imageRecord.hash == null || imageRecord.version == null || (isZipped && imageRecord.zipEntryName == null))
+                    return null;
+
+                imageIndices[i] = imageRecord.imageIndex;
+                imageSizes[i] = imageRecord.size;
+                imageHashes[i] = imageRecord.hash;
+                imageVersions[i] = imageRecord.version;
+                if (imageZipEntryNames != null)
+                {
+                    imageZipEntryNames[i] = imageRecord.zipEntryName;
+                }
+            }
+
+            final Entry entry = new Entry(new AndroidFirmwarePackageDescription(packageHash, imageIndices, imageSizes, imageHashes, imageVersions, imageZipEntryNames));
+            if (fileFingerprints != null)
+            {
+                for (final String fingerprint : fileFingerprints)
+                {
+                    if (fingerprint != null)
+                    {
+                        entry.fileFingerprints.add(fingerprint);
+                    }
+                }
+            }
+
+            return entry;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    @Keep
+    private static class ImageRecord
+    {
+        private int imageIndex;
+        private int size;
+        private String hash;
+        private String version;
+        private String zipEntryName; // null for packages that are a raw image
+    }
+}
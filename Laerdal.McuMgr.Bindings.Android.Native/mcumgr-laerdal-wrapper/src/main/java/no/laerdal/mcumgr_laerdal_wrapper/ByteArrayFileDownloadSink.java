@@ -0,0 +1,38 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * The sink of the downloads that hand over their data as a byte[] upon completion - the array gets allocated once with the exact size of the
+ * download as soon as that becomes known.
+ */
+final class ByteArrayFileDownloadSink extends AndroidFileDownloadSink
+{
+    private byte[] _data = NO_DATA;
+
+    @Override
+    void onTotalLengthKnown(final long totalLength) throws IOException
+    {
+        if (totalLength > Integer.MAX_VALUE)
+            throw new IOException("Files larger than 2GB cannot be handed over as a byte[]");
+
+        _data = new byte[(int) totalLength];
+    }
+
+    @Override
+    void write(final long offset, @NonNull final byte[] data, final int dataOffset, final int length) throws IOException
+    {
+        if (offset + length > _data.length)
+            throw new IOException("The downloaded data go beyond the announced size of " + _data.length + " bytes");
+
+        System.arraycopy(data, dataOffset, _data, (int) offset, length);
+    }
+
+    @Override
+    byte[] getDataToHandOverUponCompletion()
+    {
+        return _data;
+    }
+}
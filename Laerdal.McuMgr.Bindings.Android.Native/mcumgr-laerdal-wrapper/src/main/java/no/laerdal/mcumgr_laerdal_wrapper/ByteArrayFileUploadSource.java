@@ -0,0 +1,42 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+final class ByteArrayFileUploadSource extends AndroidFileUploadSource
+{
+    private final byte[] _data;
+    private final int _dataOffset; //   the slice of the array that gets uploaded
+    private final int _dataLength;
+
+    ByteArrayFileUploadSource(@NonNull final byte[] data)
+    {
+        this(data, 0, data.length);
+    }
+
+    ByteArrayFileUploadSource(@NonNull final byte[] data, final int dataOffset, final int dataLength)
+    {
+        if (dataOffset < 0 || dataLength < 0 || dataOffset > data.length - dataLength)
+            throw new IndexOutOfBoundsException("The slice [" + dataOffset + ", " + dataOffset + "+" + dataLength + ") is out of bounds for an array of " + data.length + " bytes");
+
+        _data = data;
+        _dataOffset = dataOffset;
+        _dataLength = dataLength;
+    }
+
+    @Override
+    public long getLength()
+    {
+        return _dataLength;
+    }
+
+    @Override
+    int read(final long offset, @NonNull final byte[] buffer, final int bufferOffset, final int length)
+    {
+        final int count = (int) Math.min(length, _dataLength - offset);
+        if (count <= 0)
+            return 0;
+
+        System.arraycopy(_data, _dataOffset + (int) offset, buffer, bufferOffset, count);
+        return count;
+    }
+}
@@ -0,0 +1,40 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+final class ByteBufferFileDownloadSink extends AndroidFileDownloadSink
+{
+    private final int _capacity;
+    private final int _startPosition;
+    private final ByteBuffer _buffer; //  a private duplicate so that we never tamper with the position/limit of the buffer of the calling environment
+
+    ByteBufferFileDownloadSink(@NonNull final ByteBuffer buffer)
+    {
+        _buffer = buffer.duplicate(); // shares the underlying memory   no bytes get copied
+        _capacity = buffer.remaining();
+        _startPosition = buffer.position();
+    }
+
+    @Override
+    void onTotalLengthKnown(final long totalLength) throws IOException
+    {
+        if (totalLength > _capacity)
+            throw new IOException("The given buffer can hold " + _capacity + " bytes but the remote file is " + totalLength + " bytes long");
+    }
+
+    @Override
+    void write(final long offset, @NonNull final byte[] data, final int dataOffset, final int length) throws IOException
+    {
+        if (offset + length > _capacity)
+            throw new IOException("The given buffer can hold " + _capacity + " bytes but the downloaded data go beyond that");
+
+        synchronized (_buffer) //position() + put() is not atomic
+        {
+            _buffer.position(_startPosition + (int) offset);
+            _buffer.put(data, dataOffset, length);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+final class ByteBufferFileUploadSource extends AndroidFileUploadSource
+{
+    private final int _length;
+    private final int _startPosition;
+    private final ByteBuffer _buffer; //  a private duplicate so that we never tamper with the position/limit of the buffer of the calling environment
+
+    ByteBufferFileUploadSource(@NonNull final ByteBuffer buffer)
+    {
+        _buffer = buffer.duplicate(); // shares the underlying memory   no bytes get copied
+        _length = buffer.remaining();
+        _startPosition = buffer.position();
+    }
+
+    @Override
+    public long getLength()
+    {
+        return _length;
+    }
+
+    @Override
+    int read(final long offset, @NonNull final byte[] buffer, final int bufferOffset, final int length)
+    {
+        final int count = (int) Math.min(length, _length - offset);
+        if (count <= 0)
+            return 0;
+
+        synchronized (_buffer) //position() + get() is not atomic
+        {
+            _buffer.position(_startPosition + (int) offset);
+            _buffer.get(buffer, bufferOffset, count);
+        }
+
+        return count;
+    }
+}
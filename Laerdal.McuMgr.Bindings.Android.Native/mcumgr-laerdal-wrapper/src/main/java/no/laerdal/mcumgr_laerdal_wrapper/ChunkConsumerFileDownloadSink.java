@@ -0,0 +1,171 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Decorates the actual sink of a download so that each chunk also gets handed over to an AndroidFileDownloadChunkConsumer on a worker thread of its
+ * own. The chunks that are waiting for the consumer are bounded by a byte-budget: once the consumer falls behind by more than that the sink reports
+ * itself as congested (so the downloader stops requesting more chunks) until the consumer has worked its way through half of the backlog.
+ * <p>
+ * If the consumer throws, the download fails with the next chunk that arrives - or upon completion if the consumer throws while working its way
+ * through the last chunks (the completion gets queued up on the worker behind the last chunks so it only goes through once the consumer has
+ * caught up - without blocking the thread that delivered the last chunk).
+ */
+final class ChunkConsumerFileDownloadSink extends AndroidFileDownloadSink
+{
+    private final Object _lock = new Object();
+
+    private final AndroidFileDownloadSink _innerSink;
+    private final AndroidFileDownloadChunkConsumer _consumer;
+    private final long _maxBufferedBytes;
+    private final ExecutorService _worker;
+
+    private long _bufferedBytes; //               guarded by _lock
+    private boolean _isCongested; //              guarded by _lock
+    private volatile Exception _consumerFailure;
+    private volatile Runnable _onDecongested;
+
+    private volatile boolean _isDownloadComplete;
+    private volatile boolean _isClosed;
+
+    ChunkConsumerFileDownloadSink(@NonNull final AndroidFileDownloadSink innerSink, @NonNull final AndroidFileDownloadChunkConsumer consumer, final long maxBufferedBytes)
+    {
+        _consumer = consumer;
+        _innerSink = innerSink;
+        _maxBufferedBytes = Math.max(1, maxBufferedBytes);
+
+        _worker = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "mcumgr-download-chunk-consumer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    void onTotalLengthKnown(final long totalLength) throws IOException
+    {
+        _innerSink.onTotalLengthKnown(totalLength);
+    }
+
+    @Override
+    void write(final long offset, @NonNull final byte[] data, final int dataOffset, final int length) throws IOException
+    {
+        final Exception consumerFailure = _consumerFailure;
+        if (consumerFailure != null)
+            throw new IOException("The chunk-consumer failed", consumerFailure);
+
+        _innerSink.write(offset, data, dataOffset, length);
+
+        final byte[] chunk = dataOffset == 0 && length == data.length ? data : Arrays.copyOfRange(data, dataOffset, dataOffset + length);
+        synchronized (_lock)
+        {
+            _bufferedBytes += length;
+            _isCongested |= _bufferedBytes > _maxBufferedBytes;
+        }
+
+        _worker.execute(() -> consume(offset, chunk));
+    }
+
+    @Override
+    void truncate(final long length) throws IOException
+    {
+        _innerSink.truncate(length);
+    }
+
+    @Override
+    void runWhenDrained(@NonNull final Runnable onDrained)
+    {
+        try
+        {
+            _worker.execute(onDrained); // the worker runs its tasks in order so once it gets here all the queued chunks have been consumed
+        }
+        catch (final RejectedExecutionException ex) // closed already so there is nothing left to drain
+        {
+            onDrained.run();
+        }
+    }
+
+    @Override
+    byte[] getDataToHandOverUponCompletion() throws IOException
+    {
+        final Exception consumerFailure = _consumerFailure;
+        if (consumerFailure != null)
+            throw new IOException("The chunk-consumer failed", consumerFailure);
+
+        _isDownloadComplete = true; // the downloader asks for the data only once the last chunk has landed
+
+        return _innerSink.getDataToHandOverUponCompletion();
+    }
+
+    @Override
+    boolean supportsRewrites()
+    {
+        return false; // the consumer has parsed the bytes already
+    }
+
+    @Override
+    boolean isCongested()
+    {
+        synchronized (_lock)
+        {
+            return _isCongested;
+        }
+    }
+
+    @Override
+    void setOnDecongestedListener(final Runnable onDecongested)
+    {
+        _onDecongested = onDecongested;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (_isClosed)
+            return;
+
+        _isClosed = true;
+
+        final boolean isDownloadComplete = _isDownloadComplete;
+        _worker.execute(() -> _consumer.onDownloadEnded(isDownloadComplete && _consumerFailure == null)); // after the chunks that are still queued up
+        _worker.shutdown();
+
+        _innerSink.close();
+    }
+
+    private void consume(final long offset, @NonNull final byte[] chunk)
+    {
+        try
+        {
+            if (_consumerFailure == null) // no point in feeding the consumer past its failure
+            {
+                _consumer.onChunk(offset, chunk);
+            }
+        }
+        catch (final Exception ex)
+        {
+            _consumerFailure = ex;
+        }
+
+        final Runnable onDecongested;
+        synchronized (_lock)
+        {
+            _bufferedBytes -= chunk.length;
+
+            final boolean isDecongested = _isCongested && _bufferedBytes <= _maxBufferedBytes / 2; // hysteresis so that we don't flip-flop on every chunk
+            _isCongested &= !isDecongested;
+            onDecongested = isDecongested ? _onDecongested : null;
+        }
+
+        if (onDecongested != null)
+        {
+            onDecongested.run(); // outside the lock because it calls back into the downloader
+        }
+    }
+}
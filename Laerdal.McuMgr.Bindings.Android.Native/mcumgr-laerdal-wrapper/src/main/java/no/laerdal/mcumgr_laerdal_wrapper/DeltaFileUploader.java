@@ -0,0 +1,503 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.managers.FsManager;
+import io.runtime.mcumgr.transfer.TransferController;
+import io.runtime.mcumgr.transfer.UploadCallback;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Patches an existing remote file by uploading only the blocks that differ from the local data. The file is split into fixed-size
+ * blocks and each block is compared against the device via the fs-hash command over its offset/length range. The differing blocks
+ * get merged into contiguous ranges which are then written at their respective offsets one range after the other.
+ * <p>
+ * Writes at offset zero make the device truncate the file so whenever the very first block differs (or whenever the remote file is
+ * missing or longer than the local data) we fall back to uploading the entire file. The same goes for ranges during whose upload the device
+ * asks for an offset outside the range (pe because the remote file got truncated in the meantime). The progress reported through the
+ * UploadCallback spans only the bytes that actually need to be uploaded.
+ * <p>
+ * The local blocks get digested on the given executor so that the ble-callback threads never get to read the local data.
+ */
+final class DeltaFileUploader implements TransferController
+{
+    interface Listener
+    {
+        void onDeltaComputed(final long bytesToUpload, final int rangesCount);
+
+        void onFallingBackToFullUpload(@NonNull final String reason);
+    }
+
+    private final Object _lock = new Object();
+
+    private final FsManager _fsManager;
+    private final String _remoteFilePath;
+    private final AndroidFileUploadSource _source;
+    private final TransferWindow _window;
+    private final int _memoryAlignment;
+    private final int _blockLength;
+
+    private final Listener _listener;
+    private final UploadCallback _callback;
+    private final Executor _digestingExecutor;
+
+    private final long _totalLength;
+    private final List<long[]> _rangesToUpload = new ArrayList<>(); // [startOffset, endOffset) pairs
+
+    private long _comparableLength; //       the part of the local data that the remote file covers (block-aligned)
+    private long _nextBlockOffsetToCompare;
+    private long _bytesToUpload;
+    private long _bytesOfCompletedRanges;
+    private int _nextRangeIndex;
+
+    private StreamingFileUploader _currentUploader;
+    private boolean _verifiesUploadedRanges;
+    private boolean _usesPreEncodedFrames;
+    private boolean _isPaused;
+    private boolean _isFinished;
+    private boolean _isComparisonPendingUponResume; // the comparison round-trip that completed while we were paused
+
+    DeltaFileUploader(
+            @NonNull final FsManager fsManager,
+            @NonNull final String remoteFilePath,
+            @NonNull final AndroidFileUploadSource source,
+            @NonNull final TransferWindow window,
+            final int memoryAlignment,
+            final int blockLength,
+            @NonNull final UploadCallback callback,
+            @NonNull final Listener listener,
+            @NonNull final Executor digestingExecutor
+    )
+    {
+        _source = source;
+        _window = window;
+        _callback = callback;
+        _listener = listener;
+        _fsManager = fsManager;
+        _remoteFilePath = remoteFilePath;
+        _digestingExecutor = digestingExecutor;
+        _memoryAlignment = Math.max(1, memoryAlignment);
+        _totalLength = source.getLength();
+
+        final int alignedBlockLength = Math.max(_memoryAlignment, blockLength);
+        _blockLength = alignedBlockLength - alignedBlockLength % _memoryAlignment; // the ranges we write must start and end on aligned offsets
+    }
+
+    /**
+     * Makes each uploaded range get verified against the device once it has been uploaded (see StreamingFileUploader.setVerifiesUploadedRange()).
+     */
+    void setVerifiesUploadedRanges()
+    {
+        _verifiesUploadedRanges = true;
+    }
+
+    /**
+     * Makes each range get uploaded through pre-encoded recycled frames (see StreamingFileUploader.setUsesPreEncodedFrames()).
+     */
+    void setUsesPreEncodedFrames()
+    {
+        _usesPreEncodedFrames = true;
+    }
+
+    TransferController uploadAsync()
+    {
+        McuMgrFsHelpers.queryFileStatus(_fsManager, _remoteFilePath, new McuMgrCallback<McuMgrFsHelpers.FileStatusResponse>()
+        {
+            @Override
+            public void onResponse(@NonNull final McuMgrFsHelpers.FileStatusResponse response)
+            {
+                if (!response.isSuccess())
+                {
+                    fallBackToFullUpload("the remote file doesn't exist");
+                    return;
+                }
+
+                if (response.len > _totalLength)
+                {
+                    fallBackToFullUpload("the remote file (" + response.len + " bytes) is longer than the local data (" + _totalLength + " bytes) and it cannot be truncated without rewriting it");
+                    return;
+                }
+
+                if (response.len < _blockLength)
+                {
+                    fallBackToFullUpload("the remote file (" + response.len + " bytes) is shorter than a single block");
+                    return;
+                }
+
+                synchronized (_lock)
+                {
+                    _comparableLength = response.len == _totalLength //00
+                            ? _totalLength
+                            : response.len - response.len % _blockLength;
+                }
+
+                compareNextBlock();
+            }
+
+            @Override
+            public void onError(@NonNull final McuMgrException exception)
+            {
+                fail(exception);
+            }
+        });
+
+        return this;
+
+        //00   if the local data have grown we compare only the blocks that are fully present on the device and the rest gets appended
+    }
+
+    @Override
+    public void pause()
+    {
+        final StreamingFileUploader uploader;
+        synchronized (_lock)
+        {
+            _isPaused = true;
+            uploader = _currentUploader;
+        }
+
+        if (uploader != null)
+        {
+            uploader.pause();
+        }
+    }
+
+    @Override
+    public void resume()
+    {
+        final boolean isComparisonPending;
+        final StreamingFileUploader uploader;
+        synchronized (_lock)
+        {
+            _isPaused = false;
+            uploader = _currentUploader;
+            isComparisonPending = _isComparisonPendingUponResume;
+            _isComparisonPendingUponResume = false;
+        }
+
+        if (uploader != null)
+        {
+            uploader.resume();
+            return;
+        }
+
+        if (isComparisonPending)
+        {
+            compareNextBlock();
+        }
+    }
+
+    @Override
+    public void cancel()
+    {
+        final StreamingFileUploader uploader;
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            _isFinished = true;
+            uploader = _currentUploader;
+        }
+
+        if (uploader != null)
+        {
+            uploader.cancel(); // its own cancellation-callback is swallowed by RangeCallback
+        }
+
+        tryCloseSource();
+        _callback.onUploadCanceled();
+    }
+
+    private void compareNextBlock()
+    {
+        final long blockOffset;
+        final long blockLength;
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            if (_isPaused) //00
+            {
+                _isComparisonPendingUponResume = true;
+                return;
+            }
+
+            blockOffset = _nextBlockOffsetToCompare;
+            blockLength = Math.min(_blockLength, _comparableLength - blockOffset);
+            _nextBlockOffsetToCompare += Math.max(0, blockLength);
+        }
+
+        if (blockLength <= 0)
+        {
+            onComparisonCompleted();
+            return;
+        }
+
+        try
+        {
+            _digestingExecutor.execute(() -> compareBlock(blockOffset, blockLength)); //10
+        }
+        catch (final RejectedExecutionException ex)
+        {
+            fail(new McuMgrException("[DFU.CNB.010] Failed to schedule the digesting of the local block at offset " + blockOffset, ex));
+        }
+
+        //00   the comparison is a series of tiny request-response round-trips so pausing in between them is as good as it gets
+        //
+        //10   we are typically called from within the ble-callback of the previous comparison and reading+hashing a block takes a while
+    }
+
+    private void compareBlock(final long blockOffset, final long blockLength)
+    {
+        final FileContentDigester localBlockDigests;
+        try
+        {
+            localBlockDigests = FileContentDigester.digest(_source, blockOffset, blockLength);
+        }
+        catch (final IOException ex)
+        {
+            fail(new McuMgrException("[DFU.CB.010] Failed to read the local data at offset " + blockOffset, ex));
+            return;
+        }
+
+        synchronized (_lock)
+        {
+            if (_isFinished) // cancelled while we were digesting
+                return;
+        }
+
+        McuMgrFsHelpers.compareRemoteFileRange(_fsManager, _remoteFilePath, blockOffset, blockLength, localBlockDigests, new McuMgrFsHelpers.RangeComparisonCallback()
+        {
+            @Override
+            public void onCompared(final boolean isIdentical)
+            {
+                if (!isIdentical && blockOffset == 0)
+                {
+                    fallBackToFullUpload("the very first block differs and writing at offset zero truncates the remote file");
+                    return;
+                }
+
+                if (!isIdentical)
+                {
+                    addRangeToUpload(blockOffset, blockOffset + blockLength);
+                }
+
+                compareNextBlock();
+            }
+
+            @Override
+            public void onFailed(@NonNull final McuMgrException exception)
+            {
+                fallBackToFullUpload("the device failed to hash the block at offset " + blockOffset + ": " + exception.getMessage());
+            }
+        });
+    }
+
+    private void addRangeToUpload(final long startOffset, final long endOffset)
+    {
+        synchronized (_lock)
+        {
+            final long[] lastRange = _rangesToUpload.isEmpty() ? null : _rangesToUpload.get(_rangesToUpload.size() - 1);
+            if (lastRange != null && lastRange[1] == startOffset) // adjacent blocks get merged into a single range
+            {
+                lastRange[1] = endOffset;
+            }
+            else
+            {
+                _rangesToUpload.add(new long[]{startOffset, endOffset});
+            }
+
+            _bytesToUpload += endOffset - startOffset;
+        }
+    }
+
+    private void onComparisonCompleted()
+    {
+        final long bytesToUpload;
+        final int rangesCount;
+        synchronized (_lock)
+        {
+            if (_comparableLength < _totalLength)
+            {
+                addRangeToUpload(_comparableLength, _totalLength); // the tail that the remote file doesn't have yet
+            }
+
+            bytesToUpload = _bytesToUpload;
+            rangesCount = _rangesToUpload.size();
+        }
+
+        _listener.onDeltaComputed(bytesToUpload, rangesCount);
+
+        if (rangesCount == 0)
+        {
+            synchronized (_lock)
+            {
+                if (_isFinished)
+                    return;
+
+                _isFinished = true;
+            }
+
+            tryCloseSource();
+            _callback.onUploadCompleted();
+            return;
+        }
+
+        startNextRange();
+    }
+
+    private void startNextRange()
+    {
+        final StreamingFileUploader uploader;
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            final long[] range = _rangesToUpload.get(_nextRangeIndex++);
+
+            uploader = new StreamingFileUploader(_fsManager, _remoteFilePath, _source, _window, _memoryAlignment, new RangeCallback(range[0]));
+            uploader.setRange(range[0], range[1]);
+            uploader.setClosesSourceUponFinishing(false); // we might still need the source to fall back to a full upload
+            if (_verifiesUploadedRanges)
+            {
+                uploader.setVerifiesUploadedRange();
+            }
+
+            if (_usesPreEncodedFrames)
+            {
+                uploader.setUsesPreEncodedFrames();
+            }
+
+            _currentUploader = uploader;
+            if (_isPaused)
+            {
+                uploader.pause();
+            }
+        }
+
+        uploader.uploadAsync();
+    }
+
+    private void fallBackToFullUpload(@NonNull final String reason)
+    {
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            _nextRangeIndex = 0;
+            _bytesOfCompletedRanges = 0;
+            _rangesToUpload.clear();
+            _rangesToUpload.add(new long[]{0, _totalLength});
+            _bytesToUpload = _totalLength;
+        }
+
+        _listener.onFallingBackToFullUpload(reason);
+
+        startNextRange();
+    }
+
+    private void fail(@NonNull final McuMgrException exception)
+    {
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            _isFinished = true;
+        }
+
+        tryCloseSource();
+        _callback.onUploadFailed(exception);
+    }
+
+    private void tryCloseSource()
+    {
+        try
+        {
+            _source.close();
+        }
+        catch (final Exception ignored)
+        {
+            // ignored
+        }
+    }
+
+    private final class RangeCallback implements UploadCallback
+    {
+        private final long _rangeStartOffset;
+
+        RangeCallback(final long rangeStartOffset)
+        {
+            _rangeStartOffset = rangeStartOffset;
+        }
+
+        @Override
+        public void onUploadProgressChanged(final int acknowledgedOffset, final int totalBytes, final long timestampInMs)
+        {
+            final long bytesSentSoFar;
+            final long bytesToUpload;
+            synchronized (_lock)
+            {
+                bytesToUpload = _bytesToUpload;
+                bytesSentSoFar = _bytesOfCompletedRanges + (acknowledgedOffset - _rangeStartOffset);
+            }
+
+            _callback.onUploadProgressChanged((int) bytesSentSoFar, (int) bytesToUpload, timestampInMs);
+        }
+
+        @Override
+        public void onUploadCompleted()
+        {
+            final boolean hasMoreRanges;
+            synchronized (_lock)
+            {
+                if (_isFinished)
+                    return;
+
+                final long[] completedRange = _rangesToUpload.get(_nextRangeIndex - 1);
+                _bytesOfCompletedRanges += completedRange[1] - completedRange[0];
+
+                hasMoreRanges = _nextRangeIndex < _rangesToUpload.size();
+                _isFinished = !hasMoreRanges;
+                _currentUploader = hasMoreRanges ? _currentUploader : null;
+            }
+
+            if (hasMoreRanges)
+            {
+                startNextRange();
+                return;
+            }
+
+            tryCloseSource();
+            _callback.onUploadCompleted();
+        }
+
+        @Override
+        public void onUploadFailed(@NonNull final McuMgrException error)
+        {
+            if (error instanceof RemoteOffsetOutOfRangeException && _rangeStartOffset > 0) // full uploads cannot go out of range in the first place
+            {
+                fallBackToFullUpload(error.getMessage());
+                return;
+            }
+
+            fail(error);
+        }
+
+        @Override
+        public void onUploadCanceled()
+        {
+            // we report our own cancellation in cancel()
+        }
+    }
+}
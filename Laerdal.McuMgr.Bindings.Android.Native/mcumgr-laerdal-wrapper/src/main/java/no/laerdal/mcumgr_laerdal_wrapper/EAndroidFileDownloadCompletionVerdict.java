@@ -0,0 +1,17 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+public enum EAndroidFileDownloadCompletionVerdict //this must mirror the enum values of E[Android|iOS]FileDownloadCompletionVerdict
+{
+    DOWNLOADED(0), //                             the downloaded data were not verified against the remote file
+    DOWNLOADED__VERIFIED(1), //                   the hash calculated by the device over the downloaded range matches the local one
+    DOWNLOADED__VERIFIED_AFTER_REFETCHING(2), //  some blocks were found to be corrupt and were downloaded again before the hashes matched
+    FAILED__INTEGRITY_CHECK_MISMATCH(3); //       the hash calculated by the device over the downloaded range doesn't match the local one
+
+    @SuppressWarnings({"FieldCanBeLocal", "unused"})
+    private final int _value;
+
+    EAndroidFileDownloadCompletionVerdict(final int value)
+    {
+        _value = value;
+    }
+}
@@ -0,0 +1,18 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+public enum EAndroidFileUploadCompletionVerdict //this must mirror the enum values of E[Android|iOS]FileUploadCompletionVerdict
+{
+    UPLOADED(0),
+    SKIPPED__ALREADY_UP_TO_DATE(1), // the remote file was found to be identical to the local data so nothing was sent
+    PATCHED__ONLY_CHANGED_BLOCKS(2), // only the blocks that differed from the remote file were sent
+    APPENDED__ONLY_NEW_TAIL(3), //      only the bytes past the end of the remote file were sent
+    FAILED__INTEGRITY_CHECK_MISMATCH(4); // the hash calculated by the device over the uploaded data doesn't match the local one
+
+    @SuppressWarnings({"FieldCanBeLocal", "unused"})
+    private final int _value;
+
+    EAndroidFileUploadCompletionVerdict(final int value)
+    {
+        _value = value;
+    }
+}
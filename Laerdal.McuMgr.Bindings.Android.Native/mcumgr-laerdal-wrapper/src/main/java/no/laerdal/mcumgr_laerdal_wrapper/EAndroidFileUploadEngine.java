@@ -0,0 +1,15 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+public enum EAndroidFileUploadEngine //this must mirror the enum values of E[Android|iOS]FileUploadEngine
+{
+    AUTO(0), //     nordic's FileUploader for plain byte[] uploads and our own windowed engine for everything else
+    IN_HOUSE(1); // our own windowed engine for every upload with requests pre-encoded into recycled frames
+
+    @SuppressWarnings({"FieldCanBeLocal", "unused"})
+    private final int _value;
+
+    EAndroidFileUploadEngine(final int value)
+    {
+        _value = value;
+    }
+}
@@ -0,0 +1,53 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+class FileChannelFileDownloadSink extends AndroidFileDownloadSink
+{
+    final FileChannel _fileChannel;
+
+    FileChannelFileDownloadSink(@NonNull final FileChannel fileChannel)
+    {
+        _fileChannel = fileChannel;
+    }
+
+    @Override
+    void onTotalLengthKnown(final long totalLength) throws IOException
+    {
+        if (_fileChannel.size() > totalLength)
+        {
+            _fileChannel.truncate(totalLength); // leftovers from a previous (longer) version of the file
+        }
+    }
+
+    @Override
+    void write(final long offset, @NonNull final byte[] data, final int dataOffset, final int length) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.wrap(data, dataOffset, length);
+        for (long position = offset; buffer.hasRemaining(); )
+        {
+            position += _fileChannel.write(buffer, position); //00
+        }
+
+        //00   positional writes go straight to the os   there is no buffering on our side so the bytes survive the death of the process
+    }
+
+    @Override
+    void truncate(final long length) throws IOException
+    {
+        if (_fileChannel.size() > length)
+        {
+            _fileChannel.truncate(length);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _fileChannel.close();
+    }
+}
@@ -0,0 +1,91 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Calculates both the sha256 and the crc32 of a stream of bytes in a single pass. Devices support either of the two as their
+ * fs-hash-checksum algorithm (depending on how their firmware was built) so we always keep both at hand.
+ */
+final class FileContentDigester
+{
+    private static final int READ_BUFFER_LENGTH = 64 * 1024;
+
+    private final CRC32 _crc32 = new CRC32();
+    private final MessageDigest _sha256;
+
+    private byte[] _sha256Result;
+
+    FileContentDigester()
+    {
+        try
+        {
+            _sha256 = MessageDigest.getInstance("SHA-256");
+        }
+        catch (final NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException("SHA-256 is not supported on this device", ex); //should be impossible on android
+        }
+    }
+
+    void update(@NonNull final byte[] data, final int offset, final int length)
+    {
+        _crc32.update(data, offset, length);
+        _sha256.update(data, offset, length);
+    }
+
+    /**
+     * Finalizes the sha256 calculation - no more updates can be applied afterwards.
+     */
+    byte[] getSha256()
+    {
+        if (_sha256Result == null)
+        {
+            _sha256Result = _sha256.digest();
+        }
+
+        return _sha256Result;
+    }
+
+    long getCrc32()
+    {
+        return _crc32.getValue();
+    }
+
+    static String toHexString(@NonNull final byte[] bytes)
+    {
+        final StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes)
+        {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Reads through the given range of the source to digest it. Only meant to be used on sources that can be read repeatedly.
+     */
+    static FileContentDigester digest(@NonNull final AndroidFileUploadSource source, final long offset, final long length) throws IOException
+    {
+        final FileContentDigester digester = new FileContentDigester();
+
+        final long endOffset = offset + length;
+        final byte[] buffer = new byte[(int) Math.min(READ_BUFFER_LENGTH, Math.max(1, length))];
+        for (long currentOffset = offset; currentOffset < endOffset; )
+        {
+            final int bytesRead = source.read(currentOffset, buffer, 0, (int) Math.min(buffer.length, endOffset - currentOffset));
+            if (bytesRead <= 0)
+                throw new IOException("Failed to read the data at offset " + currentOffset + " while digesting");
+
+            digester.update(buffer, 0, bytesRead);
+            currentOffset += bytesRead;
+        }
+
+        return digester;
+    }
+}
@@ -0,0 +1,300 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.managers.FsManager;
+import io.runtime.mcumgr.transfer.DownloadCallback;
+import io.runtime.mcumgr.transfer.TransferController;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Downloads a series of files back-to-back over the same file-system-manager. As soon as the request for the last chunk of file N has been
+ * handed over to the transport the request for the first chunk of file N+1 goes out too, so there is no idle gap while the final response of
+ * file N is still in flight.
+ * <p>
+ * The aggregate progress (over the bytes of all files) is reported through the given DownloadCallback while the per-file milestones (along with
+ * the data of each file) are reported through the Listener. The device reports the size of each file only once its download has started so the
+ * aggregate total is an estimate until the last file has been kicked off - the files that haven't started yet are assumed to be as big as the
+ * average of the ones that have.
+ */
+final class FileDownloadBatch implements TransferController
+{
+    interface Listener
+    {
+        void onFileDownloadStarted(final int fileIndex);
+
+        void onFileDownloadProgressChanged(final int fileIndex, final int bytesReceivedSoFar, final int totalBytes);
+
+        void onFileDownloadCompleted(final int fileIndex, @NonNull final byte[] data);
+    }
+
+    private final Object _lock = new Object();
+
+    private final FsManager _fsManager;
+    private final String[] _remoteFilePaths;
+
+    private final Listener _listener;
+    private final DownloadCallback _aggregateCallback;
+
+    private final long[] _totalBytesPerFile; //    -1 until the device reports the size of the file
+    private final long[] _bytesReceivedPerFile;
+    private final boolean[] _isCompletedPerFile;
+    private final StreamingFileDownloader[] _downloaders;
+
+    private int _nextFileIndex;
+    private int _filesCompleted;
+    private boolean _isPaused;
+    private boolean _isFinished;
+
+    private int _maxRequestsInFlight = 1;
+    private StreamingFileDownloader.PipeliningListener _pipeliningListener;
+
+    FileDownloadBatch(
+            @NonNull final FsManager fsManager,
+            @NonNull final String[] remoteFilePaths,
+            @NonNull final DownloadCallback aggregateCallback,
+            @NonNull final Listener listener
+    )
+    {
+        _listener = listener;
+        _fsManager = fsManager;
+        _remoteFilePaths = remoteFilePaths;
+        _aggregateCallback = aggregateCallback;
+
+        _downloaders = new StreamingFileDownloader[remoteFilePaths.length];
+        _totalBytesPerFile = new long[remoteFilePaths.length];
+        _bytesReceivedPerFile = new long[remoteFilePaths.length];
+        _isCompletedPerFile = new boolean[remoteFilePaths.length];
+
+        Arrays.fill(_totalBytesPerFile, -1);
+    }
+
+    /**
+     * Makes each file get downloaded with several requests in flight (see StreamingFileDownloader.setPipelining()). Once a device has been found to
+     * choke on concurrent requests the remaining files get downloaded one request at a time.
+     */
+    void setPipelining(final int maxRequestsInFlight, @NonNull final StreamingFileDownloader.PipeliningListener listener)
+    {
+        _maxRequestsInFlight = maxRequestsInFlight;
+        _pipeliningListener = isSupported -> {
+            if (!isSupported)
+            {
+                synchronized (_lock)
+                {
+                    _maxRequestsInFlight = 1;
+                }
+            }
+
+            listener.onPipeliningSupportDetected(isSupported);
+        };
+    }
+
+    TransferController downloadAsync()
+    {
+        if (_remoteFilePaths.length == 0)
+        {
+            _aggregateCallback.onDownloadCompleted(AndroidFileDownloadSink.NO_DATA);
+            return this;
+        }
+
+        startNextFile();
+        return this;
+    }
+
+    @Override
+    public void pause()
+    {
+        for (final StreamingFileDownloader downloader : snapshotActiveDownloaders(true))
+        {
+            downloader.pause();
+        }
+    }
+
+    @Override
+    public void resume()
+    {
+        for (final StreamingFileDownloader downloader : snapshotActiveDownloaders(false))
+        {
+            downloader.resume();
+        }
+    }
+
+    @Override
+    public void cancel()
+    {
+        final List<StreamingFileDownloader> downloaders;
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            _isFinished = true;
+            downloaders = snapshotActiveDownloadersImpl();
+        }
+
+        for (final StreamingFileDownloader downloader : downloaders)
+        {
+            downloader.cancel();
+        }
+
+        _aggregateCallback.onDownloadCanceled();
+    }
+
+    private List<StreamingFileDownloader> snapshotActiveDownloaders(final boolean isPaused)
+    {
+        synchronized (_lock)
+        {
+            _isPaused = isPaused;
+            return snapshotActiveDownloadersImpl();
+        }
+    }
+
+    private List<StreamingFileDownloader> snapshotActiveDownloadersImpl() // the files that have been kicked off but have not been fully received yet
+    {
+        final List<StreamingFileDownloader> activeDownloaders = new ArrayList<>(2);
+        for (int i = 0; i < _nextFileIndex; i++)
+        {
+            if (!_isCompletedPerFile[i])
+            {
+                activeDownloaders.add(_downloaders[i]);
+            }
+        }
+
+        return activeDownloaders;
+    }
+
+    private void startNextFile()
+    {
+        final int fileIndex;
+        final StreamingFileDownloader downloader;
+        synchronized (_lock)
+        {
+            if (_isFinished || _nextFileIndex >= _remoteFilePaths.length)
+                return;
+
+            fileIndex = _nextFileIndex++;
+            downloader = new StreamingFileDownloader(
+                    _fsManager,
+                    _remoteFilePaths[fileIndex],
+                    new ByteArrayFileDownloadSink(),
+                    new FileCallback(fileIndex)
+            );
+            downloader.setOnLastChunkRequestedListener(this::startNextFile); //00
+            if (_maxRequestsInFlight > 1)
+            {
+                downloader.setPipelining(_maxRequestsInFlight, _pipeliningListener);
+            }
+
+            _downloaders[fileIndex] = downloader;
+            if (_isPaused)
+            {
+                downloader.pause();
+            }
+        }
+
+        _listener.onFileDownloadStarted(fileIndex);
+
+        try
+        {
+            downloader.downloadAsync();
+        }
+        catch (final Exception ex) // byte[] sinks never fail to prepare but just in case
+        {
+            downloader.abort(new McuMgrException("[FDB.SNF.010] Failed to commence the download of '" + _remoteFilePaths[fileIndex] + "'", ex));
+        }
+
+        //00   this is what keeps the link busy across file boundaries
+    }
+
+    private final class FileCallback implements DownloadCallback
+    {
+        private final int _fileIndex;
+
+        FileCallback(final int fileIndex)
+        {
+            _fileIndex = fileIndex;
+        }
+
+        @Override
+        public void onDownloadProgressChanged(final int bytesReceivedSoFar, final int totalBytes, final long timestampInMs)
+        {
+            long aggregateBytesReceivedSoFar = 0;
+            long aggregateTotalBytesKnownSoFar = 0;
+            int filesOfKnownSize = 0;
+            synchronized (_lock)
+            {
+                _totalBytesPerFile[_fileIndex] = totalBytes;
+                _bytesReceivedPerFile[_fileIndex] = bytesReceivedSoFar;
+
+                for (int i = 0; i < _remoteFilePaths.length; i++)
+                {
+                    aggregateBytesReceivedSoFar += _bytesReceivedPerFile[i];
+                    if (_totalBytesPerFile[i] >= 0)
+                    {
+                        filesOfKnownSize++;
+                        aggregateTotalBytesKnownSoFar += _totalBytesPerFile[i];
+                    }
+                }
+            }
+
+            final long estimatedAggregateTotalBytes = aggregateTotalBytesKnownSoFar + (_remoteFilePaths.length - filesOfKnownSize) * (aggregateTotalBytesKnownSoFar / filesOfKnownSize);
+
+            _listener.onFileDownloadProgressChanged(_fileIndex, bytesReceivedSoFar, totalBytes);
+            _aggregateCallback.onDownloadProgressChanged((int) aggregateBytesReceivedSoFar, (int) Math.max(aggregateBytesReceivedSoFar, estimatedAggregateTotalBytes), timestampInMs);
+        }
+
+        @Override
+        public void onDownloadCompleted(final byte @NotNull [] data)
+        {
+            final boolean isBatchComplete;
+            synchronized (_lock)
+            {
+                _filesCompleted++;
+                _isCompletedPerFile[_fileIndex] = true;
+                isBatchComplete = _filesCompleted == _remoteFilePaths.length;
+                _isFinished = isBatchComplete;
+            }
+
+            _listener.onFileDownloadCompleted(_fileIndex, data);
+
+            if (isBatchComplete)
+            {
+                _aggregateCallback.onDownloadCompleted(AndroidFileDownloadSink.NO_DATA); // the data of each file have been handed over through the listener already
+                return;
+            }
+
+            startNextFile(); // in case the file was so small that it fit in a single chunk
+        }
+
+        @Override
+        public void onDownloadFailed(@NonNull final McuMgrException error)
+        {
+            final List<StreamingFileDownloader> otherDownloaders;
+            synchronized (_lock)
+            {
+                if (_isFinished)
+                    return;
+
+                _isFinished = true;
+                otherDownloaders = snapshotActiveDownloadersImpl();
+            }
+
+            for (final StreamingFileDownloader downloader : otherDownloaders)
+            {
+                downloader.cancel(); // no-op for the downloader that just failed
+            }
+
+            _aggregateCallback.onDownloadFailed(new McuMgrException("[FDB.FC.ODF.010] Failed to download '" + _remoteFilePaths[_fileIndex] + "'", error));
+        }
+
+        @Override
+        public void onDownloadCanceled()
+        {
+            // the batch reports its own cancellation in cancel() or as a consequence of a failure
+        }
+    }
+}
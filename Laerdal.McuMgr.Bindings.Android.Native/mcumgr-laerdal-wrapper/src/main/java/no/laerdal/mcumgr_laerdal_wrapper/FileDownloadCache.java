@@ -0,0 +1,264 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk cache of downloaded files keyed by the hash of their contents (as reported by the device through the fs-hash-checksum command) so that
+ * a file that hasn't changed since the last time it was downloaded - from the same device or from any other device - can be served straight from
+ * the disk after a single round-trip instead of being transferred all over again.
+ * <p>
+ * Each entry is a plain file in the cache directory. The least recently used entries get evicted once the entries add up to more than the size
+ * budget. The last-modified timestamp of each file doubles as its last-access timestamp so the LRU order survives the death of the process.
+ */
+final class FileDownloadCache
+{
+    private static final String DEFAULT_DIRECTORY_NAME = "mcumgr-download-cache";
+    private static final String ENTRY_FILE_EXTENSION = ".blob";
+
+    private static final ConcurrentHashMap<String, FileDownloadCache> CachesPerDirectory = new ConcurrentHashMap<>(); // one instance per directory so that the size-accounting is accurate
+
+    private final File _directory;
+    private final LinkedHashMap<String, Long> _entrySizesInLruOrder = new LinkedHashMap<>(16, 0.75f, /*accessOrder*/ true); // file-name -> size
+
+    private long _totalSize;
+    private long _maxTotalSize;
+
+    private FileDownloadCache(@NonNull final File directory, final long maxTotalSize)
+    {
+        _directory = directory;
+        _maxTotalSize = maxTotalSize;
+    }
+
+    /**
+     * @param directory     the directory that holds the cached files - it gets created if it doesn't exist
+     * @param maxTotalSize  the size budget of the cache in bytes - the least recently used entries get evicted to stay within it
+     */
+    static FileDownloadCache open(@NonNull final File directory, final long maxTotalSize) throws IOException
+    {
+        final String directoryPath = directory.getAbsolutePath();
+
+        FileDownloadCache cache;
+        synchronized (CachesPerDirectory)
+        {
+            cache = CachesPerDirectory.get(directoryPath);
+            if (cache == null)
+            {
+                if (!directory.isDirectory() && !directory.mkdirs())
+                    throw new IOException("Failed to create the directory '" + directoryPath + "' of the download-cache");
+
+                cache = new FileDownloadCache(directory, maxTotalSize);
+                cache.load();
+
+                CachesPerDirectory.put(directoryPath, cache);
+            }
+        }
+
+        cache.setMaxTotalSize(maxTotalSize); // the budget of the most recent caller wins
+        return cache;
+    }
+
+    /**
+     * @return the directory inside the cache-directory of the app (so that the OS can reclaim the space when it runs low on storage)
+     */
+    static File getDefaultDirectory(@NonNull final Context context)
+    {
+        return new File(context.getCacheDir(), DEFAULT_DIRECTORY_NAME);
+    }
+
+    /**
+     * @return the cache-key for the remote file described by the given hash-response - or null if the response doesn't carry a usable hash
+     */
+    static Key createKey(@NonNull final McuMgrFsHelpers.FileHashResponse response, @NonNull final String remoteFilePath)
+    {
+        if (McuMgrFsHelpers.HASH_TYPE_SHA256.equals(response.type) && response.output instanceof byte[])
+            return new Key(response.type, (byte[]) response.output, 0, response.len, /*scope*/ ""); //00
+
+        if (McuMgrFsHelpers.HASH_TYPE_CRC32.equals(response.type) && response.output instanceof Number)
+            return new Key(response.type, null, ((Number) response.output).longValue(), response.len, remoteFilePath);
+
+        return null;
+
+        //00   sha256 is strong enough to identify the contents on its own so identical files on different paths and devices share the same entry
+        //     while crc32 is way too weak for that so we scope its entries to the remote-file-path on top of the size
+    }
+
+    synchronized void setMaxTotalSize(final long maxTotalSize)
+    {
+        _maxTotalSize = maxTotalSize;
+
+        evictIfNeeded();
+    }
+
+    /**
+     * @return the cached contents of the file with the given key - or null if there is no such entry
+     */
+    synchronized byte[] tryGet(@NonNull final Key key)
+    {
+        final String fileName = key.getFileName();
+        if (_entrySizesInLruOrder.get(fileName) == null) // also marks the entry as the most recently used one
+            return null;
+
+        final File file = new File(_directory, fileName);
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r"))
+        {
+            final byte[] data = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(data);
+
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis()); // persists the lru order
+
+            return data;
+        }
+        catch (final IOException ex) // the OS might have reclaimed the file behind our back
+        {
+            removeEntry(fileName);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the given contents under the given key - provided that they do match the key (the remote file might have changed between the hash-query
+     * and the download) and that they fit within the size budget. Failures are swallowed because the cache is merely an optimization.
+     */
+    synchronized void tryPut(@NonNull final Key key, @NonNull final byte[] data)
+    {
+        if (data.length > _maxTotalSize || !key.matches(data))
+            return;
+
+        final String fileName = key.getFileName();
+        final File file = new File(_directory, fileName);
+        final File temporaryFile = new File(_directory, fileName + ".tmp");
+        try
+        {
+            try (final FileOutputStream stream = new FileOutputStream(temporaryFile, /*append*/ false))
+            {
+                stream.write(data);
+            }
+
+            if (!temporaryFile.renameTo(file)) //00
+                throw new IOException("Failed to move the entry into place");
+        }
+        catch (final IOException ex)
+        {
+            //noinspection ResultOfMethodCallIgnored
+            temporaryFile.delete();
+            return;
+        }
+
+        removeEntry(fileName); // in case we are replacing an entry that got reclaimed by the OS
+        _entrySizesInLruOrder.put(fileName, (long) data.length);
+        _totalSize += data.length;
+
+        evictIfNeeded();
+
+        //00   so that a crash midway never leaves a truncated entry behind
+    }
+
+    private void load()
+    {
+        final File[] files = _directory.listFiles();
+        if (files == null)
+            return;
+
+        Arrays.sort(files, new Comparator<File>() // oldest first so that they end up at the eviction end of the lru order
+        {
+            @Override
+            public int compare(final File a, final File b)
+            {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        for (final File file : files)
+        {
+            if (!file.getName().endsWith(ENTRY_FILE_EXTENSION))
+            {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete(); // leftovers of a crash during tryPut()
+                continue;
+            }
+
+            _entrySizesInLruOrder.put(file.getName(), file.length());
+            _totalSize += file.length();
+        }
+
+        evictIfNeeded();
+    }
+
+    private void evictIfNeeded()
+    {
+        final Iterator<Map.Entry<String, Long>> iterator = _entrySizesInLruOrder.entrySet().iterator();
+        while (_totalSize > _maxTotalSize && iterator.hasNext())
+        {
+            final Map.Entry<String, Long> eldestEntry = iterator.next();
+
+            //noinspection ResultOfMethodCallIgnored
+            new File(_directory, eldestEntry.getKey()).delete();
+
+            _totalSize -= eldestEntry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private void removeEntry(@NonNull final String fileName)
+    {
+        final Long size = _entrySizesInLruOrder.remove(fileName);
+        if (size == null)
+            return;
+
+        _totalSize -= size;
+
+        //noinspection ResultOfMethodCallIgnored
+        new File(_directory, fileName).delete();
+    }
+
+    static final class Key
+    {
+        private final String _hashType;
+        private final byte[] _sha256; //  when the hash-type is sha256
+        private final long _crc32; //     when the hash-type is crc32
+        private final long _length;
+        private final String _scope;
+
+        private Key(@NonNull final String hashType, final byte[] sha256, final long crc32, final long length, @NonNull final String scope)
+        {
+            _scope = scope;
+            _crc32 = crc32;
+            _sha256 = sha256;
+            _length = length;
+            _hashType = hashType;
+        }
+
+        String getFileName()
+        {
+            final String digest = _sha256 != null ? FileContentDigester.toHexString(_sha256) : Long.toString(_crc32);
+
+            return TransferJournal.hashKey(_hashType + "|" + digest + "|" + _length + "|" + _scope) + ENTRY_FILE_EXTENSION;
+        }
+
+        boolean matches(@NonNull final byte[] data)
+        {
+            if (data.length != _length)
+                return false;
+
+            final FileContentDigester digester = new FileContentDigester();
+            digester.update(data, 0, data.length);
+
+            return _sha256 != null
+                    ? Arrays.equals(digester.getSha256(), _sha256)
+                    : digester.getCrc32() == _crc32;
+        }
+    }
+}
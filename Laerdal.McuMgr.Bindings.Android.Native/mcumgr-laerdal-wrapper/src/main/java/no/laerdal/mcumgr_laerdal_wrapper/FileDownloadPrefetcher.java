@@ -0,0 +1,232 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.managers.FsManager;
+import io.runtime.mcumgr.transfer.DownloadCallback;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+
+/**
+ * Downloads a list of well-known remote files in the background - one after the other and with a single request in flight - and keeps their contents
+ * in memory so that the first regular download of each of them can be served instantly. Files that fail to download are skipped and so are files that
+ * don't fit in the remaining size budget (their download gets abandoned as soon as the device reports their size).
+ * <p>
+ * The prefetcher is meant to run at a lower priority than regular downloads: its owner pauses it for as long as a regular download is in progress.
+ * Each prefetched file gets handed over at most once (see tryTake()) because the remote file might well change after it has been handed over.
+ */
+final class FileDownloadPrefetcher
+{
+    interface Listener
+    {
+        void onFilePrefetched(@NonNull final String remoteFilePath, final int length);
+
+        void onFilePrefetchSkipped(@NonNull final String remoteFilePath, @NonNull final String reason);
+    }
+
+    private final Object _lock = new Object();
+
+    private final FsManager _fsManager;
+    private final String[] _remoteFilePaths;
+    private final long _maxTotalSize;
+    private final Listener _listener;
+
+    private final HashMap<String, byte[]> _prefetchedFiles = new HashMap<>();
+    private long _totalSize;
+
+    private int _nextFileIndex;
+    private StreamingFileDownloader _currentDownloader; //  null when idle
+    private boolean _isPaused;
+    private boolean _isCancelled;
+
+    FileDownloadPrefetcher(@NonNull final FsManager fsManager, @NonNull final String[] remoteFilePaths, final long maxTotalSize, @NonNull final Listener listener)
+    {
+        _listener = listener;
+        _fsManager = fsManager;
+        _maxTotalSize = maxTotalSize;
+        _remoteFilePaths = remoteFilePaths;
+    }
+
+    void start()
+    {
+        startNextFile();
+    }
+
+    /**
+     * @return the prefetched contents of the given remote file - or null if the file hasn't been prefetched (yet) - the entry gets removed either way
+     */
+    byte[] tryTake(@NonNull final String remoteFilePath)
+    {
+        synchronized (_lock)
+        {
+            final byte[] data = _prefetchedFiles.remove(remoteFilePath);
+            if (data != null)
+            {
+                _totalSize -= data.length;
+            }
+
+            return data;
+        }
+    }
+
+    void pause()
+    {
+        final StreamingFileDownloader downloader;
+        synchronized (_lock)
+        {
+            _isPaused = true;
+            downloader = _currentDownloader;
+        }
+
+        if (downloader != null)
+        {
+            downloader.pause(); // the request in flight (if any) still completes
+        }
+    }
+
+    void resume()
+    {
+        final StreamingFileDownloader downloader;
+        synchronized (_lock)
+        {
+            if (!_isPaused)
+                return;
+
+            _isPaused = false;
+            downloader = _currentDownloader;
+        }
+
+        if (downloader == null) // we were paused in between files
+        {
+            startNextFile();
+            return;
+        }
+
+        downloader.resume();
+    }
+
+    void cancel()
+    {
+        final StreamingFileDownloader downloader;
+        synchronized (_lock)
+        {
+            _isCancelled = true;
+            downloader = _currentDownloader;
+
+            _prefetchedFiles.clear();
+            _totalSize = 0;
+        }
+
+        if (downloader != null)
+        {
+            downloader.cancel();
+        }
+    }
+
+    private void startNextFile()
+    {
+        final String remoteFilePath;
+        final StreamingFileDownloader downloader;
+        synchronized (_lock)
+        {
+            if (_isCancelled || _isPaused || _currentDownloader != null || _nextFileIndex >= _remoteFilePaths.length)
+                return;
+
+            remoteFilePath = _remoteFilePaths[_nextFileIndex++];
+            downloader = new StreamingFileDownloader(_fsManager, remoteFilePath, new ByteArrayFileDownloadSink(), new PrefetchCallback(remoteFilePath));
+
+            _currentDownloader = downloader;
+        }
+
+        try
+        {
+            downloader.downloadAsync();
+        }
+        catch (final Exception ex) // byte[] sinks never fail to prepare but just in case
+        {
+            downloader.abort(new McuMgrException("[FDP.SNF.010] Failed to commence prefetching '" + remoteFilePath + "'", ex));
+        }
+    }
+
+    private void onFileDone(@NonNull final String remoteFilePath, final byte[] data, final String skipReason)
+    {
+        synchronized (_lock)
+        {
+            _currentDownloader = null;
+            if (_isCancelled)
+                return;
+
+            if (data != null)
+            {
+                _prefetchedFiles.put(remoteFilePath, data);
+                _totalSize += data.length;
+            }
+        }
+
+        if (data != null)
+        {
+            _listener.onFilePrefetched(remoteFilePath, data.length);
+        }
+        else
+        {
+            _listener.onFilePrefetchSkipped(remoteFilePath, skipReason);
+        }
+
+        startNextFile();
+    }
+
+    private final class PrefetchCallback implements DownloadCallback
+    {
+        private final String _remoteFilePath;
+
+        private boolean _isTooBig;
+
+        PrefetchCallback(@NonNull final String remoteFilePath)
+        {
+            _remoteFilePath = remoteFilePath;
+        }
+
+        @Override
+        public void onDownloadProgressChanged(final int bytesReceivedSoFar, final int totalBytes, final long timestampInMs)
+        {
+            final StreamingFileDownloader downloader;
+            synchronized (_lock)
+            {
+                if (_isTooBig || totalBytes <= _maxTotalSize - _totalSize)
+                    return;
+
+                _isTooBig = true;
+                downloader = _currentDownloader;
+            }
+
+            if (downloader != null)
+            {
+                downloader.cancel(); // no point in transferring the rest of it
+            }
+        }
+
+        @Override
+        public void onDownloadCompleted(final byte @NotNull [] data)
+        {
+            synchronized (_lock) // files that fit in a single chunk complete before we get the chance to abandon them
+            {
+                _isTooBig |= data.length > _maxTotalSize - _totalSize;
+            }
+
+            onFileDone(_remoteFilePath, _isTooBig ? null : data, "it doesn't fit in the size budget of the prefetched files");
+        }
+
+        @Override
+        public void onDownloadFailed(@NonNull final McuMgrException error)
+        {
+            onFileDone(_remoteFilePath, null, error.getMessage());
+        }
+
+        @Override
+        public void onDownloadCanceled()
+        {
+            onFileDone(_remoteFilePath, null, _isTooBig ? "it doesn't fit in the size budget of the prefetched files" : "prefetching got cancelled");
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import io.runtime.mcumgr.exception.McuMgrException;
+
+/**
+ * Thrown when the hash that the device calculated over a range of a remote file doesn't match the hash of the local data
+ * (be it the data that got uploaded or the data that got downloaded).
+ */
+final class FileIntegrityCheckFailedException extends McuMgrException
+{
+    FileIntegrityCheckFailedException(final String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,316 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.managers.FsManager;
+import io.runtime.mcumgr.transfer.TransferController;
+import io.runtime.mcumgr.transfer.UploadCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Uploads a series of files back-to-back over the same file-system-manager. As soon as the last chunk of file N has been
+ * handed over to the transport the first chunks of file N+1 start flowing, so there is no idle gap while the final
+ * acknowledgements of file N are still in flight. All files share a single transfer-window so that the device never
+ * receives more packets than its SMP buffers can hold.
+ * <p>
+ * The aggregate progress (over the bytes of all files) is reported through the given UploadCallback while the per-file
+ * milestones are reported through the Listener.
+ */
+final class FileUploadBatch implements TransferController
+{
+    interface Listener
+    {
+        void onFileUploadStarted(final int fileIndex);
+
+        void onFileUploadProgressChanged(final int fileIndex, final int bytesSentSoFar, final int totalBytes);
+
+        void onFileUploadCompleted(final int fileIndex);
+    }
+
+    private final Object _lock = new Object();
+
+    private final FsManager _fsManager;
+    private final TransferWindow _window;
+    private final int _memoryAlignment;
+    private final String[] _remoteFilePaths;
+    private final AndroidFileUploadSource[] _sources;
+
+    private final Listener _listener;
+    private final UploadCallback _aggregateCallback;
+
+    private final long _totalBytes;
+    private final long[] _bytesSentPerFile;
+    private final boolean[] _isCompletedPerFile;
+    private final StreamingFileUploader[] _uploaders;
+
+    private int _nextFileIndex;
+    private int _filesCompleted;
+    private boolean _isPaused;
+    private boolean _isFinished;
+    private boolean _usesPreEncodedFrames;
+
+    FileUploadBatch(
+            @NonNull final FsManager fsManager,
+            @NonNull final String[] remoteFilePaths,
+            @NonNull final AndroidFileUploadSource[] sources,
+            @NonNull final TransferWindow window,
+            final int memoryAlignment,
+            @NonNull final UploadCallback aggregateCallback,
+            @NonNull final Listener listener
+    )
+    {
+        _sources = sources;
+        _listener = listener;
+        _fsManager = fsManager;
+        _remoteFilePaths = remoteFilePaths;
+        _memoryAlignment = memoryAlignment;
+        _aggregateCallback = aggregateCallback;
+
+        _window = window;
+        _uploaders = new StreamingFileUploader[sources.length];
+        _bytesSentPerFile = new long[sources.length];
+        _isCompletedPerFile = new boolean[sources.length];
+
+        long totalBytes = 0;
+        for (final AndroidFileUploadSource source : sources)
+        {
+            totalBytes += source.getLength();
+        }
+        _totalBytes = totalBytes;
+    }
+
+    /**
+     * Makes each file get uploaded through pre-encoded recycled frames (see StreamingFileUploader.setUsesPreEncodedFrames()).
+     */
+    void setUsesPreEncodedFrames()
+    {
+        _usesPreEncodedFrames = true;
+    }
+
+    TransferController uploadAsync()
+    {
+        if (_sources.length == 0)
+        {
+            _aggregateCallback.onUploadCompleted();
+            return this;
+        }
+
+        startNextFile();
+        return this;
+    }
+
+    @Override
+    public void pause()
+    {
+        for (final StreamingFileUploader uploader : snapshotActiveUploaders(true))
+        {
+            uploader.pause();
+        }
+    }
+
+    @Override
+    public void resume()
+    {
+        for (final StreamingFileUploader uploader : snapshotActiveUploaders(false))
+        {
+            uploader.resume();
+        }
+    }
+
+    @Override
+    public void cancel()
+    {
+        final List<StreamingFileUploader> uploaders;
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            _isFinished = true;
+            uploaders = snapshotActiveUploadersImpl();
+        }
+
+        for (final StreamingFileUploader uploader : uploaders)
+        {
+            uploader.cancel();
+        }
+
+        closeSourcesOfFilesNotStartedYet();
+        _aggregateCallback.onUploadCanceled();
+    }
+
+    private List<StreamingFileUploader> snapshotActiveUploaders(final boolean isPaused)
+    {
+        synchronized (_lock)
+        {
+            _isPaused = isPaused;
+            return snapshotActiveUploadersImpl();
+        }
+    }
+
+    private List<StreamingFileUploader> snapshotActiveUploadersImpl() // the files that have been kicked off but have not been fully acknowledged yet
+    {
+        final List<StreamingFileUploader> activeUploaders = new ArrayList<>(2);
+        for (int i = 0; i < _nextFileIndex; i++)
+        {
+            if (!_isCompletedPerFile[i])
+            {
+                activeUploaders.add(_uploaders[i]);
+            }
+        }
+
+        return activeUploaders;
+    }
+
+    private void startNextFile()
+    {
+        final int fileIndex;
+        final StreamingFileUploader uploader;
+        synchronized (_lock)
+        {
+            if (_isFinished || _nextFileIndex >= _sources.length)
+                return;
+
+            fileIndex = _nextFileIndex++;
+            uploader = new StreamingFileUploader(
+                    _fsManager,
+                    _remoteFilePaths[fileIndex],
+                    _sources[fileIndex],
+                    _window,
+                    _memoryAlignment,
+                    new FileCallback(fileIndex)
+            );
+            uploader.setOnAllChunksSentListener(this::startNextFile); //00
+            if (_usesPreEncodedFrames)
+            {
+                uploader.setUsesPreEncodedFrames();
+            }
+
+            _uploaders[fileIndex] = uploader;
+            if (_isPaused)
+            {
+                uploader.pause();
+            }
+        }
+
+        _listener.onFileUploadStarted(fileIndex);
+        uploader.uploadAsync();
+
+        //00   this is what keeps the pipeline full across file boundaries
+    }
+
+    private void pumpActiveUploaders() //00
+    {
+        final List<StreamingFileUploader> uploaders;
+        synchronized (_lock)
+        {
+            uploaders = snapshotActiveUploadersImpl();
+        }
+
+        for (final StreamingFileUploader uploader : uploaders)
+        {
+            uploader.pump();
+        }
+
+        //00   whenever any file frees up a slot in the shared window the other files might be able to send more packets
+    }
+
+    private void closeSourcesOfFilesNotStartedYet()
+    {
+        for (int i = _nextFileIndex; i < _sources.length; i++)
+        {
+            try
+            {
+                _sources[i].close();
+            }
+            catch (final Exception ignored)
+            {
+                // ignored
+            }
+        }
+    }
+
+    private final class FileCallback implements UploadCallback
+    {
+        private final int _fileIndex;
+
+        FileCallback(final int fileIndex)
+        {
+            _fileIndex = fileIndex;
+        }
+
+        @Override
+        public void onUploadProgressChanged(final int bytesSentSoFar, final int totalBytes, final long timestampInMs)
+        {
+            long aggregateBytesSentSoFar = 0;
+            synchronized (_lock)
+            {
+                _bytesSentPerFile[_fileIndex] = bytesSentSoFar;
+
+                for (final long bytesSent : _bytesSentPerFile)
+                {
+                    aggregateBytesSentSoFar += bytesSent;
+                }
+            }
+
+            _listener.onFileUploadProgressChanged(_fileIndex, bytesSentSoFar, totalBytes);
+            _aggregateCallback.onUploadProgressChanged((int) aggregateBytesSentSoFar, (int) _totalBytes, timestampInMs);
+
+            pumpActiveUploaders();
+        }
+
+        @Override
+        public void onUploadCompleted()
+        {
+            final boolean isBatchComplete;
+            synchronized (_lock)
+            {
+                _filesCompleted++;
+                _isCompletedPerFile[_fileIndex] = true;
+                isBatchComplete = _filesCompleted == _sources.length;
+                _isFinished = isBatchComplete;
+            }
+
+            _listener.onFileUploadCompleted(_fileIndex);
+
+            if (isBatchComplete)
+            {
+                _aggregateCallback.onUploadCompleted();
+                return;
+            }
+
+            startNextFile(); //   in case the file was so small that it got acknowledged before the next one was kicked off
+            pumpActiveUploaders();
+        }
+
+        @Override
+        public void onUploadFailed(@NonNull final McuMgrException error)
+        {
+            final List<StreamingFileUploader> otherUploaders;
+            synchronized (_lock)
+            {
+                if (_isFinished)
+                    return;
+
+                _isFinished = true;
+                otherUploaders = snapshotActiveUploadersImpl();
+            }
+
+            for (final StreamingFileUploader uploader : otherUploaders)
+            {
+                uploader.cancel(); // no-op for the uploader that just failed
+            }
+
+            closeSourcesOfFilesNotStartedYet();
+            _aggregateCallback.onUploadFailed(error);
+        }
+
+        @Override
+        public void onUploadCanceled()
+        {
+            // the batch reports its own cancellation in cancel() or as a consequence of a failure
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the last offset that the device has acknowledged for each (device, remote-file-path, content-hash) triplet so that an
+ * upload that got interrupted (pe because the ble-link dropped) can pick up where it left off instead of starting over from byte 0.
+ * <p>
+ * The content-hash is part of the key so that a checkpoint never gets applied to a different version of the file. The checkpoints live in memory
+ * unless a TransferJournal gets attached, in which case they also survive the death of the process.
+ */
+final class FileUploadCheckpoints
+{
+    private static final ConcurrentHashMap<String, Long> AcknowledgedOffsetsPerKey = new ConcurrentHashMap<>(); // survives across uploader instances
+
+    private static volatile TransferJournal Journal; // null unless the calling environment opted for crash-durable checkpoints
+
+    private FileUploadCheckpoints()
+    {
+    }
+
+    static String createKey(@NonNull final String deviceAddress, @NonNull final String remoteFilePath, @NonNull final byte[] contentSha256)
+    {
+        return deviceAddress + '|' + remoteFilePath + '|' + FileContentDigester.toHexString(contentSha256);
+    }
+
+    /**
+     * Makes the checkpoints get written through to the given journal from now on. The checkpoints that the journal holds from previous runs of the
+     * process become visible straight away.
+     */
+    static void attachJournal(@NonNull final TransferJournal journal)
+    {
+        Journal = journal;
+    }
+
+    static long getAcknowledgedOffset(@NonNull final String key)
+    {
+        final Long acknowledgedOffset = AcknowledgedOffsetsPerKey.get(key);
+        if (acknowledgedOffset != null)
+            return acknowledgedOffset;
+
+        final TransferJournal journal = Journal;
+        return journal == null ? 0 : journal.getAcknowledgedOffset(key); // the process might have died midway through the upload
+    }
+
+    static void update(@NonNull final String key, final long acknowledgedOffset, final long totalLength)
+    {
+        AcknowledgedOffsetsPerKey.put(key, acknowledgedOffset);
+
+        final TransferJournal journal = Journal;
+        if (journal != null)
+        {
+            journal.update(key, acknowledgedOffset, totalLength);
+        }
+    }
+
+    static void remove(@NonNull final String key)
+    {
+        AcknowledgedOffsetsPerKey.remove(key);
+
+        final TransferJournal journal = Journal;
+        if (journal != null)
+        {
+            journal.remove(key);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.dfu.mcuboot.model.ImageSet;
+import io.runtime.mcumgr.exception.McuMgrException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Turns firmware packages (either a raw image or a zip with a manifest and one or more images) into the ImageSet that nordic's firmware-upgrade-manager
+ * expects. Packages that live on the disk get read without loading the package as a whole into memory first: zips get inflated entry by entry straight
+ * into right-sized buffers while raw images get memory-mapped and copied exactly once into the byte[] that ImageSet insists on.
+ */
+final class FirmwarePackageReader
+{
+    private static final int ZIP_LOCAL_FILE_HEADER_SIGNATURE = 0x504B0304; // "PK\3\4"
+
+    private FirmwarePackageReader()
+    {
+    }
+
+    /**
+     * The images of a package along with the names of the zip-entries they came from (null for packages that are a raw image).
+     */
+    static final class Contents
+    {
+        final ImageSet images;
+        final String[] zipEntryNames;
+
+        private Contents(@NonNull final ImageSet images, final String[] zipEntryNames)
+        {
+            this.images = images;
+            this.zipEntryNames = zipEntryNames;
+        }
+    }
+
+    static ImageSet readImages(@NonNull final byte[] data) throws IOException, McuMgrException
+    {
+        return readContents(data).images;
+    }
+
+    static Contents readContents(@NonNull final byte[] data) throws IOException, McuMgrException
+    {
+        try
+        {
+            return new Contents(new ImageSet().add(data), null); //the method healthchecks the bytes itself internally so we dont have to do it ourselves here manually
+        }
+        catch (final Exception ex)
+        {
+            return fromZipPackage(new ZipPackage(data)); //the method healthchecks the bytes itself internally so we dont have to do it ourselves here manually
+        }
+    }
+
+    static ImageSet readImages(@NonNull final File file) throws IOException, McuMgrException
+    {
+        final AndroidFirmwarePackageIndex index = AndroidFirmwarePackageIndex.getOpenInstance();
+
+        return readContents(file, index == null ? null : index.tryDescribe(file)).images;
+    }
+
+    /**
+     * @param knownDescription  the description of the package as found in the AndroidFirmwarePackageIndex (if any) - it spares us the manifest
+     */
+    static Contents readContents(@NonNull final File file, final AndroidFirmwarePackageDescription knownDescription) throws IOException, McuMgrException
+    {
+        if (knownDescription != null && knownDescription.isZipped())
+        {
+            final String[] zipEntryNames = new String[knownDescription.getImagesCount()];
+            for (int i = 0; i < zipEntryNames.length; i++)
+            {
+                zipEntryNames[i] = knownDescription.getImageZipEntryName(i);
+            }
+
+            return new Contents(new ImageSet().add(ZipPackage.readBinaries(file, knownDescription)), zipEntryNames);
+        }
+
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r"))
+        {
+            final FileChannel fileChannel = randomAccessFile.getChannel();
+            if (isZip(fileChannel))
+                return fromZipPackage(new ZipPackage(file)); // random access through the central directory beats streaming
+
+            return new Contents(new ImageSet().add(readRawImage(fileChannel)), null);
+        }
+    }
+
+    static ImageSet readImages(@NonNull final FileChannel fileChannel) throws IOException, McuMgrException
+    {
+        if (isZip(fileChannel))
+            return new ImageSet().add(new ZipPackage(fileChannel).getBinaries());
+
+        return new ImageSet().add(readRawImage(fileChannel));
+    }
+
+    private static Contents fromZipPackage(@NonNull final ZipPackage zipPackage) throws McuMgrException
+    {
+        return new Contents(new ImageSet().add(zipPackage.getBinaries()), zipPackage.getBinaryEntryNames().toArray(new String[0])); //00
+
+        //00   imageset keeps the order of the binaries so the entry-names line up with the images
+    }
+
+    private static boolean isZip(@NonNull final FileChannel fileChannel) throws IOException
+    {
+        final ByteBuffer signature = ByteBuffer.allocate(4);
+        while (signature.hasRemaining())
+        {
+            if (fileChannel.read(signature, signature.position()) < 0)
+                return false; // too short to be a zip   let the image-parser complain about it
+        }
+
+        return signature.getInt(0) == ZIP_LOCAL_FILE_HEADER_SIGNATURE;
+    }
+
+    private static byte[] readRawImage(@NonNull final FileChannel fileChannel) throws IOException
+    {
+        final long size = fileChannel.size();
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Images larger than 2GB are not supported");
+
+        final MappedByteBuffer mappedImage = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size); //00
+        final byte[] image = new byte[(int) size];
+        mappedImage.get(image);
+
+        return image;
+
+        //00   the bytes go from the page-cache straight into the final buffer without any intermediate copies or read() calls
+    }
+}
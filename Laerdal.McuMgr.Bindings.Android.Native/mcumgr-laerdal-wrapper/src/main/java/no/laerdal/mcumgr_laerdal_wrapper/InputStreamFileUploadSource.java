@@ -0,0 +1,127 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+final class InputStreamFileUploadSource extends AndroidFileUploadSource
+{
+    private final long _length;
+    private final InputStream _inputStream;
+
+    private byte[] _retained = new byte[0]; // the bytes that have been read from the stream but have not been acknowledged by the device yet
+    private long _retainedStartOffset; //      stream-offset of _retained[0]
+    private int _retainedCount;
+    private long _bytesToSkip; //             bytes of the stream that precede _retainedStartOffset but have not been consumed yet
+
+    InputStreamFileUploadSource(@NonNull final InputStream inputStream, final long length)
+    {
+        _length = length;
+        _inputStream = inputStream;
+    }
+
+    @Override
+    public long getLength()
+    {
+        return _length;
+    }
+
+    @Override
+    synchronized int read(final long offset, @NonNull final byte[] buffer, final int bufferOffset, final int length) throws IOException
+    {
+        if (offset < _retainedStartOffset) //00
+            throw new IOException("Cannot rewind the input-stream to offset " + offset + " because the bytes before offset " + _retainedStartOffset + " have already been released");
+
+        final int count = (int) Math.min(length, _length - offset);
+        if (count <= 0)
+            return 0;
+
+        skipPendingBytes();
+
+        final int requiredRetainedCount = (int) (offset - _retainedStartOffset) + count;
+        ensureRetainedCapacity(requiredRetainedCount);
+
+        while (_retainedCount < requiredRetainedCount) //10
+        {
+            final int bytesRead = _inputStream.read(_retained, _retainedCount, _retained.length - _retainedCount);
+            if (bytesRead < 0)
+                throw new EOFException("The input-stream ended at offset " + (_retainedStartOffset + _retainedCount) + " even though it was supposed to provide " + _length + " bytes");
+
+            _retainedCount += bytesRead;
+        }
+
+        System.arraycopy(_retained, (int) (offset - _retainedStartOffset), buffer, bufferOffset, count);
+        return count;
+
+        //00   offsets get rewound only when the device asks us to retransmit something that is still in flight so this should never happen
+        //
+        //10   we only ever read as far as we need to   the retained bytes are thus bounded by the amount of bytes that are in flight
+    }
+
+    @Override
+    boolean canBeReadRepeatedly()
+    {
+        return false;
+    }
+
+    @Override
+    synchronized void releaseUpTo(final long offset)
+    {
+        final long retainedEndOffset = _retainedStartOffset + _retainedCount;
+        if (offset > retainedEndOffset) //00
+        {
+            _bytesToSkip += offset - retainedEndOffset;
+            _retainedCount = 0;
+            _retainedStartOffset = offset;
+            return;
+        }
+
+        final int releasableCount = (int) (offset - _retainedStartOffset);
+        if (releasableCount <= 0)
+            return;
+
+        System.arraycopy(_retained, releasableCount, _retained, 0, _retainedCount - releasableCount);
+
+        _retainedCount -= releasableCount;
+        _retainedStartOffset += releasableCount;
+
+        //00   uploads that start midway (pe appends) release everything before their start-offset before reading anything at all
+    }
+
+    private void skipPendingBytes() throws IOException
+    {
+        while (_bytesToSkip > 0)
+        {
+            final long bytesSkipped = _inputStream.skip(_bytesToSkip);
+            if (bytesSkipped > 0)
+            {
+                _bytesToSkip -= bytesSkipped;
+                continue;
+            }
+
+            if (_inputStream.read() < 0) // skip() is allowed to return zero even if the stream hasn't ended
+                throw new EOFException("The input-stream ended while skipping to offset " + _retainedStartOffset + " even though it was supposed to provide " + _length + " bytes");
+
+            _bytesToSkip--;
+        }
+    }
+
+    private void ensureRetainedCapacity(final int requiredCapacity)
+    {
+        if (_retained.length >= requiredCapacity)
+            return;
+
+        final byte[] newRetained = new byte[Math.max(requiredCapacity, _retained.length * 2)];
+        System.arraycopy(_retained, 0, newRetained, 0, _retainedCount);
+
+        _retained = newRetained;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _inputStream.close();
+    }
+}
@@ -2,8 +2,10 @@ package no.laerdal.mcumgr_laerdal_wrapper;
 
 import io.runtime.mcumgr.McuMgrErrorCode;
 import io.runtime.mcumgr.exception.McuMgrErrorException;
+import io.runtime.mcumgr.exception.McuMgrException;
 import io.runtime.mcumgr.exception.McuMgrTimeoutException;
 import io.runtime.mcumgr.response.HasReturnCode;
+import io.runtime.mcumgr.response.McuMgrResponse;
 
 import java.util.Objects;
 
@@ -33,6 +35,15 @@ final class McuMgrExceptionHelpers {
         return String.format("[McuMgrErrorCode: %s] [GroupReturnCode: %s] %s", mcumgrErrorCode, groupReturnCode, errorMessage);
     }
 
+    // used by our own transfer-engines which talk to the managers directly and thus receive the raw (unsuccessful) responses
+    public static McuMgrException CreateErrorExceptionFromResponse(final McuMgrResponse response) {
+        final HasReturnCode.GroupReturnCode groupReturnCode = response.getGroupReturnCode();
+
+        return groupReturnCode != null
+                ? new McuMgrErrorException(groupReturnCode) //   smp v2
+                : new McuMgrErrorException(response.getReturnCode()); //smp v1
+    }
+
     // this method must be kept aligned between our ios lib and our android lib
     public static int DeduceGlobalErrorCodeFromException(final Exception exception, final boolean isConnectedNow) {
         if (exception instanceof McuMgrErrorException) {
@@ -0,0 +1,188 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrManager;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.managers.FsManager;
+import io.runtime.mcumgr.response.McuMgrResponse;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Thin wrappers over the fs-group commands that FsManager does not expose in a way that our own transfer-engines can use.
+ */
+final class McuMgrFsHelpers
+{
+    static final int SMP_FS_FILE_COMMAND_ID = 0; //        aka FsManager.ID_FILE which is private
+    static final int SMP_FS_STATUS_COMMAND_ID = 1; //      aka FsManager.ID_STATUS which is private
+    static final int SMP_FS_HASH_COMMAND_ID = 2; //        aka FsManager.ID_HASH_CHECKSUM which is private
+    static final String HASH_TYPE_SHA256 = "sha256";
+    static final String HASH_TYPE_CRC32 = "crc32";
+    static final long QUERY_TIMEOUT_IN_MS = 10_000;
+
+    private McuMgrFsHelpers()
+    {
+    }
+
+    /**
+     * Asks the device for the size of the given remote file. Devices respond with an error (typically ENOENT) if the file does not exist.
+     */
+    static void queryFileStatus(@NonNull final FsManager fsManager, @NonNull final String remoteFilePath, @NonNull final McuMgrCallback<FileStatusResponse> callback)
+    {
+        final HashMap<String, Object> payload = new HashMap<>();
+        payload.put("name", remoteFilePath);
+
+        fsManager.send(McuMgrManager.OP_READ, SMP_FS_STATUS_COMMAND_ID, payload, QUERY_TIMEOUT_IN_MS, FileStatusResponse.class, callback);
+    }
+
+    /**
+     * Asks the device to hash the given range of the remote file with the given algorithm (see HASH_TYPE_*).
+     *
+     * @param length the length of the range - or -1 to hash everything up to the end of the file
+     */
+    static void queryFileHash(
+            @NonNull final FsManager fsManager,
+            @NonNull final String remoteFilePath,
+            @NonNull final String hashType,
+            final long offset,
+            final long length,
+            @NonNull final McuMgrCallback<FileHashResponse> callback
+    )
+    {
+        final HashMap<String, Object> payload = new HashMap<>();
+        payload.put("name", remoteFilePath);
+        payload.put("type", hashType);
+        payload.put("off", offset);
+        if (length >= 0)
+        {
+            payload.put("len", length);
+        }
+
+        fsManager.send(McuMgrManager.OP_READ, SMP_FS_HASH_COMMAND_ID, payload, QUERY_TIMEOUT_IN_MS, FileHashResponse.class, callback);
+    }
+
+    /**
+     * Checks whether the given range of the remote file holds the exact same bytes as the ones that were digested locally. The sha256 is tried first
+     * and if the device doesn't support it we fall back to crc32 (which one is available depends on how the firmware of the device was built).
+     */
+    static void compareRemoteFileRange(
+            @NonNull final FsManager fsManager,
+            @NonNull final String remoteFilePath,
+            final long offset,
+            final long length,
+            @NonNull final FileContentDigester localDigests,
+            @NonNull final RangeComparisonCallback callback
+    )
+    {
+        queryFileHash(fsManager, remoteFilePath, HASH_TYPE_SHA256, offset, length, new McuMgrCallback<FileHashResponse>()
+        {
+            @Override
+            public void onResponse(@NonNull final FileHashResponse response)
+            {
+                if (response.isSuccess())
+                {
+                    callback.onCompared(response.output instanceof byte[] && Arrays.equals((byte[]) response.output, localDigests.getSha256()));
+                    return;
+                }
+
+                compareRemoteFileRangeViaCrc32(fsManager, remoteFilePath, offset, length, localDigests, callback);
+            }
+
+            @Override
+            public void onError(@NonNull final McuMgrException exception)
+            {
+                callback.onFailed(exception);
+            }
+        });
+    }
+
+    /**
+     * Asks the device to hash the entire remote file - with sha256 if the device supports it and with crc32 otherwise. The response tells which one
+     * was used (FileHashResponse.type) and how many bytes got hashed (FileHashResponse.len) which is the size of the file.
+     */
+    static void queryWholeFileHash(@NonNull final FsManager fsManager, @NonNull final String remoteFilePath, @NonNull final McuMgrCallback<FileHashResponse> callback)
+    {
+        queryFileHash(fsManager, remoteFilePath, HASH_TYPE_SHA256, /*offset*/ 0, /*length*/ -1, new McuMgrCallback<FileHashResponse>()
+        {
+            @Override
+            public void onResponse(@NonNull final FileHashResponse response)
+            {
+                if (response.isSuccess())
+                {
+                    callback.onResponse(response);
+                    return;
+                }
+
+                queryFileHash(fsManager, remoteFilePath, HASH_TYPE_CRC32, /*offset*/ 0, /*length*/ -1, callback);
+            }
+
+            @Override
+            public void onError(@NonNull final McuMgrException exception)
+            {
+                callback.onError(exception);
+            }
+        });
+    }
+
+    private static void compareRemoteFileRangeViaCrc32(
+            @NonNull final FsManager fsManager,
+            @NonNull final String remoteFilePath,
+            final long offset,
+            final long length,
+            @NonNull final FileContentDigester localDigests,
+            @NonNull final RangeComparisonCallback callback
+    )
+    {
+        queryFileHash(fsManager, remoteFilePath, HASH_TYPE_CRC32, offset, length, new McuMgrCallback<FileHashResponse>()
+        {
+            @Override
+            public void onResponse(@NonNull final FileHashResponse response)
+            {
+                if (!response.isSuccess())
+                {
+                    callback.onFailed(McuMgrExceptionHelpers.CreateErrorExceptionFromResponse(response));
+                    return;
+                }
+
+                callback.onCompared(response.output instanceof Number && ((Number) response.output).longValue() == localDigests.getCrc32());
+            }
+
+            @Override
+            public void onError(@NonNull final McuMgrException exception)
+            {
+                callback.onFailed(exception);
+            }
+        });
+    }
+
+    interface RangeComparisonCallback
+    {
+        void onCompared(final boolean isIdentical);
+
+        void onFailed(@NonNull final McuMgrException exception);
+    }
+
+    public static final class FileStatusResponse extends McuMgrResponse
+    {
+        @JsonProperty("len")
+        public long len;
+    }
+
+    public static final class FileHashResponse extends McuMgrResponse
+    {
+        @JsonProperty("type")
+        public String type;
+
+        @JsonProperty("off")
+        public long off;
+
+        @JsonProperty("len")
+        public long len;
+
+        @JsonProperty("output")
+        public Object output; //   byte-string for sha256 and unsigned-int for crc32
+    }
+}
@@ -0,0 +1,63 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+final class MemoryMappedFileDownloadSink extends AndroidFileDownloadSink
+{
+    private final FileChannel _fileChannel;
+
+    private MappedByteBuffer _mappedBuffer; // null until the size of the remote file becomes known
+
+    MemoryMappedFileDownloadSink(@NonNull final FileChannel fileChannel)
+    {
+        _fileChannel = fileChannel;
+    }
+
+    @Override
+    void onTotalLengthKnown(final long totalLength) throws IOException
+    {
+        if (totalLength > Integer.MAX_VALUE)
+            throw new IOException("Files larger than 2GB cannot be downloaded into memory-mapped files");
+
+        if (_fileChannel.size() > totalLength)
+        {
+            _fileChannel.truncate(totalLength);
+        }
+
+        _mappedBuffer = _fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, totalLength); // grows the file to the given size if need be
+    }
+
+    @Override
+    void write(final long offset, @NonNull final byte[] data, final int dataOffset, final int length) throws IOException
+    {
+        if (_mappedBuffer == null)
+            throw new IOException("The size of the remote file is not known yet");
+
+        synchronized (_mappedBuffer) //position() + put() is not atomic
+        {
+            _mappedBuffer.position((int) offset);
+            _mappedBuffer.put(data, dataOffset, length);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            if (_mappedBuffer != null)
+            {
+                _mappedBuffer.force(); // flushes the dirty pages to the disk
+            }
+        }
+        finally
+        {
+            _fileChannel.close();
+        }
+    }
+}
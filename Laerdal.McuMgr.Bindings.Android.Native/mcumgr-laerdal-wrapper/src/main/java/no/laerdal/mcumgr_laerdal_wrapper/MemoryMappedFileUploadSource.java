@@ -0,0 +1,73 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+final class MemoryMappedFileUploadSource extends AndroidFileUploadSource
+{
+    private final long _length;
+    private final Closeable _owner; //  the parcel-file-descriptor (if any) that the channel originates from
+    private final FileChannel _fileChannel;
+    private final MappedByteBuffer _mappedBuffer;
+
+    MemoryMappedFileUploadSource(@NonNull final FileChannel fileChannel) throws IOException
+    {
+        this(fileChannel, null);
+    }
+
+    MemoryMappedFileUploadSource(@NonNull final FileChannel fileChannel, final Closeable owner) throws IOException
+    {
+        _owner = owner;
+        _length = fileChannel.size();
+        _fileChannel = fileChannel;
+
+        if (_length > Integer.MAX_VALUE)
+            throw new IOException("Files larger than 2GB cannot be uploaded");
+
+        _mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, _length); //00
+
+        //00   the pages get faulted in lazily by the os as we read through them and they live outside the java-heap
+    }
+
+    @Override
+    public long getLength()
+    {
+        return _length;
+    }
+
+    @Override
+    int read(final long offset, @NonNull final byte[] buffer, final int bufferOffset, final int length)
+    {
+        final int count = (int) Math.min(length, _length - offset);
+        if (count <= 0)
+            return 0;
+
+        synchronized (_mappedBuffer) //position() + get() is not atomic
+        {
+            _mappedBuffer.position((int) offset);
+            _mappedBuffer.get(buffer, bufferOffset, count);
+        }
+
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            _fileChannel.close();
+        }
+        finally
+        {
+            if (_owner != null)
+            {
+                _owner.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+final class OutputStreamFileDownloadSink extends AndroidFileDownloadSink
+{
+    private final OutputStream _outputStream;
+
+    private long _bytesWritten;
+
+    OutputStreamFileDownloadSink(@NonNull final OutputStream outputStream)
+    {
+        _outputStream = outputStream;
+    }
+
+    @Override
+    void write(final long offset, @NonNull final byte[] data, final int dataOffset, final int length) throws IOException
+    {
+        if (offset != _bytesWritten)
+            throw new IOException("Output-streams can only be written sequentially (expected offset " + _bytesWritten + " but got " + offset + ")");
+
+        _outputStream.write(data, dataOffset, length);
+        _bytesWritten += length;
+    }
+
+    @Override
+    void truncate(final long length) throws IOException
+    {
+        if (length != _bytesWritten)
+            throw new IOException("Output-streams cannot be rewound (" + _bytesWritten + " bytes have been written so far)");
+    }
+
+    @Override
+    boolean supportsRewrites()
+    {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _outputStream.close(); // flushes too
+    }
+}
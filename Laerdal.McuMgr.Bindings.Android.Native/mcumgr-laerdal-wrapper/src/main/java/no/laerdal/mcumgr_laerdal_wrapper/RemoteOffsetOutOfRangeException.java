@@ -0,0 +1,15 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import io.runtime.mcumgr.exception.McuMgrException;
+
+/**
+ * Thrown when the device asks for an offset that lies outside the range being uploaded. Continuing from such an offset would either rewrite bytes
+ * that are not ours to rewrite (offset zero truncates the remote file) or leave a gap behind, so the range upload cannot go on as it is.
+ */
+final class RemoteOffsetOutOfRangeException extends McuMgrException
+{
+    RemoteOffsetOutOfRangeException(final String message)
+    {
+        super(message);
+    }
+}
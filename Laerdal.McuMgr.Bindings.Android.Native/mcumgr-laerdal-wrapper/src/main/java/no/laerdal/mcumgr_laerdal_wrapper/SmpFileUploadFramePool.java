@@ -0,0 +1,157 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.McuMgrTransport;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Encodes fs-upload requests (SMP header + CBOR map) straight into byte[] frames that get recycled once the device has responded,
+ * so that a steady-state upload allocates no frames at all. The 'data' entry is always encoded last which means that the bytes of
+ * each chunk sit right before the closing break-byte of their frame and can be read from the upload-source directly into it (no
+ * intermediate copies).
+ * <p>
+ * The map is encoded as an indefinite-length one (0xBF ... 0xFF) with the smallest possible integer encodings, which is exactly what
+ * the jackson-based encoder of the managers produces, so the device gets to see byte-for-byte the same requests either way.
+ */
+final class SmpFileUploadFramePool
+{
+    private static final int SMP_HEADER_LENGTH = 8;
+    private static final int SMP_OP_WRITE = 2;
+    private static final int SMP_GROUP_FS = 8;
+
+    private static final int CBOR_MAJOR_TYPE_UNSIGNED = 0;
+    private static final int CBOR_MAJOR_TYPE_BYTES = 2;
+    private static final int CBOR_MAJOR_TYPE_TEXT = 3;
+    private static final int CBOR_INDEFINITE_LENGTH_MAP = 0xBF;
+    private static final int CBOR_BREAK = 0xFF;
+
+    private static final byte[] KEY_NAME = encodeText("name");
+    private static final byte[] KEY_OFF = encodeText("off");
+    private static final byte[] KEY_LEN = encodeText("len");
+    private static final byte[] KEY_DATA = encodeText("data");
+
+    private final int _maxPooledFrames;
+    private final McuMgrTransport _transport;
+    private final byte[] _encodedRemoteFilePath;
+    private final ArrayDeque<byte[]> _pooledFrames = new ArrayDeque<>();
+
+    /**
+     * @param transport the transport the frames get sent over - their sequence-numbers get reserved from the counter of that transport (see SmpSequenceNumbers)
+     */
+    SmpFileUploadFramePool(@NonNull final McuMgrTransport transport, @NonNull final String remoteFilePath, final int maxPooledFrames)
+    {
+        _transport = transport;
+        _maxPooledFrames = Math.max(1, maxPooledFrames);
+        _encodedRemoteFilePath = encodeText(remoteFilePath);
+    }
+
+    /**
+     * @return a frame whose header and CBOR have already been filled in - the 'dataLength' bytes starting at {@link #getDataOffset} are reserved for the data of the chunk
+     */
+    synchronized byte[] acquire(final long offset, final int dataLength, final long totalLength)
+    {
+        final boolean includesTotalLength = offset == 0; //the very first packet must announce the total file-size
+        final int cborLength = 1
+                + KEY_NAME.length + _encodedRemoteFilePath.length
+                + KEY_OFF.length + calculateHeaderLength(offset)
+                + (includesTotalLength ? KEY_LEN.length + calculateHeaderLength(totalLength) : 0)
+                + KEY_DATA.length + calculateHeaderLength(dataLength) + dataLength
+                + 1; // break
+
+        final int frameLength = SMP_HEADER_LENGTH + cborLength;
+
+        byte[] frame = _pooledFrames.pollFirst();
+        if (frame == null || frame.length != frameLength) //00
+        {
+            frame = new byte[frameLength];
+        }
+
+        int position = 0;
+        frame[position++] = (byte) SMP_OP_WRITE; //                 version 0 (legacy smp) which is understood by all firmwares
+        frame[position++] = 0; //                                   flags
+        frame[position++] = (byte) (cborLength >> 8);
+        frame[position++] = (byte) cborLength;
+        frame[position++] = (byte) (SMP_GROUP_FS >> 8);
+        frame[position++] = (byte) SMP_GROUP_FS;
+        frame[position++] = (byte) SmpSequenceNumbers.reserve(_transport);
+        frame[position++] = (byte) McuMgrFsHelpers.SMP_FS_FILE_COMMAND_ID;
+
+        frame[position++] = (byte) CBOR_INDEFINITE_LENGTH_MAP;
+        position = writeBytes(frame, position, KEY_NAME);
+        position = writeBytes(frame, position, _encodedRemoteFilePath);
+        position = writeBytes(frame, position, KEY_OFF);
+        position = writeHeader(frame, position, CBOR_MAJOR_TYPE_UNSIGNED, offset);
+        if (includesTotalLength)
+        {
+            position = writeBytes(frame, position, KEY_LEN);
+            position = writeHeader(frame, position, CBOR_MAJOR_TYPE_UNSIGNED, totalLength);
+        }
+        position = writeBytes(frame, position, KEY_DATA);
+        writeHeader(frame, position, CBOR_MAJOR_TYPE_BYTES, dataLength);
+        frame[frameLength - 1] = (byte) CBOR_BREAK;
+
+        return frame;
+
+        //00   all full-sized chunks share the same frame-length except for the very few times the offset needs an extra byte to get encoded
+        //     so a mismatch is rare and the stale frame simply gets garbage collected
+    }
+
+    /**
+     * @return the position inside the given frame (as handed out by {@link #acquire}) where the data of the chunk go
+     */
+    static int getDataOffset(@NonNull final byte[] frame, final int dataLength)
+    {
+        return frame.length - 1 - dataLength; // right before the break
+    }
+
+    synchronized void release(@NonNull final byte[] frame)
+    {
+        if (_pooledFrames.size() >= _maxPooledFrames)
+            return;
+
+        _pooledFrames.addLast(frame);
+    }
+
+    private static int writeBytes(@NonNull final byte[] frame, final int position, @NonNull final byte[] bytes)
+    {
+        System.arraycopy(bytes, 0, frame, position, bytes.length);
+        return position + bytes.length;
+    }
+
+    private static int writeHeader(@NonNull final byte[] frame, int position, final int majorType, final long value)
+    {
+        final int initialByte = majorType << 5;
+        if (value < 24)
+        {
+            frame[position++] = (byte) (initialByte | value);
+            return position;
+        }
+
+        final int extraBytesCount = value <= 0xFF ? 1 : value <= 0xFFFF ? 2 : value <= 0xFFFFFFFFL ? 4 : 8;
+        frame[position++] = (byte) (initialByte | (extraBytesCount == 1 ? 24 : extraBytesCount == 2 ? 25 : extraBytesCount == 4 ? 26 : 27));
+        for (int i = extraBytesCount - 1; i >= 0; i--)
+        {
+            frame[position++] = (byte) (value >>> (i * 8));
+        }
+
+        return position;
+    }
+
+    private static int calculateHeaderLength(final long value)
+    {
+        return value < 24 ? 1 : value <= 0xFF ? 2 : value <= 0xFFFF ? 3 : value <= 0xFFFFFFFFL ? 5 : 9;
+    }
+
+    private static byte[] encodeText(@NonNull final String text)
+    {
+        final byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        final byte[] encoded = new byte[calculateHeaderLength(utf8.length) + utf8.length];
+
+        final int position = writeHeader(encoded, 0, CBOR_MAJOR_TYPE_TEXT, utf8.length);
+        System.arraycopy(utf8, 0, encoded, position, utf8.length);
+
+        return encoded;
+    }
+}
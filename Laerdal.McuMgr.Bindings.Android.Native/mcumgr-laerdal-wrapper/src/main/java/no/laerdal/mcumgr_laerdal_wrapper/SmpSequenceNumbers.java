@@ -0,0 +1,40 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.McuMgrTransport;
+
+import java.util.WeakHashMap;
+
+/**
+ * Hands out the sequence-numbers of the SMP frames that we encode ourselves (see SmpFileUploadFramePool). The transport matches the responses to the
+ * requests through their sequence-numbers so the numbers must be unique among all the requests that are in flight over the same transport at any given
+ * time. Nordic's managers don't let us reserve numbers from the counter they use for the requests they encode themselves, so all our frame-pools draw
+ * from a single counter per transport instead - frames of different uploaders that share a connection (pe the overlapping files of a FileUploadBatch)
+ * thus never clash with each other.
+ * <p>
+ * Requests that the managers encode themselves (pe hash or status queries) must not be in flight while pre-encoded frames are: uploaders issue them only
+ * before sending their first frame or after their last frame has been acknowledged.
+ */
+final class SmpSequenceNumbers
+{
+    private static final WeakHashMap<McuMgrTransport, int[]> LastSequenceNumbersPerTransport = new WeakHashMap<>(); // guarded by the class
+
+    private SmpSequenceNumbers()
+    {
+    }
+
+    static synchronized int reserve(@NonNull final McuMgrTransport transport)
+    {
+        int[] lastSequenceNumber = LastSequenceNumbersPerTransport.get(transport);
+        if (lastSequenceNumber == null)
+        {
+            lastSequenceNumber = new int[]{(int) (System.nanoTime() & 0xFF)}; //00
+            LastSequenceNumbersPerTransport.put(transport, lastSequenceNumber);
+        }
+
+        lastSequenceNumber[0] = (lastSequenceNumber[0] + 1) & 0xFF;
+        return lastSequenceNumber[0];
+
+        //00   a random starting point rather than zero lowers the odds of clashing with the numbers of the requests that the managers encode
+    }
+}
@@ -0,0 +1,40 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * The sink of journaled downloads that the calling environment didn't provide a sink for. The chunks land in a spool-file next to the journal
+ * so that they survive the death of the process and the whole file gets read back upon completion to be handed over as a byte[].
+ */
+final class SpoolFileDownloadSink extends FileChannelFileDownloadSink
+{
+    SpoolFileDownloadSink(@NonNull final File spoolFile) throws IOException
+    {
+        super(new RandomAccessFile(spoolFile, "rw").getChannel());
+    }
+
+    @Override
+    byte[] getDataToHandOverUponCompletion() throws IOException
+    {
+        final long length = _fileChannel.size();
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Files larger than 2GB cannot be handed over as a byte[]");
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        for (long position = 0; buffer.hasRemaining(); )
+        {
+            final int bytesRead = _fileChannel.read(buffer, position);
+            if (bytesRead < 0)
+                throw new IOException("The spool-file got truncated while reading it back");
+
+            position += bytesRead;
+        }
+
+        return buffer.array();
+    }
+}
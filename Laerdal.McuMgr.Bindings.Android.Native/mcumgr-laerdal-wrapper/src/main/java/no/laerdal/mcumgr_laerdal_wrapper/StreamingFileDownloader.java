@@ -0,0 +1,900 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.exception.McuMgrTimeoutException;
+import io.runtime.mcumgr.managers.FsManager;
+import io.runtime.mcumgr.response.fs.McuMgrFsDownloadResponse;
+import io.runtime.mcumgr.transfer.DownloadCallback;
+import io.runtime.mcumgr.transfer.TransferController;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * File-downloader that writes each received chunk straight into an AndroidFileDownloadSink instead of accumulating the chunks in memory like
+ * io.runtime.mcumgr.transfer.FileDownloader does. It speaks the exact same SMP file-read protocol (fs-group, command-id 0) and unlike nordic's
+ * downloader it can start from an offset other than zero - which is what makes resuming interrupted downloads possible.
+ * <p>
+ * By default there is a single request in flight at any given time (stop-and-wait). When pipelining is enabled the requests for the next few
+ * offsets go out without waiting for the responses of the preceding ones (the device fills each response up to the mtu so the chunks are all
+ * of the same size and the offsets are predictable). Whether the device copes with that gets detected on the fly: if the very first batch of
+ * concurrent requests is met with timeouts or errors we fall back to stop-and-wait for good and re-request whatever was lost. Responses that
+ * arrive out of order get parked until the ones before them have landed so the sink always receives the chunks strictly in order.
+ * <p>
+ * Whatever the sink hands over upon completion (see AndroidFileDownloadSink.getDataToHandOverUponCompletion()) gets passed on through
+ * DownloadCallback.onDownloadCompleted() once the last chunk has landed. The sink gets closed once the download is over one way or another.
+ * <p>
+ * When verification is enabled the chunks get digested as they land in the sink and once the last one has landed the device gets asked to hash the
+ * downloaded range of the remote file - the download completes only if the two hashes match. On top of that each block of the range gets digested
+ * on its own so that on a mismatch we can pinpoint the corrupt blocks (one hash-query per block) and fetch only those anew.
+ */
+final class StreamingFileDownloader implements TransferController
+{
+    interface PipeliningListener
+    {
+        void onPipeliningSupportDetected(final boolean isSupported);
+    }
+
+    interface VerificationListener
+    {
+        void onCorruptBlockRefetched(final long startOffset, final long endOffset);
+    }
+
+    private static final int MAX_RETRIES_PER_OFFSET = 3;
+    private static final int MAX_REFETCHES_PER_BLOCK = 2;
+    private static final int MIN_VERIFICATION_BLOCK_LENGTH = 16 * 1024;
+    private static final int MAX_VERIFICATION_BLOCKS = 64; // caps the hash-queries it takes to pinpoint the corrupt blocks
+
+    private final Object _lock = new Object();
+
+    private final FsManager _fsManager;
+    private final String _remoteFilePath;
+    private final AndroidFileDownloadSink _sink;
+    private final DownloadCallback _callback;
+
+    private boolean _isSinkClosed;
+    private long _totalLength = -1; //  unknown until the device reports it in the response to the request for offset zero
+    private long _endOffset = -1; //    exclusive   -1 means the end of the remote file
+    private long _sinkBaseOffset; //    the offset of the remote file that corresponds to the very first byte of the sink (progress is relative to it too)
+    private long _nextOffset; //        the offset of the next byte to land in the sink
+    private long _nextOffsetToRequest;
+    private int _chunkLength; //        learned from the first response   zero until then
+    private int _retriesForCurrentOffset;
+
+    private final TreeSet<Long> _requestedOffsetsInFlight = new TreeSet<>();
+    private final TreeMap<Long, byte[]> _responsesAheadOfTime = new TreeMap<>(); // the ones that arrived before the responses of the preceding offsets
+
+    private int _maxRequestsInFlight = 1;
+    private int _requestsInFlightCapacity = 1;
+    private int _responsesSinceCapacityIncrease;
+    private Boolean _isPipeliningSupported; // null until detected
+    private PipeliningListener _pipeliningListener;
+
+    private boolean _isVerifying;
+    private boolean _isRefetchingCorruptBlocks;
+    private VerificationListener _verificationListener;
+    private long _verificationStartOffset; //               the first offset that gets actually transferred   the bytes before it were in the sink already
+    private int _verificationBlockLength;
+    private FileContentDigester _rangeDigester; //          null until the first chunk lands
+    private final List<FileContentDigester> _blockDigesters = new ArrayList<>();
+    private StreamingFileDownloader _blockRefetcher; //     non-null while a corrupt block is being fetched anew
+
+    private Runnable _onLastChunkRequested;
+    private boolean _isLastChunkRequestedNotified;
+
+    private boolean _isPaused;
+    private boolean _isFinished; //     completed, failed or cancelled
+
+    StreamingFileDownloader(
+            @NonNull final FsManager fsManager,
+            @NonNull final String remoteFilePath,
+            @NonNull final AndroidFileDownloadSink sink,
+            @NonNull final DownloadCallback callback
+    )
+    {
+        _sink = sink;
+        _callback = callback;
+        _fsManager = fsManager;
+        _remoteFilePath = remoteFilePath;
+
+        _sink.setOnDecongestedListener(this::pump);
+    }
+
+    /**
+     * @param onLastChunkRequested gets invoked (once) as soon as the request for the last chunk has been handed over to the transport - its response
+     *                             is still pending at that point (downloads of files that fit in a single chunk never invoke it because the size of
+     *                             the file is unknown until the response to the very first request arrives)
+     */
+    void setOnLastChunkRequestedListener(final Runnable onLastChunkRequested)
+    {
+        _onLastChunkRequested = onLastChunkRequested;
+    }
+
+    /**
+     * Lets up to the given amount of requests be in flight at the same time. The download starts off probing the device with two concurrent requests
+     * and it grows the amount of requests in flight by one for every full window of responses from there on. Must be called before downloadAsync().
+     *
+     * @param maxRequestsInFlight the upper bound of concurrent requests - one means stop-and-wait
+     * @param listener            gets informed (once) about whether the device copes with concurrent requests or not
+     */
+    void setPipelining(final int maxRequestsInFlight, final PipeliningListener listener)
+    {
+        synchronized (_lock)
+        {
+            _pipeliningListener = listener;
+            _maxRequestsInFlight = Math.max(1, maxRequestsInFlight);
+            _requestsInFlightCapacity = Math.min(2, _maxRequestsInFlight);
+        }
+    }
+
+    /**
+     * Makes the download continue from the given offset. The bytes before that offset are assumed to be in the sink already and to be
+     * identical to the ones of the remote file. Must be called before downloadAsync().
+     *
+     * @param startOffset the offset to resume from
+     * @param totalLength the size of the remote file (the device reports it only in the response to the request for offset zero)
+     */
+    void setStartOffset(final long startOffset, final long totalLength)
+    {
+        if (startOffset < 0 || startOffset > totalLength)
+            throw new IllegalArgumentException("The start-offset " + startOffset + " is out of bounds for a file of " + totalLength + " bytes");
+
+        synchronized (_lock)
+        {
+            _nextOffset = startOffset;
+            _totalLength = totalLength;
+        }
+    }
+
+    /**
+     * Makes the download fetch only the given range of the remote file. The sink receives the bytes of the range starting at its own offset zero
+     * and the progress gets reported relative to the range as well. Must be called before downloadAsync().
+     *
+     * @param startOffset the offset to start from
+     * @param endOffset   the offset to stop at (exclusive) - it gets clamped to the size of the remote file and -1 means the end of the remote file
+     * @param totalLength the size of the remote file - it can be -1 (unknown) only if the range starts at offset zero because the device reports it
+     *                    only in the response to the request for offset zero
+     */
+    void setRange(final long startOffset, final long endOffset, final long totalLength)
+    {
+        if (startOffset < 0 || (endOffset >= 0 && endOffset < startOffset) || (totalLength < 0 && startOffset > 0) || (totalLength >= 0 && startOffset > totalLength))
+            throw new IllegalArgumentException("The range [" + startOffset + ", " + endOffset + ") is out of bounds for a file of " + totalLength + " bytes");
+
+        synchronized (_lock)
+        {
+            _endOffset = endOffset;
+            _nextOffset = startOffset;
+            _totalLength = totalLength;
+            _sinkBaseOffset = startOffset;
+        }
+    }
+
+    /**
+     * Makes the download verify the bytes it transfers against the hash of the remote file before completing - on a mismatch the download fails with a
+     * FileIntegrityCheckFailedException unless the corrupt blocks can be fetched anew. Must be called before downloadAsync().
+     *
+     * @param isRefetchingCorruptBlocks whether to fetch the corrupt blocks anew (only possible with sinks that support rewrites) or to fail straight away
+     * @param listener                  gets informed about each corrupt block that got fetched anew successfully
+     */
+    void setVerifiesDownloadedRange(final boolean isRefetchingCorruptBlocks, final VerificationListener listener)
+    {
+        synchronized (_lock)
+        {
+            _isVerifying = true;
+            _verificationListener = listener;
+            _isRefetchingCorruptBlocks = isRefetchingCorruptBlocks;
+        }
+    }
+
+    TransferController downloadAsync() throws IOException
+    {
+        final boolean isAlreadyComplete;
+        synchronized (_lock)
+        {
+            try
+            {
+                _sink.truncate(_nextOffset - _sinkBaseOffset); // anything beyond the start-offset is unaccounted for
+                if (_totalLength >= 0)
+                {
+                    _sink.onTotalLengthKnown(getEffectiveEndOffset() - _sinkBaseOffset);
+                }
+            }
+            catch (final IOException ex)
+            {
+                tryCloseSink();
+                throw ex;
+            }
+
+            _nextOffsetToRequest = _nextOffset;
+            _verificationStartOffset = _nextOffset;
+            isAlreadyComplete = _totalLength >= 0 && _nextOffset >= getEffectiveEndOffset(); // pe resuming a file that got fully downloaded the last time around
+        }
+
+        if (isAlreadyComplete)
+        {
+            complete();
+            return this;
+        }
+
+        pump();
+        return this;
+    }
+
+    @Override
+    public void pause()
+    {
+        final StreamingFileDownloader blockRefetcher;
+        synchronized (_lock)
+        {
+            _isPaused = true;
+            blockRefetcher = _blockRefetcher;
+        }
+
+        if (blockRefetcher != null)
+        {
+            blockRefetcher.pause();
+        }
+    }
+
+    @Override
+    public void resume()
+    {
+        final StreamingFileDownloader blockRefetcher;
+        synchronized (_lock)
+        {
+            _isPaused = false;
+            blockRefetcher = _blockRefetcher;
+        }
+
+        if (blockRefetcher != null)
+        {
+            blockRefetcher.resume();
+        }
+
+        pump(); // the responses that arrived while we were paused didn't trigger any new requests
+    }
+
+    @Override
+    public void cancel()
+    {
+        final StreamingFileDownloader blockRefetcher;
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            _isFinished = true;
+            blockRefetcher = _blockRefetcher;
+        }
+
+        if (blockRefetcher != null)
+        {
+            blockRefetcher.cancel(); // before closing the sink that it writes into
+        }
+
+        synchronized (_lock)
+        {
+            tryCloseSink();
+        }
+
+        _callback.onDownloadCanceled();
+    }
+
+    private void pump()
+    {
+        final List<Long> offsetsToRequest = new ArrayList<>(2);
+        Runnable onLastChunkRequested = null;
+        synchronized (_lock)
+        {
+            if (_isFinished || _isPaused || _sink.isCongested()) //00
+                return;
+
+            final boolean areOffsetsPredictable = _chunkLength > 0 && _totalLength >= 0; // until the first response arrives we can only ask for one chunk
+            final int capacity = areOffsetsPredictable ? _requestsInFlightCapacity : 1;
+            final long endOffset = _totalLength >= 0 ? getEffectiveEndOffset() : Long.MAX_VALUE;
+            while (_requestedOffsetsInFlight.size() < capacity && _nextOffsetToRequest < endOffset)
+            {
+                final long offset = _nextOffsetToRequest;
+
+                offsetsToRequest.add(offset);
+                _requestedOffsetsInFlight.add(offset);
+                if (!areOffsetsPredictable)
+                    break;
+
+                _nextOffsetToRequest += _chunkLength;
+                if (_nextOffsetToRequest >= endOffset && !_isLastChunkRequestedNotified)
+                {
+                    _isLastChunkRequestedNotified = true;
+                    onLastChunkRequested = _onLastChunkRequested;
+                }
+            }
+        }
+
+        for (final long offset : offsetsToRequest)
+        {
+            _fsManager.download(_remoteFilePath, (int) offset, new McuMgrCallback<McuMgrFsDownloadResponse>()
+            {
+                @Override
+                public void onResponse(@NonNull final McuMgrFsDownloadResponse response)
+                {
+                    onChunkReceived(offset, response);
+                }
+
+                @Override
+                public void onError(@NonNull final McuMgrException exception)
+                {
+                    onChunkFailed(offset, exception);
+                }
+            });
+        }
+
+        if (onLastChunkRequested != null)
+        {
+            onLastChunkRequested.run();
+        }
+
+        //00   backpressure   the sink calls us back once it has caught up
+    }
+
+    private void onChunkReceived(final long requestedOffset, @NonNull final McuMgrFsDownloadResponse response)
+    {
+        final long nextOffset;
+        final long endOffset;
+        final long sinkBaseOffset;
+        final boolean hasProgressed;
+        Boolean detectedPipeliningSupport = null;
+        McuMgrException failure = null;
+        synchronized (_lock)
+        {
+            if (_isFinished || !_requestedOffsetsInFlight.remove(requestedOffset)) //00
+                return;
+
+            final boolean isProbingPipelining = _isPipeliningSupported == null && !_requestedOffsetsInFlight.isEmpty();
+            final int dataLength = response.data == null ? 0 : response.data.length;
+            final boolean isTotalLengthNewlyKnown = response.isSuccess() && requestedOffset == 0 && _totalLength < 0;
+            if (response.isSuccess() && requestedOffset == 0)
+            {
+                _totalLength = response.len;
+            }
+
+            final long previousNextOffset = _nextOffset;
+            if (response.isSuccess() && response.off == requestedOffset && _totalLength >= 0 && (dataLength > 0 || requestedOffset >= _totalLength))
+            {
+                if (isProbingPipelining) // a valid response while other requests were in flight
+                {
+                    _isPipeliningSupported = true;
+                    detectedPipeliningSupport = true;
+                }
+
+                try
+                {
+                    if (isTotalLengthNewlyKnown)
+                    {
+                        _sink.onTotalLengthKnown(getEffectiveEndOffset() - _sinkBaseOffset);
+                    }
+
+                    onValidChunkReceivedImpl(requestedOffset, response.data == null ? AndroidFileDownloadSink.NO_DATA : response.data);
+                }
+                catch (final IOException ex)
+                {
+                    failure = new McuMgrException("[SFD.OCR.020] Failed to write the received chunk into the sink", ex);
+                }
+            }
+            else if (isProbingPipelining) //10
+            {
+                _isPipeliningSupported = false;
+                detectedPipeliningSupport = false;
+                fallBackToStopAndWaitImpl();
+            }
+            else if (!response.isSuccess())
+            {
+                failure = McuMgrExceptionHelpers.CreateErrorExceptionFromResponse(response);
+            }
+            else
+            {
+                failure = new McuMgrException("[SFD.OCR.010] The device responded with " + dataLength + " bytes at offset " + response.off + " to the request for offset " + requestedOffset + " of a file of " + _totalLength + " bytes");
+            }
+
+            hasProgressed = _nextOffset > previousNextOffset || (_totalLength >= 0 && _nextOffset >= getEffectiveEndOffset());
+            nextOffset = _nextOffset;
+            endOffset = getEffectiveEndOffset();
+            sinkBaseOffset = _sinkBaseOffset;
+        }
+
+        notifyPipeliningSupportDetected(detectedPipeliningSupport);
+
+        if (failure != null)
+        {
+            fail(failure);
+            return;
+        }
+
+        if (hasProgressed)
+        {
+            _callback.onDownloadProgressChanged((int) (nextOffset - sinkBaseOffset), (int) (endOffset - sinkBaseOffset), System.currentTimeMillis());
+        }
+
+        if (endOffset >= 0 && nextOffset >= endOffset)
+        {
+            complete();
+            return;
+        }
+
+        pump();
+
+        //00   responses to requests that we have given up on (see rewindImpl()) are of no use to us
+        //
+        //10   the device choked on the concurrent requests   some firmwares respond with an error (pe busy) while others mix up the offsets
+    }
+
+    private void onValidChunkReceivedImpl(final long requestedOffset, @NonNull final byte[] data) throws IOException // called while holding the lock
+    {
+        if (_chunkLength == 0)
+        {
+            _chunkLength = data.length;
+        }
+
+        _responsesAheadOfTime.put(requestedOffset, data);
+
+        final long endOffset = getEffectiveEndOffset();
+        while (_nextOffset < endOffset) // flushes whatever lines up with the bytes that have landed in the sink so far
+        {
+            final byte[] chunk = _responsesAheadOfTime.remove(_nextOffset);
+            if (chunk == null)
+                break;
+
+            final int usefulDataLength = (int) Math.min(chunk.length, endOffset - _nextOffset); // the last chunk of a range might go beyond it
+            _sink.write(_nextOffset - _sinkBaseOffset, chunk, 0, usefulDataLength);
+            digestImpl(_nextOffset, chunk, usefulDataLength);
+
+            _nextOffset += usefulDataLength;
+            _retriesForCurrentOffset = 0;
+
+            if (chunk.length < _chunkLength && _nextOffset < endOffset) //00
+            {
+                _chunkLength = chunk.length;
+            }
+        }
+
+        if (_nextOffset >= _nextOffsetToRequest) // stop-and-wait before the chunk-length was known
+        {
+            _nextOffsetToRequest = _nextOffset;
+        }
+        else if (!_requestedOffsetsInFlight.contains(_nextOffset) && !_responsesAheadOfTime.containsKey(_nextOffset))
+        {
+            rewindImpl(); // the requests that are in flight don't line up with the offset we need next
+        }
+
+        if (_isPipeliningSupported != null && _isPipeliningSupported && _requestsInFlightCapacity < _maxRequestsInFlight && ++_responsesSinceCapacityIncrease >= _requestsInFlightCapacity)
+        {
+            _requestsInFlightCapacity++;
+            _responsesSinceCapacityIncrease = 0;
+        }
+
+        //00   the device sent fewer bytes than usual in the middle of the file so the offsets we have requested past this chunk are off
+    }
+
+    private void onChunkFailed(final long requestedOffset, @NonNull final McuMgrException exception)
+    {
+        final boolean isFatal;
+        Boolean detectedPipeliningSupport = null;
+        synchronized (_lock)
+        {
+            if (_isFinished || !_requestedOffsetsInFlight.contains(requestedOffset))
+                return;
+
+            final boolean wasPipelining = _requestedOffsetsInFlight.size() > 1;
+            if (wasPipelining && _isPipeliningSupported == null) //00
+            {
+                isFatal = false;
+                _isPipeliningSupported = false;
+                detectedPipeliningSupport = false;
+                fallBackToStopAndWaitImpl();
+            }
+            else
+            {
+                isFatal = !(exception instanceof McuMgrTimeoutException) || _retriesForCurrentOffset >= MAX_RETRIES_PER_OFFSET;
+                _retriesForCurrentOffset++;
+
+                if (!isFatal)
+                {
+                    _requestsInFlightCapacity = Math.max(1, _requestsInFlightCapacity / 2); // the device is overwhelmed
+                    rewindImpl();
+                }
+            }
+        }
+
+        notifyPipeliningSupportDetected(detectedPipeliningSupport);
+
+        if (isFatal)
+        {
+            fail(exception);
+            return;
+        }
+
+        pump();
+
+        //00   the device either dropped the concurrent requests on the floor or the transport refused to queue them
+    }
+
+    private void digestImpl(final long offset, @NonNull final byte[] data, final int length) // called while holding the lock
+    {
+        if (!_isVerifying)
+            return;
+
+        if (_rangeDigester == null) // the size of the remote file is known by the time the first chunk lands
+        {
+            final long rangeLength = getEffectiveEndOffset() - _verificationStartOffset;
+
+            _rangeDigester = new FileContentDigester();
+            _verificationBlockLength = (int) Math.max(MIN_VERIFICATION_BLOCK_LENGTH, (rangeLength + MAX_VERIFICATION_BLOCKS - 1) / MAX_VERIFICATION_BLOCKS);
+        }
+
+        _rangeDigester.update(data, 0, length);
+        if (!_isRefetchingCorruptBlocks)
+            return;
+
+        for (int digestedLength = 0; digestedLength < length; ) // the chunks and the blocks don't line up so a chunk might straddle two blocks
+        {
+            final long currentOffset = offset + digestedLength;
+            final int blockIndex = (int) ((currentOffset - _verificationStartOffset) / _verificationBlockLength);
+            if (blockIndex == _blockDigesters.size())
+            {
+                _blockDigesters.add(new FileContentDigester());
+            }
+
+            final long blockEndOffset = _verificationStartOffset + (long) (blockIndex + 1) * _verificationBlockLength;
+            final int portionLength = (int) Math.min(length - digestedLength, blockEndOffset - currentOffset);
+
+            _blockDigesters.get(blockIndex).update(data, digestedLength, portionLength);
+            digestedLength += portionLength;
+        }
+    }
+
+    private void fallBackToStopAndWaitImpl() // called while holding the lock
+    {
+        _requestsInFlightCapacity = 1;
+        rewindImpl();
+    }
+
+    private void rewindImpl() // called while holding the lock
+    {
+        _requestedOffsetsInFlight.clear();
+        _responsesAheadOfTime.clear();
+        _nextOffsetToRequest = _nextOffset;
+        _responsesSinceCapacityIncrease = 0;
+    }
+
+    private void notifyPipeliningSupportDetected(final Boolean isSupported)
+    {
+        final PipeliningListener listener = _pipeliningListener;
+        if (isSupported == null || listener == null)
+            return;
+
+        listener.onPipeliningSupportDetected(isSupported);
+    }
+
+    private long getEffectiveEndOffset()
+    {
+        return _endOffset < 0 ? _totalLength : Math.min(_endOffset, _totalLength);
+    }
+
+    private void complete()
+    {
+        final long verificationStartOffset;
+        final long verificationEndOffset;
+        final FileContentDigester rangeDigester;
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            rangeDigester = _rangeDigester;
+            verificationStartOffset = _verificationStartOffset;
+            verificationEndOffset = getEffectiveEndOffset();
+        }
+
+        if (rangeDigester == null) //00
+        {
+            handOverDataAndFinish();
+            return;
+        }
+
+        McuMgrFsHelpers.compareRemoteFileRange(_fsManager, _remoteFilePath, verificationStartOffset, verificationEndOffset - verificationStartOffset, rangeDigester, new McuMgrFsHelpers.RangeComparisonCallback()
+        {
+            @Override
+            public void onCompared(final boolean isIdentical)
+            {
+                if (isIdentical)
+                {
+                    handOverDataAndFinish();
+                    return;
+                }
+
+                if (!_isRefetchingCorruptBlocks || !_sink.supportsRewrites())
+                {
+                    fail(new FileIntegrityCheckFailedException("[SFD.C.020] The hash of the range [" + verificationStartOffset + ", " + verificationEndOffset + ") of the remote file '" + _remoteFilePath + "' doesn't match the hash of the downloaded data"));
+                    return;
+                }
+
+                verifyBlocksFrom(0, /*haveBlocksBeenRefetched*/ false);
+            }
+
+            @Override
+            public void onFailed(@NonNull final McuMgrException exception)
+            {
+                fail(exception);
+            }
+        });
+
+        //00   either verification is off or nothing got transferred (devices typically refuse to hash empty ranges anyway)
+    }
+
+    private void verifyBlocksFrom(final int blockIndex, final boolean haveBlocksBeenRefetched)
+    {
+        final long blockStartOffset;
+        final long blockEndOffset;
+        final FileContentDigester blockDigester;
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            blockDigester = blockIndex < _blockDigesters.size() ? _blockDigesters.get(blockIndex) : null;
+            blockStartOffset = _verificationStartOffset + (long) blockIndex * _verificationBlockLength;
+            blockEndOffset = Math.min(blockStartOffset + _verificationBlockLength, getEffectiveEndOffset());
+        }
+
+        if (blockDigester == null) // all blocks have been checked
+        {
+            if (!haveBlocksBeenRefetched) //00
+            {
+                fail(new FileIntegrityCheckFailedException("[SFD.VBF.010] The hash of the remote file '" + _remoteFilePath + "' doesn't match the hash of the downloaded data even though the hashes of all of its blocks do"));
+                return;
+            }
+
+            handOverDataAndFinish();
+            return;
+        }
+
+        McuMgrFsHelpers.compareRemoteFileRange(_fsManager, _remoteFilePath, blockStartOffset, blockEndOffset - blockStartOffset, blockDigester, new McuMgrFsHelpers.RangeComparisonCallback()
+        {
+            @Override
+            public void onCompared(final boolean isIdentical)
+            {
+                if (isIdentical)
+                {
+                    verifyBlocksFrom(blockIndex + 1, haveBlocksBeenRefetched);
+                    return;
+                }
+
+                refetchBlock(blockIndex, blockStartOffset, blockEndOffset, MAX_REFETCHES_PER_BLOCK);
+            }
+
+            @Override
+            public void onFailed(@NonNull final McuMgrException exception)
+            {
+                fail(exception);
+            }
+        });
+
+        //00   the remote file must have changed while we were checking its blocks
+    }
+
+    private void refetchBlock(final int blockIndex, final long blockStartOffset, final long blockEndOffset, final int refetchesLeft)
+    {
+        final FileContentDigester blockDigester = new FileContentDigester();
+        final StreamingFileDownloader blockRefetcher = new StreamingFileDownloader(
+                _fsManager,
+                _remoteFilePath,
+                new BlockRefetchSink(blockStartOffset - _sinkBaseOffset, blockDigester),
+                new BlockRefetchCallback(blockIndex, blockStartOffset, blockEndOffset, refetchesLeft, blockDigester)
+        );
+
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            blockRefetcher.setRange(blockStartOffset, blockEndOffset, _totalLength);
+            if (_isPaused)
+            {
+                blockRefetcher.pause();
+            }
+
+            _blockRefetcher = blockRefetcher;
+        }
+
+        try
+        {
+            blockRefetcher.downloadAsync();
+        }
+        catch (final IOException ex) // the block-sink has nothing to prepare but just in case
+        {
+            fail(new McuMgrException("[SFD.RB.010] Failed to commence fetching the block [" + blockStartOffset + ", " + blockEndOffset + ") anew", ex));
+        }
+    }
+
+    private void handOverDataAndFinish()
+    {
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            _isFinished = true;
+        }
+
+        _sink.runWhenDrained(this::handOverDataAndFinishImpl); //00
+
+        //00   sinks that pass the chunks on to workers of their own (see ChunkConsumerFileDownloadSink) get to catch up before we ask them for the
+        //     data   we must not block the thread that delivered the last chunk while they do
+    }
+
+    private void handOverDataAndFinishImpl()
+    {
+        byte[] data = null;
+        IOException sinkFailure = null;
+        try //00
+        {
+            data = _sink.getDataToHandOverUponCompletion();
+            _sink.close(); // flushes buffered sinks so we want to know if it fails
+            _isSinkClosed = true;
+        }
+        catch (final IOException ex)
+        {
+            sinkFailure = ex;
+            tryCloseSink();
+        }
+
+        if (sinkFailure != null)
+        {
+            _callback.onDownloadFailed(new McuMgrException("[SFD.C.010] Failed to finalize the sink", sinkFailure));
+            return;
+        }
+
+        _callback.onDownloadCompleted(data);
+
+        //00   outside the lock because this might run on the worker of the sink which in turn calls back into pump()   once we are finished nobody
+        //     else touches the sink anyway
+    }
+
+    /**
+     * Fails a download that has not been started yet (pe because the remote checks that precede it failed) - the sink gets closed and the failure
+     * gets reported through the callback just like any other failure.
+     */
+    void abort(@NonNull final McuMgrException exception)
+    {
+        fail(exception);
+    }
+
+    private void fail(@NonNull final McuMgrException exception)
+    {
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            _isFinished = true;
+            tryCloseSink();
+        }
+
+        _callback.onDownloadFailed(exception); // whatever landed in the sink is left there on purpose so that the download can be resumed later on
+    }
+
+    private final class BlockRefetchCallback implements DownloadCallback
+    {
+        private final int _blockIndex;
+        private final long _blockStartOffset;
+        private final long _blockEndOffset;
+        private final int _refetchesLeft;
+        private final FileContentDigester _blockDigester;
+
+        BlockRefetchCallback(final int blockIndex, final long blockStartOffset, final long blockEndOffset, final int refetchesLeft, @NonNull final FileContentDigester blockDigester)
+        {
+            _blockIndex = blockIndex;
+            _refetchesLeft = refetchesLeft;
+            _blockDigester = blockDigester;
+            _blockEndOffset = blockEndOffset;
+            _blockStartOffset = blockStartOffset;
+        }
+
+        @Override
+        public void onDownloadProgressChanged(final int bytesReceivedSoFar, final int totalBytes, final long timestampInMs)
+        {
+            // the progress of the download as a whole has been reported as complete already
+        }
+
+        @Override
+        public void onDownloadCompleted(final byte @NotNull [] data)
+        {
+            McuMgrFsHelpers.compareRemoteFileRange(_fsManager, _remoteFilePath, _blockStartOffset, _blockEndOffset - _blockStartOffset, _blockDigester, new McuMgrFsHelpers.RangeComparisonCallback()
+            {
+                @Override
+                public void onCompared(final boolean isIdentical)
+                {
+                    if (isIdentical)
+                    {
+                        final VerificationListener listener = _verificationListener;
+                        if (listener != null)
+                        {
+                            listener.onCorruptBlockRefetched(_blockStartOffset, _blockEndOffset);
+                        }
+
+                        verifyBlocksFrom(_blockIndex + 1, /*haveBlocksBeenRefetched*/ true);
+                        return;
+                    }
+
+                    if (_refetchesLeft > 1)
+                    {
+                        refetchBlock(_blockIndex, _blockStartOffset, _blockEndOffset, _refetchesLeft - 1);
+                        return;
+                    }
+
+                    fail(new FileIntegrityCheckFailedException("[SFD.BRC.ODC.010] The block [" + _blockStartOffset + ", " + _blockEndOffset + ") of the remote file '" + _remoteFilePath + "' keeps failing the integrity check even after fetching it anew"));
+                }
+
+                @Override
+                public void onFailed(@NonNull final McuMgrException exception)
+                {
+                    fail(exception);
+                }
+            });
+        }
+
+        @Override
+        public void onDownloadFailed(@NonNull final McuMgrException error)
+        {
+            fail(new McuMgrException("[SFD.BRC.ODF.010] Failed to fetch the block [" + _blockStartOffset + ", " + _blockEndOffset + ") anew", error));
+        }
+
+        @Override
+        public void onDownloadCanceled()
+        {
+            // only we ever cancel it   and only while cancelling the download as a whole
+        }
+    }
+
+    private final class BlockRefetchSink extends AndroidFileDownloadSink // funnels the bytes of a block that gets fetched anew into the actual sink
+    {
+        private final long _blockOffsetInSink;
+        private final FileContentDigester _blockDigester;
+
+        BlockRefetchSink(final long blockOffsetInSink, @NonNull final FileContentDigester blockDigester)
+        {
+            _blockDigester = blockDigester;
+            _blockOffsetInSink = blockOffsetInSink;
+        }
+
+        @Override
+        void write(final long offset, @NonNull final byte[] data, final int dataOffset, final int length) throws IOException
+        {
+            _sink.write(_blockOffsetInSink + offset, data, dataOffset, length);
+            _blockDigester.update(data, dataOffset, length);
+        }
+
+        // close() is a no-op on purpose   the actual sink gets closed once the download as a whole is over
+    }
+
+    private void tryCloseSink()
+    {
+        if (_isSinkClosed)
+            return;
+
+        _isSinkClosed = true;
+        try
+        {
+            _sink.close();
+        }
+        catch (final IOException ignored)
+        {
+            // ignored
+        }
+    }
+}
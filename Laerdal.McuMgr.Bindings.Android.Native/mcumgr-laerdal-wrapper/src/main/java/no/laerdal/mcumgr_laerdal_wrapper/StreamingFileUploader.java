@@ -0,0 +1,724 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrManager;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.exception.McuMgrTimeoutException;
+import io.runtime.mcumgr.managers.FsManager;
+import io.runtime.mcumgr.response.fs.McuMgrFsUploadResponse;
+import io.runtime.mcumgr.transfer.TransferController;
+import io.runtime.mcumgr.transfer.UploadCallback;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Windowed file-uploader that pulls its data chunk-by-chunk from an AndroidFileUploadSource instead of requiring the entire
+ * file to be materialized as a byte[] like io.runtime.mcumgr.transfer.FileUploader does. It speaks the exact same SMP
+ * file-write protocol (fs-group, command-id 0) and honours the offsets that the device reports back in each response.
+ */
+final class StreamingFileUploader implements TransferController
+{
+    private static final int SMP_HEADER_LENGTH = 8;
+    private static final int MAX_RETRIES_PER_OFFSET = 3;
+    private static final long CHUNK_TIMEOUT_IN_MS = 10_000;
+
+    private final Object _lock = new Object();
+
+    private final FsManager _fsManager;
+    private final UploadCallback _callback;
+    private final String _remoteFilePath;
+    private final AndroidFileUploadSource _source;
+
+    private final long _totalLength;
+    private final int _memoryAlignment;
+    private final TransferWindow _window;
+
+    private int _maxChunkLength;
+    private long _endOffset; //              exclusive   equals the file-size unless we are patching a specific range
+    private boolean _closesSourceUponFinishing = true;
+    private long _progressBaseOffset; //     progress gets reported relative to this offset
+    private long _rangeStartOffset;
+
+    private long _highestOffsetSent; //       anything sent below this offset is a retransmission
+    private Chunk _prefetchedChunk; //        the next chunk, already encoded while the window was full
+    private SmpFileUploadFramePool _framePool; // null unless the chunks get sent as pre-encoded frames
+
+    private FileContentDigester _digester; // null unless the uploaded range is to be verified once the upload is over
+    private long _digestedUpToOffset;
+
+    private int _generation; //             bumped upon each rewind so that responses to packets sent before the rewind get ignored
+    private int _retriesForCurrentOffset;
+    private long _nextOffsetToSend;
+    private long _lastAcknowledgedOffset;
+    private boolean _emptyFileChunkSent;
+
+    private boolean _isPaused;
+    private boolean _isFinished; //         completed, failed or cancelled
+    private boolean _allChunksSentNotified;
+    private boolean _isWakeUpScheduled; //  when the bandwidth-cap of the window throttles us
+
+    private Runnable _onAllChunksSent;
+
+    StreamingFileUploader(
+            @NonNull final FsManager fsManager,
+            @NonNull final String remoteFilePath,
+            @NonNull final AndroidFileUploadSource source,
+            final int windowCapacity,
+            final int memoryAlignment,
+            @NonNull final UploadCallback callback
+    )
+    {
+        this(fsManager, remoteFilePath, source, new TransferWindow(windowCapacity), memoryAlignment, callback);
+    }
+
+    StreamingFileUploader(
+            @NonNull final FsManager fsManager,
+            @NonNull final String remoteFilePath,
+            @NonNull final AndroidFileUploadSource source,
+            @NonNull final TransferWindow window, // can be shared among multiple uploaders that run over the same connection
+            final int memoryAlignment,
+            @NonNull final UploadCallback callback
+    )
+    {
+        _source = source;
+        _callback = callback;
+        _fsManager = fsManager;
+        _remoteFilePath = remoteFilePath;
+
+        _window = window;
+        _totalLength = source.getLength();
+        _endOffset = _totalLength;
+        _memoryAlignment = Math.max(1, memoryAlignment);
+    }
+
+    /**
+     * @param onAllChunksSent gets invoked (once) as soon as the last chunk has been handed over to the transport - its acknowledgement might still be pending
+     */
+    void setOnAllChunksSentListener(final Runnable onAllChunksSent)
+    {
+        _onAllChunksSent = onAllChunksSent;
+    }
+
+    /**
+     * Makes the upload continue from the given offset instead of starting from scratch. The bytes before that offset are assumed to be on
+     * the device already. Must be called before uploadAsync().
+     *
+     * @param startOffset the offset to resume from - it should be aligned to the memory-alignment and it must be less than the file-size
+     */
+    void setStartOffset(final long startOffset)
+    {
+        setRange(startOffset, _totalLength);
+    }
+
+    /**
+     * Makes the upload overwrite only the given range of the remote file. The rest of the remote file is left untouched. Must be called before uploadAsync().
+     *
+     * @param startOffset the offset to start from - it should be aligned to the memory-alignment and it must not be zero unless the range spans the entire
+     *                    file (devices truncate the file upon receiving a write at offset zero)
+     * @param endOffset   the offset to stop at (exclusive) - it should be aligned to the memory-alignment unless it coincides with the end of the file
+     */
+    void setRange(final long startOffset, final long endOffset)
+    {
+        if (startOffset < 0 || startOffset >= endOffset || endOffset > _totalLength)
+            throw new IllegalArgumentException("The range [" + startOffset + ", " + endOffset + ") is out of bounds for a file of " + _totalLength + " bytes");
+
+        if (startOffset == 0 && endOffset != _totalLength)
+            throw new IllegalArgumentException("Partial ranges must not start at offset zero because devices truncate the file upon receiving a write at offset zero");
+
+        synchronized (_lock)
+        {
+            _endOffset = endOffset;
+            _rangeStartOffset = startOffset;
+            _digestedUpToOffset = startOffset;
+            _nextOffsetToSend = startOffset;
+            _lastAcknowledgedOffset = startOffset; // rewinds upon timeouts must never go further back than this
+        }
+
+        _source.releaseUpTo(startOffset); // sequential sources can skip ahead instead of retaining the bytes we will never send
+    }
+
+    /**
+     * Makes the uploader digest the data as they get handed over to the transport (no second pass over the data) and, once the device
+     * has acknowledged the last chunk, ask the device to hash the uploaded range. The upload completes only if the two hashes match - if
+     * they don't it fails with a FileIntegrityCheckFailedException.
+     */
+    void setVerifiesUploadedRange()
+    {
+        synchronized (_lock)
+        {
+            _digester = new FileContentDigester();
+        }
+    }
+
+    /**
+     * Makes the uploader encode each request straight into a recycled frame and hand it over to the transport as-is, instead of building a
+     * payload-map that the manager then encodes into a brand-new byte[] for every single chunk. While the window is full the next frame gets
+     * encoded ahead of time so that it can be sent the moment a slot frees up. Must be called before uploadAsync().
+     */
+    void setUsesPreEncodedFrames()
+    {
+        synchronized (_lock)
+        {
+            _framePool = new SmpFileUploadFramePool(_fsManager.getTransporter(), _remoteFilePath, _window.getMaxCapacity() + 2); // the frames in flight plus the prefetched one
+        }
+    }
+
+    /**
+     * Makes the progress-updates span only the range set via setRange() instead of the entire file (pe when appending to a remote file).
+     */
+    void setReportsProgressRelativeToRange()
+    {
+        synchronized (_lock)
+        {
+            _progressBaseOffset = _lastAcknowledgedOffset;
+        }
+    }
+
+    /**
+     * @param closesSourceUponFinishing false when the source is shared among multiple consecutive uploaders (the last one must close it)
+     */
+    void setClosesSourceUponFinishing(final boolean closesSourceUponFinishing)
+    {
+        _closesSourceUponFinishing = closesSourceUponFinishing;
+    }
+
+    TransferController uploadAsync()
+    {
+        _maxChunkLength = calculateMaxChunkLength(); //order
+        pump(); //                                      order
+
+        return this;
+    }
+
+    @Override
+    public void pause()
+    {
+        synchronized (_lock)
+        {
+            _isPaused = true; // the packets already in flight will still be acknowledged normally
+        }
+    }
+
+    @Override
+    public void resume()
+    {
+        synchronized (_lock)
+        {
+            _isPaused = false;
+        }
+
+        pump();
+    }
+
+    @Override
+    public void cancel()
+    {
+        synchronized (_lock)
+        {
+            if (_isFinished)
+                return;
+
+            _isFinished = true;
+        }
+
+        tryCloseSource();
+        _callback.onUploadCanceled();
+    }
+
+    void pump()
+    {
+        long wakeUpDelayInMs = 0;
+        while (true)
+        {
+            Chunk chunk;
+            synchronized (_lock)
+            {
+                if (_isFinished || _isPaused || !hasMoreToSend())
+                    break;
+
+                if (!_window.tryAcquire())
+                {
+                    tryPrefetchNextChunk(); //00
+                    wakeUpDelayInMs = tryScheduleWakeUp();
+                    break;
+                }
+
+                try
+                {
+                    chunk = takePrefetchedChunk();
+                    chunk = chunk != null ? chunk : readNextChunk();
+                }
+                catch (final IOException ex)
+                {
+                    _window.release(0);
+                    _isFinished = true;
+                    chunk = null;
+                }
+
+                if (chunk != null)
+                {
+                    digest(chunk);
+
+                    _window.onPacketSent(chunk.dataLength, chunk.offset < _highestOffsetSent);
+                    _highestOffsetSent = Math.max(_highestOffsetSent, chunk.offset + chunk.dataLength);
+
+                    _nextOffsetToSend += chunk.dataLength;
+                    _emptyFileChunkSent = true;
+                }
+            }
+
+            if (chunk == null)
+            {
+                onFailed(new McuMgrException("[SFU.P.010] Failed to read the data to upload at offset " + _nextOffsetToSend));
+                return;
+            }
+
+            sendChunk(chunk);
+        }
+
+        if (wakeUpDelayInMs > 0)
+        {
+            TransferWindow.scheduleWakeUp(this::onWokenUp, wakeUpDelayInMs);
+        }
+
+        tryNotifyAllChunksSent();
+
+        //00   double-buffering   the next frame gets serialized while the radio is still busy with the ones in flight
+    }
+
+    private long tryScheduleWakeUp() // called while holding the lock
+    {
+        if (_isWakeUpScheduled)
+            return 0;
+
+        final long wakeUpDelayInMs = _window.getMillisUntilBandwidthIsAvailable(); //00
+        _isWakeUpScheduled = wakeUpDelayInMs > 0;
+
+        return wakeUpDelayInMs;
+
+        //00   when throttled by the bandwidth-cap there might be no packets in flight whose acknowledgements would pump us again
+    }
+
+    private void onWokenUp()
+    {
+        synchronized (_lock)
+        {
+            _isWakeUpScheduled = false;
+        }
+
+        pump();
+    }
+
+    private void tryPrefetchNextChunk() // called while holding the lock
+    {
+        if (_framePool == null || _prefetchedChunk != null)
+            return;
+
+        try
+        {
+            _prefetchedChunk = readNextChunk();
+        }
+        catch (final IOException ignored)
+        {
+            // the read will be retried when the chunk actually needs to be sent and the failure will be reported then
+        }
+    }
+
+    private Chunk takePrefetchedChunk() // called while holding the lock
+    {
+        final Chunk prefetchedChunk = _prefetchedChunk;
+        if (prefetchedChunk == null)
+            return null;
+
+        _prefetchedChunk = null;
+        if (prefetchedChunk.generation == _generation && prefetchedChunk.offset == _nextOffsetToSend)
+            return prefetchedChunk;
+
+        recycle(prefetchedChunk); // a rewind happened in the meantime
+        return null;
+    }
+
+    private void recycle(@NonNull final Chunk chunk)
+    {
+        if (_framePool == null)
+            return;
+
+        _framePool.release(chunk.buffer);
+    }
+
+    private void tryNotifyAllChunksSent()
+    {
+        final Runnable onAllChunksSent;
+        synchronized (_lock)
+        {
+            if (_allChunksSentNotified || _isFinished || hasMoreToSend())
+                return;
+
+            _allChunksSentNotified = true;
+            onAllChunksSent = _onAllChunksSent;
+        }
+
+        if (onAllChunksSent != null)
+        {
+            onAllChunksSent.run();
+        }
+    }
+
+    private boolean hasMoreToSend()
+    {
+        return _nextOffsetToSend < _endOffset || (_totalLength == 0 && !_emptyFileChunkSent);
+    }
+
+    private Chunk readNextChunk() throws IOException
+    {
+        final long offset = _nextOffsetToSend;
+        final long remainingLength = _endOffset - offset;
+
+        int length = (int) Math.min(_maxChunkLength, remainingLength);
+        if (length < remainingLength) //00
+        {
+            length -= length % _memoryAlignment;
+        }
+
+        final byte[] buffer = _framePool == null
+                ? new byte[length]
+                : _framePool.acquire(offset, length, _totalLength);
+
+        final int dataOffset = _framePool == null ? 0 : SmpFileUploadFramePool.getDataOffset(buffer, length); //10
+        final int bytesRead = _source.read(offset, buffer, dataOffset, length);
+        if (bytesRead != length)
+            throw new IOException("Expected to read " + length + " bytes at offset " + offset + " but got " + bytesRead + " bytes instead");
+
+        return new Chunk(_generation, offset, buffer, dataOffset, length, _framePool != null);
+
+        //00   only the very last chunk is allowed to be unaligned   ranges that end before the end of the file are expected to be aligned anyway
+        //
+        //10   the data either fill a bare data-buffer or they sit right before the closing break-byte of an entire pre-encoded frame
+    }
+
+    private void digest(@NonNull final Chunk chunk) // called while holding the lock
+    {
+        if (_digester == null)
+            return;
+
+        final long chunkEndOffset = chunk.offset + chunk.dataLength;
+        if (chunk.offset > _digestedUpToOffset || chunkEndOffset <= _digestedUpToOffset) //00
+            return;
+
+        final int alreadyDigestedCount = (int) (_digestedUpToOffset - chunk.offset);
+        _digester.update(chunk.buffer, chunk.dataOffset + alreadyDigestedCount, chunk.dataLength - alreadyDigestedCount);
+        _digestedUpToOffset = chunkEndOffset;
+
+        //00   retransmissions after a rewind carry bytes that we have already digested   chunks are always read in ascending order
+        //     between rewinds so there can never be a gap
+    }
+
+    private void sendChunk(@NonNull final Chunk chunk)
+    {
+        chunk.sentAtInMs = System.nanoTime() / 1_000_000;
+
+        try
+        {
+            if (chunk.isPreEncodedFrame)
+            {
+                _fsManager.getTransporter().send(chunk.buffer, CHUNK_TIMEOUT_IN_MS, McuMgrFsUploadResponse.class, new ChunkCallback(chunk));
+                return;
+            }
+
+            final HashMap<String, Object> payload = new HashMap<>();
+            payload.put("name", _remoteFilePath);
+            payload.put("off", chunk.offset);
+            payload.put("data", chunk.buffer); // bare data-buffers are sized exactly to the data
+            if (chunk.offset == 0)
+            {
+                payload.put("len", _totalLength); //the very first packet must announce the total file-size
+            }
+
+            _fsManager.send(McuMgrManager.OP_WRITE, McuMgrFsHelpers.SMP_FS_FILE_COMMAND_ID, payload, CHUNK_TIMEOUT_IN_MS, McuMgrFsUploadResponse.class, new ChunkCallback(chunk));
+        }
+        catch (final Exception ex)
+        {
+            onChunkFailed(chunk, ex instanceof McuMgrException ? (McuMgrException) ex : new McuMgrException(ex));
+        }
+    }
+
+    private void onChunkAcknowledged(@NonNull final Chunk chunk, @NonNull final McuMgrFsUploadResponse response)
+    {
+        McuMgrException failure = null;
+        boolean isComplete = false;
+        boolean isCongested = false;
+        boolean isAcknowledgedInOrder = false;
+        boolean progressChanged = false;
+        long acknowledgedOffsetSnapshot = 0;
+        final long deviceOffset = response.off;
+
+        synchronized (_lock)
+        {
+            _window.release(chunk.dataLength);
+            recycle(chunk); //  the transport is done with the frame now that the device has responded
+
+            if (_isFinished)
+                return;
+
+            if (chunk.generation != _generation) //00
+            {
+                // nothing to do   the slot it occupied in the window has been freed up though so we need to pump
+            }
+            else if (!response.isSuccess())
+            {
+                _isFinished = true;
+                failure = McuMgrExceptionHelpers.CreateErrorExceptionFromResponse(response);
+            }
+            else if (deviceOffset < _rangeStartOffset || deviceOffset > _endOffset) //20
+            {
+                _isFinished = true;
+                failure = new RemoteOffsetOutOfRangeException("[SFU.OCA.010] The device reported the offset " + deviceOffset + " which lies outside the range [" + _rangeStartOffset + ", " + _endOffset + "] being uploaded to '" + _remoteFilePath + "'");
+            }
+            else
+            {
+                _retriesForCurrentOffset = 0;
+
+                if (deviceOffset != chunk.offset + chunk.dataLength) //10
+                {
+                    isCongested = true;
+                    rewindTo(deviceOffset);
+                }
+                else
+                {
+                    isAcknowledgedInOrder = true;
+                }
+
+                if (deviceOffset > _lastAcknowledgedOffset)
+                {
+                    progressChanged = true;
+                    _lastAcknowledgedOffset = deviceOffset;
+                    _source.releaseUpTo(deviceOffset);
+                }
+
+                isComplete = _lastAcknowledgedOffset >= _endOffset;
+                _isFinished = isComplete;
+                acknowledgedOffsetSnapshot = _lastAcknowledgedOffset;
+            }
+        }
+
+        if (failure != null)
+        {
+            onFailed(failure);
+            return;
+        }
+
+        if (isCongested)
+        {
+            _window.onCongestion();
+        }
+        else if (isAcknowledgedInOrder)
+        {
+            _window.onPacketAcknowledged(System.nanoTime() / 1_000_000 - chunk.sentAtInMs);
+        }
+
+        if (progressChanged || isComplete)
+        {
+            _callback.onUploadProgressChanged((int) (acknowledgedOffsetSnapshot - _progressBaseOffset), (int) (_endOffset - _progressBaseOffset), System.currentTimeMillis());
+        }
+
+        if (isComplete)
+        {
+            verifyUploadedRangeAndComplete();
+            return;
+        }
+
+        pump();
+
+        //00   responses to packets that were sent before a rewind carry no useful information
+        //
+        //10   the device either dropped a packet or it ignored unaligned bytes   either way we must continue from the offset it asks for
+        //
+        //20   rewinding below the start of a partial range would rewrite bytes we never meant to touch (offset zero truncates the file) and
+        //     sequential sources have released those bytes anyway   while going past its end would skip bytes we never sent
+    }
+
+    private void onChunkFailed(@NonNull final Chunk chunk, @NonNull final McuMgrException exception)
+    {
+        boolean isFatal = false;
+        boolean isCongested = false;
+
+        synchronized (_lock)
+        {
+            _window.release(chunk.dataLength); // the frame is not recycled because the transport might still be holding on to it
+
+            if (_isFinished)
+                return;
+
+            if (chunk.generation != _generation)
+            {
+                // nothing to do   the slot it occupied in the window has been freed up though so we need to pump
+            }
+            else if (exception instanceof McuMgrTimeoutException && _retriesForCurrentOffset < MAX_RETRIES_PER_OFFSET)
+            {
+                _retriesForCurrentOffset++;
+                isCongested = true;
+                rewindTo(_lastAcknowledgedOffset);
+            }
+            else
+            {
+                isFatal = true;
+                _isFinished = true;
+            }
+        }
+
+        if (isFatal)
+        {
+            onFailed(exception);
+            return;
+        }
+
+        if (isCongested)
+        {
+            _window.onCongestion();
+        }
+
+        pump();
+    }
+
+    private void rewindTo(final long requestedOffset)
+    {
+        final long offset = Math.max(_rangeStartOffset, Math.min(requestedOffset, _endOffset)); // never outside the range being uploaded
+
+        _generation++;
+        _nextOffsetToSend = offset;
+        _emptyFileChunkSent = false;
+
+        if (offset < _lastAcknowledgedOffset)
+        {
+            _lastAcknowledgedOffset = offset;
+        }
+    }
+
+    private void verifyUploadedRangeAndComplete()
+    {
+        final long rangeLength = _endOffset - _rangeStartOffset;
+        if (_digester == null || rangeLength == 0) //00
+        {
+            tryCloseSource();
+            _callback.onUploadCompleted();
+            return;
+        }
+
+        McuMgrFsHelpers.compareRemoteFileRange(_fsManager, _remoteFilePath, _rangeStartOffset, rangeLength, _digester, new McuMgrFsHelpers.RangeComparisonCallback()
+        {
+            @Override
+            public void onCompared(final boolean isIdentical)
+            {
+                if (!isIdentical)
+                {
+                    onFailed(new FileIntegrityCheckFailedException("[SFU.VURAC.010] The hash of the range [" + _rangeStartOffset + ", " + _endOffset + ") of the remote file '" + _remoteFilePath + "' doesn't match the hash of the uploaded data"));
+                    return;
+                }
+
+                tryCloseSource();
+                _callback.onUploadCompleted();
+            }
+
+            @Override
+            public void onFailed(@NonNull final McuMgrException exception)
+            {
+                StreamingFileUploader.this.onFailed(exception);
+            }
+        });
+
+        //00   devices typically refuse to hash empty files so there is nothing we can verify
+    }
+
+    private void onFailed(@NonNull final McuMgrException exception)
+    {
+        tryCloseSource();
+        _callback.onUploadFailed(exception);
+    }
+
+    private void tryCloseSource()
+    {
+        if (!_closesSourceUponFinishing)
+            return;
+
+        try
+        {
+            _source.close();
+        }
+        catch (final Exception ignored)
+        {
+            // ignored
+        }
+    }
+
+    private int calculateMaxChunkLength()
+    {
+        final int overhead = SMP_HEADER_LENGTH
+                + 2 //                                                                                  indefinite-length map-header and break
+                + calculateCborTextLength("name") + calculateCborTextLength(_remoteFilePath)
+                + calculateCborTextLength("off") + 5 //                                                 uint32
+                + calculateCborTextLength("len") + 5 //                                                 uint32
+                + calculateCborTextLength("data") + 3; //                                               byte-string header for lengths up to 64k
+
+        final int maxChunkLength = _fsManager.getMtu() - overhead;
+        if (maxChunkLength <= 0)
+            throw new IllegalStateException("The MTU of " + _fsManager.getMtu() + " bytes is too small to fit even a single byte of data after the " + overhead + " bytes of protocol overhead");
+
+        return maxChunkLength <= _memoryAlignment
+                ? maxChunkLength
+                : maxChunkLength - (maxChunkLength % _memoryAlignment);
+    }
+
+    private static int calculateCborTextLength(@NonNull final String text)
+    {
+        final int length = text.getBytes(StandardCharsets.UTF_8).length;
+
+        return length + (length < 24 ? 1 : length < 256 ? 2 : length < 65536 ? 3 : 5);
+    }
+
+    private static final class Chunk
+    {
+        final int generation;
+        final long offset;
+        final byte[] buffer; //     either the bare data or an entire pre-encoded frame
+        final int dataOffset; //    zero for bare data-buffers
+        final int dataLength;
+        final boolean isPreEncodedFrame;
+
+        long sentAtInMs;
+
+        Chunk(final int generation, final long offset, @NonNull final byte[] buffer, final int dataOffset, final int dataLength, final boolean isPreEncodedFrame)
+        {
+            this.generation = generation;
+            this.offset = offset;
+            this.buffer = buffer;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.isPreEncodedFrame = isPreEncodedFrame;
+        }
+    }
+
+    private final class ChunkCallback implements McuMgrCallback<McuMgrFsUploadResponse>
+    {
+        private final Chunk _chunk;
+
+        ChunkCallback(@NonNull final Chunk chunk)
+        {
+            _chunk = chunk;
+        }
+
+        @Override
+        public void onResponse(@NonNull final McuMgrFsUploadResponse response)
+        {
+            onChunkAcknowledged(_chunk, response);
+        }
+
+        @Override
+        public void onError(@NonNull final McuMgrException exception)
+        {
+            onChunkFailed(_chunk, exception);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Write-ahead journal that keeps the acknowledged offset of each transfer on disk so that a fresh uploader/downloader can pick up
+ * where the previous one left off even if the android process got killed midway. The journal is an append-only file of json lines
+ * (one line per update) which gets compacted into a snapshot of the live entries once it has grown enough.
+ * <p>
+ * Every line gets handed over to the OS straight away (no buffering on our side) so the journal survives process death. It gets fsynced
+ * only upon compaction so after a power loss the last few updates might be missing - which is fine because resuming from an older
+ * offset merely re-sends a few bytes. A torn last line gets ignored when loading.
+ */
+final class TransferJournal
+{
+    private static final String DEFAULT_DIRECTORY_NAME = "mcumgr-transfer-journal";
+    private static final String JOURNAL_FILE_NAME = "transfers.journal";
+    private static final String SPOOL_FILE_EXTENSION = ".partial";
+    private static final long MIN_BYTES_BETWEEN_PERSISTED_UPDATES = 32 * 1024;
+    private static final long MIN_MILLIS_BETWEEN_PERSISTED_UPDATES = 1_000;
+    private static final int MIN_LINES_BEFORE_COMPACTION = 256;
+
+    private static final ConcurrentHashMap<String, TransferJournal> JournalsPerDirectory = new ConcurrentHashMap<>(); // one instance per directory so that appends never interleave
+
+    private final Gson _gson = new GsonBuilder()
+            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+            .create();
+
+    private final File _directory;
+    private final File _journalFile;
+    private final Map<String, Entry> _liveEntries = new HashMap<>();
+    private final Map<String, Entry> _lastPersistedEntries = new HashMap<>();
+
+    private FileOutputStream _appender;
+    private int _linesAppendedSinceCompaction;
+
+    private TransferJournal(@NonNull final File directory)
+    {
+        _directory = directory;
+        _journalFile = new File(directory, JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * @param directory the directory that holds the journal (and the partial files of the downloads) - it gets created if it doesn't exist
+     */
+    static TransferJournal open(@NonNull final File directory) throws IOException
+    {
+        final String directoryPath = directory.getAbsolutePath();
+
+        TransferJournal journal = JournalsPerDirectory.get(directoryPath);
+        if (journal != null)
+            return journal;
+
+        synchronized (JournalsPerDirectory)
+        {
+            journal = JournalsPerDirectory.get(directoryPath);
+            if (journal != null)
+                return journal;
+
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Failed to create the directory '" + directoryPath + "' of the transfer-journal");
+
+            journal = new TransferJournal(directory);
+            journal.load();
+
+            JournalsPerDirectory.put(directoryPath, journal);
+        }
+
+        return journal;
+    }
+
+    /**
+     * @return the directory inside the files-directory of the app that uploaders and downloaders share by default
+     */
+    static File getDefaultDirectory(@NonNull final Context context)
+    {
+        return new File(context.getFilesDir(), DEFAULT_DIRECTORY_NAME);
+    }
+
+    synchronized long getAcknowledgedOffset(@NonNull final String key)
+    {
+        final Entry entry = _liveEntries.get(key);
+
+        return entry == null ? 0 : entry.acknowledgedOffset;
+    }
+
+    /**
+     * @return the total length recorded for the given transfer - or -1 if the transfer is not in the journal
+     */
+    synchronized long getTotalLength(@NonNull final String key)
+    {
+        final Entry entry = _liveEntries.get(key);
+
+        return entry == null ? -1 : entry.totalLength;
+    }
+
+    /**
+     * Records the given offset as acknowledged. The update gets persisted only if enough bytes or time have gone by since the last persisted
+     * update of the same transfer (the ble-link acknowledges a few hundred bytes at a time and writing a line for each ack would be wasteful).
+     */
+    synchronized void update(@NonNull final String key, final long acknowledgedOffset, final long totalLength)
+    {
+        final long nowInMs = System.currentTimeMillis();
+        final Entry entry = new Entry(key, acknowledgedOffset, totalLength, nowInMs);
+        _liveEntries.put(key, entry);
+
+        final Entry lastPersistedEntry = _lastPersistedEntries.get(key);
+        if (lastPersistedEntry != null
+                && lastPersistedEntry.totalLength == totalLength
+                && acknowledgedOffset - lastPersistedEntry.acknowledgedOffset < MIN_BYTES_BETWEEN_PERSISTED_UPDATES
+                && nowInMs - lastPersistedEntry.updatedAtInMs < MIN_MILLIS_BETWEEN_PERSISTED_UPDATES)
+            return;
+
+        tryAppend(entry);
+    }
+
+    synchronized void remove(@NonNull final String key)
+    {
+        tryDeleteSpoolFile(key);
+
+        if (_liveEntries.remove(key) == null)
+            return;
+
+        tryAppend(new Entry(key, -1, -1, System.currentTimeMillis())); // tombstone
+    }
+
+    /**
+     * @return the file that holds the bytes received so far by the download with the given key (it might not exist yet)
+     */
+    File getSpoolFile(@NonNull final String key)
+    {
+        return new File(_directory, hashKey(key) + SPOOL_FILE_EXTENSION);
+    }
+
+    private void tryDeleteSpoolFile(@NonNull final String key)
+    {
+        final File spoolFile = getSpoolFile(key);
+
+        //noinspection ResultOfMethodCallIgnored
+        spoolFile.delete(); // only downloads have spool files
+    }
+
+    private void load() throws IOException
+    {
+        if (!_journalFile.exists())
+            return;
+
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(_journalFile), StandardCharsets.UTF_8)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                final Entry entry;
+                try
+                {
+                    entry = _gson.fromJson(line, Entry.class);
+                }
+                catch (final JsonParseException ex) //00
+                {
+                    break;
+                }
+
+                if (entry == null || entry.key == null)
+                    continue;
+
+                if (entry.acknowledgedOffset < 0)
+                {
+                    _liveEntries.remove(entry.key);
+                    continue;
+                }
+
+                _liveEntries.put(entry.key, entry);
+            }
+        }
+
+        _lastPersistedEntries.putAll(_liveEntries);
+        compact(); // gets rid of the tombstones and of any torn line
+
+        //00   a torn line can only ever be the very last one (the process died while appending it) so there is nothing of value after it
+    }
+
+    private void tryAppend(@NonNull final Entry entry)
+    {
+        try
+        {
+            if (_appender == null)
+            {
+                _appender = new FileOutputStream(_journalFile, /*append*/ true);
+            }
+
+            _appender.write((_gson.toJson(entry) + "\n").getBytes(StandardCharsets.UTF_8)); // a single write() so that the line is never interleaved
+            _linesAppendedSinceCompaction++;
+
+            if (entry.acknowledgedOffset < 0)
+            {
+                _lastPersistedEntries.remove(entry.key);
+            }
+            else
+            {
+                _lastPersistedEntries.put(entry.key, entry);
+            }
+
+            if (_linesAppendedSinceCompaction >= Math.max(MIN_LINES_BEFORE_COMPACTION, 4 * _liveEntries.size()))
+            {
+                compact();
+            }
+        }
+        catch (final IOException ignored) //00
+        {
+            closeAppender();
+        }
+
+        //00   the journal is a best-effort affair   failing to write to it must never fail the transfer itself   worst case the transfer
+        //     will have to start over from scratch should the process die
+    }
+
+    private void compact() throws IOException
+    {
+        closeAppender();
+
+        final File temporaryFile = new File(_directory, JOURNAL_FILE_NAME + ".tmp");
+        try (final FileOutputStream stream = new FileOutputStream(temporaryFile, /*append*/ false))
+        {
+            final StringBuilder snapshot = new StringBuilder(_liveEntries.size() * 160);
+            for (final Entry entry : _liveEntries.values())
+            {
+                snapshot.append(_gson.toJson(entry)).append('\n');
+            }
+
+            stream.write(snapshot.toString().getBytes(StandardCharsets.UTF_8));
+            stream.getFD().sync();
+        }
+
+        if (!temporaryFile.renameTo(_journalFile)) //00
+            throw new IOException("Failed to replace the transfer-journal with its compacted snapshot");
+
+        _lastPersistedEntries.clear();
+        _lastPersistedEntries.putAll(_liveEntries);
+        _linesAppendedSinceCompaction = 0;
+
+        //00   renaming within the same directory is atomic so we either end up with the old journal or with the snapshot   never with a mix
+    }
+
+    private void closeAppender()
+    {
+        if (_appender == null)
+            return;
+
+        try
+        {
+            _appender.close();
+        }
+        catch (final IOException ignored)
+        {
+            // ignored
+        }
+
+        _appender = null;
+    }
+
+    static String hashKey(@NonNull final String key)
+    {
+        try
+        {
+            return FileContentDigester.toHexString(MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (final NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException("SHA-256 is not supported on this device", ex); //should be impossible on android
+        }
+    }
+
+    private static final class Entry
+    {
+        String key;
+        long acknowledgedOffset; // -1 marks the removal of the transfer
+        long totalLength;
+        long updatedAtInMs;
+
+        @SuppressWarnings("unused")
+        Entry() //for gson
+        {
+        }
+
+        Entry(final String key, final long acknowledgedOffset, final long totalLength, final long updatedAtInMs)
+        {
+            this.key = key;
+            this.totalLength = totalLength;
+            this.updatedAtInMs = updatedAtInMs;
+            this.acknowledgedOffset = acknowledgedOffset;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lets short high-priority SMP commands (resets, erasures etc) cut in line in front of long-running file transfers towards the same device.
+ * The transfers that are in progress get paused for as long as the command takes so that the command doesn't have to queue up behind an
+ * endless stream of chunks. Once the last of the overlapping commands is done the transfers get resumed and the duration of the preemption
+ * gets reported.
+ * <p>
+ * The transfers get paused and resumed behind the back of their uploaders/downloaders (no state-changes get advertised) because the calling
+ * environment has no business knowing about such short hiccups. Only the transfers that were actively running get paused - transfers paused
+ * by the calling environment are left alone and so are transfers that the calling environment paused or resumed during the preemption.
+ */
+final class TransferPreemptionScheduler
+{
+    abstract static class PreemptibleTransfer
+    {
+        private final AtomicBoolean _isPreempted = new AtomicBoolean(false);
+
+        /**
+         * @return true if the transfer has been started and it has yet to finish - regardless of whether any progress has been made so far
+         */
+        abstract boolean isTransferring();
+
+        /**
+         * Pauses the underlying transfer-controller directly without touching the state of the uploader/downloader.
+         *
+         * @return false if there is no transfer-controller to pause (yet)
+         */
+        abstract boolean pauseTransferController();
+
+        abstract void resumeTransferController();
+
+        /**
+         * Must be invoked whenever the calling environment pauses or resumes the transfer - the scheduler must not resume the transfer on
+         * its own after that.
+         *
+         * @return true if the transfer was being preempted at that point
+         */
+        final boolean clearPreemption()
+        {
+            return _isPreempted.getAndSet(false);
+        }
+
+        private boolean tryPreempt()
+        {
+            _isPreempted.set(true); //00
+
+            final boolean isPaused;
+            try
+            {
+                isPaused = pauseTransferController();
+            }
+            catch (final RuntimeException ex)
+            {
+                _isPreempted.set(false);
+                throw ex;
+            }
+
+            if (!isPaused)
+            {
+                _isPreempted.set(false);
+            }
+
+            return isPaused;
+
+            //00   before pausing so that a tryResume() from the calling environment that races with us can't get overlooked
+        }
+
+        private boolean tryResumeAfterPreemption()
+        {
+            if (!_isPreempted.compareAndSet(true, false)) // the calling environment took over in the meantime
+                return false;
+
+            resumeTransferController();
+            return true;
+        }
+    }
+
+    interface PriorityCommand
+    {
+        /**
+         * @param onCompleted must be invoked once the command is over - regardless of whether it succeeded or failed
+         */
+        void run(@NonNull final Runnable onCompleted);
+    }
+
+    interface Listener
+    {
+        void onPreemptionCompleted(final int preemptedTransfersCount, final long preemptionDurationInMs);
+    }
+
+    private static final HashMap<String, DeviceState> StatesPerDeviceAddress = new HashMap<>(); // guarded by itself
+
+    private TransferPreemptionScheduler()
+    {
+    }
+
+    static void register(@NonNull final String deviceAddress, @NonNull final PreemptibleTransfer transfer)
+    {
+        synchronized (StatesPerDeviceAddress)
+        {
+            getOrCreateDeviceState(deviceAddress).transfers.add(transfer);
+        }
+    }
+
+    static void unregister(@NonNull final String deviceAddress, @NonNull final PreemptibleTransfer transfer)
+    {
+        synchronized (StatesPerDeviceAddress)
+        {
+            final DeviceState deviceState = StatesPerDeviceAddress.get(deviceAddress);
+            if (deviceState == null)
+                return;
+
+            deviceState.transfers.remove(transfer);
+            tryPruneDeviceState(deviceAddress, deviceState);
+        }
+    }
+
+    /**
+     * Pauses the transfers that are in progress towards the given device, runs the given command and resumes the transfers once the command
+     * is over. Commands that overlap with each other share the same preemption - the transfers get resumed once the last one of them is over.
+     */
+    static void runPreemptively(@NonNull final String deviceAddress, @NonNull final PriorityCommand command, @NonNull final Listener listener)
+    {
+        final DeviceState deviceState;
+        final List<PreemptibleTransfer> transfersToPause = new ArrayList<>(2);
+        synchronized (StatesPerDeviceAddress)
+        {
+            deviceState = getOrCreateDeviceState(deviceAddress);
+            if (deviceState.activeCommandsCount++ == 0)
+            {
+                deviceState.preemptionStartTimestampInMs = System.currentTimeMillis();
+
+                for (final PreemptibleTransfer transfer : deviceState.transfers)
+                {
+                    if (transfer.isTransferring())
+                    {
+                        transfersToPause.add(transfer);
+                    }
+                }
+            }
+        }
+
+        for (final PreemptibleTransfer transfer : transfersToPause) //00
+        {
+            if (!transfer.tryPreempt())
+                continue;
+
+            synchronized (StatesPerDeviceAddress)
+            {
+                deviceState.pausedTransfers.add(transfer);
+            }
+        }
+
+        final AtomicBoolean isCompleted = new AtomicBoolean(false);
+        final Runnable onCompleted = () -> {
+            if (isCompleted.compareAndSet(false, true)) //10
+            {
+                onCommandCompleted(deviceAddress, deviceState, listener);
+            }
+        };
+
+        try
+        {
+            command.run(onCompleted);
+        }
+        catch (final RuntimeException ex)
+        {
+            onCompleted.run();
+            throw ex;
+        }
+
+        //00   pausing calls into the transfer-controllers which might call back into their uploaders/downloaders   so we must not hold the lock while doing so
+        //
+        //10   guards against commands that report back both an error and a response or that report back twice for any other reason
+    }
+
+    private static void onCommandCompleted(@NonNull final String deviceAddress, @NonNull final DeviceState deviceState, @NonNull final Listener listener)
+    {
+        final long preemptionDurationInMs;
+        final List<PreemptibleTransfer> transfersToResume;
+        synchronized (StatesPerDeviceAddress)
+        {
+            preemptionDurationInMs = System.currentTimeMillis() - deviceState.preemptionStartTimestampInMs;
+            if (--deviceState.activeCommandsCount > 0)
+            {
+                transfersToResume = Collections.emptyList(); // another command is still running so the transfers must stay paused
+            }
+            else
+            {
+                transfersToResume = new ArrayList<>(deviceState.pausedTransfers);
+                deviceState.pausedTransfers.clear();
+
+                tryPruneDeviceState(deviceAddress, deviceState);
+            }
+        }
+
+        for (final PreemptibleTransfer transfer : transfersToResume)
+        {
+            transfer.tryResumeAfterPreemption();
+        }
+
+        listener.onPreemptionCompleted(transfersToResume.size(), preemptionDurationInMs);
+    }
+
+    private static DeviceState getOrCreateDeviceState(@NonNull final String deviceAddress)
+    {
+        DeviceState deviceState = StatesPerDeviceAddress.get(deviceAddress);
+        if (deviceState == null)
+        {
+            deviceState = new DeviceState();
+            StatesPerDeviceAddress.put(deviceAddress, deviceState);
+        }
+
+        return deviceState;
+    }
+
+    private static void tryPruneDeviceState(@NonNull final String deviceAddress, @NonNull final DeviceState deviceState) // must be called while holding the lock
+    {
+        if (deviceState.activeCommandsCount > 0 || !deviceState.transfers.isEmpty())
+            return;
+
+        if (StatesPerDeviceAddress.get(deviceAddress) != deviceState) //00
+            return;
+
+        StatesPerDeviceAddress.remove(deviceAddress);
+
+        //00   paranoia   the state got replaced already so we must not drop the fresh one
+    }
+
+    private static final class DeviceState
+    {
+        final Set<PreemptibleTransfer> transfers = Collections.newSetFromMap(new WeakHashMap<>()); // weak so that undisposed transfers don't leak
+        final List<PreemptibleTransfer> pausedTransfers = new ArrayList<>(2);
+
+        int activeCommandsCount;
+        long preemptionStartTimestampInMs;
+    }
+}
@@ -0,0 +1,247 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the packets that are in flight towards the device. A single window can be shared by multiple transfers
+ * running over the same connection so that, all of them combined, never exceed the amount of SMP buffers of the device.
+ * <p>
+ * An adaptive window starts small and follows the AIMD scheme: its capacity grows by one packet for every full window of
+ * acknowledgements that arrive without a noticeable increase in latency, and it gets halved whenever the transfer hits a
+ * timeout or the device rewinds the offset (both are telltale signs that we overflowed the buffers of the device).
+ * <p>
+ * On top of that a window can be capped (at any time) to a maximum amount of packets in flight and to a maximum bandwidth. The latter
+ * is enforced through a token-bucket that allows bursts of at most a tenth of a second worth of data.
+ */
+final class TransferWindow
+{
+    interface Listener
+    {
+        void onCapacityChanged(final int newCapacity);
+    }
+
+    private static final float LATENCY_FLATNESS_FACTOR = 1.5f; // acks arriving slower than this factor times the baseline latency are considered a sign of congestion
+    private static final long LATENCY_FLATNESS_SLACK_IN_MS = 20; // to avoid being overly strict with very low baselines
+    private static final int TOKEN_BUCKET_BURST_DIVISOR = 10; //      the bucket holds at most 1/10th of a second worth of bytes
+
+    private static final ScheduledExecutorService WakeUpScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "mcumgr-transfer-window-wakeups");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final boolean _isAdaptive;
+    private final int _maxCapacity;
+    private final Listener _listener;
+
+    private int _capacity;
+    private int _packetsInFlight;
+    private long _bytesInFlight;
+    private long _retransmissionsCount;
+
+    private int _maxPacketsInFlightCap = Integer.MAX_VALUE; // qos cap   applies on top of the (adaptive) capacity
+    private long _maxBytesPerSecond; //                      qos cap   zero means unlimited
+    private double _availableTokens; //                      in bytes   can go negative because packets get sent whole
+    private long _lastRefillTimestampInNanos;
+
+    private long _baselineLatencyInMs = Long.MAX_VALUE;
+    private int _flatLatencyAcksSinceLastChange;
+
+    TransferWindow(final int capacity)
+    {
+        this(capacity, false, null);
+    }
+
+    private TransferWindow(final int maxCapacity, final boolean isAdaptive, final Listener listener)
+    {
+        _listener = listener;
+        _isAdaptive = isAdaptive;
+        _maxCapacity = Math.max(1, maxCapacity);
+
+        _capacity = isAdaptive ? 1 : _maxCapacity;
+    }
+
+    static TransferWindow adaptive(final int maxCapacity, final Listener listener)
+    {
+        return new TransferWindow(maxCapacity, true, listener);
+    }
+
+    synchronized boolean tryAcquire()
+    {
+        if (_packetsInFlight >= Math.min(_capacity, _maxPacketsInFlightCap))
+            return false;
+
+        if (_maxBytesPerSecond > 0 && refillTokens() <= 0)
+            return false;
+
+        _packetsInFlight++;
+        return true;
+    }
+
+    /**
+     * Caps the window on top of its (adaptive) capacity. Can be called while a transfer is in progress - the new caps apply to the very next packet.
+     *
+     * @param maxBytesPerSecond  the maximum bandwidth - zero or negative means unlimited
+     * @param maxPacketsInFlight the maximum amount of packets in flight - zero or negative means that the capacity of the window is the only limit
+     */
+    synchronized void setQualityOfServiceCaps(final long maxBytesPerSecond, final int maxPacketsInFlight)
+    {
+        _maxPacketsInFlightCap = maxPacketsInFlight > 0 ? maxPacketsInFlight : Integer.MAX_VALUE;
+
+        final long newMaxBytesPerSecond = Math.max(0, maxBytesPerSecond);
+        if (newMaxBytesPerSecond > 0 && _maxBytesPerSecond == 0) // start with a full bucket
+        {
+            _availableTokens = Math.max(1, newMaxBytesPerSecond / TOKEN_BUCKET_BURST_DIVISOR);
+            _lastRefillTimestampInNanos = System.nanoTime();
+        }
+
+        _maxBytesPerSecond = newMaxBytesPerSecond;
+    }
+
+    /**
+     * @return how long until the bandwidth-cap allows the next packet to be sent - zero if the window is not being throttled by the bandwidth-cap
+     */
+    synchronized long getMillisUntilBandwidthIsAvailable()
+    {
+        if (_maxBytesPerSecond <= 0)
+            return 0;
+
+        final double availableTokens = refillTokens();
+        if (availableTokens > 0)
+            return 0;
+
+        return (long) Math.ceil(-availableTokens * 1_000 / _maxBytesPerSecond) + 1;
+    }
+
+    /**
+     * Runs the given callback (pe the pump of a throttled transfer) after the given delay on a shared background thread.
+     */
+    static void scheduleWakeUp(final Runnable callback, final long delayInMs)
+    {
+        WakeUpScheduler.schedule(callback, delayInMs, TimeUnit.MILLISECONDS);
+    }
+
+    private double refillTokens() // called while holding the lock
+    {
+        final long now = System.nanoTime();
+        final double elapsedSeconds = (now - _lastRefillTimestampInNanos) / 1_000_000_000.0;
+
+        _lastRefillTimestampInNanos = now;
+        _availableTokens = Math.min(Math.max(1, _maxBytesPerSecond / TOKEN_BUCKET_BURST_DIVISOR), _availableTokens + elapsedSeconds * _maxBytesPerSecond);
+
+        return _availableTokens;
+    }
+
+    /**
+     * Accounts for a packet that has just been handed over to the transport (the slot it occupies must have been acquired beforehand).
+     */
+    synchronized void onPacketSent(final int dataLength, final boolean isRetransmission)
+    {
+        _bytesInFlight += dataLength;
+        _retransmissionsCount += isRetransmission ? 1 : 0;
+
+        if (_maxBytesPerSecond > 0)
+        {
+            _availableTokens -= dataLength;
+        }
+    }
+
+    /**
+     * @param dataLength the length of the data of the packet that got settled - zero if the slot got released before the packet was sent
+     */
+    synchronized void release(final int dataLength)
+    {
+        if (_packetsInFlight > 0)
+        {
+            _packetsInFlight--;
+        }
+
+        _bytesInFlight = Math.max(0, _bytesInFlight - dataLength);
+    }
+
+    synchronized int getCapacity()
+    {
+        return _capacity;
+    }
+
+    synchronized int getMaxCapacity()
+    {
+        return _maxCapacity;
+    }
+
+    synchronized int getPacketsInFlight()
+    {
+        return _packetsInFlight;
+    }
+
+    synchronized long getBytesInFlight()
+    {
+        return _bytesInFlight;
+    }
+
+    synchronized long getRetransmissionsCount()
+    {
+        return _retransmissionsCount;
+    }
+
+    void onPacketAcknowledged(final long latencyInMs)
+    {
+        if (!_isAdaptive)
+            return;
+
+        final int newCapacity;
+        synchronized (this)
+        {
+            _baselineLatencyInMs = Math.min(_baselineLatencyInMs, latencyInMs);
+
+            final boolean isLatencyFlat = latencyInMs <= _baselineLatencyInMs * LATENCY_FLATNESS_FACTOR + LATENCY_FLATNESS_SLACK_IN_MS;
+            if (!isLatencyFlat)
+            {
+                _flatLatencyAcksSinceLastChange = 0; //00
+                return;
+            }
+
+            if (++_flatLatencyAcksSinceLastChange < _capacity || _capacity >= _maxCapacity)
+                return;
+
+            _flatLatencyAcksSinceLastChange = 0;
+            newCapacity = ++_capacity; //10
+        }
+
+        notifyCapacityChanged(newCapacity);
+
+        //00   the buffers of the device are starting to fill up   we hold the capacity steady instead of growing it any further
+        //
+        //10   additive increase
+    }
+
+    void onCongestion()
+    {
+        if (!_isAdaptive)
+            return;
+
+        final int newCapacity;
+        synchronized (this)
+        {
+            _flatLatencyAcksSinceLastChange = 0;
+
+            if (_capacity <= 1)
+                return;
+
+            _capacity = Math.max(1, _capacity / 2); //multiplicative decrease
+            newCapacity = _capacity;
+        }
+
+        notifyCapacityChanged(newCapacity);
+    }
+
+    private void notifyCapacityChanged(final int newCapacity)
+    {
+        if (_listener == null)
+            return;
+
+        _listener.onCapacityChanged(newCapacity);
+    }
+}
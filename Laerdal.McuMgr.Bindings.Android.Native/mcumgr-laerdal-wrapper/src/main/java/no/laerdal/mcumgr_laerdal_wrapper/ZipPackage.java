@@ -8,15 +8,20 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 public final class ZipPackage {
     private static final String MANIFEST = "manifest.json";
+    private static final int STREAM_BUFFER_LENGTH = 64 * 1024;
 
     @SuppressWarnings({"unused", "MismatchedReadAndWriteOfArray"})
     @Keep
@@ -35,14 +40,61 @@ public final class ZipPackage {
 
     private Manifest manifest;
     private final List<Pair<Integer, byte[]>> binaries;
+    private final List<String> binaryEntryNames = new ArrayList<>(2); // the zip-entry each binary came from
 
     public ZipPackage(@NonNull final byte[] data) throws IOException {
-        final ZipInputStream zis = new ZipInputStream( // Unzip the file and look for the manifest.json
-                new ByteArrayInputStream(data)
-        );
+        this(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Reads the package straight off the given file-channel (starting from its very beginning) in a single pass so the zip itself never gets loaded into
+     * memory - only the images get inflated (each one straight into a buffer of its own size). The channel is left open.
+     */
+    public ZipPackage(@NonNull final FileChannel fileChannel) throws IOException {
+        this(new BufferedInputStream(Channels.newInputStream(fileChannel.position(0)), STREAM_BUFFER_LENGTH));
+    }
+
+    /**
+     * Reads the package off the given file through its central directory so only the manifest and the images it lists get inflated (each image straight
+     * into a buffer of the size the manifest announces) while any other entries never get touched.
+     */
+    public ZipPackage(@NonNull final File file) throws IOException {
+        final Map<String, byte[]> entries = new HashMap<>();
+        final Map<String, String> entryNames = new HashMap<>();
+        try (final ZipFile zipFile = new ZipFile(file)) { // reads nothing but the central directory
+            final ZipEntry manifestEntry = zipFile.getEntry(MANIFEST);
+            if (manifestEntry != null) {
+                try (final InputStream is = zipFile.getInputStream(manifestEntry)) {
+                    manifest = parseManifest(is);
+                }
+            }
+
+            final Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while (zipEntries.hasMoreElements()) {
+                final ZipEntry ze = zipEntries.nextElement();
+                if (ze.isDirectory())
+                    throw new IOException("Invalid ZIP");
+
+                final String name = validateFilename(ze.getName(), ".");
+                if (!name.endsWith(".bin") || (manifest != null && getManifestFileSpecs(name) == null)) // images that the manifest doesn't mention are of no use
+                    continue;
+
+                try (final InputStream is = zipFile.getInputStream(ze)) {
+                    entries.put(name, readEntry(is, deduceEntrySize(name, ze)));
+                    entryNames.put(name, ze.getName());
+                }
+            }
+        }
+
+        binaries = pickBinaries(entries, entryNames);
+    }
+
+    private ZipPackage(@NonNull final InputStream inputStream) throws IOException {
+        final ZipInputStream zis = new ZipInputStream(inputStream); // Unzip the file and look for the manifest.json
 
         ZipEntry ze;
         Map<String, byte[]> entries = new HashMap<>();
+        Map<String, String> entryNames = new HashMap<>();
         while ((ze = zis.getNextEntry()) != null) {
 
             if (ze.isDirectory())
@@ -51,26 +103,50 @@ public final class ZipPackage {
             final String name = validateFilename(ze.getName(), ".");
 
             if (name.equals(MANIFEST)) {
-                final Gson gson = new GsonBuilder()
-                        .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
-                        .create();
-
-                manifest = gson.fromJson(new InputStreamReader(zis), Manifest.class);
+                manifest = parseManifest(zis);
 
             } else if (name.endsWith(".bin")) {
-                final byte[] content = getData(zis);
+                final byte[] content = readEntry(zis, deduceEntrySize(name, ze));
                 entries.put(name, content);
+                entryNames.put(name, ze.getName());
             }
 
         }
 
-        binaries = new ArrayList<>(2);
+        binaries = pickBinaries(entries, entryNames);
+    }
+
+    /**
+     * Inflates the images of a package whose layout is known already (see AndroidFirmwarePackageIndex) straight out of the zip-entries the given
+     * description points to - without as much as looking at the manifest or at any other entry.
+     */
+    static List<Pair<Integer, byte[]>> readBinaries(@NonNull final File file, @NonNull final AndroidFirmwarePackageDescription description) throws IOException {
+        final List<Pair<Integer, byte[]>> binaries = new ArrayList<>(description.getImagesCount());
+        try (final ZipFile zipFile = new ZipFile(file)) {
+            for (int i = 0; i < description.getImagesCount(); i++) {
+                final String entryName = description.getImageZipEntryName(i);
+                final ZipEntry ze = entryName == null ? null : zipFile.getEntry(entryName);
+                if (ze == null)
+                    throw new IOException("File not found: " + entryName);
+
+                try (final InputStream is = zipFile.getInputStream(ze)) {
+                    binaries.add(new Pair<>(description.getImageIndex(i), readEntry(is, description.getImageSize(i))));
+                }
+            }
+        }
+
+        return binaries;
+    }
+
+    private List<Pair<Integer, byte[]>> pickBinaries(@NonNull final Map<String, byte[]> entries, @NonNull final Map<String, String> entryNames) throws IOException {
+        final List<Pair<Integer, byte[]>> binaries = new ArrayList<>(2);
         if (manifest == null) {
             // throw new IOException("Zip package doesn't contain a manifest file named '" + MANIFEST + "'!"); //nah   lets be a bit practical
 
             int i = 0;
             for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
                 binaries.add(new Pair<>(i++, entry.getValue()));
+                binaryEntryNames.add(entryNames.get(entry.getKey()));
             }
 
         } else {
@@ -80,17 +156,76 @@ public final class ZipPackage {
                     throw new IOException("File not found: " + fileSpecs.file);
 
                 binaries.add(new Pair<>(fileSpecs.imageIndex, rawBytes));
+                binaryEntryNames.add(entryNames.get(fileSpecs.file));
             }
         }
 
+        return binaries;
     }
 
     public List<Pair<Integer, byte[]>> getBinaries() {
         return binaries;
     }
 
-    private byte[] getData(@NonNull ZipInputStream zis) throws IOException {
-        final byte[] buffer = new byte[1024];
+    /**
+     * @return the names of the zip-entries that the binaries came from (in the same order as getBinaries())
+     */
+    List<String> getBinaryEntryNames() {
+        return binaryEntryNames;
+    }
+
+    private static Manifest parseManifest(@NonNull final InputStream is) {
+        final Gson gson = new GsonBuilder()
+                .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+                .create();
+
+        return gson.fromJson(new InputStreamReader(is), Manifest.class);
+    }
+
+    private Manifest.File getManifestFileSpecs(@NonNull final String name) {
+        if (manifest == null || manifest.files == null)
+            return null;
+
+        for (final Manifest.File fileSpecs : manifest.files) {
+            if (name.equals(fileSpecs.file))
+                return fileSpecs;
+        }
+
+        return null;
+    }
+
+    private long deduceEntrySize(@NonNull final String name, @NonNull final ZipEntry ze) {
+        if (ze.getSize() >= 0) // known whenever the central directory got read or the local header carries it
+            return ze.getSize();
+
+        final Manifest.File fileSpecs = getManifestFileSpecs(name); // streamed zips that put the manifest first
+        return fileSpecs != null && fileSpecs.size > 0 ? fileSpecs.size : -1;
+    }
+
+    private static byte[] readEntry(@NonNull final InputStream is, final long size) throws IOException {
+        if (size < 0)
+            return getData(is);
+
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Images larger than 2GB are not supported");
+
+        final byte[] content = new byte[(int) size]; // right-sized so that each image exists exactly once in memory
+        for (int offset = 0; offset < content.length; ) {
+            final int count = is.read(content, offset, content.length - offset);
+            if (count < 0)
+                throw new IOException("Zip entry is shorter than the announced " + size + " bytes");
+
+            offset += count;
+        }
+
+        if (is.read() != -1)
+            throw new IOException("Zip entry is longer than the announced " + size + " bytes");
+
+        return content;
+    }
+
+    private static byte[] getData(@NonNull InputStream zis) throws IOException { // for entries of unknown size
+        final byte[] buffer = new byte[STREAM_BUFFER_LENGTH];
 
         // Read file content to byte array
         final ByteArrayOutputStream os = new ByteArrayOutputStream();
@@ -0,0 +1,125 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChunkConsumerFileDownloadSinkTest
+{
+    @Test
+    public void runWhenDrained_ShouldNotBlockCaller_GivenConsumerIsStillBusy() throws Exception
+    {
+        // Arrange
+        final CountDownLatch consumerGate = new CountDownLatch(1);
+        final AtomicInteger consumedChunksCount = new AtomicInteger();
+        final ChunkConsumerFileDownloadSink sink = new ChunkConsumerFileDownloadSink(new ByteArrayFileDownloadSink(), new AndroidFileDownloadChunkConsumer()
+        {
+            @Override
+            public void onChunk(final long offset, @NonNull final byte[] data) throws Exception
+            {
+                consumerGate.await();
+                consumedChunksCount.incrementAndGet();
+            }
+
+            @Override
+            public void onDownloadEnded(final boolean isDownloadComplete)
+            {
+            }
+        }, 1_000);
+
+        sink.onTotalLengthKnown(4);
+        sink.write(0, new byte[]{1, 2}, 0, 2);
+        sink.write(2, new byte[]{3, 4}, 0, 2);
+
+        final CountDownLatch drainedLatch = new CountDownLatch(1);
+        final AtomicInteger consumedChunksCountWhenDrained = new AtomicInteger(-1);
+        final AtomicReference<byte[]> handedOverData = new AtomicReference<>();
+
+        // Act
+        sink.runWhenDrained(() -> {
+            consumedChunksCountWhenDrained.set(consumedChunksCount.get());
+            try
+            {
+                handedOverData.set(sink.getDataToHandOverUponCompletion());
+            }
+            catch (final IOException ex)
+            {
+                fail(ex.toString());
+            }
+            drainedLatch.countDown();
+        });
+        final boolean hasDrainedBeforeConsumerCaughtUp = drainedLatch.getCount() == 0;
+        consumerGate.countDown();
+
+        // Assert
+        assertFalse(hasDrainedBeforeConsumerCaughtUp);
+        assertTrue(drainedLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, consumedChunksCountWhenDrained.get());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, handedOverData.get());
+
+        sink.close();
+    }
+
+    @Test
+    public void getDataToHandOverUponCompletion_ShouldThrow_GivenConsumerFailedOnLastChunk() throws Exception
+    {
+        // Arrange
+        final CountDownLatch endedLatch = new CountDownLatch(1);
+        final AtomicBoolean reportedCompletion = new AtomicBoolean(true);
+        final ChunkConsumerFileDownloadSink sink = new ChunkConsumerFileDownloadSink(new ByteArrayFileDownloadSink(), new AndroidFileDownloadChunkConsumer()
+        {
+            @Override
+            public void onChunk(final long offset, @NonNull final byte[] data) throws Exception
+            {
+                throw new Exception("parser choked");
+            }
+
+            @Override
+            public void onDownloadEnded(final boolean isDownloadComplete)
+            {
+                reportedCompletion.set(isDownloadComplete);
+                endedLatch.countDown();
+            }
+        }, 1_000);
+
+        sink.onTotalLengthKnown(2);
+        sink.write(0, new byte[]{1, 2}, 0, 2);
+
+        final CountDownLatch drainedLatch = new CountDownLatch(1);
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+
+        // Act
+        sink.runWhenDrained(() -> {
+            try
+            {
+                sink.getDataToHandOverUponCompletion();
+            }
+            catch (final IOException ex)
+            {
+                failure.set(ex);
+            }
+            drainedLatch.countDown();
+        });
+
+        // Assert
+        assertTrue(drainedLatch.await(5, TimeUnit.SECONDS));
+        assertNotNull(failure.get());
+
+        sink.close();
+        assertTrue(endedLatch.await(5, TimeUnit.SECONDS));
+        assertFalse(reportedCompletion.get());
+    }
+}
@@ -0,0 +1,208 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.transfer.UploadCallback;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaFileUploaderTest
+{
+    private static final String REMOTE_FILE_PATH = "/lfs1/data/some-file.bin";
+    private static final int BLOCK_LENGTH = 64;
+
+    private final byte[] _localData = createData(8 * BLOCK_LENGTH);
+
+    private FakeFsManager _fsManager;
+    private RecordingCallback _callback;
+    private RecordingListener _listener;
+
+    @Before
+    public void setUp()
+    {
+        _fsManager = new FakeFsManager();
+        _callback = new RecordingCallback();
+        _listener = new RecordingListener();
+    }
+
+    @Test
+    public void uploadAsync_ShouldUploadOnlyMergedRangesOfDifferingBlocks_GivenRemoteFileDiffersInSomeBlocks() throws Exception
+    {
+        // Arrange
+        _fsManager.putFile(REMOTE_FILE_PATH, alterBlocks(_localData, 2, 3, 5));
+
+        // Act
+        createDeltaUploader().uploadAsync();
+
+        // Assert
+        assertTrue(_callback.completionLatch.await(5, TimeUnit.SECONDS));
+        assertNull(_callback.failure.get());
+        assertNull(_listener.fallbackReason.get());
+        assertEquals(3 * BLOCK_LENGTH, _listener.bytesToUpload.get()); //     blocks 2+3 get merged into a single range
+        assertEquals(2, _listener.rangesCount.get());
+
+        for (final FakeFsManager.FileRequest request : _fsManager.getFileRequestsLog())
+        {
+            final long endOffset = request.offset + request.data.length;
+            final boolean liesWithinFirstRange = request.offset >= 2 * BLOCK_LENGTH && endOffset <= 4 * BLOCK_LENGTH;
+            final boolean liesWithinSecondRange = request.offset >= 5 * BLOCK_LENGTH && endOffset <= 6 * BLOCK_LENGTH;
+
+            assertTrue("unexpected write at offset " + request.offset, liesWithinFirstRange || liesWithinSecondRange);
+        }
+
+        assertArrayEquals(_localData, _fsManager.getFile(REMOTE_FILE_PATH));
+    }
+
+    @Test
+    public void uploadAsync_ShouldFallBackToFullUpload_GivenFirstBlockDiffers() throws Exception
+    {
+        // Arrange
+        _fsManager.putFile(REMOTE_FILE_PATH, alterBlocks(_localData, 0));
+
+        // Act
+        createDeltaUploader().uploadAsync();
+
+        // Assert
+        assertTrue(_callback.completionLatch.await(5, TimeUnit.SECONDS));
+        assertNull(_callback.failure.get());
+        assertNotNull(_listener.fallbackReason.get());
+        assertEquals(0, _fsManager.getFileRequestsLog().get(0).offset);
+        assertArrayEquals(_localData, _fsManager.getFile(REMOTE_FILE_PATH));
+    }
+
+    @Test
+    public void uploadAsync_ShouldFallBackToFullUpload_GivenRemoteFileIsLongerThanLocalData() throws Exception
+    {
+        // Arrange
+        final byte[] longerRemoteFile = new byte[_localData.length + BLOCK_LENGTH];
+        System.arraycopy(_localData, 0, longerRemoteFile, 0, _localData.length);
+        _fsManager.putFile(REMOTE_FILE_PATH, longerRemoteFile);
+
+        // Act
+        createDeltaUploader().uploadAsync();
+
+        // Assert
+        assertTrue(_callback.completionLatch.await(5, TimeUnit.SECONDS));
+        assertNull(_callback.failure.get());
+        assertNotNull(_listener.fallbackReason.get());
+        assertTrue(_listener.fallbackReason.get().contains("longer"));
+        assertArrayEquals(_localData, _fsManager.getFile(REMOTE_FILE_PATH));
+    }
+
+    @Test
+    public void uploadAsync_ShouldFallBackToFullUpload_GivenDeviceReportsOffsetOutsideRange() throws Exception
+    {
+        // Arrange
+        _fsManager.putFile(REMOTE_FILE_PATH, alterBlocks(_localData, 5));
+        _fsManager.reportOffsetOnNextWrite(0); // as if the remote file got truncated behind our back
+
+        // Act
+        createDeltaUploader().uploadAsync();
+
+        // Assert
+        assertTrue(_callback.completionLatch.await(5, TimeUnit.SECONDS));
+        assertNull(_callback.failure.get());
+        assertNotNull(_listener.fallbackReason.get());
+        assertTrue(_listener.fallbackReason.get().contains("SFU.OCA.010"));
+        assertArrayEquals(_localData, _fsManager.getFile(REMOTE_FILE_PATH));
+    }
+
+    private DeltaFileUploader createDeltaUploader()
+    {
+        return new DeltaFileUploader(
+                _fsManager,
+                REMOTE_FILE_PATH,
+                AndroidFileUploadSource.fromBytes(_localData),
+                new TransferWindow(2),
+                1,
+                BLOCK_LENGTH,
+                _callback,
+                _listener,
+                Runnable::run
+        );
+    }
+
+    private static byte[] alterBlocks(final byte[] data, final int... blockIndices)
+    {
+        final byte[] alteredData = data.clone();
+        for (final int blockIndex : blockIndices)
+        {
+            alteredData[blockIndex * BLOCK_LENGTH + BLOCK_LENGTH / 2] ^= 0x5A;
+        }
+
+        return alteredData;
+    }
+
+    private static byte[] createData(final int length)
+    {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = (byte) (i * 31 + 7);
+        }
+
+        return data;
+    }
+
+    private static final class RecordingListener implements DeltaFileUploader.Listener
+    {
+        final AtomicLong bytesToUpload = new AtomicLong(-1);
+        final AtomicInteger rangesCount = new AtomicInteger(-1);
+        final AtomicReference<String> fallbackReason = new AtomicReference<>();
+
+        @Override
+        public void onDeltaComputed(final long bytesToUpload, final int rangesCount)
+        {
+            this.bytesToUpload.set(bytesToUpload);
+            this.rangesCount.set(rangesCount);
+        }
+
+        @Override
+        public void onFallingBackToFullUpload(@NonNull final String reason)
+        {
+            fallbackReason.set(reason);
+        }
+    }
+
+    private static final class RecordingCallback implements UploadCallback
+    {
+        final CountDownLatch completionLatch = new CountDownLatch(1);
+        final AtomicReference<McuMgrException> failure = new AtomicReference<>();
+
+        @Override
+        public void onUploadProgressChanged(final int bytesSent, final int totalBytes, final long timestamp)
+        {
+        }
+
+        @Override
+        public void onUploadFailed(@NonNull final McuMgrException error)
+        {
+            failure.set(error);
+            completionLatch.countDown();
+        }
+
+        @Override
+        public void onUploadCanceled()
+        {
+            completionLatch.countDown();
+        }
+
+        @Override
+        public void onUploadCompleted()
+        {
+            completionLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrManager;
+import io.runtime.mcumgr.McuMgrTransport;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.managers.FsManager;
+import io.runtime.mcumgr.response.McuMgrResponse;
+import io.runtime.mcumgr.response.fs.McuMgrFsDownloadResponse;
+import io.runtime.mcumgr.response.fs.McuMgrFsUploadResponse;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Emulates the fs-group of a device on top of an in-memory file-system so that our transfer-engines can be exercised without a ble-link. The responses
+ * get delivered on a thread of their own just like the ble-transport does.
+ * <p>
+ * Tests that need to control the order and the outcome of each file-read/file-write can have those requests held back (see setHoldsFileRequests()) and
+ * then respond to them one by one from the test-thread. The status- and hash-queries always get responded to straight away.
+ */
+final class FakeFsManager extends FsManager
+{
+    static final int RC_ENOENT = 5;
+
+    private final Object _lock = new Object();
+
+    private final Map<String, byte[]> _files = new HashMap<>();
+    private final List<FileRequest> _heldFileRequests = new ArrayList<>();
+    private final List<FileRequest> _fileRequestsLog = new ArrayList<>();
+    private final ExecutorService _deviceThread = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "fake-device");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private int _mtu = 256;
+    private int _downloadChunkLength = 100;
+    private boolean _isHoldingFileRequests;
+    private long _offsetToReportOnNextWrite = -1;
+
+    FakeFsManager()
+    {
+        super(mock(McuMgrTransport.class));
+    }
+
+    static final class FileRequest
+    {
+        final boolean isWrite;
+        final String remoteFilePath;
+        final long offset;
+        final byte[] data; //   null for file-reads
+
+        private final McuMgrCallback<?> _callback;
+
+        private FileRequest(final boolean isWrite, @NonNull final String remoteFilePath, final long offset, final byte[] data, @NonNull final McuMgrCallback<?> callback)
+        {
+            this.isWrite = isWrite;
+            this.remoteFilePath = remoteFilePath;
+            this.offset = offset;
+            this.data = data;
+
+            _callback = callback;
+        }
+    }
+
+    void putFile(@NonNull final String remoteFilePath, @NonNull final byte[] contents)
+    {
+        synchronized (_lock)
+        {
+            _files.put(remoteFilePath, contents.clone());
+        }
+    }
+
+    byte[] getFile(@NonNull final String remoteFilePath)
+    {
+        synchronized (_lock)
+        {
+            final byte[] contents = _files.get(remoteFilePath);
+            return contents == null ? null : contents.clone();
+        }
+    }
+
+    void setMtu(final int mtu)
+    {
+        _mtu = mtu;
+    }
+
+    void setDownloadChunkLength(final int downloadChunkLength)
+    {
+        _downloadChunkLength = downloadChunkLength;
+    }
+
+    void setHoldsFileRequests(final boolean isHoldingFileRequests)
+    {
+        synchronized (_lock)
+        {
+            _isHoldingFileRequests = isHoldingFileRequests;
+        }
+    }
+
+    /**
+     * Makes the device ignore the next file-write and report the given offset instead (pe because the file got truncated behind our back).
+     */
+    void reportOffsetOnNextWrite(final long offset)
+    {
+        synchronized (_lock)
+        {
+            _offsetToReportOnNextWrite = offset;
+        }
+    }
+
+    List<FileRequest> getHeldFileRequests()
+    {
+        synchronized (_lock)
+        {
+            return new ArrayList<>(_heldFileRequests);
+        }
+    }
+
+    /**
+     * @return every file-read and file-write that reached the device so far - in the order they arrived
+     */
+    List<FileRequest> getFileRequestsLog()
+    {
+        synchronized (_lock)
+        {
+            return new ArrayList<>(_fileRequestsLog);
+        }
+    }
+
+    FileRequest findHeldFileRequest(@NonNull final String remoteFilePath, final long offset)
+    {
+        for (final FileRequest request : getHeldFileRequests())
+        {
+            if (request.remoteFilePath.equals(remoteFilePath) && request.offset == offset)
+                return request;
+        }
+
+        return null;
+    }
+
+    /**
+     * Responds to the given held request on the calling thread just like the device would have.
+     */
+    void respond(@NonNull final FileRequest request)
+    {
+        respond(request, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxDataLength caps the data of the response to a file-read (pe to emulate a short chunk in the middle of the file)
+     */
+    @SuppressWarnings("unchecked")
+    void respond(@NonNull final FileRequest request, final int maxDataLength)
+    {
+        unhold(request);
+
+        if (request.isWrite)
+        {
+            ((McuMgrCallback<McuMgrFsUploadResponse>) request._callback).onResponse(write(request.remoteFilePath, request.offset, request.data));
+            return;
+        }
+
+        ((McuMgrCallback<McuMgrFsDownloadResponse>) request._callback).onResponse(read(request.remoteFilePath, request.offset, maxDataLength));
+    }
+
+    void fail(@NonNull final FileRequest request, @NonNull final McuMgrException exception)
+    {
+        unhold(request);
+
+        request._callback.onError(exception);
+    }
+
+    @Override
+    public int getMtu()
+    {
+        return _mtu;
+    }
+
+    @Override
+    public void download(@NonNull final String name, final int offset, @NonNull final McuMgrCallback<McuMgrFsDownloadResponse> callback)
+    {
+        final FileRequest request = new FileRequest(false, name, offset, null, callback);
+        if (tryHold(request))
+            return;
+
+        _deviceThread.execute(() -> callback.onResponse(read(name, offset, Integer.MAX_VALUE)));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends McuMgrResponse> void send(final int op, final int commandId, final Map<String, Object> payloadMap, final long timeout, final Class<T> respType, final McuMgrCallback<T> callback)
+    {
+        final String name = (String) payloadMap.get("name");
+        if (op == McuMgrManager.OP_WRITE && commandId == McuMgrFsHelpers.SMP_FS_FILE_COMMAND_ID)
+        {
+            final FileRequest request = new FileRequest(true, name, ((Number) payloadMap.get("off")).longValue(), (byte[]) payloadMap.get("data"), callback);
+            if (tryHold(request))
+                return;
+
+            _deviceThread.execute(() -> callback.onResponse((T) write(name, request.offset, request.data)));
+            return;
+        }
+
+        final McuMgrResponse response;
+        if (commandId == McuMgrFsHelpers.SMP_FS_STATUS_COMMAND_ID)
+        {
+            response = queryStatus(name);
+        }
+        else if (commandId == McuMgrFsHelpers.SMP_FS_HASH_COMMAND_ID)
+        {
+            final Object length = payloadMap.get("len");
+            response = queryHash(name, (String) payloadMap.get("type"), ((Number) payloadMap.get("off")).longValue(), length == null ? -1 : ((Number) length).longValue());
+        }
+        else
+        {
+            throw new UnsupportedOperationException("The fake device doesn't support the command " + commandId + " of the fs-group");
+        }
+
+        _deviceThread.execute(() -> callback.onResponse((T) response));
+    }
+
+    private boolean tryHold(@NonNull final FileRequest request)
+    {
+        synchronized (_lock)
+        {
+            _fileRequestsLog.add(request);
+            if (!_isHoldingFileRequests)
+                return false;
+
+            _heldFileRequests.add(request);
+            return true;
+        }
+    }
+
+    private void unhold(@NonNull final FileRequest request)
+    {
+        synchronized (_lock)
+        {
+            if (!_heldFileRequests.remove(request))
+                throw new IllegalStateException("The request for offset " + request.offset + " of '" + request.remoteFilePath + "' is not being held");
+        }
+    }
+
+    private McuMgrFsUploadResponse write(@NonNull final String name, final long offset, @NonNull final byte[] data)
+    {
+        final McuMgrFsUploadResponse response = new McuMgrFsUploadResponse();
+        synchronized (_lock)
+        {
+            if (_offsetToReportOnNextWrite >= 0)
+            {
+                response.off = (int) _offsetToReportOnNextWrite;
+                _offsetToReportOnNextWrite = -1;
+                return response;
+            }
+
+            final byte[] contents = offset == 0 ? new byte[0] : _files.get(name); // writes at offset zero truncate the file
+            if (contents == null || offset > contents.length)
+            {
+                response.rc = RC_ENOENT;
+                return response;
+            }
+
+            final byte[] newContents = Arrays.copyOf(contents, (int) Math.max(contents.length, offset + data.length));
+            System.arraycopy(data, 0, newContents, (int) offset, data.length);
+            _files.put(name, newContents);
+
+            response.off = (int) (offset + data.length);
+            return response;
+        }
+    }
+
+    private McuMgrFsDownloadResponse read(@NonNull final String name, final long offset, final int maxDataLength)
+    {
+        final McuMgrFsDownloadResponse response = new McuMgrFsDownloadResponse();
+        synchronized (_lock)
+        {
+            final byte[] contents = _files.get(name);
+            if (contents == null || offset > contents.length)
+            {
+                response.rc = RC_ENOENT;
+                return response;
+            }
+
+            final int dataLength = (int) Math.min(Math.min(_downloadChunkLength, maxDataLength), contents.length - offset);
+
+            response.off = (int) offset;
+            response.len = offset == 0 ? contents.length : 0; // devices report the size of the file only in the response for offset zero
+            response.data = Arrays.copyOfRange(contents, (int) offset, (int) offset + dataLength);
+            return response;
+        }
+    }
+
+    private McuMgrFsHelpers.FileStatusResponse queryStatus(@NonNull final String name)
+    {
+        final McuMgrFsHelpers.FileStatusResponse response = new McuMgrFsHelpers.FileStatusResponse();
+        synchronized (_lock)
+        {
+            final byte[] contents = _files.get(name);
+            if (contents == null)
+            {
+                response.rc = RC_ENOENT;
+                return response;
+            }
+
+            response.len = contents.length;
+            return response;
+        }
+    }
+
+    private McuMgrFsHelpers.FileHashResponse queryHash(@NonNull final String name, @NonNull final String type, final long offset, final long length)
+    {
+        final byte[] range;
+        final McuMgrFsHelpers.FileHashResponse response = new McuMgrFsHelpers.FileHashResponse();
+        synchronized (_lock)
+        {
+            final byte[] contents = _files.get(name);
+            if (contents == null || offset > contents.length)
+            {
+                response.rc = RC_ENOENT;
+                return response;
+            }
+
+            final long endOffset = length < 0 ? contents.length : Math.min(contents.length, offset + length);
+            range = Arrays.copyOfRange(contents, (int) offset, (int) endOffset);
+        }
+
+        response.type = type;
+        response.off = offset;
+        response.len = range.length;
+
+        if (McuMgrFsHelpers.HASH_TYPE_CRC32.equals(type))
+        {
+            final CRC32 crc32 = new CRC32();
+            crc32.update(range, 0, range.length);
+            response.output = crc32.getValue();
+            return response;
+        }
+
+        try
+        {
+            response.output = MessageDigest.getInstance("SHA-256").digest(range);
+        }
+        catch (final Exception ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+
+        return response;
+    }
+}
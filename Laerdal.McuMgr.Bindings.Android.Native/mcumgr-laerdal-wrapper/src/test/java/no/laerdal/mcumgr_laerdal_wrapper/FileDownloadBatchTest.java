@@ -0,0 +1,214 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.transfer.DownloadCallback;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileDownloadBatchTest
+{
+    private static final int CHUNK_LENGTH = 100;
+    private static final String[] REMOTE_FILE_PATHS = {"/lfs1/file-0.bin", "/lfs1/file-1.bin", "/lfs1/file-2.bin"};
+
+    private FakeFsManager _fsManager;
+    private RecordingCallback _callback;
+    private RecordingListener _listener;
+
+    @Before
+    public void setUp()
+    {
+        _fsManager = new FakeFsManager();
+        _fsManager.setDownloadChunkLength(CHUNK_LENGTH);
+        _fsManager.setHoldsFileRequests(true);
+
+        _callback = new RecordingCallback();
+        _listener = new RecordingListener();
+    }
+
+    @Test
+    public void downloadAsync_ShouldRequestNextFile_GivenLastChunkOfPreviousFileHasBeenRequested()
+    {
+        // Arrange
+        putFiles(createData(CHUNK_LENGTH + 50), createData(CHUNK_LENGTH / 2));
+        final FileDownloadBatch batch = new FileDownloadBatch(_fsManager, new String[]{REMOTE_FILE_PATHS[0], REMOTE_FILE_PATHS[1]}, _callback, _listener);
+        batch.downloadAsync();
+
+        final boolean isSecondFileRequestedUpfront = _fsManager.findHeldFileRequest(REMOTE_FILE_PATHS[1], 0) != null; // the size of the first file is unknown at this point
+
+        // Act
+        _fsManager.respond(_fsManager.findHeldFileRequest(REMOTE_FILE_PATHS[0], 0));
+
+        // Assert
+        assertFalse(isSecondFileRequestedUpfront);
+        assertEquals(asList(0, 1), _listener.startedFileIndices);
+        assertNotNull(_fsManager.findHeldFileRequest(REMOTE_FILE_PATHS[0], CHUNK_LENGTH)); //  still in flight
+        assertNotNull(_fsManager.findHeldFileRequest(REMOTE_FILE_PATHS[1], 0));
+    }
+
+    @Test
+    public void downloadAsync_ShouldReportAggregateProgress_GivenMultipleFiles()
+    {
+        // Arrange
+        final byte[][] files = {createData(CHUNK_LENGTH + 50), createData(2 * CHUNK_LENGTH + 50), createData(CHUNK_LENGTH + 20)};
+        final int totalBytes = files[0].length + files[1].length + files[2].length;
+        putFiles(files);
+
+        final FileDownloadBatch batch = new FileDownloadBatch(_fsManager, REMOTE_FILE_PATHS, _callback, _listener);
+        batch.downloadAsync();
+
+        // Act
+        _fsManager.respond(_fsManager.findHeldFileRequest(REMOTE_FILE_PATHS[0], 0));
+        final int bytesReceivedAfterFirstChunk = _callback.lastBytesReceived.get();
+        final int estimatedTotalBytesAfterFirstChunk = _callback.lastTotalBytes.get();
+
+        respondToAllHeldFileRequests();
+
+        // Assert
+        assertEquals(CHUNK_LENGTH, bytesReceivedAfterFirstChunk);
+        assertEquals(3 * files[0].length, estimatedTotalBytesAfterFirstChunk); // the files that haven't started yet are assumed to be as big as the first one
+        assertEquals(totalBytes, _callback.lastBytesReceived.get());
+        assertEquals(totalBytes, _callback.lastTotalBytes.get());
+        assertEquals(1, _callback.completionsCount.get());
+        assertNull(_callback.failure.get());
+        for (int i = 0; i < files.length; i++)
+        {
+            assertArrayEquals(files[i], _listener.completedFiles.get(i));
+        }
+    }
+
+    @Test
+    public void downloadAsync_ShouldCancelOtherFilesAndReportFailureOnce_GivenOneFileFails()
+    {
+        // Arrange
+        _fsManager.putFile(REMOTE_FILE_PATHS[0], createData(CHUNK_LENGTH + 50));
+        _fsManager.putFile(REMOTE_FILE_PATHS[2], createData(CHUNK_LENGTH / 2)); //    the second file is missing
+
+        final FileDownloadBatch batch = new FileDownloadBatch(_fsManager, REMOTE_FILE_PATHS, _callback, _listener);
+        batch.downloadAsync();
+        _fsManager.respond(_fsManager.findHeldFileRequest(REMOTE_FILE_PATHS[0], 0)); //  kicks off the second file
+
+        // Act
+        _fsManager.respond(_fsManager.findHeldFileRequest(REMOTE_FILE_PATHS[1], 0));
+        respondToAllHeldFileRequests(); //                                              the responses that arrive after the failure must be of no consequence
+
+        // Assert
+        assertEquals(1, _callback.failuresCount.get());
+        assertTrue(_callback.failure.get().getMessage().contains("FDB.FC.ODF.010"));
+        assertEquals(0, _callback.completionsCount.get());
+        assertEquals(asList(0, 1), _listener.startedFileIndices);
+        assertTrue(_listener.completedFiles.isEmpty()); //                              the first file got cancelled before its last chunk arrived
+        for (final FakeFsManager.FileRequest request : _fsManager.getFileRequestsLog())
+        {
+            assertNotEquals(REMOTE_FILE_PATHS[2], request.remoteFilePath); // never got started
+        }
+    }
+
+    private void putFiles(@NonNull final byte[]... files)
+    {
+        for (int i = 0; i < files.length; i++)
+        {
+            _fsManager.putFile(REMOTE_FILE_PATHS[i], files[i]);
+        }
+    }
+
+    private void respondToAllHeldFileRequests()
+    {
+        for (List<FakeFsManager.FileRequest> heldRequests = _fsManager.getHeldFileRequests(); !heldRequests.isEmpty(); heldRequests = _fsManager.getHeldFileRequests())
+        {
+            _fsManager.respond(heldRequests.get(0));
+        }
+    }
+
+    private static List<Integer> asList(final Integer... values)
+    {
+        final List<Integer> list = new ArrayList<>();
+        Collections.addAll(list, values);
+
+        return list;
+    }
+
+    private static byte[] createData(final int length)
+    {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = (byte) (i * 31 + 7);
+        }
+
+        return data;
+    }
+
+    private static final class RecordingListener implements FileDownloadBatch.Listener
+    {
+        final List<Integer> startedFileIndices = Collections.synchronizedList(new ArrayList<>());
+        final Map<Integer, byte[]> completedFiles = new ConcurrentHashMap<>();
+
+        @Override
+        public void onFileDownloadStarted(final int fileIndex)
+        {
+            startedFileIndices.add(fileIndex);
+        }
+
+        @Override
+        public void onFileDownloadProgressChanged(final int fileIndex, final int bytesReceivedSoFar, final int totalBytes)
+        {
+        }
+
+        @Override
+        public void onFileDownloadCompleted(final int fileIndex, @NonNull final byte[] data)
+        {
+            completedFiles.put(fileIndex, data);
+        }
+    }
+
+    private static final class RecordingCallback implements DownloadCallback
+    {
+        final AtomicInteger lastBytesReceived = new AtomicInteger(-1);
+        final AtomicInteger lastTotalBytes = new AtomicInteger(-1);
+        final AtomicInteger failuresCount = new AtomicInteger();
+        final AtomicInteger completionsCount = new AtomicInteger();
+        final AtomicReference<McuMgrException> failure = new AtomicReference<>();
+
+        @Override
+        public void onDownloadProgressChanged(final int bytesReceivedSoFar, final int totalBytes, final long timestamp)
+        {
+            lastBytesReceived.set(bytesReceivedSoFar);
+            lastTotalBytes.set(totalBytes);
+        }
+
+        @Override
+        public void onDownloadFailed(final McuMgrException error)
+        {
+            failuresCount.incrementAndGet();
+            failure.set(error);
+        }
+
+        @Override
+        public void onDownloadCanceled()
+        {
+        }
+
+        @Override
+        public void onDownloadCompleted(final byte[] data)
+        {
+            completionsCount.incrementAndGet();
+        }
+    }
+}
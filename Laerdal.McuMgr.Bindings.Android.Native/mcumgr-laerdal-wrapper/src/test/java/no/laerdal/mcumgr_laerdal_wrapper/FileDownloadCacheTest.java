@@ -0,0 +1,179 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class FileDownloadCacheTest
+{
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void tryGet_ShouldReturnContents_GivenContentsWereCachedUnderSameKey() throws Exception
+    {
+        // Arrange
+        final FileDownloadCache cache = FileDownloadCache.open(temporaryFolder.newFolder(), 1_000);
+        final byte[] data = createData(100, 1);
+        cache.tryPut(createSha256Key(data), data);
+
+        // Act
+        final byte[] cachedData = cache.tryGet(createSha256Key(data));
+
+        // Assert
+        assertArrayEquals(data, cachedData);
+    }
+
+    @Test
+    public void tryPut_ShouldIgnoreContents_GivenTheyDontMatchTheKey() throws Exception
+    {
+        // Arrange
+        final FileDownloadCache cache = FileDownloadCache.open(temporaryFolder.newFolder(), 1_000);
+        final FileDownloadCache.Key key = createSha256Key(createData(100, 1));
+
+        // Act
+        cache.tryPut(key, createData(100, 2)); // the remote file changed between the hash-query and the download
+
+        // Assert
+        assertNull(cache.tryGet(key));
+    }
+
+    @Test
+    public void tryPut_ShouldIgnoreContents_GivenTheyExceedTheBudget() throws Exception
+    {
+        // Arrange
+        final File directory = temporaryFolder.newFolder();
+        final FileDownloadCache cache = FileDownloadCache.open(directory, 100);
+        final byte[] data = createData(101, 1);
+
+        // Act
+        cache.tryPut(createSha256Key(data), data);
+
+        // Assert
+        assertNull(cache.tryGet(createSha256Key(data)));
+        assertEquals(0, listEntries(directory).length);
+    }
+
+    @Test
+    public void tryPut_ShouldEvictLeastRecentlyUsedEntries_GivenBudgetIsExceeded() throws Exception
+    {
+        // Arrange
+        final File directory = temporaryFolder.newFolder();
+        final FileDownloadCache cache = FileDownloadCache.open(directory, 250);
+        final byte[] dataA = createData(100, 1);
+        final byte[] dataB = createData(100, 2);
+        final byte[] dataC = createData(100, 3);
+        cache.tryPut(createSha256Key(dataA), dataA);
+        cache.tryPut(createSha256Key(dataB), dataB);
+        cache.tryGet(createSha256Key(dataA)); // makes B the least recently used entry
+
+        // Act
+        cache.tryPut(createSha256Key(dataC), dataC);
+
+        // Assert
+        assertNotNull(cache.tryGet(createSha256Key(dataA)));
+        assertNull(cache.tryGet(createSha256Key(dataB)));
+        assertNotNull(cache.tryGet(createSha256Key(dataC)));
+        assertEquals(2, listEntries(directory).length);
+    }
+
+    @Test
+    public void setMaxTotalSize_ShouldEvictEntries_GivenSmallerBudget() throws Exception
+    {
+        // Arrange
+        final FileDownloadCache cache = FileDownloadCache.open(temporaryFolder.newFolder(), 1_000);
+        final byte[] dataA = createData(100, 1);
+        final byte[] dataB = createData(100, 2);
+        cache.tryPut(createSha256Key(dataA), dataA);
+        cache.tryPut(createSha256Key(dataB), dataB);
+
+        // Act
+        cache.setMaxTotalSize(150);
+
+        // Assert
+        assertNull(cache.tryGet(createSha256Key(dataA)));
+        assertNotNull(cache.tryGet(createSha256Key(dataB)));
+    }
+
+    @Test
+    public void open_ShouldLoadEntriesAndDropLeftovers_GivenDirectoryOfPreviousRun() throws Exception
+    {
+        // Arrange
+        final File directory = temporaryFolder.newFolder();
+        final byte[] data = createData(100, 1);
+        FileDownloadCache.open(directory, 1_000).tryPut(createSha256Key(data), data);
+
+        final File directoryOfNextRun = temporaryFolder.newFolder(); // caches are kept per directory so this is how we emulate the next run of the process
+        for (final File entry : listEntries(directory))
+        {
+            Files.copy(entry.toPath(), new File(directoryOfNextRun, entry.getName()).toPath());
+        }
+        Files.write(new File(directoryOfNextRun, "leftover.blob.tmp").toPath(), createData(10, 0)); // a crash midway through tryPut()
+
+        // Act
+        final FileDownloadCache cache = FileDownloadCache.open(directoryOfNextRun, 1_000);
+
+        // Assert
+        assertArrayEquals(data, cache.tryGet(createSha256Key(data)));
+        assertEquals(1, listEntries(directoryOfNextRun).length);
+    }
+
+    @Test
+    public void createKey_ShouldScopeCrc32KeysToRemoteFilePath()
+    {
+        // Arrange
+        final McuMgrFsHelpers.FileHashResponse response = new McuMgrFsHelpers.FileHashResponse();
+        response.type = McuMgrFsHelpers.HASH_TYPE_CRC32;
+        response.output = 0x12345678L;
+        response.len = 100;
+
+        // Act
+        final FileDownloadCache.Key key1 = FileDownloadCache.createKey(response, "/lfs1/file1.bin");
+        final FileDownloadCache.Key key2 = FileDownloadCache.createKey(response, "/lfs1/file2.bin");
+
+        // Assert
+        assertNotNull(key1);
+        assertNotEquals(key1.getFileName(), key2.getFileName());
+    }
+
+    private static FileDownloadCache.Key createSha256Key(final byte[] data) throws Exception
+    {
+        final McuMgrFsHelpers.FileHashResponse response = new McuMgrFsHelpers.FileHashResponse();
+        response.type = McuMgrFsHelpers.HASH_TYPE_SHA256;
+        response.output = MessageDigest.getInstance("SHA-256").digest(data);
+        response.len = data.length;
+
+        return FileDownloadCache.createKey(response, "/lfs1/some-file.bin");
+    }
+
+    private static byte[] createData(final int length, final int seed)
+    {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = (byte) (i * 31 + seed);
+        }
+
+        return data;
+    }
+
+    private static File[] listEntries(final File directory) throws IOException
+    {
+        final File[] files = directory.listFiles();
+        if (files == null)
+            throw new IOException("Failed to list the contents of " + directory);
+
+        return files;
+    }
+}
@@ -0,0 +1,260 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import androidx.annotation.NonNull;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.transfer.UploadCallback;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileUploadBatchTest
+{
+    private static final int MTU = 158; //             leaves exactly CHUNK_LENGTH bytes of data per write after the 58 bytes of protocol overhead for our remote file paths
+    private static final int CHUNK_LENGTH = 100;
+    private static final String[] REMOTE_FILE_PATHS = {"/lfs1/file-0.bin", "/lfs1/file-1.bin", "/lfs1/file-2.bin"};
+
+    private FakeFsManager _fsManager;
+    private RecordingCallback _callback;
+    private RecordingListener _listener;
+
+    @Before
+    public void setUp()
+    {
+        _fsManager = new FakeFsManager();
+        _fsManager.setMtu(MTU);
+        _fsManager.setHoldsFileRequests(true);
+
+        _callback = new RecordingCallback();
+        _listener = new RecordingListener();
+    }
+
+    @Test
+    public void uploadAsync_ShouldStartNextFile_GivenLastChunkOfPreviousFileHasBeenSent()
+    {
+        // Arrange
+        final FileUploadBatch batch = createBatch(new TransferWindow(4), createData(CHUNK_LENGTH / 2), createData(CHUNK_LENGTH / 2));
+
+        // Act
+        batch.uploadAsync();
+
+        // Assert
+        assertEquals(0, _callback.progressReportsCount.get()); //  nothing has been acknowledged yet
+        assertEquals(asList(0, 1), _listener.startedFileIndices);
+        assertNotNull(_fsManager.findHeldFileRequest(REMOTE_FILE_PATHS[0], 0));
+        assertNotNull(_fsManager.findHeldFileRequest(REMOTE_FILE_PATHS[1], 0));
+    }
+
+    @Test
+    public void uploadAsync_ShouldLetNextFileSend_GivenPreviousFileFreesUpSlotOfSharedWindow()
+    {
+        // Arrange
+        final FileUploadBatch batch = createBatch(new TransferWindow(2), createData(2 * CHUNK_LENGTH), createData(CHUNK_LENGTH / 2));
+        batch.uploadAsync();
+
+        final boolean hasSecondFileSentBeforeAnyAck = _fsManager.findHeldFileRequest(REMOTE_FILE_PATHS[1], 0) != null;
+
+        // Act
+        _fsManager.respond(_fsManager.findHeldFileRequest(REMOTE_FILE_PATHS[0], 0));
+
+        // Assert
+        assertEquals(asList(0, 1), _listener.startedFileIndices); // started but throttled by the window that the first file filled up
+        assertFalse(hasSecondFileSentBeforeAnyAck);
+        assertNotNull(_fsManager.findHeldFileRequest(REMOTE_FILE_PATHS[1], 0));
+        assertEquals(2, _fsManager.getHeldFileRequests().size());
+    }
+
+    @Test
+    public void uploadAsync_ShouldReportAggregateProgress_GivenMultipleFiles()
+    {
+        // Arrange
+        final byte[][] files = {createData(3 * CHUNK_LENGTH + 20), createData(CHUNK_LENGTH + 20), createData(CHUNK_LENGTH / 2)};
+        final int totalBytes = files[0].length + files[1].length + files[2].length;
+        final FileUploadBatch batch = createBatch(new TransferWindow(2), files);
+
+        // Act
+        batch.uploadAsync();
+        respondToAllHeldFileRequests();
+
+        // Assert
+        assertEquals(1, _callback.completionsCount.get());
+        assertNull(_callback.failure.get());
+        assertEquals(totalBytes, _callback.lastBytesSent.get());
+        assertEquals(totalBytes, _callback.lastTotalBytes.get());
+        assertEquals(asList(0, 1, 2), _listener.completedFileIndices);
+        for (int i = 0; i < files.length; i++)
+        {
+            assertArrayEquals(files[i], _fsManager.getFile(REMOTE_FILE_PATHS[i]));
+        }
+    }
+
+    @Test
+    public void uploadAsync_ShouldCancelOtherFilesAndReportFailureOnce_GivenOneFileFailsFatally()
+    {
+        // Arrange
+        final TrackingFileUploadSource[] sources = {
+                new TrackingFileUploadSource(createData(2 * CHUNK_LENGTH)),
+                new TrackingFileUploadSource(createData(CHUNK_LENGTH / 2)),
+                new TrackingFileUploadSource(createData(CHUNK_LENGTH / 2))
+        };
+        final FileUploadBatch batch = new FileUploadBatch(_fsManager, REMOTE_FILE_PATHS, sources, new TransferWindow(2), 1, _callback, _listener);
+        batch.uploadAsync();
+
+        // Act
+        _fsManager.fail(_fsManager.findHeldFileRequest(REMOTE_FILE_PATHS[0], 0), new McuMgrException("the device choked"));
+        respondToAllHeldFileRequests(); // the responses that arrive after the failure must be of no consequence
+
+        // Assert
+        assertEquals(1, _callback.failuresCount.get());
+        assertEquals(0, _callback.completionsCount.get());
+        assertEquals(asList(0, 1), _listener.startedFileIndices);
+        assertTrue(sources[2].isClosed); //                             never got started
+        for (final FakeFsManager.FileRequest request : _fsManager.getFileRequestsLog())
+        {
+            assertEquals(REMOTE_FILE_PATHS[0], request.remoteFilePath); // the second file got cancelled before it could send anything
+        }
+    }
+
+    private FileUploadBatch createBatch(@NonNull final TransferWindow window, @NonNull final byte[]... files)
+    {
+        final String[] remoteFilePaths = new String[files.length];
+        final AndroidFileUploadSource[] sources = new AndroidFileUploadSource[files.length];
+        for (int i = 0; i < files.length; i++)
+        {
+            remoteFilePaths[i] = REMOTE_FILE_PATHS[i];
+            sources[i] = AndroidFileUploadSource.fromBytes(files[i]);
+        }
+
+        return new FileUploadBatch(_fsManager, remoteFilePaths, sources, window, 1, _callback, _listener);
+    }
+
+    private void respondToAllHeldFileRequests()
+    {
+        for (List<FakeFsManager.FileRequest> heldRequests = _fsManager.getHeldFileRequests(); !heldRequests.isEmpty(); heldRequests = _fsManager.getHeldFileRequests())
+        {
+            _fsManager.respond(heldRequests.get(0));
+        }
+    }
+
+    private static List<Integer> asList(final Integer... values)
+    {
+        final List<Integer> list = new ArrayList<>();
+        Collections.addAll(list, values);
+
+        return list;
+    }
+
+    private static byte[] createData(final int length)
+    {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = (byte) (i * 31 + 7);
+        }
+
+        return data;
+    }
+
+    private static final class TrackingFileUploadSource extends AndroidFileUploadSource
+    {
+        private final byte[] _data;
+
+        volatile boolean isClosed;
+
+        TrackingFileUploadSource(@NonNull final byte[] data)
+        {
+            _data = data;
+        }
+
+        @Override
+        public long getLength()
+        {
+            return _data.length;
+        }
+
+        @Override
+        int read(final long offset, @NonNull final byte[] buffer, final int bufferOffset, final int length)
+        {
+            final int bytesToCopy = (int) Math.min(length, _data.length - offset);
+            System.arraycopy(_data, (int) offset, buffer, bufferOffset, bytesToCopy);
+
+            return bytesToCopy;
+        }
+
+        @Override
+        public void close()
+        {
+            isClosed = true;
+        }
+    }
+
+    private static final class RecordingListener implements FileUploadBatch.Listener
+    {
+        final List<Integer> startedFileIndices = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> completedFileIndices = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onFileUploadStarted(final int fileIndex)
+        {
+            startedFileIndices.add(fileIndex);
+        }
+
+        @Override
+        public void onFileUploadProgressChanged(final int fileIndex, final int bytesSentSoFar, final int totalBytes)
+        {
+        }
+
+        @Override
+        public void onFileUploadCompleted(final int fileIndex)
+        {
+            completedFileIndices.add(fileIndex);
+        }
+    }
+
+    private static final class RecordingCallback implements UploadCallback
+    {
+        final AtomicInteger progressReportsCount = new AtomicInteger();
+        final AtomicInteger lastBytesSent = new AtomicInteger(-1);
+        final AtomicInteger lastTotalBytes = new AtomicInteger(-1);
+        final AtomicInteger failuresCount = new AtomicInteger();
+        final AtomicInteger completionsCount = new AtomicInteger();
+        final AtomicReference<McuMgrException> failure = new AtomicReference<>();
+
+        @Override
+        public void onUploadProgressChanged(final int bytesSent, final int totalBytes, final long timestamp)
+        {
+            progressReportsCount.incrementAndGet();
+            lastBytesSent.set(bytesSent);
+            lastTotalBytes.set(totalBytes);
+        }
+
+        @Override
+        public void onUploadFailed(@NonNull final McuMgrException error)
+        {
+            failuresCount.incrementAndGet();
+            failure.set(error);
+        }
+
+        @Override
+        public void onUploadCanceled()
+        {
+        }
+
+        @Override
+        public void onUploadCompleted()
+        {
+            completionsCount.incrementAndGet();
+        }
+    }
+}
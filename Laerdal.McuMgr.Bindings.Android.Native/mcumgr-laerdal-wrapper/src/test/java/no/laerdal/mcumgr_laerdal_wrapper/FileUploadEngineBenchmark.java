@@ -0,0 +1,323 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrScheme;
+import io.runtime.mcumgr.McuMgrTransport;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.managers.FsManager;
+import io.runtime.mcumgr.response.fs.McuMgrFsUploadResponse;
+import io.runtime.mcumgr.transfer.FileUploader;
+import io.runtime.mcumgr.transfer.UploadCallback;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pushes a few MB through a loopback McuMgrTransport with each of the upload engines and reports the bytes allocated per MB and the frames per second.
+ * The loopback transport acknowledges each write-request on a thread of its own (just like the ble-transport does) so the figures reflect the cost of
+ * encoding and sending the requests and nothing else. Only the allocations get asserted upon - the throughput depends way too much on the machine.
+ */
+public class FileUploadEngineBenchmark
+{
+    private static final int MTU = 498;
+    private static final int MEGABYTE = 1024 * 1024;
+    private static final int MEGABYTES_TO_UPLOAD = 8;
+    private static final int MEGABYTES_TO_WARM_UP_WITH = 2;
+    private static final int WINDOW_CAPACITY = 4;
+    private static final String REMOTE_FILE_PATH = "/lfs1/data/benchmark.bin";
+
+    private enum Engine
+    {
+        IN_HOUSE, //                    StreamingFileUploader with pre-encoded frames
+        MANAGER_ENCODED, //             StreamingFileUploader handing payload-maps over to FsManager.send()
+        NORDIC_FILE_UPLOADER //         io.runtime.mcumgr.transfer.FileUploader
+    }
+
+    @Test
+    public void uploadAsync_ShouldAllocateLessPerMegabyte_GivenPreEncodedFrames() throws Exception
+    {
+        // Arrange
+        final byte[] data = createData(MEGABYTES_TO_UPLOAD * MEGABYTE);
+        final byte[] warmUpData = createData(MEGABYTES_TO_WARM_UP_WITH * MEGABYTE);
+        for (final Engine engine : Engine.values()) // lets the jit settle before we start measuring
+        {
+            upload(engine, warmUpData);
+        }
+
+        // Act
+        final Measurement inHouse = upload(Engine.IN_HOUSE, data);
+        final Measurement managerEncoded = upload(Engine.MANAGER_ENCODED, data);
+        final Measurement nordicFileUploader = upload(Engine.NORDIC_FILE_UPLOADER, data);
+
+        // Assert
+        inHouse.print();
+        managerEncoded.print();
+        nordicFileUploader.print();
+
+        assertTrue(inHouse.getAllocatedBytesPerMegabyte() < managerEncoded.getAllocatedBytesPerMegabyte());
+        assertTrue(inHouse.getAllocatedBytesPerMegabyte() < nordicFileUploader.getAllocatedBytesPerMegabyte());
+    }
+
+    private static Measurement upload(final Engine engine, final byte[] data) throws Exception
+    {
+        final LoopbackTransport loopbackTransport = new LoopbackTransport();
+        final FsManager fsManager = new FsManager(loopbackTransport.asMcuMgrTransport())
+        {
+            @Override
+            public int getMtu()
+            {
+                return MTU;
+            }
+        };
+
+        final CountDownLatch completionLatch = new CountDownLatch(1);
+        final AtomicReference<McuMgrException> failure = new AtomicReference<>();
+        final UploadCallback callback = new UploadCallback()
+        {
+            @Override
+            public void onUploadProgressChanged(final int bytesSent, final int totalBytes, final long timestamp)
+            {
+            }
+
+            @Override
+            public void onUploadFailed(final McuMgrException error)
+            {
+                failure.set(error);
+                completionLatch.countDown();
+            }
+
+            @Override
+            public void onUploadCanceled()
+            {
+                completionLatch.countDown();
+            }
+
+            @Override
+            public void onUploadCompleted()
+            {
+                completionLatch.countDown();
+            }
+        };
+
+        final long allocatedBytesBefore = getAllocatedBytesOfAllThreads();
+        final long startTimestampInNanos = System.nanoTime();
+
+        if (engine == Engine.NORDIC_FILE_UPLOADER)
+        {
+            new FileUploader(fsManager, REMOTE_FILE_PATH, data, WINDOW_CAPACITY, 1).uploadAsync(callback);
+        }
+        else
+        {
+            final StreamingFileUploader uploader = new StreamingFileUploader(fsManager, REMOTE_FILE_PATH, AndroidFileUploadSource.fromBytes(data), WINDOW_CAPACITY, 1, callback);
+            if (engine == Engine.IN_HOUSE)
+            {
+                uploader.setUsesPreEncodedFrames();
+            }
+
+            uploader.uploadAsync();
+        }
+
+        final boolean hasFinished = completionLatch.await(2, TimeUnit.MINUTES);
+
+        final long elapsedNanos = System.nanoTime() - startTimestampInNanos;
+        final long allocatedBytes = getAllocatedBytesOfAllThreads() - allocatedBytesBefore; //00
+
+        loopbackTransport.shutdown();
+
+        assertTrue(hasFinished);
+        assertNull(failure.get());
+
+        return new Measurement(engine, data.length, loopbackTransport.getFramesCount(), elapsedNanos, allocatedBytes);
+
+        //00   before shutting down the transport so that its thread is still alive and accounted for
+    }
+
+    private static long getAllocatedBytesOfAllThreads()
+    {
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        long sum = 0;
+        for (final long allocatedBytes : threadMXBean.getThreadAllocatedBytes(threadMXBean.getAllThreadIds()))
+        {
+            sum += Math.max(0, allocatedBytes); // -1 for threads that died in the meantime
+        }
+
+        return sum;
+    }
+
+    private static byte[] createData(final int length)
+    {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = (byte) (i * 31 + 7);
+        }
+
+        return data;
+    }
+
+    private static final class Measurement
+    {
+        private final Engine _engine;
+        private final long _bytesCount;
+        private final int _framesCount;
+        private final long _elapsedNanos;
+        private final long _allocatedBytes;
+
+        Measurement(final Engine engine, final long bytesCount, final int framesCount, final long elapsedNanos, final long allocatedBytes)
+        {
+            _engine = engine;
+            _bytesCount = bytesCount;
+            _framesCount = framesCount;
+            _elapsedNanos = elapsedNanos;
+            _allocatedBytes = allocatedBytes;
+        }
+
+        long getAllocatedBytesPerMegabyte()
+        {
+            return _allocatedBytes * MEGABYTE / _bytesCount;
+        }
+
+        void print()
+        {
+            final double elapsedSeconds = _elapsedNanos / 1_000_000_000.0;
+
+            System.out.printf(
+                    "%-22s %,12d bytes allocated per MB %,10.0f frames/sec %8.2f MB/sec%n",
+                    _engine,
+                    getAllocatedBytesPerMegabyte(),
+                    _framesCount / elapsedSeconds,
+                    _bytesCount / (double) MEGABYTE / elapsedSeconds
+            );
+        }
+    }
+
+    /**
+     * Acknowledges each write-request with the offset that follows its data. The frames get parsed in place so that the transport itself
+     * allocates as little as possible (the same for all engines anyway).
+     */
+    private static final class LoopbackTransport
+    {
+        private static final int SMP_HEADER_LENGTH = 8;
+        private static final int CBOR_INDEFINITE_LENGTH_MAP = 0xBF;
+        private static final int CBOR_BREAK = 0xFF;
+
+        private final ExecutorService _bleThread = Executors.newSingleThreadExecutor();
+        private final AtomicInteger _framesCount = new AtomicInteger();
+
+        private int _position; // only ever touched on the ble-thread
+
+        McuMgrTransport asMcuMgrTransport() // a proxy instead of a mockito-mock because mockito records each invocation and that would swamp the allocations we measure
+        {
+            return (McuMgrTransport) Proxy.newProxyInstance(McuMgrTransport.class.getClassLoader(), new Class<?>[]{McuMgrTransport.class}, (proxy, method, args) ->
+            {
+                if (method.getName().equals("send") && args != null && args[0] instanceof byte[] && args[args.length - 1] instanceof McuMgrCallback)
+                {
+                    send((byte[]) args[0], (McuMgrCallback<?>) args[args.length - 1]);
+                    return null;
+                }
+
+                switch (method.getName())
+                {
+                    case "getScheme":
+                        return McuMgrScheme.BLE;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "LoopbackTransport";
+                    default:
+                        return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                }
+            });
+        }
+
+        int getFramesCount()
+        {
+            return _framesCount.get();
+        }
+
+        void shutdown()
+        {
+            _bleThread.shutdown();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void send(final byte[] frame, final McuMgrCallback<?> callback)
+        {
+            _framesCount.incrementAndGet();
+            _bleThread.execute(() ->
+            {
+                final McuMgrFsUploadResponse response = new McuMgrFsUploadResponse();
+                response.off = (int) parseEndOffset(frame);
+
+                ((McuMgrCallback<McuMgrFsUploadResponse>) callback).onResponse(response);
+            });
+        }
+
+        private long parseEndOffset(final byte[] frame) // the offset that follows the data of the given write-request
+        {
+            _position = SMP_HEADER_LENGTH;
+
+            final boolean isIndefiniteLengthMap = (frame[_position] & 0xFF) == CBOR_INDEFINITE_LENGTH_MAP;
+            long entriesLeft = isIndefiniteLengthMap ? Long.MAX_VALUE : readHead(frame);
+            if (isIndefiniteLengthMap)
+            {
+                _position++;
+            }
+
+            long offset = 0;
+            long dataLength = 0;
+            while (entriesLeft-- > 0 && (frame[_position] & 0xFF) != CBOR_BREAK)
+            {
+                final int keyLength = (int) readHead(frame);
+                final byte keyFirstCharacter = frame[_position];
+                _position += keyLength;
+
+                final int valueMajorType = (frame[_position] & 0xFF) >>> 5;
+                final long value = readHead(frame);
+                if (valueMajorType == 2 || valueMajorType == 3) // byte- and text-strings carry their bytes right after the head
+                {
+                    _position += (int) value;
+                }
+
+                if (keyLength == 3 && keyFirstCharacter == 'o')
+                {
+                    offset = value;
+                }
+                else if (keyLength == 4 && keyFirstCharacter == 'd')
+                {
+                    dataLength = value;
+                }
+            }
+
+            return offset + dataLength;
+        }
+
+        private long readHead(final byte[] frame) // the argument of the cbor-head at the current position (the length for strings)
+        {
+            final int additionalInfo = frame[_position++] & 0x1F;
+            if (additionalInfo < 24)
+                return additionalInfo;
+
+            long value = 0;
+            for (int i = 0, length = 1 << (additionalInfo - 24); i < length; i++)
+            {
+                value = (value << 8) | (frame[_position++] & 0xFF);
+            }
+
+            return value;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import io.runtime.mcumgr.McuMgrTransport;
+import io.runtime.mcumgr.util.CBOR;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+public class SmpFileUploadFramePoolTest
+{
+    private static final String REMOTE_FILE_PATH = "/lfs1/data/some-file.bin";
+
+    @Test
+    public void acquire_ShouldReuseReleasedFrame_GivenSameFrameLength()
+    {
+        // Arrange
+        final SmpFileUploadFramePool pool = new SmpFileUploadFramePool(mock(McuMgrTransport.class), REMOTE_FILE_PATH, 4);
+        final byte[] firstFrame = pool.acquire(1_000, 200, 100_000);
+        pool.release(firstFrame);
+
+        // Act
+        final byte[] secondFrame = pool.acquire(1_200, 200, 100_000);
+
+        // Assert
+        assertSame(firstFrame, secondFrame);
+    }
+
+    @Test
+    public void acquire_ShouldAllocateFreshFrame_GivenReleasedFrameOfDifferentLength()
+    {
+        // Arrange
+        final SmpFileUploadFramePool pool = new SmpFileUploadFramePool(mock(McuMgrTransport.class), REMOTE_FILE_PATH, 4);
+        final byte[] firstFrame = pool.acquire(1_000, 200, 100_000);
+        pool.release(firstFrame);
+
+        // Act
+        final byte[] secondFrame = pool.acquire(1_200, 100, 100_000); // shorter last chunk
+
+        // Assert
+        assertNotSame(firstFrame, secondFrame);
+    }
+
+    @Test
+    public void release_ShouldDropFrames_GivenPoolIsFull()
+    {
+        // Arrange
+        final SmpFileUploadFramePool pool = new SmpFileUploadFramePool(mock(McuMgrTransport.class), REMOTE_FILE_PATH, 1);
+        final byte[] firstFrame = pool.acquire(1_000, 200, 100_000);
+        final byte[] secondFrame = pool.acquire(1_200, 200, 100_000);
+
+        // Act
+        pool.release(firstFrame);
+        pool.release(secondFrame); // beyond the limit
+
+        // Assert
+        assertSame(firstFrame, pool.acquire(1_400, 200, 100_000));
+        assertNotSame(secondFrame, pool.acquire(1_600, 200, 100_000));
+    }
+
+    @Test
+    public void acquire_ShouldEncodeSameCborAsManager_GivenFirstChunk() throws Exception
+    {
+        assertEncodesSameCborAsManager(0, 300, 70_000); // the very first chunk carries 'len' too
+    }
+
+    @Test
+    public void acquire_ShouldEncodeSameCborAsManager_GivenChunksWithVariousOffsetWidths() throws Exception
+    {
+        assertEncodesSameCborAsManager(20, 10, 100_000); //          offset fits in the initial byte
+        assertEncodesSameCborAsManager(200, 10, 100_000); //         one extra byte
+        assertEncodesSameCborAsManager(60_000, 300, 100_000); //     two extra bytes
+        assertEncodesSameCborAsManager(99_700, 300, 100_000); //     four extra bytes
+    }
+
+    @Test
+    public void acquire_ShouldFillInSmpHeader()
+    {
+        // Arrange
+        final SmpFileUploadFramePool pool = new SmpFileUploadFramePool(mock(McuMgrTransport.class), REMOTE_FILE_PATH, 4);
+
+        // Act
+        final byte[] frame = pool.acquire(1_000, 200, 100_000);
+
+        // Assert
+        final int cborLength = frame.length - 8;
+        assertEquals(2, frame[0]); //                                       op: write
+        assertEquals(0, frame[1]); //                                       flags
+        assertEquals(cborLength, ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF));
+        assertEquals(8, ((frame[4] & 0xFF) << 8) | (frame[5] & 0xFF)); //   group: fs
+        assertEquals(McuMgrFsHelpers.SMP_FS_FILE_COMMAND_ID, frame[7]);
+        assertEquals((byte) 0xBF, frame[8]); //                             indefinite-length map
+        assertEquals((byte) 0xFF, frame[frame.length - 1]); //              break
+        assertEquals(frame.length - 1 - 200, SmpFileUploadFramePool.getDataOffset(frame, 200));
+    }
+
+    @Test
+    public void acquire_ShouldHandOutDistinctSequenceNumbers_GivenPoolsSharingTransport()
+    {
+        // Arrange
+        final McuMgrTransport transport = mock(McuMgrTransport.class);
+        final SmpFileUploadFramePool pool1 = new SmpFileUploadFramePool(transport, "/lfs1/file1.bin", 4);
+        final SmpFileUploadFramePool pool2 = new SmpFileUploadFramePool(transport, "/lfs1/file2.bin", 4);
+
+        // Act
+        final int sequenceNumber1 = pool1.acquire(1_000, 200, 100_000)[6] & 0xFF;
+        final int sequenceNumber2 = pool2.acquire(1_000, 200, 100_000)[6] & 0xFF;
+        final int sequenceNumber3 = pool1.acquire(1_200, 200, 100_000)[6] & 0xFF;
+
+        // Assert
+        assertNotEquals(sequenceNumber1, sequenceNumber2);
+        assertEquals((sequenceNumber1 + 1) & 0xFF, sequenceNumber2);
+        assertEquals((sequenceNumber2 + 1) & 0xFF, sequenceNumber3);
+    }
+
+    private static void assertEncodesSameCborAsManager(final long offset, final int dataLength, final long totalLength) throws Exception
+    {
+        // Arrange
+        final byte[] data = new byte[dataLength];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (byte) (i * 31 + 7);
+        }
+
+        final Map<String, Object> payload = new LinkedHashMap<>(); // cbor maps are unordered so we use the order in which the pool writes the entries
+        payload.put("name", REMOTE_FILE_PATH);
+        payload.put("off", offset);
+        if (offset == 0)
+        {
+            payload.put("len", totalLength);
+        }
+        payload.put("data", data);
+
+        final SmpFileUploadFramePool pool = new SmpFileUploadFramePool(mock(McuMgrTransport.class), REMOTE_FILE_PATH, 4);
+
+        // Act
+        final byte[] frame = pool.acquire(offset, dataLength, totalLength);
+        System.arraycopy(data, 0, frame, SmpFileUploadFramePool.getDataOffset(frame, dataLength), dataLength);
+
+        // Assert
+        assertArrayEquals(CBOR.toBytes(payload), Arrays.copyOfRange(frame, 8, frame.length)); // the very encoder that the managers use
+    }
+}
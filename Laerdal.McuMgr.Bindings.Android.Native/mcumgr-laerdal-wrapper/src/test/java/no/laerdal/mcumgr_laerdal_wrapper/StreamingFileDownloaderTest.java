@@ -0,0 +1,166 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.exception.McuMgrTimeoutException;
+import io.runtime.mcumgr.transfer.DownloadCallback;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingFileDownloaderTest
+{
+    private static final String REMOTE_FILE_PATH = "/lfs1/data/some-file.bin";
+
+    private final byte[] _remoteFileContents = createData(450); // four full chunks of 100 bytes and a last one of 50 bytes
+
+    private FakeFsManager _fsManager;
+    private RecordingCallback _callback;
+    private AtomicReference<Boolean> _detectedPipeliningSupport;
+
+    @Before
+    public void setUp()
+    {
+        _fsManager = new FakeFsManager();
+        _fsManager.putFile(REMOTE_FILE_PATH, _remoteFileContents);
+        _fsManager.setDownloadChunkLength(100);
+        _fsManager.setHoldsFileRequests(true);
+
+        _callback = new RecordingCallback();
+        _detectedPipeliningSupport = new AtomicReference<>();
+    }
+
+    @Test
+    public void downloadAsync_ShouldReassembleChunksInOrder_GivenResponsesArriveOutOfOrder() throws Exception
+    {
+        // Arrange
+        final StreamingFileDownloader downloader = createPipeliningDownloader();
+        downloader.downloadAsync();
+        _fsManager.respond(_fsManager.findHeldFileRequest(REMOTE_FILE_PATH, 0)); // the offsets become predictable with the first response
+
+        // Act
+        int maxRequestsInFlight = 0;
+        for (List<FakeFsManager.FileRequest> heldRequests = _fsManager.getHeldFileRequests(); !heldRequests.isEmpty(); heldRequests = _fsManager.getHeldFileRequests())
+        {
+            maxRequestsInFlight = Math.max(maxRequestsInFlight, heldRequests.size());
+            for (int i = heldRequests.size() - 1; i >= 0; i--) // newest first
+            {
+                _fsManager.respond(heldRequests.get(i));
+            }
+        }
+
+        // Assert
+        assertTrue(maxRequestsInFlight > 1);
+        assertEquals(Boolean.TRUE, _detectedPipeliningSupport.get());
+        assertNull(_callback.failure.get());
+        assertArrayEquals(_remoteFileContents, _callback.completedData.get());
+    }
+
+    @Test
+    public void downloadAsync_ShouldFallBackToStopAndWait_GivenTimeoutWhileProbingForPipelining() throws Exception
+    {
+        // Arrange
+        final StreamingFileDownloader downloader = createPipeliningDownloader();
+        downloader.downloadAsync();
+        _fsManager.respond(_fsManager.findHeldFileRequest(REMOTE_FILE_PATH, 0));
+
+        final FakeFsManager.FileRequest probingRequest1 = _fsManager.findHeldFileRequest(REMOTE_FILE_PATH, 100);
+        final FakeFsManager.FileRequest probingRequest2 = _fsManager.findHeldFileRequest(REMOTE_FILE_PATH, 200);
+        assertNotNull(probingRequest1);
+        assertNotNull(probingRequest2);
+
+        // Act
+        _fsManager.fail(probingRequest1, new McuMgrTimeoutException());
+        _fsManager.respond(probingRequest2); // arrives late   must be of no consequence
+
+        int maxRequestsInFlight = 0;
+        for (List<FakeFsManager.FileRequest> heldRequests = _fsManager.getHeldFileRequests(); !heldRequests.isEmpty(); heldRequests = _fsManager.getHeldFileRequests())
+        {
+            maxRequestsInFlight = Math.max(maxRequestsInFlight, heldRequests.size());
+            _fsManager.respond(heldRequests.get(0));
+        }
+
+        // Assert
+        assertEquals(1, maxRequestsInFlight);
+        assertEquals(Boolean.FALSE, _detectedPipeliningSupport.get());
+        assertNull(_callback.failure.get());
+        assertArrayEquals(_remoteFileContents, _callback.completedData.get());
+    }
+
+    @Test
+    public void downloadAsync_ShouldRewindToActualOffset_GivenShortChunkInTheMiddleOfTheFile() throws Exception
+    {
+        // Arrange
+        final StreamingFileDownloader downloader = createPipeliningDownloader();
+        downloader.downloadAsync();
+        _fsManager.respond(_fsManager.findHeldFileRequest(REMOTE_FILE_PATH, 0));
+
+        // Act
+        _fsManager.respond(_fsManager.findHeldFileRequest(REMOTE_FILE_PATH, 100), 60); // the request for offset 200 that is in flight doesn't line up anymore
+
+        final FakeFsManager.FileRequest rewoundRequest = _fsManager.findHeldFileRequest(REMOTE_FILE_PATH, 160);
+        for (List<FakeFsManager.FileRequest> heldRequests = _fsManager.getHeldFileRequests(); !heldRequests.isEmpty(); heldRequests = _fsManager.getHeldFileRequests())
+        {
+            _fsManager.respond(heldRequests.get(0));
+        }
+
+        // Assert
+        assertNotNull(rewoundRequest);
+        assertNull(_callback.failure.get());
+        assertArrayEquals(_remoteFileContents, _callback.completedData.get());
+    }
+
+    private StreamingFileDownloader createPipeliningDownloader()
+    {
+        final StreamingFileDownloader downloader = new StreamingFileDownloader(_fsManager, REMOTE_FILE_PATH, new ByteArrayFileDownloadSink(), _callback);
+        downloader.setPipelining(4, _detectedPipeliningSupport::set);
+
+        return downloader;
+    }
+
+    private static byte[] createData(final int length)
+    {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = (byte) (i * 31 + 7);
+        }
+
+        return data;
+    }
+
+    private static final class RecordingCallback implements DownloadCallback
+    {
+        final AtomicReference<byte[]> completedData = new AtomicReference<>();
+        final AtomicReference<McuMgrException> failure = new AtomicReference<>();
+
+        @Override
+        public void onDownloadProgressChanged(final int bytesReceivedSoFar, final int totalBytes, final long timestamp)
+        {
+        }
+
+        @Override
+        public void onDownloadFailed(final McuMgrException error)
+        {
+            failure.set(error);
+        }
+
+        @Override
+        public void onDownloadCanceled()
+        {
+        }
+
+        @Override
+        public void onDownloadCompleted(final byte[] data)
+        {
+            completedData.set(data);
+        }
+    }
+}
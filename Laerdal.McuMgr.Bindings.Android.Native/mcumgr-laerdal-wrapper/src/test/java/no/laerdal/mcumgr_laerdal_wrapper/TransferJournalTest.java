@@ -0,0 +1,180 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransferJournalTest
+{
+    private static final String JOURNAL_FILE_NAME = "transfers.journal";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void open_ShouldLoadLatestEntries_GivenJournalOfPreviousRun() throws Exception
+    {
+        // Arrange
+        final File directory = writeJournal(
+                "{\"key\":\"a\",\"acknowledged_offset\":100,\"total_length\":1000,\"updated_at_in_ms\":1}",
+                "{\"key\":\"b\",\"acknowledged_offset\":50,\"total_length\":500,\"updated_at_in_ms\":2}",
+                "{\"key\":\"a\",\"acknowledged_offset\":200,\"total_length\":1000,\"updated_at_in_ms\":3}"
+        );
+
+        // Act
+        final TransferJournal journal = TransferJournal.open(directory);
+
+        // Assert
+        assertEquals(200, journal.getAcknowledgedOffset("a"));
+        assertEquals(1000, journal.getTotalLength("a"));
+        assertEquals(50, journal.getAcknowledgedOffset("b"));
+        assertEquals(500, journal.getTotalLength("b"));
+    }
+
+    @Test
+    public void open_ShouldIgnoreTornLastLine_GivenProcessDiedWhileAppending() throws Exception
+    {
+        // Arrange
+        final File directory = writeJournal(
+                "{\"key\":\"a\",\"acknowledged_offset\":100,\"total_length\":1000,\"updated_at_in_ms\":1}",
+                "{\"key\":\"b\",\"acknowledged_offs"
+        );
+
+        // Act
+        final TransferJournal journal = TransferJournal.open(directory);
+
+        // Assert
+        assertEquals(100, journal.getAcknowledgedOffset("a"));
+        assertEquals(-1, journal.getTotalLength("b"));
+        assertEquals(1, readJournalLines(directory).size()); // the torn line got compacted away
+    }
+
+    @Test
+    public void open_ShouldDropRemovedTransfers_GivenTombstones() throws Exception
+    {
+        // Arrange
+        final File directory = writeJournal(
+                "{\"key\":\"a\",\"acknowledged_offset\":100,\"total_length\":1000,\"updated_at_in_ms\":1}",
+                "{\"key\":\"b\",\"acknowledged_offset\":50,\"total_length\":500,\"updated_at_in_ms\":2}",
+                "{\"key\":\"a\",\"acknowledged_offset\":-1,\"total_length\":-1,\"updated_at_in_ms\":3}"
+        );
+
+        // Act
+        final TransferJournal journal = TransferJournal.open(directory);
+
+        // Assert
+        assertEquals(0, journal.getAcknowledgedOffset("a"));
+        assertEquals(-1, journal.getTotalLength("a"));
+        assertEquals(50, journal.getAcknowledgedOffset("b"));
+        assertEquals(1, readJournalLines(directory).size()); // the tombstone and the entry it buried got compacted away
+    }
+
+    @Test
+    public void remove_ShouldAppendTombstone_GivenTransferInJournal() throws Exception
+    {
+        // Arrange
+        final File directory = temporaryFolder.newFolder();
+        final TransferJournal journal = TransferJournal.open(directory);
+        journal.update("a", 100, 1000);
+        journal.update("b", 50, 500);
+
+        // Act
+        journal.remove("a");
+
+        // Assert
+        final TransferJournal journalOfNextRun = TransferJournal.open(copyJournalToNewDirectory(directory));
+        assertEquals(-1, journalOfNextRun.getTotalLength("a"));
+        assertEquals(50, journalOfNextRun.getAcknowledgedOffset("b"));
+    }
+
+    @Test
+    public void remove_ShouldDeleteSpoolFile_GivenDownloadInJournal() throws Exception
+    {
+        // Arrange
+        final TransferJournal journal = TransferJournal.open(temporaryFolder.newFolder());
+        journal.update("a", 100, 1000);
+
+        final File spoolFile = journal.getSpoolFile("a");
+        assertTrue(spoolFile.createNewFile());
+
+        // Act
+        journal.remove("a");
+
+        // Assert
+        assertFalse(spoolFile.exists());
+    }
+
+    @Test
+    public void update_ShouldCompactJournal_GivenEnoughAppendedLines() throws Exception
+    {
+        // Arrange
+        final File directory = temporaryFolder.newFolder();
+        final TransferJournal journal = TransferJournal.open(directory);
+
+        // Act
+        for (int i = 1; i <= 300; i++)
+        {
+            journal.update("a", i * 32 * 1024L, 300 * 32 * 1024L); // big enough steps for each update to get persisted
+        }
+
+        // Assert
+        assertEquals(300 - 256 + 1, readJournalLines(directory).size()); // the snapshot plus the lines appended after it
+
+        final TransferJournal journalOfNextRun = TransferJournal.open(copyJournalToNewDirectory(directory));
+        assertEquals(300 * 32 * 1024L, journalOfNextRun.getAcknowledgedOffset("a"));
+    }
+
+    @Test
+    public void update_ShouldNotPersistUpdate_GivenTinyStepShortlyAfterPreviousOne() throws Exception
+    {
+        // Arrange
+        final File directory = temporaryFolder.newFolder();
+        final TransferJournal journal = TransferJournal.open(directory);
+        journal.update("a", 1_000, 100_000);
+
+        // Act
+        journal.update("a", 1_200, 100_000);
+
+        // Assert
+        assertEquals(1_200, journal.getAcknowledgedOffset("a"));
+        assertEquals(1, readJournalLines(directory).size());
+
+        final TransferJournal journalOfNextRun = TransferJournal.open(copyJournalToNewDirectory(directory));
+        assertEquals(1_000, journalOfNextRun.getAcknowledgedOffset("a")); // resuming from an older offset merely re-sends a few bytes
+    }
+
+    private File writeJournal(final String... lines) throws IOException
+    {
+        final File directory = temporaryFolder.newFolder();
+        try (final FileOutputStream stream = new FileOutputStream(new File(directory, JOURNAL_FILE_NAME)))
+        {
+            stream.write(String.join("\n", lines).getBytes(StandardCharsets.UTF_8)); // no trailing newline just like a torn append
+        }
+
+        return directory;
+    }
+
+    private File copyJournalToNewDirectory(final File directory) throws IOException // journals are cached per directory so this is how we emulate the next run of the process
+    {
+        final File newDirectory = temporaryFolder.newFolder();
+        Files.copy(new File(directory, JOURNAL_FILE_NAME).toPath(), new File(newDirectory, JOURNAL_FILE_NAME).toPath());
+
+        return newDirectory;
+    }
+
+    private static List<String> readJournalLines(final File directory) throws IOException
+    {
+        return Files.readAllLines(new File(directory, JOURNAL_FILE_NAME).toPath(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,137 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransferPreemptionSchedulerTest
+{
+    private static final String DEVICE_ADDRESS = "AA:BB:CC:DD:EE:FF";
+
+    @Test
+    public void runPreemptively_ShouldPauseAndLaterResumeTransfer_GivenTransferInProgress()
+    {
+        // Arrange
+        final FakeTransfer transfer = new FakeTransfer(true);
+        TransferPreemptionScheduler.register(DEVICE_ADDRESS, transfer);
+
+        final List<Runnable> pendingCompletions = new ArrayList<>();
+        final AtomicInteger reportedPreemptedTransfersCount = new AtomicInteger(-1);
+
+        // Act
+        TransferPreemptionScheduler.runPreemptively(DEVICE_ADDRESS, pendingCompletions::add, (count, durationInMs) -> reportedPreemptedTransfersCount.set(count));
+        final boolean wasPausedDuringCommand = transfer.isPaused;
+        pendingCompletions.get(0).run();
+
+        // Assert
+        assertTrue(wasPausedDuringCommand);
+        assertFalse(transfer.isPaused);
+        assertEquals(1, reportedPreemptedTransfersCount.get());
+
+        TransferPreemptionScheduler.unregister(DEVICE_ADDRESS, transfer);
+    }
+
+    @Test
+    public void runPreemptively_ShouldLeaveTransferAlone_GivenTransferIsNotInProgress()
+    {
+        // Arrange
+        final FakeTransfer transfer = new FakeTransfer(false);
+        TransferPreemptionScheduler.register(DEVICE_ADDRESS, transfer);
+
+        // Act
+        TransferPreemptionScheduler.runPreemptively(DEVICE_ADDRESS, Runnable::run, (count, durationInMs) -> { });
+
+        // Assert
+        assertEquals(0, transfer.pausesCount);
+        assertEquals(0, transfer.resumesCount);
+
+        TransferPreemptionScheduler.unregister(DEVICE_ADDRESS, transfer);
+    }
+
+    @Test
+    public void runPreemptively_ShouldNotResumeTransfer_GivenCallingEnvironmentTookOverDuringCommand()
+    {
+        // Arrange
+        final FakeTransfer transfer = new FakeTransfer(true);
+        TransferPreemptionScheduler.register(DEVICE_ADDRESS, transfer);
+
+        final List<Runnable> pendingCompletions = new ArrayList<>();
+        TransferPreemptionScheduler.runPreemptively(DEVICE_ADDRESS, pendingCompletions::add, (count, durationInMs) -> { });
+
+        // Act
+        transfer.clearPreemption(); // what tryPause()/tryResume() of the uploaders and downloaders do
+        pendingCompletions.get(0).run();
+
+        // Assert
+        assertTrue(transfer.isPaused);
+        assertEquals(0, transfer.resumesCount);
+
+        TransferPreemptionScheduler.unregister(DEVICE_ADDRESS, transfer);
+    }
+
+    @Test
+    public void runPreemptively_ShouldResumeTransferOnlyOnce_GivenOverlappingCommands()
+    {
+        // Arrange
+        final FakeTransfer transfer = new FakeTransfer(true);
+        TransferPreemptionScheduler.register(DEVICE_ADDRESS, transfer);
+
+        final List<Runnable> pendingCompletions = new ArrayList<>();
+        TransferPreemptionScheduler.runPreemptively(DEVICE_ADDRESS, pendingCompletions::add, (count, durationInMs) -> { });
+        TransferPreemptionScheduler.runPreemptively(DEVICE_ADDRESS, pendingCompletions::add, (count, durationInMs) -> { });
+
+        // Act
+        pendingCompletions.get(0).run();
+        final boolean isPausedAfterFirstCommand = transfer.isPaused;
+        pendingCompletions.get(1).run();
+
+        // Assert
+        assertTrue(isPausedAfterFirstCommand);
+        assertFalse(transfer.isPaused);
+        assertEquals(1, transfer.pausesCount);
+        assertEquals(1, transfer.resumesCount);
+
+        TransferPreemptionScheduler.unregister(DEVICE_ADDRESS, transfer);
+    }
+
+    private static final class FakeTransfer extends TransferPreemptionScheduler.PreemptibleTransfer
+    {
+        private final boolean _isTransferring;
+
+        boolean isPaused;
+        int pausesCount;
+        int resumesCount;
+
+        FakeTransfer(final boolean isTransferring)
+        {
+            _isTransferring = isTransferring;
+        }
+
+        @Override
+        boolean isTransferring()
+        {
+            return _isTransferring;
+        }
+
+        @Override
+        boolean pauseTransferController()
+        {
+            isPaused = true;
+            pausesCount++;
+            return true;
+        }
+
+        @Override
+        void resumeTransferController()
+        {
+            isPaused = false;
+            resumesCount++;
+        }
+    }
+}
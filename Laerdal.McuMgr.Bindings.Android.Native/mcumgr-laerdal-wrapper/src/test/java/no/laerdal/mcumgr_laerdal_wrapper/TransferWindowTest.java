@@ -0,0 +1,169 @@
+package no.laerdal.mcumgr_laerdal_wrapper;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransferWindowTest
+{
+    @Test
+    public void tryAcquire_ShouldRefuse_GivenWindowIsFull()
+    {
+        // Arrange
+        final TransferWindow window = new TransferWindow(2);
+
+        // Act
+        final boolean isFirstAcquired = window.tryAcquire();
+        final boolean isSecondAcquired = window.tryAcquire();
+        final boolean isThirdAcquired = window.tryAcquire();
+
+        // Assert
+        assertTrue(isFirstAcquired);
+        assertTrue(isSecondAcquired);
+        assertFalse(isThirdAcquired);
+        assertEquals(2, window.getPacketsInFlight());
+    }
+
+    @Test
+    public void release_ShouldFreeSlotAndSettleBytes_GivenPacketWasSent()
+    {
+        // Arrange
+        final TransferWindow window = new TransferWindow(1);
+        window.tryAcquire();
+        window.onPacketSent(200, /*isRetransmission*/ true);
+
+        // Act
+        window.release(200);
+
+        // Assert
+        assertTrue(window.tryAcquire());
+        assertEquals(0, window.getBytesInFlight());
+        assertEquals(1, window.getRetransmissionsCount());
+    }
+
+    @Test
+    public void onPacketAcknowledged_ShouldGrowCapacityByOne_GivenFullWindowOfFlatLatencyAcks()
+    {
+        // Arrange
+        final List<Integer> reportedCapacities = new ArrayList<>();
+        final TransferWindow window = TransferWindow.adaptive(4, reportedCapacities::add);
+
+        // Act
+        for (int i = 0; i < 1 + 2 + 3 + 4; i++) // one more ack than it takes to reach the max-capacity
+        {
+            window.onPacketAcknowledged(10);
+        }
+
+        // Assert
+        assertEquals(4, window.getCapacity());
+        assertEquals(Arrays.asList(2, 3, 4), reportedCapacities);
+    }
+
+    @Test
+    public void onPacketAcknowledged_ShouldHoldCapacitySteady_GivenLatencySpike()
+    {
+        // Arrange
+        final TransferWindow window = TransferWindow.adaptive(8, newCapacity -> { });
+        window.onPacketAcknowledged(10); // baseline   grows to 2
+        window.onPacketAcknowledged(10);
+
+        // Act
+        window.onPacketAcknowledged(100); // way above 1.5 x baseline + slack
+        window.onPacketAcknowledged(10);
+
+        // Assert
+        assertEquals(2, window.getCapacity()); // the spike reset the count of flat acks so one more flat ack is not enough to grow
+    }
+
+    @Test
+    public void onCongestion_ShouldHalveCapacity_GivenAdaptiveWindow()
+    {
+        // Arrange
+        final List<Integer> reportedCapacities = new ArrayList<>();
+        final TransferWindow window = TransferWindow.adaptive(8, reportedCapacities::add);
+        for (int i = 0; i < 1 + 2 + 3 + 4 + 5; i++) // grows to 6
+        {
+            window.onPacketAcknowledged(10);
+        }
+        reportedCapacities.clear();
+
+        // Act
+        window.onCongestion();
+        window.onCongestion();
+        window.onCongestion();
+        window.onCongestion(); // already at the floor
+
+        // Assert
+        assertEquals(1, window.getCapacity());
+        assertEquals(Arrays.asList(3, 1), reportedCapacities);
+    }
+
+    @Test
+    public void onPacketAcknowledged_ShouldBeIgnored_GivenFixedWindow()
+    {
+        // Arrange
+        final TransferWindow window = new TransferWindow(4);
+
+        // Act
+        window.onPacketAcknowledged(10);
+        window.onCongestion();
+
+        // Assert
+        assertEquals(4, window.getCapacity());
+    }
+
+    @Test
+    public void tryAcquire_ShouldHonourPacketsCap_GivenCapBelowCapacity()
+    {
+        // Arrange
+        final TransferWindow window = new TransferWindow(8);
+
+        // Act
+        window.setQualityOfServiceCaps(0, 2);
+
+        // Assert
+        assertTrue(window.tryAcquire());
+        assertTrue(window.tryAcquire());
+        assertFalse(window.tryAcquire());
+    }
+
+    @Test
+    public void tryAcquire_ShouldRefuse_GivenTokenBucketIsDrained()
+    {
+        // Arrange
+        final TransferWindow window = new TransferWindow(8);
+        window.setQualityOfServiceCaps(10_000, 0); // the bucket holds 1000 bytes
+        assertTrue(window.tryAcquire());
+
+        // Act
+        window.onPacketSent(2_000, /*isRetransmission*/ false); // packets get sent whole so the bucket goes ~1000 bytes into the red
+
+        // Assert
+        assertFalse(window.tryAcquire());
+
+        final long millisUntilBandwidthIsAvailable = window.getMillisUntilBandwidthIsAvailable();
+        assertTrue(millisUntilBandwidthIsAvailable > 0);
+        assertTrue(millisUntilBandwidthIsAvailable <= 101); // 1000 bytes at 10000 bytes/sec   plus one for good measure
+    }
+
+    @Test
+    public void getMillisUntilBandwidthIsAvailable_ShouldBeZero_GivenNoBandwidthCap()
+    {
+        // Arrange
+        final TransferWindow window = new TransferWindow(8);
+        window.tryAcquire();
+
+        // Act
+        window.onPacketSent(1_000_000, /*isRetransmission*/ false);
+
+        // Assert
+        assertEquals(0, window.getMillisUntilBandwidthIsAvailable());
+        assertTrue(window.tryAcquire());
+    }
+}